@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server for the benchmarks.  Serves a Fedora datastream profile and content
+ * for any pid/datastream under /fedora/, and WebDAV GET/PUT/MKCOL under /webdav/, all backed
+ * by one in-memory payload.
+ * @author wpalmer
+ *
+ */
+public class BenchmarkServer {
+
+	/** label (and so local file name) of the served datastream */
+	public static final String LABEL = "payload.bin";
+
+	private HttpServer gServer;
+	private ExecutorService gExecutor;
+	private byte[] gPayload;
+	private String gChecksum;
+
+	/**
+	 * Start a server on a free port on the loopback interface
+	 * @param pPayloadSize size of the served content in bytes
+	 * @throws IOException if the server cannot be started
+	 */
+	public BenchmarkServer(int pPayloadSize) throws IOException {
+		gPayload = new byte[pPayloadSize];
+		new Random(42).nextBytes(gPayload);
+		try {
+			gChecksum = ChecksumEngine.toHex(MessageDigest.getInstance("MD5").digest(gPayload));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		gServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+		gServer.createContext("/fedora/", new HttpHandler() {
+			public void handle(HttpExchange pExchange) throws IOException {
+				fedora(pExchange);
+			}
+		});
+		gServer.createContext("/webdav/", new HttpHandler() {
+			public void handle(HttpExchange pExchange) throws IOException {
+				webdav(pExchange);
+			}
+		});
+		gExecutor = Executors.newCachedThreadPool();
+		gServer.setExecutor(gExecutor);
+		gServer.start();
+	}
+
+	private String profile() {
+		//no whitespace between elements, as FedoraDataConnector reads every child node
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+				"<datastreamProfile>"+
+				"<dsLabel>"+LABEL+"</dsLabel>"+
+				"<dsControlGroup>M</dsControlGroup>"+
+				"<dsMIME>application/octet-stream</dsMIME>"+
+				"<dsSize>"+gPayload.length+"</dsSize>"+
+				"<dsChecksumType>MD5</dsChecksumType>"+
+				"<dsChecksum>"+gChecksum+"</dsChecksum>"+
+				"</datastreamProfile>";
+	}
+
+	private void fedora(HttpExchange pExchange) throws IOException {
+		drain(pExchange.getRequestBody());
+		String path = pExchange.getRequestURI().getPath();
+		if(pExchange.getRequestMethod().equals("GET")&&path.endsWith("/content")) {
+			send(pExchange, 200, gPayload);
+		} else if(pExchange.getRequestMethod().equals("GET")) {
+			send(pExchange, 200, profile().getBytes(StandardCharsets.UTF_8));
+		} else {
+			send(pExchange, 201, new byte[0]);
+		}
+	}
+
+	private void webdav(HttpExchange pExchange) throws IOException {
+		long count = drain(pExchange.getRequestBody());
+		String method = pExchange.getRequestMethod();
+		if(method.equals("GET")) {
+			SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+			sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+			pExchange.getResponseHeaders().add("Last-Modified", sdf.format(new Date()));
+			send(pExchange, 200, gPayload);
+		} else if(method.equals("PUT")) {
+			send(pExchange, count>=0?201:500, new byte[0]);
+		} else if(method.equals("MKCOL")) {
+			send(pExchange, 201, new byte[0]);
+		} else {
+			send(pExchange, 405, new byte[0]);
+		}
+	}
+
+	private static long drain(InputStream pInput) throws IOException {
+		byte[] buffer = new byte[65536];
+		long count = 0;
+		int read;
+		while((read = pInput.read(buffer))!=-1) count += read;
+		pInput.close();
+		return count;
+	}
+
+	private static void send(HttpExchange pExchange, int pStatus, byte[] pBody) throws IOException {
+		pExchange.sendResponseHeaders(pStatus, pBody.length==0?-1:pBody.length);
+		OutputStream out = pExchange.getResponseBody();
+		out.write(pBody);
+		out.close();
+	}
+
+	private InputStream settings(String pRoot) {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"+
+				"<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">"+
+				"<properties>"+
+				"<entry key=\"SERVER\">"+gServer.getAddress().getHostString()+"</entry>"+
+				"<entry key=\"PORT\">"+gServer.getAddress().getPort()+"</entry>"+
+				"<entry key=\"USER\">bench</entry>"+
+				"<entry key=\"PASSWORD\">bench</entry>"+
+				"<entry key=\"ROOT\">"+pRoot+"</entry>"+
+				"<entry key=\"TRANSPORT\">http</entry>"+
+				"</properties>";
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Point FedoraDataConnector and WebdavDataConnector at this server
+	 */
+	public void configureConnectors() {
+		FedoraDataConnector.loadServerSettings(settings("/fedora/"));
+		WebdavDataConnector.setServerSettings(settings("/webdav"), settings("/webdav"));
+	}
+
+	/**
+	 * @return size of the served content
+	 */
+	public int getPayloadSize() {
+		return gPayload.length;
+	}
+
+	/**
+	 * Stop the server
+	 */
+	public void stop() {
+		gServer.stop(0);
+		gExecutor.shutdownNow();
+	}
+
+}
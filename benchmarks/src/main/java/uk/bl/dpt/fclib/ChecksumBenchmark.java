@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksumming a local file (in the page cache, so this measures the read and digest path
+ * rather than the disk) with each read strategy.  Tools.generateChecksum uses AUTO, so it is
+ * measured separately (GenerateChecksum) without the strategy parameter.
+ * @author wpalmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+
+	@Param({ "65536", "16777216", "268435456" })
+	public int size;
+
+	@Param({ "HEAP", "DIRECT", "MAPPED", "AUTO" })
+	public ChecksumEngine.Strategy strategy;
+
+	private File gFile;
+
+	@Setup
+	public void setup() throws IOException {
+		gFile = createFile(size);
+	}
+
+	private static File createFile(int pSize) throws IOException {
+		File file = File.createTempFile("checksum", ".bin");
+		byte[] buffer = new byte[1024*1024];
+		Random random = new Random(42);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for(long written=0;written<pSize;written+=buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int)Math.min(buffer.length, pSize-written));
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	@TearDown
+	public void tearDown() {
+		gFile.delete();
+	}
+
+	@Benchmark
+	public Map<String, String> md5() throws IOException {
+		return ChecksumEngine.checksumFile(gFile, new String[] { "MD5" }, strategy);
+	}
+
+	@Benchmark
+	public Map<String, String> md5sha1sha256() throws IOException {
+		return ChecksumEngine.checksumFile(gFile, new String[] { "MD5", "SHA-1", "SHA-256" }, strategy);
+	}
+
+	/**
+	 * Tools.generateChecksum (always AUTO), for comparison with the md5() results
+	 */
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	@Fork(1)
+	public static class GenerateChecksum {
+
+		@Param({ "65536", "16777216", "268435456" })
+		public int size;
+
+		private File gFile;
+
+		@Setup
+		public void setup() throws IOException {
+			gFile = createFile(size);
+		}
+
+		@TearDown
+		public void tearDown() {
+			gFile.delete();
+		}
+
+		@Benchmark
+		public String generateChecksum() throws IOException {
+			return Tools.generateChecksum("MD5", gFile.getAbsolutePath());
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FOXML generation for a TIFF file (checksum, exiftool if installed, and the FOXML itself),
+ * written to a discarding writer
+ * @author wpalmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FOXMLBenchmark {
+
+	@Param({ "1048576", "33554432" })
+	public int size;
+
+	private File gFile;
+	private FedoraIngestXMLGenerator gGenerator;
+	private PrintWriter gOut;
+
+	@Setup
+	public void setup() throws IOException {
+		gFile = File.createTempFile("foxml", ".tif");
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		FileOutputStream out = new FileOutputStream(gFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		gGenerator = new FedoraIngestXMLGenerator("bench", "TIFF", "image/tiff", "MD5");
+		gOut = new PrintWriter(Writer.nullWriter());
+	}
+
+	@TearDown
+	public void tearDown() {
+		gFile.delete();
+	}
+
+	@Benchmark
+	public String createFOXMLFromTIFF() {
+		return gGenerator.createFOXMLFromTIFF(gFile.getAbsolutePath(), true, gOut, false);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The connectors' request, parse and copy paths against an in-process HTTP server on the
+ * loopback interface: datastream profile requests, Fedora datastream recovery (profile,
+ * copy and checksum), and WebDAV GET and PUT.
+ * @author wpalmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({ "1048576", "67108864" })
+	public int size;
+
+	private BenchmarkServer gServer;
+	private File gDir;
+	private File gUpload;
+
+	@Setup
+	public void setup() throws IOException {
+		gServer = new BenchmarkServer(size);
+		gServer.configureConnectors();
+		gDir = Files.createTempDirectory("transfer").toFile();
+		gUpload = new File(gDir, "upload.bin");
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		FileOutputStream out = new FileOutputStream(gUpload);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		gServer.stop();
+		for(File file:gDir.listFiles()) file.delete();
+		gDir.delete();
+	}
+
+	@Benchmark
+	public HashMap<String, String> getDatastreamProperties() {
+		return FedoraDataConnector.getDatastreamProperties("bench:1", "TIFF");
+	}
+
+	@Benchmark
+	public File recoverDatastream() {
+		return FedoraDataConnector.recoverDatastream("bench:1", "TIFF", gDir.getAbsolutePath());
+	}
+
+	@Benchmark
+	public File webdavGet() {
+		return WebdavDataConnector.recoverFile("/get/"+BenchmarkServer.LABEL, gDir.getAbsolutePath());
+	}
+
+	@Benchmark
+	public boolean webdavPut() {
+		return WebdavDataConnector.stageFile(gUpload, "/put/", true).isSuccess();
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * XPath evaluation against a datastream profile: one value, five values by repeated
+ * getXpathVal calls, five values from one parse, and five values by streaming.
+ * @author wpalmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XPathBenchmark {
+
+	private static final byte[] PROFILE = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+			"<datastreamProfile pid=\"jisc1:1\" dsID=\"TIFF\">\n"+
+			"  <dsLabel>0001.tif</dsLabel>\n"+
+			"  <dsVersionID>TIFF.0</dsVersionID>\n"+
+			"  <dsCreateDate>2013-02-18T11:00:00.000Z</dsCreateDate>\n"+
+			"  <dsState>A</dsState>\n"+
+			"  <dsMIME>image/tiff</dsMIME>\n"+
+			"  <dsFormatURI></dsFormatURI>\n"+
+			"  <dsControlGroup>M</dsControlGroup>\n"+
+			"  <dsSize>104857600</dsSize>\n"+
+			"  <dsVersionable>true</dsVersionable>\n"+
+			"  <dsInfoType></dsInfoType>\n"+
+			"  <dsLocation>jisc1:1+TIFF+TIFF.0</dsLocation>\n"+
+			"  <dsLocationType>INTERNAL_ID</dsLocationType>\n"+
+			"  <dsChecksumType>MD5</dsChecksumType>\n"+
+			"  <dsChecksum>dc17f146ed0313f84485dc3df4480dda</dsChecksum>\n"+
+			"</datastreamProfile>\n").getBytes(StandardCharsets.UTF_8);
+
+	private static final Map<String, String> XPATHS = new LinkedHashMap<String, String>();
+	static {
+		XPATHS.put("label", "/datastreamProfile/dsLabel");
+		XPATHS.put("size", "/datastreamProfile/dsSize");
+		XPATHS.put("controlGroup", "/datastreamProfile/dsControlGroup");
+		XPATHS.put("checksumType", "/datastreamProfile/dsChecksumType");
+		XPATHS.put("checksum", "/datastreamProfile/dsChecksum");
+	}
+
+	private XPathEvaluator gStreaming = new XPathEvaluator(true);
+
+	@Benchmark
+	public String oneValue() {
+		return Tools.getXpathVal(new ByteArrayInputStream(PROFILE), "/datastreamProfile/dsChecksum");
+	}
+
+	@Benchmark
+	public void fiveValuesSeparately(Blackhole pBlackhole) {
+		for(String xpath:XPATHS.values()) {
+			pBlackhole.consume(Tools.getXpathVal(new ByteArrayInputStream(PROFILE), xpath));
+		}
+	}
+
+	@Benchmark
+	public Map<String, String> fiveValuesOneParse() {
+		return Tools.getXpathVals(new ByteArrayInputStream(PROFILE), XPATHS);
+	}
+
+	@Benchmark
+	public Map<String, String> fiveValuesStreaming() {
+		return gStreaming.evaluate(new ByteArrayInputStream(PROFILE), XPATHS);
+	}
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.bl.dpt.fclib.FedoraDataConnector;
+import uk.bl.dpt.fclib.WebdavDataConnector;
+import uk.bl.dpt.fclib.metrics.Histogram;
+import uk.bl.dpt.fclib.transport.Transport;
+import uk.bl.dpt.fclib.transport.Transports;
+
+/**
+ * Drives the connectors against a StandInServer at a range of concurrency levels and reports
+ * operations per second and latency percentiles for each operation.  Each worker thread has
+ * its own local directory and remote paths, so workers do not overwrite each other's files.
+ * @author wpalmer
+ *
+ */
+public class LoadDriver {
+
+	/**
+	 * Connector operations the driver can run
+	 */
+	public enum Operation {
+		/** FedoraDataConnector.recoverDatastream (profile, content and checksum) */
+		FEDORA_RECOVER,
+		/** FedoraDataConnector.postDatastream (checksum, profile, upload and verification) */
+		FEDORA_POST,
+		/** WebdavDataConnector.recoverFile */
+		WEBDAV_GET,
+		/** WebdavDataConnector.postFile (MKCOL of the path, then PUT) */
+		WEBDAV_PUT
+	}
+
+	/**
+	 * Results for one operation at one concurrency level
+	 */
+	public static class Result {
+		private Operation gOperation;
+		private int gConcurrency;
+		private long gElapsed;
+		private long gErrors;
+		private Histogram gLatency;
+		private Result(Operation pOperation, int pConcurrency, long pElapsed, long pErrors, Histogram pLatency) {
+			gOperation = pOperation;
+			gConcurrency = pConcurrency;
+			gElapsed = pElapsed;
+			gErrors = pErrors;
+			gLatency = pLatency;
+		}
+		/** @return the operation */
+		public Operation getOperation() { return gOperation; }
+		/** @return number of concurrent workers */
+		public int getConcurrency() { return gConcurrency; }
+		/** @return number of operations completed (including errors) */
+		public long getOperations() { return gLatency.getCount(); }
+		/** @return number of operations that failed */
+		public long getErrors() { return gErrors; }
+		/** @return operations per second */
+		public double getOpsPerSecond() { return gElapsed==0?0:gLatency.getCount()*1000000.0/gElapsed; }
+		/** @return latency histogram, in microseconds */
+		public Histogram getLatency() { return gLatency; }
+		public String toString() {
+			return String.format("%-15s %5d %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f", gOperation, gConcurrency,
+					getOperations(), gErrors, getOpsPerSecond(), gLatency.getPercentile(50)/1000.0, gLatency.getPercentile(90)/1000.0,
+					gLatency.getPercentile(99)/1000.0, gLatency.getPercentile(99.9)/1000.0, gLatency.getMax()/1000.0);
+		}
+	}
+
+	private static final String PID = "load:1";
+	private static final String DATASTREAM = "DS";
+	private static final String LABEL = "load.bin";
+
+	private StandInServer gServer;
+	private File gDir;
+	private File gUpload;
+	private boolean gQuiet = false;
+
+	/**
+	 * Set up a server (already started, with any latency/bandwidth/errors configured) for load
+	 * testing: loads content of the given size and points the connectors at the server
+	 * @param pServer server to drive
+	 * @param pSize size of the content to transfer in bytes
+	 * @throws IOException if the local files cannot be created
+	 */
+	public LoadDriver(StandInServer pServer, int pSize) throws IOException {
+		gServer = pServer;
+		byte[] data = new byte[pSize];
+		new Random(42).nextBytes(data);
+		gServer.addDatastream(PID, DATASTREAM, LABEL, data);
+		gServer.addFile("/load/"+LABEL, data);
+		gServer.configureConnectors();
+
+		gDir = Files.createTempDirectory("load").toFile();
+		gUpload = new File(gDir, LABEL);
+		FileOutputStream out = new FileOutputStream(gUpload);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Suppress the connectors' progress messages (on System.out) while running
+	 * @param pQuiet whether or not to suppress output
+	 */
+	public void setQuiet(boolean pQuiet) {
+		gQuiet = pQuiet;
+	}
+
+	private boolean runOnce(Operation pOperation, int pWorker, File pWorkerDir) {
+		switch(pOperation) {
+		case FEDORA_RECOVER:
+			return FedoraDataConnector.recoverDatastream(PID, DATASTREAM, pWorkerDir.getAbsolutePath())!=null;
+		case FEDORA_POST:
+			return FedoraDataConnector.postDatastream("load:"+(pWorker+2), DATASTREAM, gUpload, "load", "application/octet-stream");
+		case WEBDAV_GET:
+			return WebdavDataConnector.recoverFile("/load/"+LABEL, pWorkerDir.getAbsolutePath())!=null;
+		case WEBDAV_PUT:
+			return WebdavDataConnector.postFile(gUpload, "/put/"+pWorker+"/", true).isSuccess();
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Run an operation with a number of concurrent workers
+	 * @param pOperation operation to run
+	 * @param pConcurrency number of concurrent workers
+	 * @param pOperationsPerWorker number of operations each worker runs
+	 * @return results
+	 * @throws InterruptedException if interrupted waiting for the workers
+	 */
+	public Result run(final Operation pOperation, int pConcurrency, final int pOperationsPerWorker) throws InterruptedException {
+		final Histogram latency = new Histogram();
+		final AtomicLong errors = new AtomicLong(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(pConcurrency);
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int i=0;i<pConcurrency;i++) {
+			final int worker = i;
+			final File workerDir = new File(gDir, "w"+i);
+			workerDir.mkdirs();
+			Thread thread = new Thread("load-"+pOperation+"-"+i) {
+				public void run() {
+					try {
+						start.await();
+						for(int op=0;op<pOperationsPerWorker;op++) {
+							long opStart = System.nanoTime();
+							boolean ok = false;
+							try {
+								ok = runOnce(pOperation, worker, workerDir);
+							} catch(RuntimeException e) {
+								e.printStackTrace();
+							}
+							latency.record((System.nanoTime()-opStart)/1000);
+							if(!ok) errors.incrementAndGet();
+						}
+					} catch(InterruptedException e) {
+						return;
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			workers.add(thread);
+			thread.start();
+		}
+
+		PrintStream out = System.out;
+		if(gQuiet) System.setOut(new PrintStream(new java.io.OutputStream() {
+			public void write(int pByte) { }
+			public void write(byte[] pBuffer, int pOffset, int pLength) { }
+		}));
+		long startTime = System.nanoTime();
+		try {
+			start.countDown();
+			done.await();
+		} finally {
+			System.setOut(out);
+		}
+		return new Result(pOperation, pConcurrency, (System.nanoTime()-startTime)/1000, errors.get(), latency);
+	}
+
+	/**
+	 * @return header line for Result.toString()
+	 */
+	public static String getHeader() {
+		return String.format("%-15s %5s %9s %7s %10s %9s %9s %9s %9s %9s", "operation", "conc", "ops", "errors", "ops/sec",
+				"p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+	}
+
+	/**
+	 * Delete the local files
+	 */
+	public void cleanup() {
+		delete(gDir);
+	}
+
+	private static void delete(File pFile) {
+		File[] children = pFile.listFiles();
+		if(children!=null) for(File child:children) delete(child);
+		pFile.delete();
+	}
+
+	/**
+	 * Run all operations at a range of concurrency levels against an embedded stand-in server
+	 * @param args [size-bytes [ops-per-worker [latency-ms [bandwidth-bytes/s [error-rate [transport]]]]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int size = args.length>0?Integer.parseInt(args[0]):1024*1024;
+		int ops = args.length>1?Integer.parseInt(args[1]):50;
+		StandInServer server = new StandInServer(0);
+		if(args.length>2) server.setLatency(Long.parseLong(args[2]), Long.parseLong(args[2]));
+		if(args.length>3) server.setBandwidth(Long.parseLong(args[3]));
+		if(args.length>4) server.setErrorRate(Double.parseDouble(args[4]), 503);
+
+		LoadDriver driver = new LoadDriver(server, size);
+		driver.setQuiet(true);
+		Transport.Type transport = Transports.parseType(args.length>5?args[5]:null);
+		FedoraDataConnector.getDefault().setTransportType(transport);
+		WebdavDataConnector.getDefault().setTransportType(transport);
+		System.out.println("Content size: "+size+" bytes, "+ops+" operations per worker, "+transport+" transport");
+		System.out.println(getHeader());
+		try {
+			for(Operation operation:Operation.values()) {
+				for(int concurrency:new int[] { 1, 4, 16 }) {
+					System.out.println(driver.run(operation, concurrency, ops));
+				}
+			}
+		} finally {
+			driver.cleanup();
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,838 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.bl.dpt.fclib.ChecksumEngine;
+import uk.bl.dpt.fclib.FedoraDataConnector;
+import uk.bl.dpt.fclib.WebdavDataConnector;
+
+/**
+ * An in-memory stand-in for a Fedora Commons 3.x REST API and a WebDAV server, on the JDK's
+ * built in HTTP server, for load and throughput testing of the connectors without a real
+ * deployment.  Implements the endpoints the library uses:
+ * <ul>
+ * <li>GET {fedora}objects/{pid}/datastreams?format=xml[&amp;profiles=true] (datastream listing)</li>
+ * <li>GET {fedora}objects/{pid}/datastreams/{ds}?format=xml (datastream profile)</li>
+ * <li>GET {fedora}objects/{pid}/datastreams/{ds}/content (with single Range requests)</li>
+ * <li>POST {fedora}objects/{pid}/datastreams/{ds}?... (add/modify a managed datastream)</li>
+ * <li>POST {fedora}objects/new (FOXML ingest)</li>
+ * <li>GET {fedora}objects?query=pid~...&amp;pid=true&amp;resultFormat=xml (findObjects, with session tokens)</li>
+ * <li>GET {fedora}risearch?type=tuples&amp;lang=itql&amp;format=CSV (collection members only)</li>
+ * <li>WebDAV GET (with single Range requests), HEAD, PUT (with If-Match/If-None-Match), MKCOL and PROPFIND under {webdav}</li>
+ * </ul>
+ * Latency (before the response headers), bandwidth (of request and response bodies) and
+ * random error responses can be injected.  Credentials are accepted but not checked.
+ * @author wpalmer
+ *
+ */
+public class StandInServer {
+
+	/** path of the Fedora REST API */
+	public static final String FEDORA_ROOT = "/fedora/";
+	/** path of the WebDAV root */
+	public static final String WEBDAV_ROOT = "/webdav";
+
+	private static final Pattern DATASTREAM = Pattern.compile("objects/([^/]+)/datastreams/([^/]+)(/content)?");
+	private static final Pattern DATASTREAMS = Pattern.compile("objects/([^/]+)/datastreams/?");
+	private static final Pattern FOXML_PID = Pattern.compile("PID=\"([^\"]+)\"");
+	private static final Pattern FOXML_COLLECTION = Pattern.compile("isMemberOfCollection rdf:resource=\"info:fedora/([^\"]+)\"");
+	private static final Pattern RI_COLLECTION = Pattern.compile("isMemberOfCollection>\\s*<info:fedora/([^>]+)>");
+	private static final Pattern RI_LIMIT = Pattern.compile("limit\\s+(\\d+)");
+	private static final Pattern RI_OFFSET = Pattern.compile("offset\\s+(\\d+)");
+	private static final int THROTTLE_CHUNK = 16*1024;
+
+	/**
+	 * A stored datastream or WebDAV file
+	 */
+	private static class Content {
+		private String gLabel;
+		private String gMimeType;
+		private byte[] gData;
+		private String gChecksumType;
+		private String gChecksum;
+		private Date gCreated = new Date();
+		private Content(String pLabel, String pMimeType, byte[] pData, String pChecksumType) throws IOException {
+			gLabel = pLabel;
+			gMimeType = pMimeType;
+			gData = pData;
+			gChecksumType = pChecksumType.toUpperCase();
+			gChecksum = checksum(pChecksumType, pData);
+		}
+		private String getETag() {
+			return "\""+gChecksum+"\"";
+		}
+	}
+
+	static {
+		//the JDK server writes headers and body separately, so with Nagle on, small responses on
+		//a kept-alive connection wait for the client's delayed ACK (~40ms); read once, on first use
+		if(System.getProperty("sun.net.httpserver.nodelay")==null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private HttpServer gServer;
+	private ExecutorService gExecutor;
+	private ConcurrentMap<String, Content> gDatastreams = new ConcurrentHashMap<String, Content>();
+	private ConcurrentMap<String, Content> gFiles = new ConcurrentHashMap<String, Content>();
+	private ConcurrentMap<String, Boolean> gCollections = new ConcurrentHashMap<String, Boolean>();
+	//object pid -> collection pid ("" for none)
+	private ConcurrentMap<String, String> gObjects = new ConcurrentHashMap<String, String>();
+	private AtomicInteger gNextPid = new AtomicInteger(1);
+	private AtomicLong gRequests = new AtomicLong(0);
+	private AtomicLong gInjectedErrors = new AtomicLong(0);
+	private AtomicLong gBytesSent = new AtomicLong(0);
+
+	private volatile long gMinLatency = 0;
+	private volatile long gMaxLatency = 0;
+	private volatile long gBandwidth = 0;
+	private volatile double gErrorRate = 0;
+	private volatile int gErrorStatus = 500;
+
+	/**
+	 * Start a server on the loopback interface
+	 * @param pPort port to listen on, 0 for any free port
+	 * @throws IOException if the server cannot be started
+	 */
+	public StandInServer(int pPort) throws IOException {
+		this(new InetSocketAddress("127.0.0.1", pPort));
+	}
+
+	/**
+	 * Start a server
+	 * @param pAddress address to listen on
+	 * @throws IOException if the server cannot be started
+	 */
+	public StandInServer(InetSocketAddress pAddress) throws IOException {
+		gServer = HttpServer.create(pAddress, 256);
+		gServer.createContext(FEDORA_ROOT, new HttpHandler() {
+			public void handle(HttpExchange pExchange) throws IOException {
+				handleRequest(pExchange, true);
+			}
+		});
+		gServer.createContext(WEBDAV_ROOT, new HttpHandler() {
+			public void handle(HttpExchange pExchange) throws IOException {
+				//contexts match any path with the same prefix, e.g. /webdavfoo
+				String path = pExchange.getRequestURI().getPath();
+				if(!path.equals(WEBDAV_ROOT)&&!path.startsWith(WEBDAV_ROOT+"/")) {
+					drain(pExchange);
+					send(pExchange, 404, pExchange.getRequestMethod().equals("HEAD")?null:"Not found: "+path, null);
+					return;
+				}
+				handleRequest(pExchange, false);
+			}
+		});
+		gCollections.put("/", Boolean.TRUE);
+		gExecutor = Executors.newCachedThreadPool();
+		gServer.setExecutor(gExecutor);
+		gServer.start();
+	}
+
+	private static String checksum(String pType, byte[] pData) throws IOException {
+		try {
+			ChecksumEngine engine = new ChecksumEngine(new String[] { pType });
+			engine.update(pData, 0, pData.length);
+			return engine.getChecksums().get(pType.toUpperCase());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+pType);
+		}
+	}
+
+	/**
+	 * Set the latency added before each response, chosen uniformly between the limits
+	 * @param pMinMillis minimum latency in ms
+	 * @param pMaxMillis maximum latency in ms
+	 */
+	public void setLatency(long pMinMillis, long pMaxMillis) {
+		gMinLatency = pMinMillis;
+		gMaxLatency = Math.max(pMinMillis, pMaxMillis);
+	}
+
+	/**
+	 * Limit the rate request and response bodies are read and written (per request)
+	 * @param pBytesPerSecond bytes per second, 0 for unlimited
+	 */
+	public void setBandwidth(long pBytesPerSecond) {
+		gBandwidth = pBytesPerSecond;
+	}
+
+	/**
+	 * Fail a proportion of requests
+	 * @param pRate proportion of requests to fail (0-1)
+	 * @param pStatus HTTP status to fail them with
+	 */
+	public void setErrorRate(double pRate, int pStatus) {
+		gErrorRate = pRate;
+		gErrorStatus = pStatus;
+	}
+
+	/**
+	 * Add (or replace) a managed datastream
+	 * @param pPid pid of the object
+	 * @param pDatastream datastream id
+	 * @param pLabel datastream label (the file name recoverDatastream uses)
+	 * @param pData content
+	 * @throws IOException if the checksum cannot be generated
+	 */
+	public void addDatastream(String pPid, String pDatastream, String pLabel, byte[] pData) throws IOException {
+		gDatastreams.put(pPid+"/"+pDatastream, new Content(pLabel, "application/octet-stream", pData, "MD5"));
+		gObjects.putIfAbsent(pPid, "");
+	}
+
+	/**
+	 * Add (or replace) an object, for findObjects and resource index queries
+	 * @param pPid pid of the object
+	 * @param pCollectionPid pid of the collection it is a member of, or null
+	 */
+	public void addObject(String pPid, String pCollectionPid) {
+		gObjects.put(pPid, pCollectionPid==null?"":pCollectionPid);
+	}
+
+	/**
+	 * Add (or replace) a WebDAV file, creating its parent collections
+	 * @param pPath path under the WebDAV root, e.g. /dir/file.tif
+	 * @param pData content
+	 * @throws IOException if the checksum cannot be generated
+	 */
+	public void addFile(String pPath, byte[] pData) throws IOException {
+		gFiles.put(pPath, new Content(pPath.substring(pPath.lastIndexOf('/')+1), "application/octet-stream", pData, "MD5"));
+		String parent = pPath;
+		while((parent = parent.substring(0, parent.lastIndexOf('/'))).length()>0) {
+			gCollections.put(parent+"/", Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Get the content of a WebDAV file
+	 * @param pPath path under the WebDAV root
+	 * @return content, or null if there is no such file
+	 */
+	public byte[] getFile(String pPath) {
+		Content content = gFiles.get(pPath);
+		return content==null?null:content.gData;
+	}
+
+	/**
+	 * Get the content of a datastream
+	 * @param pPid pid of the object
+	 * @param pDatastream datastream id
+	 * @return content, or null if there is no such datastream
+	 */
+	public byte[] getDatastream(String pPid, String pDatastream) {
+		Content content = gDatastreams.get(pPid+"/"+pDatastream);
+		return content==null?null:content.gData;
+	}
+
+	/**
+	 * @return number of requests handled
+	 */
+	public long getRequestCount() {
+		return gRequests.get();
+	}
+
+	/**
+	 * @return number of response body bytes sent
+	 */
+	public long getBytesSent() {
+		return gBytesSent.get();
+	}
+
+	/**
+	 * @return number of injected error responses
+	 */
+	public long getInjectedErrorCount() {
+		return gInjectedErrors.get();
+	}
+
+	/**
+	 * @return port the server is listening on
+	 */
+	public int getPort() {
+		return gServer.getAddress().getPort();
+	}
+
+	/**
+	 * @return connector settings (xml properties) for the Fedora API
+	 */
+	public InputStream getFedoraSettings() {
+		return settings(FEDORA_ROOT);
+	}
+
+	/**
+	 * @return connector settings (xml properties) for the WebDAV root
+	 */
+	public InputStream getWebdavSettings() {
+		return settings(WEBDAV_ROOT);
+	}
+
+	/**
+	 * @return host name clients can connect to (the local host name if listening on all interfaces)
+	 */
+	public String getHost() {
+		InetAddress address = gServer.getAddress().getAddress();
+		if(!address.isAnyLocalAddress()) return gServer.getAddress().getHostString();
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch(UnknownHostException e) {
+			return InetAddress.getLoopbackAddress().getHostName();
+		}
+	}
+
+	private InputStream settings(String pRoot) {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"+
+				"<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"+
+				"<properties>\n"+
+				"<comment>Stand-in server</comment>\n"+
+				"<entry key=\"SERVER\">"+getHost()+"</entry>\n"+
+				"<entry key=\"PORT\">"+getPort()+"</entry>\n"+
+				"<entry key=\"USER\">standin</entry>\n"+
+				"<entry key=\"PASSWORD\">standin</entry>\n"+
+				"<entry key=\"ROOT\">"+pRoot+"</entry>\n"+
+				"<entry key=\"TRANSPORT\">http</entry>\n"+
+				"</properties>\n";
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Point FedoraDataConnector and WebdavDataConnector (get and put) at this server
+	 */
+	public void configureConnectors() {
+		FedoraDataConnector.loadServerSettings(getFedoraSettings());
+		WebdavDataConnector.setServerSettings(getWebdavSettings(), getWebdavSettings());
+	}
+
+	/**
+	 * Stop the server
+	 */
+	public void stop() {
+		gServer.stop(0);
+		gExecutor.shutdownNow();
+	}
+
+	private void handleRequest(HttpExchange pExchange, boolean pFedora) throws IOException {
+		gRequests.incrementAndGet();
+		try {
+			long latency = gMinLatency;
+			if(gMaxLatency>gMinLatency) latency += (long)(Math.random()*(gMaxLatency-gMinLatency));
+			if(latency>0) Thread.sleep(latency);
+			if(gErrorRate>0&&Math.random()<gErrorRate) {
+				gInjectedErrors.incrementAndGet();
+				drain(pExchange);
+				send(pExchange, gErrorStatus, "Injected error", null);
+				return;
+			}
+			if(pFedora) {
+				fedora(pExchange);
+			} else {
+				webdav(pExchange);
+			}
+		} catch(InterruptedException e) {
+			pExchange.close();
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+			send(pExchange, 500, e.toString(), null);
+		}
+	}
+
+	private static Map<String, String> query(HttpExchange pExchange) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = pExchange.getRequestURI().getRawQuery();
+		if(query==null) return params;
+		for(String param:query.split("&")) {
+			int eq = param.indexOf('=');
+			if(eq<0) {
+				params.put(URLDecoder.decode(param, "UTF-8"), "");
+			} else {
+				params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq+1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	private static String xmlEscape(String pText) {
+		return pText.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private void fedora(HttpExchange pExchange) throws IOException, InterruptedException {
+		String method = pExchange.getRequestMethod();
+		String path = pExchange.getRequestURI().getPath().substring(FEDORA_ROOT.length());
+
+		if(path.equals("objects/new")&&method.equals("POST")) {
+			String foxml = new String(read(pExchange), StandardCharsets.UTF_8);
+			Matcher pid = FOXML_PID.matcher(foxml);
+			String newPid = pid.find()?pid.group(1):"standin:"+gNextPid.getAndIncrement();
+			Matcher collection = FOXML_COLLECTION.matcher(foxml);
+			addObject(newPid, collection.find()?collection.group(1):null);
+			send(pExchange, 201, newPid, "text/plain");
+			return;
+		}
+
+		if(path.equals("objects")&&method.equals("GET")) {
+			drain(pExchange);
+			send(pExchange, 200, findObjects(query(pExchange)), "text/xml");
+			return;
+		}
+
+		if(path.equals("risearch")) {
+			drain(pExchange);
+			String members = risearch(query(pExchange).get("query"));
+			if(members==null) {
+				send(pExchange, 400, "Unsupported query", null);
+			} else {
+				send(pExchange, 200, members, "text/plain");
+			}
+			return;
+		}
+
+		Matcher listing = DATASTREAMS.matcher(path);
+		if(listing.matches()&&method.equals("GET")) {
+			drain(pExchange);
+			boolean profiles = "true".equals(query(pExchange).get("profiles"));
+			String xml = listing(listing.group(1), profiles);
+			if(xml==null) {
+				send(pExchange, 404, "No such object: "+listing.group(1), null);
+			} else {
+				send(pExchange, 200, xml, "text/xml");
+			}
+			return;
+		}
+
+		Matcher matcher = DATASTREAM.matcher(path);
+		if(!matcher.matches()) {
+			drain(pExchange);
+			send(pExchange, 404, "Not found: "+path, null);
+			return;
+		}
+		String pid = matcher.group(1);
+		String ds = matcher.group(2);
+		String key = pid+"/"+ds;
+		boolean content = matcher.group(3)!=null;
+
+		if(method.equals("GET")) {
+			drain(pExchange);
+			Content stored = gDatastreams.get(key);
+			if(stored==null) {
+				send(pExchange, 404, "No such datastream: "+key, null);
+			} else if(content) {
+				sendContent(pExchange, stored);
+			} else {
+				send(pExchange, 200, profile(pid, ds, stored), "text/xml");
+			}
+		} else if(method.equals("POST")||method.equals("PUT")) {
+			Map<String, String> params = query(pExchange);
+			byte[] data = read(pExchange);
+			Content old = gDatastreams.get(key);
+			String label = params.containsKey("dsLabel")?params.get("dsLabel"):old==null?ds:old.gLabel;
+			String mimeType = params.containsKey("mimeType")?params.get("mimeType"):"application/octet-stream";
+			String checksumType = params.containsKey("checksumType")?params.get("checksumType"):"MD5";
+			Content stored = new Content(label, mimeType, data, checksumType);
+			String expected = params.get("checksum");
+			if(expected!=null&&!expected.equalsIgnoreCase(stored.gChecksum)) {
+				send(pExchange, 500, "Checksum Mismatch: "+stored.gChecksum, null);
+				return;
+			}
+			gDatastreams.put(key, stored);
+			send(pExchange, old==null?201:200, profile(pid, ds, stored), "text/xml");
+		} else {
+			drain(pExchange);
+			send(pExchange, 405, "Method not allowed", null);
+		}
+	}
+
+	private String findObjects(Map<String, String> pParams) {
+		//only pid~pattern conditions are supported (* and ? wildcards)
+		Pattern match = null;
+		String query = pParams.get("query");
+		if(query!=null) {
+			for(String condition:query.trim().split("\\s+")) {
+				if(condition.startsWith("pid~")) {
+					match = Pattern.compile(Pattern.quote(condition.substring(4)).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q"));
+				}
+			}
+		}
+		int max = pParams.containsKey("maxResults")?Integer.parseInt(pParams.get("maxResults")):25;
+		//the session token is the offset of the next page
+		int offset = pParams.containsKey("sessionToken")?Integer.parseInt(pParams.get("sessionToken")):0;
+		StringBuilder pids = new StringBuilder();
+		int index = 0;
+		boolean more = false;
+		for(String pid:new TreeMap<String, String>(gObjects).keySet()) {
+			if(match!=null&&!match.matcher(pid).matches()) continue;
+			if(index>=offset+max) {
+				more = true;
+				break;
+			}
+			if(index++>=offset) pids.append("<objectFields><pid>"+xmlEscape(pid)+"</pid></objectFields>");
+		}
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+				"<result xmlns=\"http://www.fedora.info/definitions/1/0/types/\">"+
+				(more?"<listSession><token>"+(offset+max)+"</token><cursor>"+offset+"</cursor></listSession>":"")+
+				"<resultList>"+pids+"</resultList></result>";
+	}
+
+	private String risearch(String pQuery) {
+		//only "select $member ... isMemberOfCollection> <info:fedora/pid> order by $member [limit n] [offset n]"
+		Matcher collection = pQuery==null?null:RI_COLLECTION.matcher(pQuery);
+		if(collection==null||!collection.find()) return null;
+		Matcher limit = RI_LIMIT.matcher(pQuery);
+		Matcher offset = RI_OFFSET.matcher(pQuery);
+		int max = limit.find()?Integer.parseInt(limit.group(1)):Integer.MAX_VALUE;
+		int start = offset.find()?Integer.parseInt(offset.group(1)):0;
+		StringBuilder csv = new StringBuilder("\"member\"\n");
+		int index = 0;
+		for(Map.Entry<String, String> object:new TreeMap<String, String>(gObjects).entrySet()) {
+			if(!object.getValue().equals(collection.group(1))) continue;
+			if(index>=start+max) break;
+			if(index++>=start) csv.append("info:fedora/"+object.getKey()+"\n");
+		}
+		return csv.toString();
+	}
+
+	private String listing(String pPid, boolean pProfiles) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<objectDatastreams xmlns=\"http://www.fedora.info/definitions/1/0/access/\" pid=\""+xmlEscape(pPid)+"\">\n");
+		String prefix = pPid+"/";
+		boolean found = false;
+		for(Map.Entry<String, Content> entry:new TreeMap<String, Content>(gDatastreams).entrySet()) {
+			if(!entry.getKey().startsWith(prefix)) continue;
+			String ds = entry.getKey().substring(prefix.length());
+			Content content = entry.getValue();
+			found = true;
+			if(pProfiles) {
+				xml.append(profile(pPid, ds, content, "")).append("\n");
+			} else {
+				xml.append("<datastream dsid=\""+xmlEscape(ds)+"\" label=\""+xmlEscape(content.gLabel)+"\" mimeType=\""+xmlEscape(content.gMimeType)+"\"/>\n");
+			}
+		}
+		if(!found) return null;
+		return xml.append("</objectDatastreams>").toString();
+	}
+
+	private static String profile(String pPid, String pDatastream, Content pContent) {
+		//no whitespace between elements, FedoraDataConnector reads every child node
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+				profile(pPid, pDatastream, pContent, " xmlns=\"http://www.fedora.info/definitions/1/0/management/\"");
+	}
+
+	private static String profile(String pPid, String pDatastream, Content pContent, String pNamespace) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return "<datastreamProfile"+pNamespace+" pid=\""+xmlEscape(pPid)+"\" dsID=\""+xmlEscape(pDatastream)+"\">"+
+				"<dsLabel>"+xmlEscape(pContent.gLabel)+"</dsLabel>"+
+				"<dsVersionID>"+xmlEscape(pDatastream)+".0</dsVersionID>"+
+				"<dsCreateDate>"+df.format(pContent.gCreated)+"</dsCreateDate>"+
+				"<dsState>A</dsState>"+
+				"<dsMIME>"+xmlEscape(pContent.gMimeType)+"</dsMIME>"+
+				"<dsControlGroup>M</dsControlGroup>"+
+				"<dsSize>"+pContent.gData.length+"</dsSize>"+
+				"<dsVersionable>true</dsVersionable>"+
+				"<dsChecksumType>"+pContent.gChecksumType+"</dsChecksumType>"+
+				"<dsChecksum>"+pContent.gChecksum+"</dsChecksum>"+
+				"</datastreamProfile>";
+	}
+
+	private static String httpDate(Date pDate) {
+		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return sdf.format(pDate);
+	}
+
+	private void webdav(HttpExchange pExchange) throws IOException, InterruptedException {
+		String method = pExchange.getRequestMethod();
+		String path = pExchange.getRequestURI().getPath().substring(WEBDAV_ROOT.length());
+		//the connectors build paths like /root//dir/file
+		path = "/"+path.replaceAll("/+", "/").replaceAll("^/", "");
+
+		if(method.equals("GET")||method.equals("HEAD")) {
+			drain(pExchange);
+			Content stored = gFiles.get(path);
+			if(stored==null) {
+				send(pExchange, 404, method.equals("HEAD")?null:"Not found: "+path, null);
+				return;
+			}
+			pExchange.getResponseHeaders().add("Last-Modified", httpDate(stored.gCreated));
+			pExchange.getResponseHeaders().add("ETag", stored.getETag());
+			if(method.equals("HEAD")) {
+				pExchange.getResponseHeaders().add("Content-Length", Integer.toString(stored.gData.length));
+				pExchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+				pExchange.sendResponseHeaders(200, -1);
+				pExchange.close();
+			} else {
+				sendContent(pExchange, stored);
+			}
+		} else if(method.equals("PUT")) {
+			String parent = path.substring(0, path.lastIndexOf('/')+1);
+			Content old = gFiles.get(path);
+			String ifMatch = pExchange.getRequestHeaders().getFirst("If-Match");
+			String ifNoneMatch = pExchange.getRequestHeaders().getFirst("If-None-Match");
+			boolean failed = (ifNoneMatch!=null&&old!=null&&(ifNoneMatch.trim().equals("*")||ifNoneMatch.contains(old.getETag())))||
+					(ifMatch!=null&&(old==null||!(ifMatch.trim().equals("*")||ifMatch.contains(old.getETag()))));
+			if(failed) {
+				drain(pExchange);
+				send(pExchange, 412, "Precondition failed", null);
+				return;
+			}
+			if(!gCollections.containsKey(parent)) {
+				drain(pExchange);
+				send(pExchange, 409, "Parent collection does not exist: "+parent, null);
+				return;
+			}
+			byte[] data = read(pExchange);
+			Content stored = new Content(path.substring(parent.length()), "application/octet-stream", data, "MD5");
+			gFiles.put(path, stored);
+			pExchange.getResponseHeaders().add("ETag", stored.getETag());
+			send(pExchange, old==null?201:204, (byte[])null, null);
+		} else if(method.equals("MKCOL")) {
+			drain(pExchange);
+			String collection = path.endsWith("/")?path:path+"/";
+			String parent = collection.substring(0, collection.lastIndexOf('/', collection.length()-2)+1);
+			if(gCollections.containsKey(collection)||gFiles.containsKey(path)) {
+				send(pExchange, 405, "Already exists", null);
+			} else if(!gCollections.containsKey(parent)) {
+				send(pExchange, 409, "Parent collection does not exist: "+parent, null);
+			} else {
+				gCollections.put(collection, Boolean.TRUE);
+				send(pExchange, 201, (byte[])null, null);
+			}
+		} else if(method.equals("PROPFIND")) {
+			drain(pExchange);
+			propfind(pExchange, path);
+		} else {
+			drain(pExchange);
+			send(pExchange, 405, "Method not allowed", null);
+		}
+	}
+
+	private void propfind(HttpExchange pExchange, String pPath) throws IOException, InterruptedException {
+		String depth = pExchange.getRequestHeaders().getFirst("Depth");
+		String collection = pPath.endsWith("/")?pPath:pPath+"/";
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<D:multistatus xmlns:D=\"DAV:\">\n");
+		if(gFiles.containsKey(pPath)) {
+			propfindEntry(xml, pPath, gFiles.get(pPath));
+		} else if(gCollections.containsKey(collection)) {
+			propfindEntry(xml, collection, null);
+			if(!"0".equals(depth)) {
+				List<String> children = new ArrayList<String>();
+				for(String file:gFiles.keySet()) {
+					if(file.startsWith(collection)&&file.indexOf('/', collection.length())<0) children.add(file);
+				}
+				for(String dir:gCollections.keySet()) {
+					if(dir.length()>collection.length()&&dir.startsWith(collection)&&dir.indexOf('/', collection.length())==dir.length()-1) children.add(dir);
+				}
+				for(String child:children) propfindEntry(xml, child, gFiles.get(child));
+			}
+		} else {
+			send(pExchange, 404, "Not found: "+pPath, null);
+			return;
+		}
+		xml.append("</D:multistatus>\n");
+		send(pExchange, 207, xml.toString(), "application/xml; charset=utf-8");
+	}
+
+	private static void propfindEntry(StringBuilder pXml, String pPath, Content pContent) {
+		pXml.append("<D:response><D:href>"+xmlEscape(WEBDAV_ROOT+pPath)+"</D:href><D:propstat><D:prop>");
+		if(pContent==null) {
+			pXml.append("<D:resourcetype><D:collection/></D:resourcetype>");
+		} else {
+			pXml.append("<D:resourcetype/>");
+			pXml.append("<D:getcontentlength>"+pContent.gData.length+"</D:getcontentlength>");
+			pXml.append("<D:getlastmodified>"+httpDate(pContent.gCreated)+"</D:getlastmodified>");
+			pXml.append("<D:getetag>"+xmlEscape(pContent.getETag())+"</D:getetag>");
+		}
+		pXml.append("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>\n");
+	}
+
+	private byte[] read(HttpExchange pExchange) throws IOException {
+		InputStream in = throttle(pExchange.getRequestBody());
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[THROTTLE_CHUNK];
+		int read;
+		while((read = in.read(buffer))!=-1) data.write(buffer, 0, read);
+		in.close();
+		return data.toByteArray();
+	}
+
+	private void drain(HttpExchange pExchange) throws IOException {
+		InputStream in = pExchange.getRequestBody();
+		byte[] buffer = new byte[THROTTLE_CHUNK];
+		while(in.read(buffer)!=-1) { /* discard */ }
+		in.close();
+	}
+
+	/**
+	 * Send stored content, or the part of it asked for by a single "bytes=" Range header
+	 * (multiple ranges are answered with the whole content)
+	 */
+	private void sendContent(HttpExchange pExchange, Content pStored) throws IOException {
+		pExchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+		String range = pExchange.getRequestHeaders().getFirst("Range");
+		long length = pStored.gData.length;
+		if(range==null||!range.startsWith("bytes=")||range.contains(",")) {
+			send(pExchange, 200, pStored.gData, pStored.gMimeType);
+			return;
+		}
+		String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+		long first;
+		long last;
+		try {
+			if(bounds[0].length()==0) {
+				//suffix range: the last n bytes
+				first = Math.max(0, length-Long.parseLong(bounds[1]));
+				last = length-1;
+			} else {
+				first = Long.parseLong(bounds[0]);
+				last = bounds[1].length()==0?length-1:Math.min(length-1, Long.parseLong(bounds[1]));
+			}
+		} catch(NumberFormatException e) {
+			send(pExchange, 200, pStored.gData, pStored.gMimeType);
+			return;
+		}
+		if(first>=length||first>last) {
+			pExchange.getResponseHeaders().add("Content-Range", "bytes */"+length);
+			send(pExchange, 416, "Range not satisfiable", null);
+			return;
+		}
+		pExchange.getResponseHeaders().add("Content-Range", "bytes "+first+"-"+last+"/"+length);
+		send(pExchange, 206, Arrays.copyOfRange(pStored.gData, (int)first, (int)last+1), pStored.gMimeType);
+	}
+
+	private void send(HttpExchange pExchange, int pStatus, String pBody, String pContentType) throws IOException {
+		send(pExchange, pStatus, pBody==null?null:pBody.getBytes(StandardCharsets.UTF_8), pContentType==null?"text/plain; charset=utf-8":pContentType);
+	}
+
+	private void send(HttpExchange pExchange, int pStatus, byte[] pBody, String pContentType) throws IOException {
+		if(pContentType!=null) pExchange.getResponseHeaders().add("Content-Type", pContentType);
+		if(pBody==null||pBody.length==0) {
+			pExchange.sendResponseHeaders(pStatus, -1);
+			pExchange.close();
+			return;
+		}
+		pExchange.sendResponseHeaders(pStatus, pBody.length);
+		gBytesSent.addAndGet(pBody.length);
+		OutputStream out = throttle(pExchange.getResponseBody());
+		try {
+			out.write(pBody);
+		} finally {
+			out.close();
+		}
+	}
+
+	private InputStream throttle(InputStream pInput) {
+		final long bandwidth = gBandwidth;
+		if(bandwidth<=0) return pInput;
+		return new FilterInputStream(pInput) {
+			private long gStart = System.nanoTime();
+			private long gCount = 0;
+			public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+				int read = super.read(pBuffer, pOffset, Math.min(pLength, THROTTLE_CHUNK));
+				if(read>0) {
+					gCount += read;
+					pause(gStart, gCount, bandwidth);
+				}
+				return read;
+			}
+		};
+	}
+
+	private OutputStream throttle(OutputStream pOutput) {
+		final long bandwidth = gBandwidth;
+		if(bandwidth<=0) return pOutput;
+		return new FilterOutputStream(pOutput) {
+			private long gStart = System.nanoTime();
+			private long gCount = 0;
+			public void write(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+				while(pLength>0) {
+					int chunk = Math.min(pLength, THROTTLE_CHUNK);
+					out.write(pBuffer, pOffset, chunk);
+					pOffset += chunk;
+					pLength -= chunk;
+					gCount += chunk;
+					pause(gStart, gCount, bandwidth);
+				}
+			}
+		};
+	}
+
+	private static void pause(long pStart, long pCount, long pBandwidth) throws IOException {
+		long due = pStart+pCount*1000000000L/pBandwidth;
+		long wait = due-System.nanoTime();
+		if(wait<=0) return;
+		try {
+			Thread.sleep(wait/1000000, (int)(wait%1000000));
+		} catch(InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+	}
+
+	/**
+	 * Run a stand-in server until killed
+	 * @param args [port [latency-ms [bandwidth-bytes/s [error-rate]]]]
+	 */
+	public static void main(String[] args) throws IOException {
+		StandInServer server = new StandInServer(new InetSocketAddress(args.length>0?Integer.parseInt(args[0]):8080));
+		if(args.length>1) server.setLatency(Long.parseLong(args[1]), Long.parseLong(args[1]));
+		if(args.length>2) server.setBandwidth(Long.parseLong(args[2]));
+		if(args.length>3) server.setErrorRate(Double.parseDouble(args[3]), 500);
+		byte[] sample = new byte[1024*1024];
+		new Random(42).nextBytes(sample);
+		server.addDatastream("standin:1", "DS", "sample.bin", sample);
+		server.addFile("/sample/sample.bin", sample);
+		String base = "http://"+server.getHost()+":"+server.getPort();
+		System.out.println("Stand-in server listening on port "+server.getPort()+
+				" (Fedora: "+base+FEDORA_ROOT+", WebDAV: "+base+WEBDAV_ROOT+"; sample content at standin:1/DS and /sample/sample.bin)");
+	}
+
+}
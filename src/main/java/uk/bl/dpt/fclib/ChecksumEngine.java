@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates several checksums (e.g. MD5, SHA-1 and SHA-256) from a single read of the data.
+ * Files are read through a FileChannel, either into a reused direct buffer or memory mapped,
+ * and the data is handed to each digest in cache sized slices.
+ * @author wpalmer
+ *
+ */
+public class ChecksumEngine {
+
+	/**
+	 * How file data is read
+	 */
+	public enum Strategy {
+		/** read into a heap byte array (as the original generateChecksum did) */
+		HEAP,
+		/** read into a reused direct ByteBuffer */
+		DIRECT,
+		/** memory map the file */
+		MAPPED,
+		/** DIRECT for small files, MAPPED for large ones */
+		AUTO
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int BUFFER_SIZE = 1024*1024;
+	//amount of data given to each digest in turn, small enough to stay in cache
+	private static final int SLICE_SIZE = 64*1024;
+	private static final long MAP_WINDOW = 256L*1024*1024;
+	private static final long MAP_THRESHOLD = 16L*1024*1024;
+
+	private static final ThreadLocal<ByteBuffer> gDirectBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private String[] gTypes;
+	private MessageDigest[] gDigests;
+
+	/**
+	 * Initialise the engine
+	 * @param pTypes checksum types to generate (e.g. "MD5", "SHA-1", "SHA-256")
+	 * @throws NoSuchAlgorithmException if a checksum type is not available
+	 */
+	public ChecksumEngine(String[] pTypes) throws NoSuchAlgorithmException {
+		gTypes = new String[pTypes.length];
+		gDigests = new MessageDigest[pTypes.length];
+		for(int i=0;i<pTypes.length;i++) {
+			gTypes[i] = pTypes[i].toUpperCase();
+			gDigests[i] = MessageDigest.getInstance(gTypes[i]);
+		}
+	}
+
+	/**
+	 * Add data to all the checksums
+	 * @param pBuffer data
+	 * @param pOffset offset of data in pBuffer
+	 * @param pLength length of data
+	 */
+	public void update(byte[] pBuffer, int pOffset, int pLength) {
+		for(MessageDigest md:gDigests) md.update(pBuffer, pOffset, pLength);
+	}
+
+	/**
+	 * Add the remaining data in a buffer to all the checksums.  The buffer's position is
+	 * moved to its limit.
+	 * @param pBuffer data
+	 */
+	public void update(ByteBuffer pBuffer) {
+		int limit = pBuffer.limit();
+		int pos = pBuffer.position();
+		while(pos<limit) {
+			int end = (int)Math.min(limit, (long)pos+SLICE_SIZE);
+			for(MessageDigest md:gDigests) {
+				pBuffer.limit(end);
+				pBuffer.position(pos);
+				md.update(pBuffer);
+			}
+			pos = end;
+		}
+		pBuffer.limit(limit);
+		pBuffer.position(limit);
+	}
+
+	/**
+	 * Add the contents of a channel (from its current position) to all the checksums
+	 * @param pChannel channel to read
+	 * @param pStrategy how to read the channel
+	 * @return number of bytes read
+	 * @throws IOException read error
+	 */
+	public long update(FileChannel pChannel, Strategy pStrategy) throws IOException {
+		if(pStrategy==Strategy.AUTO) {
+			pStrategy = pChannel.size()-pChannel.position()>=MAP_THRESHOLD?Strategy.MAPPED:Strategy.DIRECT;
+		}
+		long count = 0;
+		int read;
+		switch(pStrategy) {
+		case MAPPED:
+			long size = pChannel.size();
+			long pos = pChannel.position();
+			while(pos<size) {
+				long length = Math.min(MAP_WINDOW, size-pos);
+				MappedByteBuffer map = pChannel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+				update(map);
+				pos += length;
+				count += length;
+			}
+			pChannel.position(pos);
+			break;
+		case DIRECT:
+			ByteBuffer buffer = gDirectBuffer.get();
+			buffer.clear();
+			while((read = pChannel.read(buffer))!=-1) {
+				buffer.flip();
+				update(buffer);
+				buffer.clear();
+				count += read;
+			}
+			break;
+		default:
+			byte[] array = new byte[BUFFER_SIZE];
+			ByteBuffer wrapped = ByteBuffer.wrap(array);
+			while((read = pChannel.read(wrapped))!=-1) {
+				update(array, 0, read);
+				wrapped.clear();
+				count += read;
+			}
+			break;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the checksums for the data so far, and reset the engine
+	 * @return checksums (lowercase hex), keyed by (uppercase) checksum type, in the order requested
+	 */
+	public Map<String, String> getChecksums() {
+		Map<String, String> checksums = new LinkedHashMap<String, String>();
+		for(int i=0;i<gDigests.length;i++) {
+			checksums.put(gTypes[i], toHex(gDigests[i].digest()));
+		}
+		return checksums;
+	}
+
+	/**
+	 * Generate checksums for a file in one read
+	 * @param pFile file to checksum
+	 * @param pTypes checksum types to generate
+	 * @param pStrategy how to read the file
+	 * @return checksums (lowercase hex), keyed by (uppercase) checksum type, in the order requested
+	 * @throws IOException file access error, or unknown checksum type
+	 */
+	public static Map<String, String> checksumFile(File pFile, String[] pTypes, Strategy pStrategy) throws IOException {
+		ChecksumEngine engine;
+		try {
+			engine = new ChecksumEngine(pTypes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+e.getMessage());
+		}
+		FileInputStream input = new FileInputStream(pFile);
+		try {
+			engine.update(input.getChannel(), pStrategy);
+		} finally {
+			input.close();
+		}
+		return engine.getChecksums();
+	}
+
+	/**
+	 * Convert bytes to a lowercase hex string
+	 * @param pBytes bytes to convert
+	 * @return hex string
+	 */
+	public static String toHex(byte[] pBytes) {
+		char[] hex = new char[pBytes.length*2];
+		for(int i=0;i<pBytes.length;i++) {
+			hex[i*2] = HEX[(pBytes[i]>>4)&0x0f];
+			hex[i*2+1] = HEX[pBytes[i]&0x0f];
+		}
+		return new String(hex);
+	}
+
+}
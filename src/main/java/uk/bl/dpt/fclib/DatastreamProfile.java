@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.util.HashMap;
+
+/**
+ * The profile of one datastream, as returned by Fedora: the elements of a datastreamProfile
+ * (dsLabel, dsSize, dsChecksum etc), with typed accessors for the commonly used ones
+ * @author wpalmer
+ *
+ */
+public class DatastreamProfile {
+
+	private String gPid;
+	private String gDatastream;
+	private HashMap<String, String> gValues;
+
+	/**
+	 * Create a profile
+	 * @param pPid pid of object
+	 * @param pDatastream datastream id
+	 * @param pValues profile elements, keyed by element name (e.g. dsLabel)
+	 */
+	public DatastreamProfile(String pPid, String pDatastream, HashMap<String, String> pValues) {
+		gPid = pPid;
+		gDatastream = pDatastream;
+		gValues = pValues;
+	}
+
+	/** @return pid of object */
+	public String getPid() { return gPid; }
+	/** @return datastream id */
+	public String getDatastream() { return gDatastream; }
+	/** @return label (the file name when recovered) */
+	public String getLabel() { return get(FedoraConnection.FedoraKeys.LABEL); }
+	/** @return mime type */
+	public String getMimeType() { return get("dsMIME"); }
+	/** @return control group: X, M, R or E */
+	public String getControlGroup() { return get(FedoraConnection.FedoraKeys.CONTROLGROUP); }
+	/** @return state: A, I or D */
+	public String getState() { return get("dsState"); }
+	/** @return checksum type, e.g. MD5 or DISABLED */
+	public String getChecksumType() { return get(FedoraConnection.FedoraKeys.CHECKSUMTYPE); }
+	/** @return checksum ("none" if disabled) */
+	public String getChecksum() { return get(FedoraConnection.FedoraKeys.CHECKSUM); }
+	/** @return creation date of this version, as in the profile (ISO 8601) */
+	public String getCreateDate() { return get("dsCreateDate"); }
+	/** @return location of the content (for externally referenced datastreams) */
+	public String getLocation() { return get("dsLocation"); }
+
+	/**
+	 * @return size in bytes (Fedora reports 0 for some externally referenced and inline
+	 * datastreams), or -1 if not known
+	 */
+	public long getSize() {
+		String size = get(FedoraConnection.FedoraKeys.SIZE);
+		if(size==null||size.length()==0) return -1;
+		try {
+			return Long.parseLong(size.trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return whether the datastream has content that can be recovered to a file (managed or
+	 * externally referenced)
+	 */
+	public boolean hasContent() {
+		String controlGroup = getControlGroup();
+		return controlGroup!=null&&(controlGroup.equalsIgnoreCase("M")||controlGroup.equalsIgnoreCase("E"));
+	}
+
+	/**
+	 * @param pKey profile element name, e.g. dsVersionID
+	 * @return value, or null if not in the profile
+	 */
+	public String get(String pKey) {
+		return gValues.get(pKey);
+	}
+
+	/**
+	 * @return all profile elements, as returned by FedoraConnection.getDatastreamProperties()
+	 */
+	public HashMap<String, String> getValues() {
+		return gValues;
+	}
+
+	public String toString() {
+		return gPid+"/"+gDatastream+" "+gValues;
+	}
+
+}
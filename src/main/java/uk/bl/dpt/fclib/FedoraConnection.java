@@ -0,0 +1,1471 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+import javax.net.ssl.SSLContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import uk.bl.dpt.fclib.archive.ArchiveOutput;
+import uk.bl.dpt.fclib.https.TlsConfig;
+import uk.bl.dpt.fclib.jfr.DatastreamPropertiesEvent;
+import uk.bl.dpt.fclib.jfr.TransferEvent;
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+import uk.bl.dpt.fclib.transport.Request;
+import uk.bl.dpt.fclib.transport.Response;
+import uk.bl.dpt.fclib.transport.Transport;
+import uk.bl.dpt.fclib.transport.Transports;
+
+/**
+ * A connection to one Fedora Commons server.  Each instance has its own credentials, SSL
+ * context, timeouts, transport and limit on concurrent requests, and nothing is set JVM-wide, so
+ * instances for different servers can be used from many threads at once.
+ * FedoraDataConnector's static methods use a default instance.
+ * @author wpalmer
+ *
+ */
+public class FedoraConnection {
+
+	private static boolean gDebug = true;
+
+	private static final XMLInputFactory gInputFactory = XMLInputFactory.newInstance();
+
+	static final class FedoraKeys {
+		public static final String LABEL = "dsLabel";
+		public static final String CHECKSUM = "dsChecksum";
+		public static final String CHECKSUMTYPE = "dsChecksumType";
+		public static final String SIZE = "dsSize";
+		public static final String CONTROLGROUP = "dsControlGroup";
+
+		private FedoraKeys() {}
+	}
+
+	private String gServer = "";
+	private int gPort = -42;
+	private String gUser = "";
+	private String gPassword = "";
+	private String gRoot = "";
+	private String gTransport = "http";
+
+	private TlsConfig gTls = null;
+	private int gConnectTimeout = 0;
+	private int gReadTimeout = 0;
+	private int gMaxConnections = 0;
+	private Semaphore gPermits = null;
+	private UploadVerifier gVerifier = null;
+	private Transport.Type gClientType = Transport.Type.URLCONNECTION;
+	private Transport gClient = null;
+	private ReplicaSet gReplicas;
+
+	/**
+	 * Create a connection using the settings in an xml properties file (keys SERVER, PORT,
+	 * USER, PASSWORD, ROOT and TRANSPORT, and optionally REPLICAS, a comma separated list of
+	 * read replicas as host[:port], HEDGE, the percentile to hedge reads at, CLIENT, the
+	 * transport implementation: URLCONNECTION or HTTPCLIENT, and the TLS settings TRUSTSTORE,
+	 * TRUSTSTORE_PASSWORD, TRUSTSTORE_TYPE and VERIFY_HOSTNAME, see TlsConfig)
+	 * @param pSettings InputStream for settings
+	 */
+	public FedoraConnection(InputStream pSettings) {
+		loadSettings(pSettings);
+	}
+
+	/**
+	 * Apply the settings in an xml properties file (keys as for FedoraConnection(InputStream)).
+	 * Only the keys present are changed; everything else, including a verifier, timeouts and
+	 * TLS settings if no TLS keys are present, is kept.
+	 * @param pSettings InputStream for settings
+	 */
+	public synchronized void loadSettings(InputStream pSettings) {
+		Properties props = new Properties();
+		try {
+			props.loadFromXML(pSettings);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			return;
+		}
+		loadSettings(props);
+	}
+
+	/**
+	 * Apply loaded settings (see loadSettings(InputStream))
+	 * @param pSettings settings
+	 */
+	synchronized void loadSettings(Properties pSettings) {
+		String primary = gServer+":"+gPort;
+		String key = "SERVER";
+		if(pSettings.containsKey(key)) {
+			gServer = pSettings.getProperty(key);
+		}
+		key = "PORT";
+		if(pSettings.containsKey(key)&&pSettings.getProperty(key).length()>0) {
+			gPort = new Integer(pSettings.getProperty(key));
+		}
+		key = "USER";
+		if(pSettings.containsKey(key)) {
+			gUser = pSettings.getProperty(key);
+		}
+		key = "PASSWORD";
+		if(pSettings.containsKey(key)) {
+			gPassword = pSettings.getProperty(key);
+		}
+		key = "ROOT";
+		if(pSettings.containsKey(key)) {
+			gRoot = pSettings.getProperty(key);
+		}
+		key = "TRANSPORT";
+		if(pSettings.containsKey(key)) {
+			gTransport = pSettings.getProperty(key);
+		}
+		key = "REPLICAS";
+		if(pSettings.containsKey(key)) {
+			setReplicas(parseReplicas(pSettings.getProperty(key), gPort));
+		} else if(gReplicas!=null&&!primary.equals(gServer+":"+gPort)) {
+			//keep the replicas, with the new primary
+			List<String> replicas = new ArrayList<String>(gReplicas.getReplicas());
+			replicas.remove(primary);
+			setReplicas(replicas);
+		}
+		key = "HEDGE";
+		if(pSettings.containsKey(key)&&pSettings.getProperty(key).length()>0) {
+			getReplicaSet().setHedging(parseHedging(pSettings.getProperty(key)));
+		}
+		key = "CLIENT";
+		if(pSettings.containsKey(key)) {
+			gClientType = Transports.parseType(pSettings.getProperty(key));
+		}
+		if(pSettings.containsKey(TlsConfig.TRUSTSTORE)||pSettings.containsKey(TlsConfig.TRUSTSTORE_PASSWORD)||
+				pSettings.containsKey(TlsConfig.TRUSTSTORE_TYPE)||pSettings.containsKey(TlsConfig.VERIFY_HOSTNAME)) {
+			gTls = TlsConfig.fromProperties(pSettings, gDebug);
+		}
+		//the transport holds the credentials and TLS settings
+		resetClient();
+	}
+
+	/**
+	 * Parse a comma separated list of host[:port] (the port defaults to pPort)
+	 * @param pReplicas list of replicas
+	 * @param pPort default port
+	 * @return replicas as host:port
+	 */
+	static List<String> parseReplicas(String pReplicas, int pPort) {
+		List<String> replicas = new ArrayList<String>();
+		for(String replica:pReplicas.split(",")) {
+			replica = replica.trim();
+			if(replica.length()==0) continue;
+			replicas.add(replica.contains(":")?replica:replica+":"+pPort);
+		}
+		return replicas;
+	}
+
+	/**
+	 * Parse the HEDGE setting
+	 * @param pHedging percentile, greater than 0 and less than 100 (0 to disable hedging)
+	 * @return percentile
+	 * @throws IllegalArgumentException if the value is not a number in range
+	 */
+	static double parseHedging(String pHedging) {
+		double hedging;
+		try {
+			hedging = Double.parseDouble(pHedging.trim());
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid HEDGE: "+pHedging);
+		}
+		ReplicaSet.checkHedging(hedging);
+		return hedging;
+	}
+
+	/**
+	 * Create a connection
+	 * @param pTransport http or https
+	 * @param pServer server hostname
+	 * @param pPort server port
+	 * @param pRoot path of Fedora on the server, e.g. /fedora/
+	 * @param pUser Fedora user
+	 * @param pPassword Fedora password
+	 */
+	public FedoraConnection(String pTransport, String pServer, int pPort, String pRoot, String pUser, String pPassword) {
+		gTransport = pTransport;
+		gServer = pServer;
+		gPort = pPort;
+		gRoot = pRoot;
+		gUser = pUser;
+		gPassword = pPassword;
+	}
+
+	/**
+	 * Create a connection with the default (empty) settings
+	 */
+	FedoraConnection() {
+	}
+
+	/**
+	 * Create a connection to another server (e.g. another shard of the repository) with this
+	 * connection's transport, root, credentials, TLS settings, timeouts, connection limit and
+	 * client type.  Replicas and the verifier are not copied.
+	 * @param pServer server hostname
+	 * @param pPort server port
+	 * @return new connection
+	 */
+	synchronized FedoraConnection forServer(String pServer, int pPort) {
+		FedoraConnection connection = new FedoraConnection(gTransport, pServer, pPort, gRoot, gUser, gPassword);
+		connection.gTls = gTls;
+		connection.gConnectTimeout = gConnectTimeout;
+		connection.gReadTimeout = gReadTimeout;
+		connection.gClientType = gClientType;
+		connection.setMaxConnections(gMaxConnections);
+		return connection;
+	}
+
+	/**
+	 * @return server as host:port
+	 */
+	synchronized String getServer() {
+		return gServer+":"+gPort;
+	}
+
+	/**
+	 * Set the SSL context used for https connections to this server.  By default a context
+	 * that accepts any certificate is created for each instance.
+	 * @param pContext SSL context
+	 */
+	public synchronized void setSSLContext(SSLContext pContext) {
+		setTlsConfig(TlsConfig.forContext(pContext));
+	}
+
+	/**
+	 * Set the TLS settings (truststore, hostname verification, session cache) for https
+	 * connections to this server
+	 * @param pTls TLS settings
+	 */
+	public synchronized void setTlsConfig(TlsConfig pTls) {
+		gTls = pTls;
+		resetClient();
+	}
+
+	/**
+	 * @return the TLS settings for this server, including handshake counts
+	 */
+	public synchronized TlsConfig getTlsConfig() {
+		if(gTls==null) gTls = new TlsConfig(gDebug);
+		return gTls;
+	}
+
+	/**
+	 * Set connect and read timeouts for requests to this server
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 */
+	public synchronized void setTimeouts(int pConnectTimeout, int pReadTimeout) {
+		gConnectTimeout = pConnectTimeout;
+		gReadTimeout = pReadTimeout;
+		resetClient();
+	}
+
+	/**
+	 * Limit the number of operations in progress against this server at once; further
+	 * callers wait for an operation to finish
+	 * @param pMaxConnections maximum concurrent operations (0 for no limit)
+	 */
+	public synchronized void setMaxConnections(int pMaxConnections) {
+		gMaxConnections = pMaxConnections;
+		gPermits = pMaxConnections>0?new Semaphore(pMaxConnections, true):null;
+		resetClient();
+	}
+
+	/**
+	 * Choose the transport implementation used for requests to this server
+	 * @param pType transport type
+	 */
+	public synchronized void setTransportType(Transport.Type pType) {
+		gClientType = pType;
+		resetClient();
+	}
+
+	/**
+	 * Use a transport created elsewhere (for example one shared with other connections);
+	 * the connection's credentials, SSL context and timeouts are not applied to it
+	 * @param pTransport transport to use
+	 */
+	public synchronized void setTransport(Transport pTransport) {
+		resetClient();
+		gClient = pTransport;
+	}
+
+	/**
+	 * @return the transport used for requests to this server, created on first use
+	 */
+	public synchronized Transport getTransport() {
+		if(gClient==null) {
+			gClient = Transports.create(gClientType, gUser, gPassword, getTlsConfig(), gConnectTimeout, gReadTimeout, gMaxConnections);
+		}
+		return gClient;
+	}
+
+	/**
+	 * Release the transport's pooled connections; a new transport is created if the
+	 * connection is used again
+	 */
+	public synchronized void shutdown() {
+		resetClient();
+	}
+
+	private synchronized void resetClient() {
+		if(gClient!=null) {
+			gClient.close();
+			gClient = null;
+		}
+	}
+
+	/**
+	 * Set read replicas of this server.  Datastreams are recovered from the replica with the
+	 * lowest moving average response time (see ReplicaSet); uploads, and the reads that check
+	 * them, always go to the primary server.
+	 * @param pReplicas replicas as host:port, in addition to the primary server
+	 */
+	public synchronized void setReplicas(List<String> pReplicas) {
+		List<String> replicas = new ArrayList<String>();
+		replicas.add(gServer+":"+gPort);
+		for(String replica:pReplicas) {
+			if(!replicas.contains(replica)) replicas.add(replica);
+		}
+		ReplicaSet old = gReplicas;
+		gReplicas = new ReplicaSet(replicas);
+		if(old!=null) gReplicas.setHedging(old.getHedging());
+	}
+
+	/**
+	 * @return the read replicas (including the primary server)
+	 */
+	public synchronized ReplicaSet getReplicaSet() {
+		if(gReplicas==null) setReplicas(new ArrayList<String>());
+		return gReplicas;
+	}
+
+	private Semaphore acquire() {
+		Semaphore permits = gPermits;
+		if(permits!=null) permits.acquireUninterruptibly();
+		return permits;
+	}
+
+	private static void release(Semaphore pPermits) {
+		if(pPermits!=null) pPermits.release();
+	}
+
+	private Request setupConnection(String pAddress, String pMethod) {
+		//the transport records a ConnectionSetupEvent when the request is sent
+		return new Request(pMethod, pAddress);
+	}
+
+	private Response send(String pAddress, String pMethod) throws IOException {
+		return getTransport().send(setupConnection(pAddress, pMethod));
+	}
+
+	/**
+	 * @return base URI of the Fedora server, e.g. https://host:port/fedora/
+	 */
+	public String getBaseURI() {
+		return getBaseURI(gServer+":"+gPort);
+	}
+
+	String getBaseURI(String pReplica) {
+		return gTransport+"://"+pReplica+gRoot;
+	}
+
+	/**
+	 * @return Fedora user
+	 */
+	public String getUser() {
+		return gUser;
+	}
+
+	String getPassword() {
+		return gPassword;
+	}
+
+	private String getFedoraURI(String pPid, String pDatastream) {
+		return getFedoraURI(gServer+":"+gPort, pPid, pDatastream);
+	}
+
+	private String getFedoraURI(String pReplica, String pPid, String pDatastream) {
+		String baseURI = getBaseURI(pReplica);
+		baseURI += "objects/"+pPid+"/datastreams/"+pDatastream;
+		return baseURI;
+	}
+
+	private static String getReplica(Response pResponse) {
+		URI uri = URI.create(pResponse.getURI());
+		return uri.getHost()+":"+uri.getPort();
+	}
+
+	public String toString() {
+		return getBaseURI();
+	}
+
+	/**
+	 * Retrieve the datastream profile and return its elements as key/value pairs
+	 * @param pPid pid of object
+	 * @param pDatastream datastream
+	 * @return profile values (e.g. dsLabel, dsSize, dsChecksum), or null on error
+	 */
+	public HashMap<String,String> getDatastreamProperties(String pPid, String pDatastream) {
+		Semaphore permits = acquire();
+		try {
+			return readDatastreamProperties(pPid, pDatastream, null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * @param pReplica null to read from the primary server, or a one element array to read
+	 * from the best replica and return the replica used in
+	 */
+	private HashMap<String,String> readDatastreamProperties(final String pPid, final String pDatastream, String[] pReplica) {
+		//EXAMPLE: http://host:port/fedora/objects/pid:1/datastreams/DS0?format=xml
+		String remoteURI = getFedoraURI(pPid, pDatastream)+"?format=xml";
+		Sample sample = MetricsRegistry.getDefault().start("fedora.getDatastreamProperties", remoteURI);
+		DatastreamPropertiesEvent event = new DatastreamPropertiesEvent();
+		event.begin();
+		event.pid = pPid;
+		event.datastream = pDatastream;
+
+		try {
+			if(gDebug) System.out.print("Connecting... ");
+			Response server = null;
+			if(pReplica==null) {
+				server = send(remoteURI, "GET");
+			} else {
+				server = getReplicaSet().open(new ReplicaSet.Opener() {
+					public Response open(String pHost) throws IOException {
+						return send(getFedoraURI(pHost, pPid, pDatastream)+"?format=xml", "GET");
+					}
+				});
+				pReplica[0] = getReplica(server);
+			}
+			if(gDebug) System.out.println("Return code: "+server.getStatus()+" "+server.getURI()+" ("+server.getProtocol()+")");
+			sample.firstByte();
+			sample.setStatus(server.getStatus());
+			event.status = server.getStatus();
+
+			//we should get an xml document with root node datastreamProfile
+			//and a series of elements containing data
+
+			DocumentBuilder docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Document doc = null;
+			try {
+				InputStream body = server.getBody();
+				doc = docB.parse(body);
+				body.close();
+			} finally {
+				server.close();
+			}
+			Node root = doc.getFirstChild();
+
+			HashMap<String, String> values = new HashMap<String, String>();
+
+			if(root.getNodeName().equals("datastreamProfile")) {
+				Node node = root.getFirstChild();
+				while(node!=null) {
+					values.put(node.getNodeName(), node.getTextContent());
+					node = node.getNextSibling();
+				}
+			} else {
+				sample.fail();
+				return null;
+			}
+
+			//for(String key:values.keySet()) {
+			//	System.out.println(key+": "+values.get(key));
+			//}
+			sample.finish();
+			event.success = true;
+			return values;
+
+		} catch(ParserConfigurationException pce) {
+			sample.fail();
+			return null;
+		} catch(IOException ioe) {
+			sample.fail();
+			return null;
+		} catch(SAXException se) {
+			sample.fail();
+			return null;
+		} finally {
+			event.commit();
+		}
+	}
+
+	/**
+	 * Enumerate the objects matching a findObjects query, a page at a time
+	 * @param pQuery findObjects query, e.g. pid~jisc1:*
+	 * @param pPageSize number of pids to request at a time
+	 * @return pids of matching objects
+	 */
+	public ObjectEnumerator findObjects(String pQuery, int pPageSize) {
+		return new ObjectEnumerator.FindObjects(this, pQuery, pPageSize);
+	}
+
+	/**
+	 * Enumerate the members of a collection from the resource index, a page at a time
+	 * @param pCollectionPid pid of the collection object, e.g. jisc1:jisc1
+	 * @param pPageSize number of pids to request at a time
+	 * @return pids of the collection members
+	 */
+	public ObjectEnumerator getCollectionMembers(String pCollectionPid, int pPageSize) {
+		return ObjectEnumerator.ResourceIndex.collectionMembers(this, pCollectionPid, pPageSize);
+	}
+
+	/**
+	 * Retrieve the profiles of all datastreams of an object in one request, using the
+	 * datastream listing (objects/{pid}/datastreams?profiles=true).  The listing is parsed as it
+	 * is read rather than built into a document.  Servers that do not support profiles in the
+	 * listing (Fedora before 3.6) return only datastream ids; the profiles are then requested
+	 * one by one.  The listing is read from the best replica (see setReplicas()).
+	 * @param pPid pid of object
+	 * @return profiles keyed by datastream id, in the order listed, or null on error
+	 */
+	public Map<String, DatastreamProfile> getDatastreamProfiles(String pPid) {
+		return getDatastreamProfiles(pPid, false);
+	}
+
+	/**
+	 * Retrieve the profiles of all datastreams of an object in one request (see
+	 * getDatastreamProfiles(String))
+	 * @param pPid pid of object
+	 * @param pPrimary read from the primary server, e.g. to check an upload, rather than the
+	 * best replica
+	 * @return profiles keyed by datastream id, in the order listed, or null on error
+	 */
+	public Map<String, DatastreamProfile> getDatastreamProfiles(String pPid, boolean pPrimary) {
+		Semaphore permits = acquire();
+		try {
+			return readDatastreamProfiles(pPid, pPrimary?null:new String[1]);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * @param pReplica null to read from the primary server, or a one element array to read
+	 * from the best replica and return the replica used in
+	 */
+	private Map<String, DatastreamProfile> readDatastreamProfiles(final String pPid, String[] pReplica) {
+		//EXAMPLE: http://host:port/fedora/objects/pid:1/datastreams?format=xml&profiles=true
+		String remoteURI = getBaseURI()+"objects/"+pPid+"/datastreams?format=xml&profiles=true";
+		Sample sample = MetricsRegistry.getDefault().start("fedora.getDatastreamProfiles", remoteURI);
+		DatastreamPropertiesEvent event = new DatastreamPropertiesEvent();
+		event.begin();
+		event.pid = pPid;
+
+		Map<String, DatastreamProfile> profiles = new LinkedHashMap<String, DatastreamProfile>();
+		List<String> unprofiled = new ArrayList<String>();
+		try {
+			Response server = null;
+			if(pReplica==null) {
+				server = send(remoteURI, "GET");
+			} else {
+				server = getReplicaSet().open(new ReplicaSet.Opener() {
+					public Response open(String pHost) throws IOException {
+						return send(getBaseURI(pHost)+"objects/"+pPid+"/datastreams?format=xml&profiles=true", "GET");
+					}
+				});
+				pReplica[0] = getReplica(server);
+			}
+			if(gDebug) System.out.println("Return code: "+server.getStatus()+" "+server.getURI()+" ("+server.getProtocol()+")");
+			sample.firstByte();
+			sample.setStatus(server.getStatus());
+			event.status = server.getStatus();
+
+			try {
+				InputStream body = server.getBody();
+				parseDatastreamProfiles(pPid, body, profiles, unprofiled);
+				body.close();
+			} finally {
+				server.close();
+			}
+		} catch(IOException ioe) {
+			sample.fail();
+			event.commit();
+			return null;
+		} catch(XMLStreamException xse) {
+			xse.printStackTrace();
+			sample.fail();
+			event.commit();
+			return null;
+		}
+
+		//no profiles in the listing: fall back to one request per datastream
+		for(String datastream:unprofiled) {
+			if(profiles.containsKey(datastream)) continue;
+			HashMap<String, String> values = readDatastreamProperties(pPid, datastream, null);
+			if(values==null) {
+				sample.fail();
+				event.commit();
+				return null;
+			}
+			profiles.put(datastream, new DatastreamProfile(pPid, datastream, values));
+		}
+
+		sample.finish();
+		event.datastreams = profiles.size();
+		event.success = true;
+		event.commit();
+		return profiles;
+	}
+
+	/**
+	 * Read the datastream listing: datastreamProfile elements (with profiles=true) are added to
+	 * pProfiles, and the ids of plain datastream elements to pUnprofiled
+	 */
+	private static void parseDatastreamProfiles(String pPid, InputStream pListing, Map<String, DatastreamProfile> pProfiles, List<String> pUnprofiled) throws XMLStreamException {
+		XMLStreamReader reader = gInputFactory.createXMLStreamReader(pListing);
+		try {
+			String datastream = null;
+			HashMap<String, String> values = null;
+			String element = null;
+			StringBuilder text = new StringBuilder();
+			int depth = 0;
+			while(reader.hasNext()) {
+				switch(reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					if(values==null) {
+						if(reader.getLocalName().equals("datastreamProfile")) {
+							datastream = reader.getAttributeValue(null, "dsID");
+							values = new HashMap<String, String>();
+							depth = 0;
+						} else if(reader.getLocalName().equals("datastream")) {
+							String id = reader.getAttributeValue(null, "dsid");
+							if(id!=null) pUnprofiled.add(id);
+						}
+					} else if(depth==1) {
+						//a profile element, e.g. dsLabel
+						element = reader.getLocalName();
+						text.setLength(0);
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if(element!=null) text.append(reader.getText());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if(values!=null&&depth==1&&element!=null) {
+						//as getDatastreamProperties(), multi-valued elements (dsAltID) keep the last value
+						values.put(element, text.toString());
+						element = null;
+					} else if(values!=null&&depth==0) {
+						if(datastream!=null) pProfiles.put(datastream, new DatastreamProfile(pPid, datastream, values));
+						values = null;
+						datastream = null;
+					}
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Recover every datastream of an object that has content (managed and externally
+	 * referenced datastreams), using a single request for all of the datastream profiles
+	 * @param pPid pid of object
+	 * @param pLocalDir directory to put files when recovered
+	 * @return recovered files keyed by datastream id, or null if the profiles could not be read;
+	 * datastreams that failed to recover are not included
+	 */
+	public Map<String, File> recoverObject(String pPid, String pLocalDir) {
+		Map<String, DatastreamProfile> profiles = null;
+		String[] replica = new String[1];
+		Semaphore permits = acquire();
+		try {
+			profiles = readDatastreamProfiles(pPid, replica);
+		} finally {
+			release(permits);
+		}
+		if(profiles==null) return null;
+
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for(DatastreamProfile profile:profiles.values()) {
+			if(!profile.hasContent()) continue;
+			permits = acquire();
+			try {
+				File file = copyDatastream(pPid, profile.getDatastream(), pLocalDir, null, profile.getValues(), replica[0]);
+				if(file!=null) files.put(profile.getDatastream(), file);
+			} finally {
+				release(permits);
+			}
+		}
+		System.out.println("Recovered ["+files.size()+"] datastreams of "+pPid);
+		return files;
+	}
+
+	/**
+	 * Recover every managed or externally referenced datastream of an object into an archive,
+	 * using a single request for all of the datastream profiles
+	 * @param pPid pid of object
+	 * @param pArchive archive to write to
+	 * @return archive entries keyed by datastream id, or null if the profiles could not be read;
+	 * datastreams that failed to recover are not included
+	 */
+	public Map<String, ArchiveOutput.Entry> recoverObject(String pPid, ArchiveOutput pArchive) {
+		Map<String, DatastreamProfile> profiles = null;
+		String[] replica = new String[1];
+		Semaphore permits = acquire();
+		try {
+			profiles = readDatastreamProfiles(pPid, replica);
+		} finally {
+			release(permits);
+		}
+		if(profiles==null) return null;
+
+		Map<String, ArchiveOutput.Entry> entries = new LinkedHashMap<String, ArchiveOutput.Entry>();
+		for(DatastreamProfile profile:profiles.values()) {
+			if(!profile.hasContent()) continue;
+			permits = acquire();
+			try {
+				ArchiveOutput.Entry entry = archiveDatastream(pPid, profile.getDatastream(), pArchive, null, profile.getValues(), replica[0]);
+				if(entry!=null) entries.put(profile.getDatastream(), entry);
+			} finally {
+				release(permits);
+			}
+		}
+		System.out.println("Recovered ["+entries.size()+"] datastreams of "+pPid);
+		return entries;
+	}
+
+	/**
+	 * Recover a datastream from the repository
+	 * @param pPid pid of object
+	 * @param pDatastream datastream to recover
+	 * @param pLocalDir directory to put file when recovered
+	 * @return File object for recovered file, or null
+	 */
+	public File recoverDatastream(String pPid, String pDatastream, String pLocalDir) {
+		return recoverDatastream(pPid, pDatastream, pLocalDir, null);
+	}
+
+	/**
+	 * Recover a datastream using a profile already read (e.g. by getDatastreamProfiles()), so
+	 * only the content is requested
+	 * @param pProfile profile of the datastream
+	 * @param pLocalDir directory to put file when recovered
+	 * @return File object for recovered file, or null
+	 */
+	public File recoverDatastream(DatastreamProfile pProfile, String pLocalDir) {
+		Semaphore permits = acquire();
+		try {
+			return copyDatastream(pProfile.getPid(), pProfile.getDatastream(), pLocalDir, null, pProfile.getValues(), null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Get the size of a datastream's content without recovering it.  Managed datastreams have
+	 * their size in the profile; for others the content is asked for its first byte and the
+	 * size read from the response.
+	 * @param pPid pid of object
+	 * @param pDatastream datastream
+	 * @return size of the content in bytes
+	 * @throws IOException if the size cannot be found (FileNotFoundException if there is no
+	 * such datastream)
+	 */
+	public long getDatastreamSize(String pPid, String pDatastream) throws IOException {
+		HashMap<String, String> properties = getDatastreamProperties(pPid, pDatastream);
+		if(properties==null) throw new FileNotFoundException("Cannot read profile of "+pPid+"/"+pDatastream);
+		String dsSize = properties.get(FedoraKeys.SIZE);
+		if("M".equalsIgnoreCase(properties.get(FedoraKeys.CONTROLGROUP))&&dsSize!=null&&!dsSize.equals("0")) {
+			return Long.parseLong(dsSize);
+		}
+		Semaphore permits = acquire();
+		try {
+			Response server = openRange(pPid, pDatastream, 0, 1);
+			try {
+				if(server.getStatus()==HttpURLConnection.HTTP_NOT_FOUND) throw new FileNotFoundException(server.getURI());
+				long size = Tools.getContentSize(server);
+				if(size<0) throw new IOException("Size of "+pPid+"/"+pDatastream+" unknown: "+server.getStatus()+" "+server.getURI());
+				return size;
+			} finally {
+				server.close();
+			}
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Read part of a datastream's content with a Range request
+	 * @param pPid pid of object
+	 * @param pDatastream datastream
+	 * @param pOffset offset in the content of the first byte to read
+	 * @param pBuffer buffer to read into
+	 * @param pBufferOffset offset in pBuffer
+	 * @param pLength number of bytes to read
+	 * @return number of bytes read (less than pLength at the end of the content), or -1 if
+	 * pOffset is at or beyond the end
+	 * @throws IOException on error (FileNotFoundException if there is no such datastream)
+	 */
+	public int readDatastream(String pPid, String pDatastream, long pOffset, byte[] pBuffer, int pBufferOffset, int pLength) throws IOException {
+		String remoteURI = getFedoraURI(pPid, pDatastream)+"/content";
+		Sample sample = MetricsRegistry.getDefault().start("fedora.readDatastream", remoteURI);
+		Semaphore permits = acquire();
+		try {
+			Response server = openRange(pPid, pDatastream, pOffset, pLength);
+			try {
+				sample.firstByte();
+				sample.setStatus(server.getStatus());
+				sample.transferStart();
+				int read = Tools.readRange(server, pOffset, pBuffer, pBufferOffset, pLength);
+				sample.transferEnd(Math.max(0, read));
+				sample.finish();
+				return read;
+			} finally {
+				server.close();
+			}
+		} catch(IOException e) {
+			sample.fail();
+			throw e;
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Open a datastream's content for reading sequentially from an offset, e.g. when the server
+	 * does not support Range requests (see RangeNotSupportedException).  The stream holds a
+	 * connection until it is closed.
+	 * @param pPid pid of object
+	 * @param pDatastream datastream
+	 * @param pOffset offset in the content of the first byte to read
+	 * @return content from pOffset
+	 * @throws IOException on error (FileNotFoundException if there is no such datastream)
+	 */
+	public InputStream openDatastream(final String pPid, final String pDatastream, final long pOffset) throws IOException {
+		final Semaphore permits = acquire();
+		boolean opened = false;
+		try {
+			final Response server = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pHost) throws IOException {
+					Request request = setupConnection(getFedoraURI(pHost, pPid, pDatastream)+"/content", "GET");
+					if(pOffset>0) request.setHeader("Range", Tools.getRangeHeader(pOffset));
+					return getTransport().send(request);
+				}
+			});
+			InputStream body;
+			try {
+				body = Tools.openRange(server, pOffset);
+			} catch(IOException e) {
+				server.close();
+				throw e;
+			}
+			opened = true;
+			return new FilterInputStream(body) {
+				private boolean gClosed = false;
+				public void close() throws IOException {
+					if(gClosed) return;
+					gClosed = true;
+					try {
+						super.close();
+					} finally {
+						server.close();
+						release(permits);
+					}
+				}
+			};
+		} finally {
+			if(!opened) release(permits);
+		}
+	}
+
+	private Response openRange(final String pPid, final String pDatastream, final long pOffset, final int pLength) throws IOException {
+		return getReplicaSet().open(new ReplicaSet.Opener() {
+			public Response open(String pHost) throws IOException {
+				Request request = setupConnection(getFedoraURI(pHost, pPid, pDatastream)+"/content", "GET");
+				request.setHeader("Range", Tools.getRangeHeader(pOffset, pLength));
+				return getTransport().send(request);
+			}
+		});
+	}
+
+	/**
+	 * Recover a datastream into an archive rather than a local file.  The entry is named
+	 * pid/label (with ':' in the pid replaced by '_') and its checksum is checked against the
+	 * profile as it is written.
+	 * @param pPid pid of object
+	 * @param pDatastream datastream to recover
+	 * @param pArchive archive to write to
+	 * @return the archive entry, or null
+	 */
+	public ArchiveOutput.Entry recoverDatastream(String pPid, String pDatastream, ArchiveOutput pArchive) {
+		Semaphore permits = acquire();
+		try {
+			return archiveDatastream(pPid, pDatastream, pArchive, null, null, null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Recover a datastream into an archive using a profile already read
+	 * @param pProfile profile of the datastream
+	 * @param pArchive archive to write to
+	 * @return the archive entry, or null
+	 */
+	public ArchiveOutput.Entry recoverDatastream(DatastreamProfile pProfile, ArchiveOutput pArchive) {
+		Semaphore permits = acquire();
+		try {
+			return archiveDatastream(pProfile.getPid(), pProfile.getDatastream(), pArchive, null, pProfile.getValues(), null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Recover a datastream from each of a list of objects into an archive (see
+	 * recoverDatastreams(Iterable, String, String, IngestJournal))
+	 * @param pPids pids of objects
+	 * @param pDatastream datastream to recover
+	 * @param pArchive archive to write to
+	 * @param pJournal journal of completed recoveries
+	 * @return number of datastreams recovered (not including those skipped)
+	 */
+	public int recoverDatastreams(Iterable<String> pPids, String pDatastream, ArchiveOutput pArchive, IngestJournal pJournal) {
+		int count = 0;
+		int skipped = 0;
+		for(String pid:pPids) {
+			if(pJournal.isCompleted(getJournalKey(pid, pDatastream))) {
+				skipped++;
+				continue;
+			}
+			Semaphore permits = acquire();
+			try {
+				if(archiveDatastream(pid, pDatastream, pArchive, pJournal, null, null)!=null) count++;
+			} finally {
+				release(permits);
+			}
+		}
+		try {
+			pJournal.sync();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Recovered ["+count+"] datastreams, skipped ["+skipped+"] already recovered");
+		return count;
+	}
+
+	/**
+	 * @param pPid pid of object
+	 * @param pDatastream datastream id
+	 * @param pLabel datastream label (or null)
+	 * @return path of the datastream in an archive, pid/datastream/label (labels need not be
+	 * unique within an object, datastream ids are)
+	 */
+	public static String getArchivePath(String pPid, String pDatastream, String pLabel) {
+		//pids contain ':', which is not allowed in file names everywhere
+		String path = pPid.replace(':', '_')+"/"+pDatastream;
+		return pLabel==null||pLabel.length()==0?path:path+"/"+pLabel;
+	}
+
+	private ArchiveOutput.Entry archiveDatastream(final String pPid, final String pDatastream, ArchiveOutput pArchive, IngestJournal pJournal,
+			HashMap<String, String> pProperties, String pReplica) {
+		String[] replica = new String[] { pReplica };
+		HashMap<String, String> properties = pProperties!=null?pProperties:readDatastreamProperties(pPid, pDatastream, replica);
+		String remoteURI = getFedoraURI(replica[0]==null?gServer+":"+gPort:replica[0], pPid, pDatastream)+"/content";
+
+		Sample sample = MetricsRegistry.getDefault().start("fedora.recoverDatastream", remoteURI);
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		event.operation = "fedora.recoverDatastream";
+		event.pid = pPid;
+		event.datastream = pDatastream;
+		event.uri = remoteURI;
+		try {
+			if(properties==null) throw new IOException("Cannot read profile of "+pPid+"/"+pDatastream);
+			String path = getArchivePath(pPid, pDatastream, properties.get(FedoraKeys.LABEL));
+			event.path = path;
+			Response server = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pHost) throws IOException {
+					return send(getFedoraURI(pHost, pPid, pDatastream)+"/content", "GET");
+				}
+			}, replica[0]);
+			event.uri = server.getURI();
+			System.out.println("Return code: "+server.getStatus()+" "+server.getURI());
+			sample.firstByte();
+			sample.setStatus(server.getStatus());
+			event.status = server.getStatus();
+
+			if(server.getStatus()!=HttpURLConnection.HTTP_OK) {
+				server.close();
+				throw new IOException("Return code: "+server.getStatus()+" "+server.getURI());
+			}
+
+			//use the content length the server sent; failing that, managed datastreams have
+			//their size in the profile (the archive buffers content of unknown size, and fails
+			//an entry whose content is not the size given, so a stale profile cannot truncate it)
+			long size = -1;
+			String dsSize = properties.get(FedoraKeys.SIZE);
+			String contentLength = server.getHeader("Content-Length");
+			if(contentLength!=null) {
+				size = Long.parseLong(contentLength);
+			} else if("M".equalsIgnoreCase(properties.get(FedoraKeys.CONTROLGROUP))&&dsSize!=null&&!dsSize.equals("0")) {
+				size = Long.parseLong(dsSize);
+			}
+
+			System.out.println("Copying: "+server.getURI()+" -> "+pArchive.getClass().getSimpleName()+" "+path);
+			long startTime = System.currentTimeMillis();
+			sample.transferStart();
+			ArchiveOutput.Entry entry = null;
+			try {
+				InputStream body = server.getBody();
+				//the checksum is generated as the content is written
+				entry = pArchive.add(path, body, size, System.currentTimeMillis(),
+						properties.get(FedoraKeys.CHECKSUMTYPE), properties.get(FedoraKeys.CHECKSUM));
+				body.close();
+			} finally {
+				server.close();
+			}
+			sample.transferEnd(entry.getSize());
+			event.path = entry.toString();
+			event.bytes = entry.getSize();
+			event.success = true;
+			event.commit();
+			System.out.println("Copied ["+entry.getSize()+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+			System.out.println("Checksums ok");
+
+			sample.finish();
+			if(pJournal!=null) pJournal.record(getJournalKey(pPid, pDatastream), pPid, properties.get(FedoraKeys.CHECKSUM), IngestJournal.COMPLETED);
+			return entry;
+
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			if(!event.success) event.commit();
+			if(pJournal!=null) {
+				try {
+					pJournal.record(getJournalKey(pPid, pDatastream), pPid, null, IngestJournal.FAILED);
+				} catch(IOException je) {
+					je.printStackTrace();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Recover a datastream from each of a list of objects.  Datastreams the journal records as
+	 * completed are skipped, and the outcome of each recovery is recorded, so a failed run can
+	 * be restarted with the same journal.
+	 * @param pPids pids of objects
+	 * @param pDatastream datastream to recover
+	 * @param pLocalDir directory to put files when recovered
+	 * @param pJournal journal of completed recoveries
+	 * @return number of datastreams recovered (not including those skipped)
+	 */
+	public int recoverDatastreams(Iterable<String> pPids, String pDatastream, String pLocalDir, IngestJournal pJournal) {
+		int count = 0;
+		int skipped = 0;
+		for(String pid:pPids) {
+			if(pJournal.isCompleted(getJournalKey(pid, pDatastream))) {
+				skipped++;
+				continue;
+			}
+			if(recoverDatastream(pid, pDatastream, pLocalDir, pJournal)!=null) count++;
+		}
+		try {
+			pJournal.sync();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Recovered ["+count+"] datastreams, skipped ["+skipped+"] already recovered");
+		return count;
+	}
+
+	private static String getJournalKey(String pPid, String pDatastream) {
+		return pPid+"/"+pDatastream;
+	}
+
+	private File recoverDatastream(String pPid, String pDatastream, String pLocalDir, IngestJournal pJournal) {
+		Semaphore permits = acquire();
+		try {
+			return copyDatastream(pPid, pDatastream, pLocalDir, pJournal, null, null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * @param pProperties datastream properties if already read (from pReplica), otherwise null
+	 */
+	private File copyDatastream(final String pPid, final String pDatastream, String pLocalDir, IngestJournal pJournal,
+			HashMap<String, String> pProperties, String pReplica) {
+		if(!pLocalDir.endsWith("/")) {
+			pLocalDir+="/";
+		}
+
+		//recover datastream properties from the best replica, then the content preferably from
+		//the same replica (if a replica that is not in step answers, the checksum will not match)
+		String[] replica = new String[] { pReplica };
+		HashMap<String, String> properties = pProperties!=null?pProperties:readDatastreamProperties(pPid, pDatastream, replica);
+		String remoteURI = getFedoraURI(replica[0]==null?gServer+":"+gPort:replica[0], pPid, pDatastream)+"/content";
+		if(gDebug) for(String k:properties.keySet()) System.out.println(k+": "+properties.get(k));
+		String localFile = pLocalDir+properties.get(FedoraKeys.LABEL);
+
+		Sample sample = MetricsRegistry.getDefault().start("fedora.recoverDatastream", remoteURI);
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		event.operation = "fedora.recoverDatastream";
+		event.pid = pPid;
+		event.datastream = pDatastream;
+		event.uri = remoteURI;
+		event.path = localFile;
+		try {
+			//recover the datastream
+			Response server = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pHost) throws IOException {
+					return send(getFedoraURI(pHost, pPid, pDatastream)+"/content", "GET");
+				}
+			}, replica[0]);
+			if(!remoteURI.equals(server.getURI())) {
+				remoteURI = server.getURI();
+				event.uri = remoteURI;
+			}
+			System.out.println("Return code: "+server.getStatus()+" "+server.getURI());
+			sample.firstByte();
+			sample.setStatus(server.getStatus());
+			event.status = server.getStatus();
+
+			System.out.println("Copying: "+remoteURI+" -> "+localFile);
+
+			BufferedInputStream fis = null;
+			try {
+				fis = new BufferedInputStream(server.getBody());
+			} catch(IOException e) {
+				server.close();
+				throw e;
+			}
+			FileOutputStream fos = new FileOutputStream(localFile);
+			byte[] buffer = new byte[32768];
+			int bytesRead = 0;
+			long count = 0;
+			long size = new Long(properties.get(FedoraKeys.SIZE));
+
+			String dsType = properties.get(FedoraKeys.CONTROLGROUP).toUpperCase();
+
+			long startTime = System.currentTimeMillis();
+			sample.transferStart();
+
+			//if this is a managed data stream we get the size
+			//it shouldn't be zero, but if it is then try the other copy
+			if(dsType.equals("M")&size!=0) {
+				if(gDebug) System.out.println("[Managed] Size: "+size);
+				//note: fis.isAvailable() does not work here (returns false before end of stream)
+				while(count<size) {
+					bytesRead = fis.read(buffer);
+					fos.write(buffer, 0, bytesRead);
+					count+=bytesRead;
+				}
+				fis.close();
+				fos.close();
+			} else {
+				if(dsType.equals("E")) {
+					//note: fis.isAvailable() does not work here (returns false before end of stream)
+					do {
+						bytesRead = fis.read(buffer);
+						if(bytesRead>-1) {
+							fos.write(buffer, 0, bytesRead);
+							count+=bytesRead;
+						}
+					} while(bytesRead>-1);
+					fis.close();
+					fos.close();
+					if(gDebug) System.out.println("[Referenced] data transferred: "+count);
+				}
+			}
+			server.close();
+			sample.transferEnd(count);
+			event.bytes = count;
+			event.success = true;
+			event.commit();
+			System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+
+
+			//checksum the file
+			sample.checksumStart();
+			String localChecksum = Tools.generateChecksum(properties.get(FedoraKeys.CHECKSUMTYPE), localFile);
+			sample.checksumEnd();
+			String remoteChecksum = properties.get(FedoraKeys.CHECKSUM);
+			System.out.println("Checksums: remote: "+remoteChecksum);
+			System.out.println("Checksums: local: "+localChecksum);
+			if(localChecksum==null||!localChecksum.equals(remoteChecksum)) {
+				System.out.println("WARNING: "+properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
+				throw new IOException(properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
+			} else {
+				System.out.println("Checksums ok");
+			}
+
+			sample.finish();
+			if(pJournal!=null) pJournal.record(getJournalKey(pPid, pDatastream), pPid, remoteChecksum, IngestJournal.COMPLETED);
+
+			return new File(localFile);
+
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			//not committed yet if the copy failed
+			if(!event.success) event.commit();
+			if(pJournal!=null) {
+				try {
+					pJournal.record(getJournalKey(pPid, pDatastream), pPid, null, IngestJournal.FAILED);
+				} catch(IOException je) {
+					je.printStackTrace();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Verify uploads in the background instead of before postDatastream/syncDatastream return.
+	 * Uploads then return true once Fedora has accepted them, and the verifier reports whether
+	 * the stored content matches.
+	 * @param pVerifier verifier to queue uploads to (null to verify each upload before returning)
+	 */
+	public void setVerifier(UploadVerifier pVerifier) {
+		gVerifier = pVerifier;
+	}
+
+	/**
+	 * @return the background verifier, or null if uploads are verified before returning
+	 */
+	public UploadVerifier getVerifier() {
+		return gVerifier;
+	}
+
+	/**
+	 * Upload a new datastream to Fedora from a local file
+	 * @param pPid pid to use
+	 * @param pDatastream datastream to upload file to
+	 * @param pLocalFile local file containing data to upload
+	 * @param pLogMessage log message (no spaces(?))
+	 * @param pMimeType mimetype of the local file
+	 * @return true or false
+	 */
+	public boolean postDatastream(String pPid, String pDatastream, File pLocalFile, String pLogMessage, String pMimeType) {
+		Semaphore permits = acquire();
+		try {
+			return uploadDatastream(pPid, pDatastream, pLocalFile, pLogMessage, pMimeType, null, null);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Upload a datastream only if its content differs from what Fedora holds.  The local file is
+	 * checksummed with the datastream's checksum type and compared with dsChecksum; if they
+	 * match nothing is posted.  Re-running an interrupted ingest with this only transfers the
+	 * datastreams that are missing or have changed.
+	 * @param pPid pid to use
+	 * @param pDatastream datastream to upload file to
+	 * @param pLocalFile local file containing data to upload
+	 * @param pLogMessage log message (no spaces(?))
+	 * @param pMimeType mimetype of the local file
+	 * @return true if the file was uploaded, false if the datastream was already identical
+	 * @throws IOException if the file could not be read or the upload failed
+	 */
+	public boolean syncDatastream(String pPid, String pDatastream, File pLocalFile, String pLogMessage, String pMimeType) throws IOException {
+		Semaphore permits = acquire();
+		try {
+			HashMap<String, String> properties = readDatastreamProperties(pPid, pDatastream, null);
+			String checksum = null;
+			if(properties!=null&&properties.get(FedoraKeys.LABEL)!=null) {
+				String checksumType = properties.get(FedoraKeys.CHECKSUMTYPE);
+				String remoteChecksum = properties.get(FedoraKeys.CHECKSUM);
+				//checksums may be disabled for the datastream, in which case we can't compare
+				if(checksumType!=null&&!checksumType.equalsIgnoreCase("DISABLED")&&remoteChecksum!=null&&!remoteChecksum.equals("none")) {
+					Sample sample = MetricsRegistry.getDefault().start("fedora.syncDatastream", getFedoraURI(pPid, pDatastream));
+					sample.checksumStart();
+					String localChecksum = Tools.generateChecksum(checksumType, pLocalFile.getAbsolutePath());
+					sample.checksumEnd();
+					sample.finish();
+					if(localChecksum.equalsIgnoreCase(remoteChecksum)) {
+						System.out.println("Unchanged: "+pLocalFile.getAbsolutePath()+" = "+pPid+"/"+pDatastream+" ("+checksumType+" "+remoteChecksum+")");
+						return false;
+					}
+					if(checksumType.equalsIgnoreCase("MD5")) checksum = localChecksum;
+				}
+			}
+			if(!uploadDatastream(pPid, pDatastream, pLocalFile, pLogMessage, pMimeType, properties, checksum)) {
+				throw new IOException("Upload failed: "+pLocalFile.getAbsolutePath()+" -> "+pPid+"/"+pDatastream);
+			}
+			return true;
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * @param pProperties current datastream profile, if already read (null to read it)
+	 * @param pChecksum MD5 of the local file, if already generated (null to generate it)
+	 */
+	private boolean uploadDatastream(String pPid, String pDatastream, File pLocalFile, String pLogMessage, String pMimeType,
+			HashMap<String, String> pProperties, String pChecksum) {
+		//we can use addDatastream or modifyDatastream (both take same arguments?)
+		String remoteURI = getFedoraURI(pPid, pDatastream);
+
+		if(pLogMessage.contains(" "))
+			pLogMessage = pLogMessage.replaceAll(" ", "");
+
+		Sample sample = MetricsRegistry.getDefault().start("fedora.postDatastream", remoteURI);
+
+		String checksumType = "MD5";
+		String checksum = pChecksum;
+		if(checksum==null) {
+			try {
+				sample.checksumStart();
+				checksum = Tools.generateChecksum(checksumType, pLocalFile.getAbsolutePath());
+				sample.checksumEnd();
+			} catch(IOException e) {
+				sample.fail();
+				return false;
+			}
+		}
+		//add parameters to URI
+		remoteURI+="?controlGroup=M&logMessage="+pLogMessage+"&mimeType="+pMimeType+"&checksumType="+checksumType+"&checksum="+checksum;
+
+		//we need to see if we are adding the data to a new datastream or not
+		HashMap<String, String> dsprop = pProperties!=null?pProperties:readDatastreamProperties(pPid, pDatastream, null);
+		if(dsprop==null||dsprop.get(FedoraKeys.LABEL)==null) {
+			//i.e. this datastream does not currently exist (or we had some other problem asking the server for info)
+			remoteURI+="&dsLabel="+pLocalFile.getName();
+		}
+
+		System.out.println("Uploading: "+pLocalFile.getAbsolutePath()+" -> "+remoteURI);
+
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		event.operation = "fedora.postDatastream";
+		event.pid = pPid;
+		event.datastream = pDatastream;
+		event.uri = remoteURI;
+		event.path = pLocalFile.getAbsolutePath();
+
+		//upload the file (streamed by the transport)
+		try {
+			Request request = setupConnection(remoteURI, "POST").setBody(pLocalFile);
+			long count = pLocalFile.length();
+
+			long startTime = System.currentTimeMillis();
+			sample.transferStart();
+
+			Response server = getTransport().send(request);
+			server.close();
+
+			sample.transferEnd(count);
+			System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+
+			System.out.println("Return code: "+server.getStatus()+" "+server.getURI());
+			sample.firstByte();
+			sample.setStatus(server.getStatus());
+			event.bytes = count;
+			event.status = server.getStatus();
+			event.success = server.getStatus()<HttpURLConnection.HTTP_BAD_REQUEST;
+
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			return false;
+		} finally {
+			event.commit();
+		}
+
+		UploadVerifier verifier = gVerifier;
+		if(verifier!=null) {
+			if(!event.success) {
+				sample.fail(event.status);
+				return false;
+			}
+			//the checksum is checked against the profile later, in the background
+			verifier.submit(pPid, pDatastream, pLocalFile, checksumType, checksum);
+			sample.finish();
+			return true;
+		}
+
+		//check the checksum
+		try {
+			//recover datastream properties
+			HashMap<String, String> properties = readDatastreamProperties(pPid, pDatastream, null);
+			if(properties==null) throw new IOException("Cannot read profile of "+pPid+"/"+pDatastream);
+			//checksum the file (unless the datastream uses the checksum already generated)
+			String localChecksum = checksum;
+			if(!checksumType.equalsIgnoreCase(properties.get(FedoraKeys.CHECKSUMTYPE))) {
+				sample.checksumStart();
+				localChecksum = Tools.generateChecksum(properties.get(FedoraKeys.CHECKSUMTYPE), pLocalFile.getAbsolutePath());
+				sample.checksumEnd();
+			}
+			String remoteChecksum = properties.get(FedoraKeys.CHECKSUM);
+			System.out.println("Checksums: remote: "+remoteChecksum);
+			System.out.println("Checksums: local: "+localChecksum);
+			if(!localChecksum.equalsIgnoreCase(remoteChecksum)) {
+				System.out.println("WARNING: "+properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
+				throw new IOException(properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
+			} else {
+				System.out.println("Checksums ok");
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			return false;
+		}
+
+		sample.finish();
+		return true;
+
+	}
+
+}
@@ -17,43 +17,29 @@
 
 package uk.bl.dpt.fclib;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
-
-import uk.bl.dpt.fclib.https.AbsoluteTrustManager;
-import uk.bl.dpt.fclib.https.TotalHostnameVerifier;
-
 /**
- * This class is used to retrieve remote files from a remote webdav repository
+ * This class is used to retrieve remote files from a remote webdav repository.
+ * The static methods use a default FedoraConnection, configured from fedoraserver.properties;
+ * create FedoraConnection objects to talk to other servers, or to several servers at once.
+ * If SHARDS lists further servers, objects are spread across the default server and those
+ * servers by pid (see ShardRouter); only the static methods taking a pid are routed, code
+ * using getDefault() still talks to the default server only.
  * @author wpalmer
  */
 public class FedoraDataConnector {
 
-	private static boolean gDebug = true;
+	private static volatile FedoraConnection gDefault = new FedoraConnection();
+	private static volatile ShardRouter<FedoraConnection> gShards = null;
 	
 	static {
 		InputStream props = Tools.getResource(FedoraDataConnector.class, "fedoraserver.properties");
@@ -64,118 +50,111 @@ public class FedoraDataConnector {
 		}
 	}
 
-	//some default settings
-	private static class FedoraSettings {
-		public static String SERVER = "";
-		public static int PORT = -42;
-		public static String USER = "";
-		public static String PASSWORD = "";
-		public static String ROOT = "";
-		public static String TRANSPORT = "http";
-		private FedoraSettings() {}		
-	}
-	
-	private static final class FedoraKeys {
-		public static final String LABEL = "dsLabel";
-		public static final String CHECKSUM = "dsChecksum";
-		public static final String CHECKSUMTYPE = "dsChecksumType";
-		public static final String SIZE = "dsSize";
-		public static final String CONTROLGROUP = "dsControlGroup";
-		
-		private FedoraKeys() {}
-	}
-	
-	private static class Auth extends Authenticator {
-		public PasswordAuthentication getPasswordAuthentication() {
-			return new PasswordAuthentication(FedoraSettings.USER,FedoraSettings.PASSWORD.toCharArray());
-		}
-	}
-	
-	private static HttpsURLConnection setupConnection(String pAddress, String pMethod) throws IOException {
-		
-		Authenticator.setDefault(new Auth());
-		URL url = new URL(pAddress);
-
-		boolean secure = (FedoraSettings.TRANSPORT.toUpperCase().equals("HTTPS"))?true:false;
-
-		if(secure) {
-			//i.e. we are secure
-			SSLContext context = null;
-			try {
-				context = SSLContext.getInstance("SSL");
-			} catch (NoSuchAlgorithmException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			try {
-				context.init(null, new TrustManager[] { new AbsoluteTrustManager(gDebug) }, new SecureRandom());
-			} catch (KeyManagementException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			//WARNING: this sets the static socket factory for ssl connections to accept any secure connection!
-			HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
-		}
-		
-		HttpsURLConnection server = (HttpsURLConnection)url.openConnection();
-		server.setRequestMethod(pMethod);
-		server.setDoOutput(true);
-		
-		//WARNING: this allows all hostnames!
-		server.setHostnameVerifier(new TotalHostnameVerifier(gDebug));
-		
-		return server;
-	}
-	
 	/**
-	 * Load server settings from an xml properties file in the jar
+	 * Apply settings from an xml properties file to the default connection.  Only the keys
+	 * present are changed (see FedoraConnection.loadSettings()).
 	 * @param pInputStream InputStream for settings
 	 */
 	public static void loadServerSettings(InputStream pInputStream) {
 		Properties props = new Properties();
 		try {
 			props.loadFromXML(pInputStream);
-			String key = "SERVER";
-			if(props.containsKey(key)) {
-				FedoraSettings.SERVER = props.getProperty(key);
-			}
-			key = "PORT";
-			if(props.containsKey(key)) {
-				FedoraSettings.PORT = new Integer(props.getProperty(key));
-			}
-			key = "USER";
-			if(props.containsKey(key)) {
-				FedoraSettings.USER = props.getProperty(key);
-			}
-			key = "PASSWORD";
-			if(props.containsKey(key)) {
-				FedoraSettings.PASSWORD = props.getProperty(key);
-			}
-			key = "ROOT";
-			if(props.containsKey(key)) {
-				FedoraSettings.ROOT = props.getProperty(key);
-			}
-			key = "TRANSPORT";
-			if(props.containsKey(key)) {
-				FedoraSettings.TRANSPORT = props.getProperty(key);
-			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+			return;
+		}
+		gDefault.loadSettings(props);
+		String key = "SHARDS";
+		if(props.containsKey(key)) {
+			setShards(createShards(gDefault, props.getProperty(key)));
+		}
+	}
+
+	/**
+	 * Create a router over a connection and copies of it for other servers
+	 * @param pConnection connection to the first shard
+	 * @param pShards comma separated list of host[:port] of the other shards
+	 * @return router, or null if there are no other shards
+	 */
+	static ShardRouter<FedoraConnection> createShards(FedoraConnection pConnection, String pShards) {
+		String primary = pConnection.getServer();
+		List<String> shards = FedoraConnection.parseReplicas(pShards, Integer.parseInt(primary.substring(primary.lastIndexOf(':')+1)));
+		shards.remove(primary);
+		if(shards.isEmpty()) return null;
+		ShardRouter<FedoraConnection> router = new ShardRouter<FedoraConnection>();
+		router.add(primary, pConnection);
+		for(String shard:shards) {
+			int colon = shard.lastIndexOf(':');
+			router.add(shard, pConnection.forServer(shard.substring(0, colon), Integer.parseInt(shard.substring(colon+1))));
 		}
+		return router;
+	}
+
+	/**
+	 * Spread objects across several servers by pid; the static methods taking a pid use the
+	 * connection the router gives for it
+	 * @param pShards router over connections (null to use the default connection for everything)
+	 */
+	public static void setShards(ShardRouter<FedoraConnection> pShards) {
+		gShards = pShards;
+	}
+
+	/**
+	 * @return the router used by the static methods, or null if objects are not sharded
+	 */
+	public static ShardRouter<FedoraConnection> getShards() {
+		return gShards;
+	}
+
+	/**
+	 * Get the connection the static methods use for an object
+	 * @param pPid pid of object
+	 * @return the connection for the shard holding pPid, or the default connection
+	 */
+	public static FedoraConnection getConnection(String pPid) {
+		ShardRouter<FedoraConnection> shards = gShards;
+		if(shards!=null) {
+			FedoraConnection connection = shards.route(pPid);
+			if(connection!=null) return connection;
+		}
+		return gDefault;
+	}
+	
+	/**
+	 * @return the connection used by the static methods
+	 */
+	public static FedoraConnection getDefault() {
+		return gDefault;
+	}
+	
+	/**
+	 * Replace the connection used by the static methods
+	 * @param pConnection connection to use
+	 */
+	public static void setDefault(FedoraConnection pConnection) {
+		gDefault = pConnection;
 	}
 	
 	/**
 	 * URI to add to input files so they will be passed to the dataconnector
+	 * (e.g. dataconnector://pid/datastream; see InputResolver)
 	 */
 	public static final String DC_URI = "dataconnector://";
 	
-	private static String getFedoraURI(String pPid, String pDatastream) {
-		String baseURI = "";
-		baseURI += FedoraSettings.TRANSPORT+"://";
-		baseURI += FedoraSettings.SERVER+":"+FedoraSettings.PORT+FedoraSettings.ROOT;
-		baseURI += "objects/"+pPid+"/datastreams/"+pDatastream;
-		return baseURI;
+	/**
+	 * @return base URI of the Fedora server, e.g. https://host:port/fedora/
+	 */
+	static String getFedoraBaseURI() {
+		return gDefault.getBaseURI();
+	}
+
+	static String getFedoraUser() {
+		return gDefault.getUser();
+	}
+
+	static String getFedoraPassword() {
+		return gDefault.getPassword();
 	}
 
 	/**
@@ -184,53 +163,8 @@ public class FedoraDataConnector {
 	 * @param pDatastream
 	 * @return
 	 */
-	private static HashMap<String,String> getDatastreamProperties(String pPid, String pDatastream) {
-		//EXAMPLE: http://host:port/fedora/objects/pid:1/datastreams/DS0?format=xml
-		String remoteURI = getFedoraURI(pPid, pDatastream)+"?format=xml";
-		
-		try {
-			if(gDebug) System.out.print("Connecting... ");
-			HttpURLConnection server = setupConnection(remoteURI, "GET");
-			if(gDebug) System.out.println(server.toString());
-			try {
-				server.connect();
-			} catch(Exception ioe) {
-				ioe.printStackTrace();
-				if(gDebug) System.out.println("Return code: "+server.getResponseCode()+" "+server.getURL());
-			}
-			if(gDebug) System.out.println("Return code: "+server.getResponseCode()+" "+server.getURL());
-			
-			//we should get an xml document with root node datastreamProfile
-			//and a series of elements containing data
-			
-			DocumentBuilder docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			Document doc = docB.parse(server.getInputStream());
-			Node root = doc.getFirstChild();
-			
-			HashMap<String, String> values = new HashMap<String, String>();
-			
-			if(root.getNodeName().equals("datastreamProfile")) {
-				Node node = root.getFirstChild();
-				while(node!=null) {
-					values.put(node.getNodeName(), node.getTextContent());
-					node = node.getNextSibling();
-				} 
-			} else {
-				return null;
-			}
-			
-			//for(String key:values.keySet()) {
-			//	System.out.println(key+": "+values.get(key));
-			//}
-			return values;
-			
-		} catch(ParserConfigurationException pce) {
-			return null;
-		} catch(IOException ioe) {
-			return null;
-		} catch(SAXException se) {
-			return null;
-		} 
+	static HashMap<String,String> getDatastreamProperties(String pPid, String pDatastream) {
+		return getConnection(pPid).getDatastreamProperties(pPid, pDatastream);
 	}
 	
 	/**
@@ -241,83 +175,57 @@ public class FedoraDataConnector {
 	 * @return File object for recovered file, or null
 	 */
 	public static File recoverDatastream(String pPid, String pDatastream, String pLocalDir) {
-		String remoteURI = getFedoraURI(pPid, pDatastream)+"/content";
-		if(!pLocalDir.endsWith("/")) {
-			pLocalDir+="/";
-		}		
-		
-		//recover datastream properties
-		HashMap<String, String> properties = getDatastreamProperties(pPid, pDatastream);
-		if(gDebug) for(String k:properties.keySet()) System.out.println(k+": "+properties.get(k));
-		String localFile = pLocalDir+properties.get(FedoraKeys.LABEL);
-
-		try {
-			//recover the datastream
-			HttpURLConnection server = setupConnection(remoteURI, "GET");
-			server.connect();
-			System.out.println("Return code: "+server.getResponseCode()+" "+server.getURL());
-			
-			System.out.println("Copying: "+remoteURI+" -> "+localFile);
-
-			BufferedInputStream fis = new BufferedInputStream(server.getInputStream());
-			FileOutputStream fos = new FileOutputStream(localFile);
-			byte[] buffer = new byte[32768];
-			int bytesRead = 0;
-			long count = 0;
-			long size = new Long(properties.get(FedoraKeys.SIZE));
-			
-			String dsType = properties.get(FedoraKeys.CONTROLGROUP).toUpperCase(); 
-			
-			long startTime = System.currentTimeMillis();
-			
-			//if this is a managed data stream we get the size
-			//it shouldn't be zero, but if it is then try the other copy
-			if(dsType.equals("M")&size!=0) {
-				if(gDebug) System.out.println("[Managed] Size: "+size);
-				//note: fis.isAvailable() does not work here (returns false before end of stream)
-				while(count<size) {
-					bytesRead = fis.read(buffer);
-					fos.write(buffer, 0, bytesRead);
-					count+=bytesRead;
-				}
-				fis.close();
-				fos.close();
-			} else {
-				if(dsType.equals("E")) {
-					//note: fis.isAvailable() does not work here (returns false before end of stream)
-					do {
-						bytesRead = fis.read(buffer);
-						if(bytesRead>-1) {
-							fos.write(buffer, 0, bytesRead);
-							count+=bytesRead;
-						}
-					} while(bytesRead>-1);
-					fis.close();
-					fos.close();
-					if(gDebug) System.out.println("[Referenced] data transferred: "+count);
-				}
-			}
-			System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
-
-
-			//checksum the file 
-			String localChecksum = Tools.generateChecksum(properties.get(FedoraKeys.CHECKSUMTYPE), localFile);
-			String remoteChecksum = properties.get(FedoraKeys.CHECKSUM);
-			System.out.println("Checksums: remote: "+remoteChecksum);			
-			System.out.println("Checksums: local: "+localChecksum);			
-			if(localChecksum==null||!localChecksum.equals(remoteChecksum)) {
-				System.out.println("WARNING: "+properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
-				throw new IOException(properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
-			} else {
-				System.out.println("Checksums ok");
+		return getConnection(pPid).recoverDatastream(pPid, pDatastream, pLocalDir);
+	}
+	
+	/**
+	 * Retrieve the profiles of all datastreams of an object in one request
+	 * @param pPid pid of object
+	 * @return profiles keyed by datastream id, or null on error
+	 */
+	public static Map<String, DatastreamProfile> getDatastreamProfiles(String pPid) {
+		return getConnection(pPid).getDatastreamProfiles(pPid);
+	}
+	
+	/**
+	 * Recover every managed or externally referenced datastream of an object
+	 * @param pPid pid of object
+	 * @param pLocalDir directory to put files when recovered
+	 * @return recovered files keyed by datastream id, or null on error
+	 */
+	public static Map<String, File> recoverObject(String pPid, String pLocalDir) {
+		return getConnection(pPid).recoverObject(pPid, pLocalDir);
+	}
+	
+	/**
+	 * Recover a datastream from each of a list of objects.  Datastreams the journal records as 
+	 * completed are skipped, and the outcome of each recovery is recorded, so a failed run can
+	 * be restarted with the same journal.
+	 * @param pPids pids of objects
+	 * @param pDatastream datastream to recover
+	 * @param pLocalDir directory to put files when recovered
+	 * @param pJournal journal of completed recoveries
+	 * @return number of datastreams recovered (not including those skipped)
+	 */
+	public static int recoverDatastreams(Iterable<String> pPids, String pDatastream, String pLocalDir, IngestJournal pJournal) {
+		if(gShards==null) {
+			return gDefault.recoverDatastreams(pPids, pDatastream, pLocalDir, pJournal);
+		}
+		Map<FedoraConnection, List<String>> shards = new LinkedHashMap<FedoraConnection, List<String>>();
+		for(String pid:pPids) {
+			FedoraConnection connection = getConnection(pid);
+			List<String> pids = shards.get(connection);
+			if(pids==null) {
+				pids = new ArrayList<String>();
+				shards.put(connection, pids);
 			}
-			
-			return new File(localFile);
-
-		} catch(IOException e) {
-			e.printStackTrace();
-			return null;
+			pids.add(pid);
 		}
+		int count = 0;
+		for(Map.Entry<FedoraConnection, List<String>> shard:shards.entrySet()) {
+			count += shard.getKey().recoverDatastreams(shard.getValue(), pDatastream, pLocalDir, pJournal);
+		}
+		return count;
 	}
 	
 	/**
@@ -330,85 +238,21 @@ public class FedoraDataConnector {
 	 * @return true or false
 	 */
 	public static boolean postDatastream(String pPid, String pDatastream, File pLocalFile, String pLogMessage, String pMimeType) {
-		//we can use addDatastream or modifyDatastream (both take same arguments?)
-		String remoteURI = getFedoraURI(pPid, pDatastream);
-
-		if(pLogMessage.contains(" "))
-			pLogMessage = pLogMessage.replaceAll(" ", "");
-
-		String checksumType = "MD5";
-		String checksum = null;
-		try {
-			//maybe pass this to this method as a parameter if already generated?
-			checksum = Tools.generateChecksum(checksumType, pLocalFile.getAbsolutePath());
-		} catch(IOException e) {
-			return false;
-		}
-		//add parameters to URI
-		remoteURI+="?controlGroup=M&logMessage="+pLogMessage+"&mimeType="+pMimeType+"&checksumType="+checksumType+"&checksum="+checksum;
-
-		//we need to see if we are adding the data to a new datastream or not
-		HashMap<String, String> dsprop = getDatastreamProperties(pPid, pDatastream);
-		if(dsprop==null||dsprop.get(FedoraKeys.LABEL)==null) {
-			//i.e. this datastream does not currently exist (or we had some other problem asking the server for info)
-			remoteURI+="&dsLabel="+pLocalFile.getName();
-		}
-		
-		System.out.println("Uploading: "+pLocalFile.getAbsolutePath()+" -> "+remoteURI);
-
-		//upload multipart file
-		try {
-			HttpURLConnection server = setupConnection(remoteURI, "POST");
-			BufferedInputStream fis = new BufferedInputStream(new FileInputStream(pLocalFile));
-			BufferedOutputStream fos = new BufferedOutputStream(server.getOutputStream());
-			byte[] buffer = new byte[32768];
-			int bytesRead = 0;
-			long count = 0;
-			long size = pLocalFile.length();
-			
-			long startTime = System.currentTimeMillis();
-			
-			//note: fis.isAvailable() does not work here (returns false before end of stream)
-			while(count<size) {
-				bytesRead = fis.read(buffer);
-				fos.write(buffer, 0, bytesRead);
-				count+=bytesRead;
-			}
-			fis.close();
-			fos.close();
-			
-			System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
-			
-			server.connect();
-			System.out.println("Return code: "+server.getResponseCode()+" "+server.getURL());
-			
-		} catch(IOException e) {
-			e.printStackTrace();
-			return false;
-		}
-		
-		//check the checksum
-		try {
-			//recover datastream properties
-			HashMap<String, String> properties = getDatastreamProperties(pPid, pDatastream);
-			//checksum the file 
-			String localChecksum = Tools.generateChecksum(properties.get(FedoraKeys.CHECKSUMTYPE), pLocalFile.getAbsolutePath());
-			String remoteChecksum = properties.get(FedoraKeys.CHECKSUM);
-			System.out.println("Checksums: remote: "+remoteChecksum);			
-			System.out.println("Checksums: local: "+localChecksum);	
-			if(!localChecksum.equals(remoteChecksum)) {
-				System.out.println("WARNING: "+properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
-				throw new IOException(properties.get(FedoraKeys.CHECKSUMTYPE)+" checksum error; remote: "+remoteChecksum+", local: "+localChecksum);
-			} else {
-				System.out.println("Checksums ok");
-			}	
-		} catch(IOException e) {
-			e.printStackTrace();
-			return false;
-		}
-
-		return true;
+		return getConnection(pPid).postDatastream(pPid, pDatastream, pLocalFile, pLogMessage, pMimeType);
+	}
 
+	/**
+	 * Upload a datastream only if it differs from what Fedora holds (compared by checksum)
+	 * @param pPid pid to use
+	 * @param pDatastream datastream to upload file to
+	 * @param pLocalFile local file containing data to upload
+	 * @param pLogMessage log message (no spaces(?))
+	 * @param pMimeType mimetype of the local file
+	 * @return true if the file was uploaded, false if the datastream was already identical
+	 * @throws IOException if the file could not be read or the upload failed
+	 */
+	public static boolean syncDatastream(String pPid, String pDatastream, File pLocalFile, String pLogMessage, String pMimeType) throws IOException {
+		return getConnection(pPid).syncDatastream(pPid, pDatastream, pLocalFile, pLogMessage, pMimeType);
 	}
 	
 	/**
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.bl.dpt.fclib.archive.ArchiveOutput;
+
+/**
+ * Exports objects from Fedora to a local directory, one subdirectory per object.  Pids are
+ * read from an enumerator (e.g. the members of a collection) on the calling thread and handed
+ * to a pool of export threads through a bounded queue, so listing and transfer overlap and
+ * memory use does not grow with the number of objects.  Each object costs one request for
+ * its datastream profiles plus one per datastream recovered.  With an archive set, content is
+ * written into archive volumes instead of a directory per object.
+ * @author wpalmer
+ *
+ */
+public class FedoraExportPipeline {
+
+	/**
+	 * Outcome of exporting a single object
+	 */
+	public static class Result {
+		private String gPid;
+		private Map<String, File> gFiles = new LinkedHashMap<String, File>();
+		private Map<String, ArchiveOutput.Entry> gEntries = new LinkedHashMap<String, ArchiveOutput.Entry>();
+		private int gFailed = 0;
+		private String gMessage = null;
+		private long gQueueTime;
+		private long gExportTime;
+
+		private Result(String pPid) {
+			gPid = pPid;
+		}
+		/**
+		 * @return pid of the object
+		 */
+		public String getPid() { return gPid; }
+		/**
+		 * @return recovered files, keyed by datastream id
+		 */
+		public Map<String, File> getFiles() { return gFiles; }
+		/**
+		 * @return archive entries written, keyed by datastream id (when exporting to an archive)
+		 */
+		public Map<String, ArchiveOutput.Entry> getEntries() { return gEntries; }
+		/**
+		 * @return number of datastreams that could not be recovered
+		 */
+		public int getFailed() { return gFailed; }
+		/**
+		 * @return error message, or null
+		 */
+		public String getMessage() { return gMessage; }
+		/**
+		 * @return time the pid waited in the queue for an export thread (ms)
+		 */
+		public long getQueueTime() { return gQueueTime; }
+		/**
+		 * @return time taken to export the object (ms)
+		 */
+		public long getExportTime() { return gExportTime; }
+		/**
+		 * @return whether every selected datastream was recovered
+		 */
+		public boolean isSuccess() { return gMessage==null&&gFailed==0; }
+	}
+
+	/**
+	 * Receives a Result for each object as it completes.  Called from the export threads.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an object has been exported (or has failed)
+		 * @param pResult outcome for the object
+		 */
+		public void exported(Result pResult);
+	}
+
+	private static class Item {
+		private String gPid;
+		private long gQueued;
+		private Item(String pPid) {
+			gPid = pPid;
+			gQueued = System.currentTimeMillis();
+		}
+	}
+
+	//marks the end of the queue for each export thread
+	private static final Item END = new Item(null);
+
+	private FedoraConnection gConnection;
+	private int gThreads;
+	private int gQueueSize;
+	private Set<String> gDatastreams = null;
+	private Listener gListener = null;
+	private IngestJournal gJournal = null;
+	private ArchiveOutput gArchive = null;
+
+	/**
+	 * Initialise the pipeline
+	 * @param pConnection connection to the Fedora server
+	 * @param pThreads number of objects exported at once
+	 * @param pQueueSize maximum number of pids listed but not yet being exported
+	 */
+	public FedoraExportPipeline(FedoraConnection pConnection, int pThreads, int pQueueSize) {
+		gConnection = pConnection;
+		gThreads = pThreads;
+		gQueueSize = pQueueSize;
+	}
+
+	/**
+	 * Initialise the pipeline using the default connection (fedoraserver.properties)
+	 * @param pThreads number of objects exported at once
+	 * @param pQueueSize maximum number of pids listed but not yet being exported
+	 */
+	public FedoraExportPipeline(int pThreads, int pQueueSize) {
+		this(FedoraDataConnector.getDefault(), pThreads, pQueueSize);
+	}
+
+	/**
+	 * Only export some datastreams of each object
+	 * @param pDatastreams datastream ids (none to export all managed and externally referenced datastreams)
+	 */
+	public void setDatastreams(String... pDatastreams) {
+		gDatastreams = pDatastreams==null||pDatastreams.length==0?null:new HashSet<String>(Arrays.asList(pDatastreams));
+	}
+
+	/**
+	 * Set a listener to receive the result for each object
+	 * @param pListener listener (null to just print results)
+	 */
+	public void setListener(Listener pListener) {
+		gListener = pListener;
+	}
+
+	/**
+	 * Use a journal to make export restartable.  Objects the journal records as completed
+	 * are skipped (they are still listed) and the outcome of each export is recorded.
+	 * @param pJournal journal to use (null for none)
+	 */
+	public void setJournal(IngestJournal pJournal) {
+		gJournal = pJournal;
+	}
+
+	/**
+	 * Export into archive volumes instead of a directory per object.  The archive is not
+	 * closed by the pipeline, so several exports can be written to it.
+	 * @param pArchive archive to write to (null to export to a directory)
+	 */
+	public void setArchive(ArchiveOutput pArchive) {
+		gArchive = pArchive;
+	}
+
+	/**
+	 * Export the members of a collection
+	 * @param pCollectionPid pid of the collection object, e.g. jisc1:jisc1
+	 * @param pLocalDir directory to export to (ignored when exporting to an archive)
+	 * @return number of objects successfully exported
+	 */
+	public int exportCollection(String pCollectionPid, String pLocalDir) {
+		return export(gConnection.getCollectionMembers(pCollectionPid, ObjectEnumerator.DEFAULT_PAGE_SIZE), pLocalDir);
+	}
+
+	/**
+	 * Export a set of objects.  Returns once all objects have been processed.
+	 * @param pPids pids of the objects (e.g. an ObjectEnumerator)
+	 * @param pLocalDir directory to export to (ignored when exporting to an archive)
+	 * @return number of objects successfully exported
+	 */
+	public int export(Iterable<String> pPids, final String pLocalDir) {
+
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(gQueueSize);
+		final AtomicInteger success = new AtomicInteger(0);
+
+		ExecutorService exporters = Executors.newFixedThreadPool(gThreads);
+		for(int i=0;i<gThreads;i++) {
+			exporters.execute(new Runnable() {
+				public void run() {
+					while(true) {
+						Item item;
+						try {
+							item = queue.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						if(item==END) return;
+						Result result = new Result(item.gPid);
+						result.gQueueTime = System.currentTimeMillis()-item.gQueued;
+						try {
+							exportObject(result, pLocalDir);
+						} catch(RuntimeException e) {
+							e.printStackTrace();
+							result.gMessage = "export failed: "+e;
+						}
+						try {
+							if(result.isSuccess()) success.incrementAndGet();
+							journal(result);
+							report(result);
+						} catch(RuntimeException e) {
+							//keep the worker going, or the producer would block on a full queue
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		}
+
+		long startTime = System.currentTimeMillis();
+		int count = 0;
+		int skipped = 0;
+
+		try {
+			try {
+				for(String pid:pPids) {
+					if(gJournal!=null&&gJournal.isCompleted(pid)) {
+						skipped++;
+						continue;
+					}
+					count++;
+					queue.put(new Item(pid));
+				}
+			} catch(RuntimeException e) {
+				//the pids could not be listed: export what was queued
+				e.printStackTrace();
+			}
+			for(int i=0;i<gThreads;i++) queue.put(END);
+			exporters.shutdown();
+			exporters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			//workers still waiting for pids would keep the JVM alive
+			if(!exporters.isTerminated()) exporters.shutdownNow();
+		}
+
+		if(gJournal!=null) {
+			try {
+				gJournal.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if(pPids instanceof ObjectEnumerator&&((ObjectEnumerator)pPids).getError()!=null) {
+			System.out.println("WARNING: listing failed after ["+((ObjectEnumerator)pPids).getCount()+"] objects: "+((ObjectEnumerator)pPids).getError());
+		}
+		if(skipped>0) System.out.println("Skipped ["+skipped+"] objects already exported");
+		System.out.println("Exported ["+success.get()+"/"+count+"] objects in ["+(System.currentTimeMillis()-startTime)+"] ms");
+		return success.get();
+	}
+
+	private void exportObject(Result pResult, String pLocalDir) {
+		long startTime = System.currentTimeMillis();
+		Map<String, DatastreamProfile> profiles = gConnection.getDatastreamProfiles(pResult.gPid);
+		if(profiles==null) {
+			pResult.gMessage = "cannot read datastream profiles";
+		} else if(gArchive!=null) {
+			for(DatastreamProfile profile:profiles.values()) {
+				if(gDatastreams==null?!profile.hasContent():!gDatastreams.contains(profile.getDatastream())) continue;
+				ArchiveOutput.Entry entry = gConnection.recoverDatastream(profile, gArchive);
+				if(entry==null) {
+					pResult.gFailed++;
+				} else {
+					pResult.gEntries.put(profile.getDatastream(), entry);
+				}
+			}
+		} else {
+			//pids contain ':', which is not allowed in file names everywhere
+			File dir = new File(pLocalDir, pResult.gPid.replace(':', '_'));
+			if(!dir.isDirectory()&&!dir.mkdirs()) {
+				pResult.gMessage = "cannot create "+dir;
+			} else {
+				for(DatastreamProfile profile:profiles.values()) {
+					if(gDatastreams==null?!profile.hasContent():!gDatastreams.contains(profile.getDatastream())) continue;
+					File file = gConnection.recoverDatastream(profile, dir.getAbsolutePath());
+					if(file==null) {
+						pResult.gFailed++;
+					} else {
+						pResult.gFiles.put(profile.getDatastream(), file);
+					}
+				}
+			}
+		}
+		pResult.gExportTime = System.currentTimeMillis()-startTime;
+	}
+
+	private void journal(Result pResult) {
+		if(gJournal==null) return;
+		try {
+			gJournal.record(pResult.gPid, pResult.gPid, null, pResult.isSuccess()?IngestJournal.COMPLETED:IngestJournal.FAILED);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void report(Result pResult) {
+		if(gListener!=null) {
+			gListener.exported(pResult);
+		} else {
+			System.out.println((pResult.isSuccess()?"Exported ":"FAILED ")+pResult.gPid+" ["+(pResult.gFiles.size()+pResult.gEntries.size())+"] datastreams"+
+					(pResult.gFailed>0?", ["+pResult.gFailed+"] failed":"")+(pResult.gMessage!=null?" ("+pResult.gMessage+")":"")+
+					" in ["+pResult.gExportTime+"] ms");
+		}
+	}
+
+}
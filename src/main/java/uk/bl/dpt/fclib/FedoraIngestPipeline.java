@@ -0,0 +1,484 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.util.EntityUtils;
+
+import uk.bl.dpt.fclib.https.TlsConfig;
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+
+/**
+ * Generates FOXML for files and ingests it directly into Fedora via the REST API
+ * (POST objects/new), without writing intermediate files or calling fedora_ingest.sh.
+ * FOXML is generated on the calling thread and handed to a pool of ingest threads
+ * through a bounded queue; the ingest threads share a pooled HTTP client.
+ * @author wpalmer
+ *
+ */
+public class FedoraIngestPipeline {
+
+	private static boolean gDebug = false;
+
+	/**
+	 * Outcome of ingesting a single file
+	 */
+	public static class Result {
+		private String gFile;
+		private String gPid;
+		private String gChecksum;
+		private int gStatus;
+		private String gMessage;
+		private long gGenerateTime;
+		private long gQueueTime;
+		private long gIngestTime;
+
+		private Result(String pFile, String pPid) {
+			gFile = pFile;
+			gPid = pPid;
+		}
+		/**
+		 * @return the input file
+		 */
+		public String getFile() { return gFile; }
+		/**
+		 * @return pid of the generated object (null if FOXML generation failed)
+		 */
+		public String getPid() { return gPid; }
+		/**
+		 * @return checksum generated for the file (null if the file could not be read)
+		 */
+		public String getChecksum() { return gChecksum; }
+		/**
+		 * @return HTTP status returned by Fedora, or -1 if the request was not made/failed
+		 */
+		public int getStatus() { return gStatus; }
+		/**
+		 * @return response body from Fedora, or an error message
+		 */
+		public String getMessage() { return gMessage; }
+		/**
+		 * @return time taken to generate the FOXML (ms)
+		 */
+		public long getGenerateTime() { return gGenerateTime; }
+		/**
+		 * @return time the FOXML waited in the queue for an ingest thread (ms)
+		 */
+		public long getQueueTime() { return gQueueTime; }
+		/**
+		 * @return time taken by the ingest request (ms)
+		 */
+		public long getIngestTime() { return gIngestTime; }
+		/**
+		 * @return whether Fedora created the object
+		 */
+		public boolean isSuccess() { return gStatus==201; }
+	}
+
+	/**
+	 * Receives a Result for each file as it completes.  Called from the ingest threads.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a file has been ingested (or has failed)
+		 * @param pResult outcome for the file
+		 */
+		public void ingested(Result pResult);
+	}
+
+	private static class Item {
+		private Result gResult;
+		private byte[] gFOXML;
+		private long gQueued;
+		private Item(Result pResult, byte[] pFOXML) {
+			gResult = pResult;
+			gFOXML = pFOXML;
+			gQueued = System.currentTimeMillis();
+		}
+	}
+
+	//marks the end of the queue for each ingest thread
+	private static final Item END = new Item(null, null);
+
+	private FedoraIngestXMLGenerator gGenerator;
+	private String gIngestURI;
+	private int gThreads;
+	private int gQueueSize;
+	private DefaultHttpClient gClient;
+	private UsernamePasswordCredentials gCredentials;
+	private Listener gListener = null;
+	private IngestJournal gJournal = null;
+	private String gStagingPath = null;
+	private WebdavConnection gStaging = null;
+
+	/**
+	 * Initialise the pipeline
+	 * @param pGenerator generator to create FOXML with
+	 * @param pFedoraURI base URI of the Fedora server (e.g. http://host:port/fedora/)
+	 * @param pUser Fedora user
+	 * @param pPassword Fedora password
+	 * @param pThreads number of concurrent ingest requests
+	 * @param pQueueSize maximum number of generated records waiting for ingest
+	 */
+	public FedoraIngestPipeline(FedoraIngestXMLGenerator pGenerator, String pFedoraURI, String pUser, String pPassword, int pThreads, int pQueueSize) {
+		this(pGenerator, pFedoraURI, pUser, pPassword, new TlsConfig(gDebug), pThreads, pQueueSize);
+	}
+
+	/**
+	 * Initialise the pipeline
+	 * @param pGenerator generator to create FOXML with
+	 * @param pFedoraURI base URI of the Fedora server (e.g. https://host:port/fedora/)
+	 * @param pUser Fedora user
+	 * @param pPassword Fedora password
+	 * @param pTls TLS settings for an https server
+	 * @param pThreads number of concurrent ingest requests
+	 * @param pQueueSize maximum number of generated records waiting for ingest
+	 */
+	public FedoraIngestPipeline(FedoraIngestXMLGenerator pGenerator, String pFedoraURI, String pUser, String pPassword, TlsConfig pTls, int pThreads, int pQueueSize) {
+		gGenerator = pGenerator;
+		if(!pFedoraURI.endsWith("/")) pFedoraURI += "/";
+		gIngestURI = pFedoraURI+"objects/new";
+		gThreads = pThreads;
+		gQueueSize = pQueueSize;
+		gCredentials = new UsernamePasswordCredentials(pUser, pPassword);
+		gClient = createClient(pThreads, pTls);
+	}
+
+	/**
+	 * Initialise the pipeline to ingest into the server of a connection
+	 * @param pGenerator generator to create FOXML with
+	 * @param pConnection connection to the Fedora server
+	 * @param pThreads number of concurrent ingest requests
+	 * @param pQueueSize maximum number of generated records waiting for ingest
+	 */
+	public FedoraIngestPipeline(FedoraIngestXMLGenerator pGenerator, FedoraConnection pConnection, int pThreads, int pQueueSize) {
+		this(pGenerator, pConnection.getBaseURI(), pConnection.getUser(), pConnection.getPassword(), pConnection.getTlsConfig(), pThreads, pQueueSize);
+	}
+
+	/**
+	 * Initialise the pipeline using the server settings from fedoraserver.properties
+	 * @param pGenerator generator to create FOXML with
+	 * @param pThreads number of concurrent ingest requests
+	 * @param pQueueSize maximum number of generated records waiting for ingest
+	 */
+	public FedoraIngestPipeline(FedoraIngestXMLGenerator pGenerator, int pThreads, int pQueueSize) {
+		this(pGenerator, FedoraDataConnector.getFedoraBaseURI(), FedoraDataConnector.getFedoraUser(),
+				FedoraDataConnector.getFedoraPassword(), pThreads, pQueueSize);
+	}
+
+	private static DefaultHttpClient createClient(int pThreads, TlsConfig pTls) {
+		SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
+		try {
+			//WARNING: unless the settings verify hostnames this allows all hostnames!
+			schemeRegistry.register(new Scheme("https", 443, new SSLSocketFactory(pTls.getSocketFactory(),
+					pTls.isVerifyHostname()?SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER:SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		PoolingClientConnectionManager connManager = new PoolingClientConnectionManager(schemeRegistry);
+		connManager.setMaxTotal(pThreads);
+		connManager.setDefaultMaxPerRoute(pThreads);
+
+		return new DefaultHttpClient(connManager);
+	}
+
+	/**
+	 * Set a listener to receive the result for each file
+	 * @param pListener listener (null to just print results)
+	 */
+	public void setListener(Listener pListener) {
+		gListener = pListener;
+	}
+
+	/**
+	 * Use a journal to make ingest restartable.  Files the journal records as completed are
+	 * skipped, the outcome of each ingest is recorded and the generator carries on allocating
+	 * pids from the highest pid in the journal.
+	 * @param pJournal journal to use (null for none)
+	 */
+	public void setJournal(IngestJournal pJournal) {
+		gJournal = pJournal;
+		gGenerator.setJournal(pJournal);
+	}
+
+	/**
+	 * Stage each file in the webdav repository before ingest and point the FOXML content 
+	 * location at the staged copy, so Fedora fetches the content from storage and the bulk 
+	 * data never goes through the Fedora API.  Staging is done by the ingest threads.
+	 * @param pRepositoryPath path in webdav repo to stage files under, each in a directory named after its local directory (null to ingest from file:// URIs)
+	 */
+	public void setStaging(String pRepositoryPath) {
+		setStaging(pRepositoryPath, WebdavDataConnector.getDefault());
+	}
+
+	/**
+	 * Stage each file in a webdav repository before ingest (see setStaging(String))
+	 * @param pRepositoryPath path in webdav repo to stage files under, each in a directory named after its local directory (null to ingest from file:// URIs)
+	 * @param pConnection connection to the webdav repository
+	 */
+	public void setStaging(String pRepositoryPath, WebdavConnection pConnection) {
+		gStagingPath = pRepositoryPath;
+		gStaging = pConnection;
+	}
+
+	/**
+	 * Generate and ingest FOXML for a set of files.  Returns once all files have been processed.
+	 * @param pFiles input tiff files
+	 * @param pManaged whether Fedora should ingest the data (true) or reference the data (false)
+	 * @param pNewspaperMetadata whether to add newspaper metadata or not
+	 * @return number of objects successfully ingested
+	 */
+	public int ingest(final Iterable<String> pFiles, boolean pManaged, final boolean pNewspaperMetadata) {
+		//look for the sidecars as the files are generated
+		return ingestItems(new Iterable<TIFFCrawler.Item>() {
+			public Iterator<TIFFCrawler.Item> iterator() {
+				final Iterator<String> files = pFiles.iterator();
+				return new Iterator<TIFFCrawler.Item>() {
+					public boolean hasNext() { return files.hasNext(); }
+					public TIFFCrawler.Item next() {
+						String file = files.next();
+						return new TIFFCrawler.Item(file, pNewspaperMetadata?gGenerator.findNewspaperMetadata(file):null);
+					}
+					public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+		}, pManaged);
+	}
+
+	/**
+	 * Generate and ingest FOXML for files found by a TIFFCrawler (or any other source of items),
+	 * including their newspaper metadata sidecars.  Returns once all files have been processed;
+	 * a TIFFCrawler is closed before returning.
+	 * @param pItems input tiff files and sidecars
+	 * @param pManaged whether Fedora should ingest the data (true) or reference the data (false)
+	 * @return number of objects successfully ingested
+	 */
+	public int ingestItems(Iterable<TIFFCrawler.Item> pItems, boolean pManaged) {
+
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(gQueueSize);
+		final AtomicInteger success = new AtomicInteger(0);
+
+		ExecutorService ingesters = Executors.newFixedThreadPool(gThreads);
+		for(int i=0;i<gThreads;i++) {
+			ingesters.execute(new Runnable() {
+				public void run() {
+					while(true) {
+						Item item;
+						try {
+							item = queue.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						if(item==END) return;
+						item.gResult.gQueueTime = System.currentTimeMillis()-item.gQueued;
+						try {
+							if(gStagingPath!=null&&!gStaging.stageFile(new File(item.gResult.gFile), gStagingPath)) {
+								item.gResult.gStatus = -1;
+								item.gResult.gMessage = "staging failed";
+							} else {
+								post(item);
+							}
+							if(item.gResult.isSuccess()) success.incrementAndGet();
+							journal(item.gResult);
+							report(item.gResult);
+						} catch(RuntimeException e) {
+							//keep the worker going, or the producer would block on a full queue
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		}
+
+		long startTime = System.currentTimeMillis();
+		int count = 0;
+		int skipped = 0;
+
+		try {
+			try {
+				for(TIFFCrawler.Item fileItem:pItems) {
+					String file = fileItem.getFile();
+					if(gJournal!=null&&gJournal.isCompleted(file)) {
+						skipped++;
+						continue;
+					}
+					count++;
+					Result result = new Result(file, null);
+					ByteArrayOutputStream foxml = new ByteArrayOutputStream();
+					try {
+						long genStart = System.currentTimeMillis();
+						IngestPackage pkg = gGenerator.prepare(file);
+						if(pkg==null) {
+							result.gStatus = -1;
+							result.gMessage = "FOXML generation failed";
+							journal(result);
+							report(result);
+							continue;
+						}
+						PrintWriter out = new PrintWriter(new OutputStreamWriter(foxml, StandardCharsets.UTF_8));
+						String location = gStagingPath==null?null:gStaging.getStagedFileURI(new File(file), gStagingPath);
+						result.gPid = gGenerator.writeFOXML(out, pkg, pManaged, fileItem.getSidecar(), location);
+						out.close();
+						if(result.gPid==null) {
+							result.gStatus = -1;
+							result.gMessage = "no pid reserved";
+							report(result);
+							continue;
+						}
+						result.gChecksum = pkg.getChecksum(gGenerator.getChecksumType());
+						result.gGenerateTime = System.currentTimeMillis()-genStart;
+					} catch(RuntimeException e) {
+						e.printStackTrace();
+						result.gStatus = -1;
+						result.gMessage = "FOXML generation failed: "+e;
+						journal(result);
+						report(result);
+						continue;
+					}
+					queue.put(new Item(result, foxml.toByteArray()));
+				}
+			} catch(RuntimeException e) {
+				//the items could not be listed: ingest what was queued
+				e.printStackTrace();
+			}
+			for(int i=0;i<gThreads;i++) queue.put(END);
+			ingesters.shutdown();
+			ingesters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			//workers still waiting for items would keep the JVM alive
+			if(!ingesters.isTerminated()) ingesters.shutdownNow();
+			//as would a crawler still waiting for us to take items
+			if(pItems instanceof TIFFCrawler) ((TIFFCrawler)pItems).close();
+		}
+
+		if(gJournal!=null) {
+			try {
+				gJournal.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if(skipped>0) System.out.println("Skipped ["+skipped+"] objects already ingested");
+		System.out.println("Ingested ["+success.get()+"/"+count+"] objects in ["+(System.currentTimeMillis()-startTime)+"] ms");
+		return success.get();
+	}
+
+	private void post(Item pItem) {
+		Result result = pItem.gResult;
+		long startTime = System.currentTimeMillis();
+		HttpPost post = new HttpPost(gIngestURI);
+		post.setEntity(new ByteArrayEntity(pItem.gFOXML, ContentType.create("text/xml", "UTF-8")));
+		//authenticate up front so the FOXML is not sent twice (once to get a 401)
+		post.addHeader(BasicScheme.authenticate(gCredentials, "UTF-8", false));
+		Sample sample = MetricsRegistry.getDefault().start("fedora.ingest", result.getFile());
+		try {
+			HttpResponse response = gClient.execute(post);
+			sample.firstByte();
+			result.gStatus = response.getStatusLine().getStatusCode();
+			//consuming the entity releases the connection back to the pool
+			result.gMessage = response.getEntity()==null?"":EntityUtils.toString(response.getEntity());
+		} catch (IOException e) {
+			post.abort();
+			result.gStatus = -1;
+			result.gMessage = e.toString();
+		}
+		result.gIngestTime = System.currentTimeMillis()-startTime;
+		sample.transferEnd(pItem.gFOXML.length);
+		if(result.isSuccess()) {
+			sample.setStatus(result.gStatus);
+			sample.finish();
+		} else {
+			sample.fail(Math.max(result.gStatus, 0));
+		}
+	}
+
+	private void journal(Result pResult) {
+		if(gJournal==null) return;
+		try {
+			gJournal.record(pResult.getFile(), pResult.getPid(), pResult.getChecksum(),
+					pResult.isSuccess()?IngestJournal.COMPLETED:IngestJournal.FAILED);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void report(Result pResult) {
+		if(gListener!=null) {
+			gListener.ingested(pResult);
+			return;
+		}
+		if(pResult.isSuccess()) {
+			System.out.println("Ingested "+pResult.getFile()+" -> "+pResult.getPid()+" in ["+pResult.getIngestTime()+"] ms" +
+					(gDebug?" (generate: "+pResult.getGenerateTime()+" ms, queued: "+pResult.getQueueTime()+" ms)":""));
+		} else {
+			System.out.println("WARNING: ingest failed: "+pResult.getFile()+" -> "+pResult.getPid()+" return code: "+pResult.getStatus()+" "+pResult.getMessage());
+		}
+	}
+
+	/**
+	 * Close the pooled connections
+	 */
+	public void shutdown() {
+		gClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Generate and ingest FOXML for all parameters, using fedoraserver.properties
+	 * @param args input tiff files
+	 */
+	public static void main(String[] args) {
+		FedoraIngestXMLGenerator foxmlgen = new FedoraIngestXMLGenerator("jisc1", "TIFF", "image/tiff", "MD5");
+		FedoraIngestPipeline pipeline = new FedoraIngestPipeline(foxmlgen, 4, 16);
+		pipeline.ingest(Arrays.asList(args), true, false);
+		pipeline.shutdown();
+		System.out.print(MetricsRegistry.getDefault().report());
+	}
+
+}
@@ -17,18 +17,21 @@
 
 package uk.bl.dpt.fclib;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+
 /**
  * Class to generate FOXML/METS for ingesting files in to Fedora Commons
  * @author wpalmer
@@ -36,11 +39,17 @@ import java.util.List;
  */
 public class FedoraIngestXMLGenerator {
 
+	//pids are reserved in the journal this many at a time
+	private static final int PID_BLOCK = 100;
+
 	private int gFoxcount = 1;
+	private int gReserved = 0;
 	private String gCollection;// = "jisc1";
 	private String gDatastreamID;// = "TIFF";
 	private String gMimetype;// = "image/tiff";
 	private String gChecksumType;// = "MD5";
+	private boolean gContentDigest = false;
+	private IngestJournal gJournal = null;
 	
 	/**
 	 * Initialise the class
@@ -56,33 +65,63 @@ public class FedoraIngestXMLGenerator {
 		gChecksumType = pChecksumType;
 	}
 	
-	private void outputExiftool(PrintWriter pOut, String pOffset, String pFile) {
-		List<String> commandLine = new ArrayList<String>();
-		commandLine.add("/usr/bin/exiftool");
-		commandLine.add("-X");//XML output
-		commandLine.add(pFile);
-
-		ProcessBuilder pb = new ProcessBuilder(commandLine);
-		//don't redirect stderr to stdout as our output XML is in stdout
-		pb.redirectErrorStream(false);
+	/**
+	 * Whether to put the generated checksum in the DIGEST attribute of the image datastream's 
+	 * contentDigest.  Only enable this if the target Fedora has the fix for FCREPO-787.
+	 * @param pContentDigest true to output the DIGEST attribute (default false)
+	 */
+	public void setContentDigest(boolean pContentDigest) {
+		gContentDigest = pContentDigest;
+	}
+	
+	/**
+	 * Use a journal to make FOXML generation restartable.  Pids are reserved in the journal in
+	 * blocks before they are used, and allocation carries on after the highest pid recorded or
+	 * reserved for this collection.  createFOXMLFromTIFF (file output) skips files the journal
+	 * records as generated or completed, and records each file it writes as generated.
+	 * @param pJournal journal to use (null for none)
+	 */
+	public void setJournal(IngestJournal pJournal) {
+		gJournal = pJournal;
+		if(gJournal!=null) {
+			int last = gJournal.getLastPidNumber(gCollection);
+			if(last>=gFoxcount) {
+				gFoxcount = last+1;
+				System.out.println("Resuming at pid "+gCollection+":"+gFoxcount);
+			}
+		}
+		gReserved = 0;
+	}
 
-		//start the executable
-		try {
-			Process proc = pb.start();
-			BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-			proc.waitFor();
-			//output xml to file
-			while(stdout.ready()) {
-				String line = stdout.readLine();
-				if(line.contains("<?xml version='1.0'")) continue;//we don't want this 
-				pOut.println(pOffset+line);
+	/**
+	 * Allocate the next pid, reserving another block in the journal first if needed
+	 * @return pid, or null if it could not be reserved
+	 */
+	private String nextPid() {
+		if(gJournal!=null&&gFoxcount>gReserved) {
+			try {
+				gJournal.reservePids(gCollection, gFoxcount+PID_BLOCK-1);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
 			}
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			gReserved = gFoxcount+PID_BLOCK-1;
+		}
+		String pid = gCollection+":"+gFoxcount;
+		gFoxcount++;
+		return pid;
+	}
+
+	private boolean isDone(String pFile) {
+		if(gJournal==null) return false;
+		IngestJournal.Entry entry = gJournal.getEntry(pFile);
+		return entry!=null&&(IngestJournal.COMPLETED.equals(entry.getStatus())||IngestJournal.GENERATED.equals(entry.getStatus()));
+	}
+	
+	private void outputExiftool(PrintWriter pOut, String pOffset, IngestPackage pPackage) {
+		for(String line:pPackage.getExiftoolOutput()) {
+			pOut.println(pOffset+line);
 		}
-			
 	}
 	
 	private void outputDublinCore(PrintWriter pOut, String pOffset) {
@@ -170,132 +209,67 @@ public class FedoraIngestXMLGenerator {
 	 * @param pNewspaperMetadata whether to add newspaper metadata or not
 	 */
 	public void createFOXMLFromTIFF(String pFile, boolean pManaged, String pOutputfile, boolean pNewspaperMetadata) {
+		if(isDone(pFile)) {
+			System.out.println("Skipping (already generated): "+pFile);
+			return;
+		}
+		createFOXMLFile(pFile, pNewspaperMetadata?findNewspaperMetadata(pFile):null, pManaged, null, pOutputfile);
+	}
 
-		String pid = gCollection+":"+gFoxcount;
-		gFoxcount++;
-		String imagefile = pFile;
-		String url = "file://"+new File(imagefile).getAbsolutePath();
-		String label = new File(imagefile).getName();
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");//"2013-02-18T11:00:00.000Z";
-		String date = df.format(new File(imagefile).lastModified());//utc iso8601
+	/**
+	 * Create a FOXML record for Fedora ingest from a file found by a TIFFCrawler, including 
+	 * the newspaper metadata sidecar if the crawler found one
+	 * @param pItem input tiff file (and sidecar)
+	 * @param pManaged whether Fedora should ingest the data (true) or reference the data (false)
+	 * @param pOutputfile output file for generated FOXML
+	 */
+	public void createFOXMLFromTIFF(TIFFCrawler.Item pItem, boolean pManaged, String pOutputfile) {
+		if(isDone(pItem.getFile())) {
+			System.out.println("Skipping (already generated): "+pItem.getFile());
+			return;
+		}
+		createFOXMLFile(pItem.getFile(), pItem.getSidecar(), pManaged, null, pOutputfile);
+	}
 
-//		String checksum = null;
-//		try {
-//			checksum = Tools.generateChecksum(checksumtype, file);
-//		} catch(IOException e) {
-//			e.printStackTrace();
-//			return;
-//		}
+	/**
+	 * Stage a file in the webdav repository (webdavserver-put.properties) and create a FOXML 
+	 * record whose content location is the staged file's http(s) URI (webdavserver-get.properties),
+	 * so Fedora fetches the content from storage itself.  Fedora must be able to read the 
+	 * staged URI without credentials.
+	 * @param pItem input tiff file (and sidecar)
+	 * @param pRepositoryPath path in webdav repo to stage files under (see WebdavConnection.getStagingPath())
+	 * @param pManaged whether Fedora should copy the staged data (true) or reference it (false)
+	 * @param pOutputfile output file for generated FOXML
+	 */
+	public void createStagedFOXMLFromTIFF(TIFFCrawler.Item pItem, String pRepositoryPath, boolean pManaged, String pOutputfile) {
+		if(isDone(pItem.getFile())) {
+			System.out.println("Skipping (already generated): "+pItem.getFile());
+			return;
+		}
+		File file = new File(pItem.getFile());
+		if(!WebdavDataConnector.stageFile(file, pRepositoryPath)) {
+			System.out.println("Error: staging failed: "+pItem.getFile());
+			return;
+		}
+		createFOXMLFile(pItem.getFile(), pItem.getSidecar(), pManaged, WebdavDataConnector.getStagedFileURI(file, pRepositoryPath), pOutputfile);
+	}
 
-		try {
-			PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(pOutputfile)));//file+".foxml.xml")));
-
-			out.println("<?xml version='1.0' encoding='ascii'?>");
-			out.println("<foxml:digitalObject PID=\""+pid+"\"");
-			out.println("                     VERSION=\"1.1\"");
-			out.println("                     xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\"");
-			out.println("                     xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
-			out.println("                     xsi:schemaLocation=\"info:fedora/fedora-system:def/foxml# http://www.fedora.info/definitions/1/0/foxml1-1.xsd\">");
-
-			out.println("     <foxml:objectProperties>");
-			out.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#state\" VALUE=\"A\"/>");
-			out.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#label\" VALUE=\""+label+"\"/>");
-			out.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#createdDate\" VALUE=\""+date+"\"/>");
-			out.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/view#lastModifiedDate\" VALUE=\""+date+"\"/>");
-			out.println("     </foxml:objectProperties>");
-
-			//dublin core
-			out.println("     <foxml:datastream ID=\"DC\" CONTROL_GROUP=\"X\" STATE=\"A\">");
-			out.println("          <foxml:datastreamVersion ID=\"DC.0\"");
-			out.println("                                   CREATED=\""+date+"\"");
-			out.println("                                   MIMETYPE=\"text/xml\"");
-			out.println("                                   LABEL=\"Dublin Core\">");
-			out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
-			out.println("               <foxml:xmlContent>");
-			outputDublinCore(out, "                    ");
-			out.println("               </foxml:xmlContent>");
-			out.println("          </foxml:datastreamVersion>");
-			out.println("     </foxml:datastream>");
-
-			//fedora collection information
-			out.println("     <foxml:datastream ID=\"RELS-EXT\" CONTROL_GROUP=\"X\">");
-			out.println("          <foxml:datastreamVersion ID=\"RELS-EXT.0\"");
-			out.println("                                   CREATED=\""+date+"\"");
-			out.println("                                   MIMETYPE=\"text/xml\"");
-			out.println("                                   LABEL=\"Fedora Collection ID\">");
-			out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
-			out.println("               <foxml:xmlContent>");
-			out.println("                    <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:rel=\"info:fedora/fedora-system:def/relations-external#\">");
-			out.println("                         <rdf:Description rdf:about=\"info:fedora/"+pid+"\">");
-			out.println("                              <rel:isMemberOfCollection rdf:resource=\"info:fedora/"+gCollection+":"+gCollection+"\"/>");
-			out.println("                         </rdf:Description>");
-			out.println("                    </rdf:RDF>");
-			out.println("               </foxml:xmlContent>");
-			out.println("          </foxml:datastreamVersion>");
-			out.println("     </foxml:datastream>");
-
-			//image file
-			out.println("     <foxml:datastream ID=\""+gDatastreamID+"\" CONTROL_GROUP=\""+(pManaged?"M":"E")+"\" STATE=\"A\">");
-			out.println("          <foxml:datastreamVersion ID=\""+gDatastreamID+".0\"");
-			out.println("                                   CREATED=\""+date+"\"");
-			out.println("                                   MIMETYPE=\""+gMimetype+"\"");
-			out.println("                                   LABEL=\""+label+"\">");
-			//https://jira.duraspace.org/browse/FCREPO-787
-			//we can't specify a checksum on ingest due to a bug in Fedora.  Just specifying a type works though.
-			out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");// DIGEST=\""+checksum.toUpperCase()+"\"/>");
-			out.println("               <foxml:contentLocation REF=\""+url+"\" TYPE=\"URL\"/>");
-			out.println("          </foxml:datastreamVersion>");
-			out.println("     </foxml:datastream>");
-
-			//SCAPE METS record
-			String metsID = "METS-SCAPE";
-			String metsIDLabel = "SCAPE METS Record";
-			out.println("     <foxml:datastream ID=\""+metsID+"\" CONTROL_GROUP=\"M\" STATE=\"A\">");
-			out.println("          <foxml:datastreamVersion ID=\""+metsID+".0\"");
-			out.println("                                   CREATED=\""+date+"\"");
-			out.println("                                   MIMETYPE=\"text/xml\"");
-			out.println("                                   LABEL=\""+metsIDLabel+"\">");
-			out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
-			out.println("               <foxml:xmlContent>");
-			outputSCAPEMETS(out, "                    ", pid, pFile, label);
-			out.println("               </foxml:xmlContent>");
-			out.println("          </foxml:datastreamVersion>");
-			out.println("     </foxml:datastream>");
-
-			//Exiftool output for the tiff
-			out.println("     <foxml:datastream ID=\"EXIFTOOL\" CONTROL_GROUP=\"M\" STATE=\"A\">");
-			out.println("          <foxml:datastreamVersion ID=\"EXIFTOOL.0\"");
-			out.println("                                   CREATED=\""+date+"\"");
-			out.println("                                   MIMETYPE=\"text/xml\"");
-			out.println("                                   LABEL=\"Exiftool output for TIFF datastream\">");
-			out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
-			out.println("               <foxml:xmlContent>");
-			outputExiftool(out, "                    ", pFile);
-			out.println("               </foxml:xmlContent>");
-			out.println("          </foxml:datastreamVersion>");
-			out.println("     </foxml:datastream>");
-			
-			if(pNewspaperMetadata) {
-				String nmd = url.replace(".tif", ".xml");
-				if(new File(nmd.substring("file://".length())).exists()) {
-					out.println("     <foxml:datastream ID=\"BLNEWSPAPERMETADATA\" CONTROL_GROUP=\"M\" STATE=\"A\">");
-					out.println("          <foxml:datastreamVersion ID=\"BLNEWSPAPERMETADATA.0\"");
-					out.println("                                   CREATED=\""+date+"\"");
-					out.println("                                   MIMETYPE=\"text/xml\"");
-					out.println("                                   LABEL=\"Metadata and OCR for the image\">");
-					out.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
-					out.println("               <foxml:contentLocation REF=\""+nmd+"\" TYPE=\"URL\"/>");
-					out.println("          </foxml:datastreamVersion>");
-					out.println("     </foxml:datastream>");
-				} else {
-					System.out.println("Error: newspaper metadata does not exist: "+nmd.substring("file://".length()));
-				}
-			}			
+	private void createFOXMLFile(String pFile, String pSidecar, boolean pManaged, String pContentLocation, String pOutputfile) {
 
-			out.println("</foxml:digitalObject>");
+		IngestPackage pkg = prepare(pFile);
+		if(pkg==null) return;
 
+		try {
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pOutputfile), StandardCharsets.UTF_8)));
+			String pid = writeFOXML(out, pkg, pManaged, pSidecar, pContentLocation);
 			out.close();
-
+			if(pid==null) {
+				new File(pOutputfile).delete();
+				return;
+			}
+			if(out.checkError()) throw new IOException("Error writing "+pOutputfile);
+			//not ingested yet, so not COMPLETED
+			if(gJournal!=null) gJournal.record(pFile, pid, pkg.getChecksum(gChecksumType), IngestJournal.GENERATED);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -303,6 +277,178 @@ public class FedoraIngestXMLGenerator {
 
 	}
 
+	/**
+	 * Create a FOXML record for Fedora ingest, writing it to a stream rather than a file.
+	 * The journal (if set) is not updated; that is up to the caller once the record is used.
+	 * @param pFile input tiff file
+	 * @param pManaged whether Fedora should ingest the data (true) or reference the data (false)
+	 * @param pOut writer for the generated FOXML (not closed)
+	 * @param pNewspaperMetadata whether to add newspaper metadata or not
+	 * @return pid of the generated record, or null if the file could not be read (or no pid reserved)
+	 */
+	public String createFOXMLFromTIFF(String pFile, boolean pManaged, PrintWriter pOut, boolean pNewspaperMetadata) {
+		IngestPackage pkg = prepare(pFile);
+		if(pkg==null) return null;
+		return writeFOXML(pOut, pkg, pManaged, pNewspaperMetadata?findNewspaperMetadata(pFile):null, null);
+	}
+
+	/**
+	 * Find the newspaper metadata sidecar for a file by looking for it on disk
+	 * @param pFile input tiff file
+	 * @return sidecar file, or null if it does not exist
+	 */
+	String findNewspaperMetadata(String pFile) {
+		String nmd = new File(pFile).getAbsolutePath().replace(".tif", ".xml");
+		if(new File(nmd).exists()) {
+			return nmd;
+		}
+		System.out.println("Error: newspaper metadata does not exist: "+nmd);
+		return null;
+	}
+
+	String getChecksumType() {
+		return gChecksumType;
+	}
+
+	IngestPackage prepare(String pFile) {
+		//read the file once for checksum, size and exiftool output
+		Sample sample = MetricsRegistry.getDefault().start("generator.prepare", pFile);
+		try {
+			sample.checksumStart();
+			IngestPackage pkg = IngestPackage.prepare(pFile, new String[] { gChecksumType }, true);
+			sample.checksumEnd();
+			sample.transferEnd(pkg.getSize());
+			sample.finish();
+			return pkg;
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			return null;
+		}
+	}
+
+	String writeFOXML(PrintWriter pOut, IngestPackage pkg, boolean pManaged, String pSidecar, String pContentLocation) {
+
+		String pid = nextPid();
+		if(pid==null) return null;
+		Sample sample = MetricsRegistry.getDefault().start("generator.foxml", pkg.getFile());
+		String imagefile = pkg.getFile();
+		String url = pContentLocation==null?"file://"+new File(imagefile).getAbsolutePath():pContentLocation;
+		String label = new File(imagefile).getName();
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");//"2013-02-18T11:00:00.000Z";
+		String date = df.format(new File(imagefile).lastModified());//utc iso8601
+
+		pOut.println("<?xml version='1.0' encoding='UTF-8'?>");
+		pOut.println("<foxml:digitalObject PID=\""+pid+"\"");
+		pOut.println("                     VERSION=\"1.1\"");
+		pOut.println("                     xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\"");
+		pOut.println("                     xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+		pOut.println("                     xsi:schemaLocation=\"info:fedora/fedora-system:def/foxml# http://www.fedora.info/definitions/1/0/foxml1-1.xsd\">");
+
+		pOut.println("     <foxml:objectProperties>");
+		pOut.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#state\" VALUE=\"A\"/>");
+		pOut.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#label\" VALUE=\""+label+"\"/>");
+		pOut.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/model#createdDate\" VALUE=\""+date+"\"/>");
+		pOut.println("          <foxml:property NAME=\"info:fedora/fedora-system:def/view#lastModifiedDate\" VALUE=\""+date+"\"/>");
+		pOut.println("     </foxml:objectProperties>");
+
+		//dublin core
+		pOut.println("     <foxml:datastream ID=\"DC\" CONTROL_GROUP=\"X\" STATE=\"A\">");
+		pOut.println("          <foxml:datastreamVersion ID=\"DC.0\"");
+		pOut.println("                                   CREATED=\""+date+"\"");
+		pOut.println("                                   MIMETYPE=\"text/xml\"");
+		pOut.println("                                   LABEL=\"Dublin Core\">");
+		pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+		pOut.println("               <foxml:xmlContent>");
+		outputDublinCore(pOut, "                    ");
+		pOut.println("               </foxml:xmlContent>");
+		pOut.println("          </foxml:datastreamVersion>");
+		pOut.println("     </foxml:datastream>");
+
+		//fedora collection information
+		pOut.println("     <foxml:datastream ID=\"RELS-EXT\" CONTROL_GROUP=\"X\">");
+		pOut.println("          <foxml:datastreamVersion ID=\"RELS-EXT.0\"");
+		pOut.println("                                   CREATED=\""+date+"\"");
+		pOut.println("                                   MIMETYPE=\"text/xml\"");
+		pOut.println("                                   LABEL=\"Fedora Collection ID\">");
+		pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+		pOut.println("               <foxml:xmlContent>");
+		pOut.println("                    <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:rel=\"info:fedora/fedora-system:def/relations-external#\">");
+		pOut.println("                         <rdf:Description rdf:about=\"info:fedora/"+pid+"\">");
+		pOut.println("                              <rel:isMemberOfCollection rdf:resource=\"info:fedora/"+gCollection+":"+gCollection+"\"/>");
+		pOut.println("                         </rdf:Description>");
+		pOut.println("                    </rdf:RDF>");
+		pOut.println("               </foxml:xmlContent>");
+		pOut.println("          </foxml:datastreamVersion>");
+		pOut.println("     </foxml:datastream>");
+
+		//image file
+		pOut.println("     <foxml:datastream ID=\""+gDatastreamID+"\" CONTROL_GROUP=\""+(pManaged?"M":"E")+"\" STATE=\"A\">");
+		pOut.println("          <foxml:datastreamVersion ID=\""+gDatastreamID+".0\"");
+		pOut.println("                                   CREATED=\""+date+"\"");
+		pOut.println("                                   MIMETYPE=\""+gMimetype+"\"");
+		pOut.println("                                   SIZE=\""+pkg.getSize()+"\"");
+		pOut.println("                                   LABEL=\""+label+"\">");
+		//https://jira.duraspace.org/browse/FCREPO-787
+		//we can't specify a checksum on ingest due to a bug in Fedora.  Just specifying a type works though.
+		if(gContentDigest) {
+			pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\" DIGEST=\""+pkg.getChecksum(gChecksumType)+"\"/>");
+		} else {
+			pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+		}
+		pOut.println("               <foxml:contentLocation REF=\""+url+"\" TYPE=\"URL\"/>");
+		pOut.println("          </foxml:datastreamVersion>");
+		pOut.println("     </foxml:datastream>");
+
+		//SCAPE METS record
+		String metsID = "METS-SCAPE";
+		String metsIDLabel = "SCAPE METS Record";
+		pOut.println("     <foxml:datastream ID=\""+metsID+"\" CONTROL_GROUP=\"M\" STATE=\"A\">");
+		pOut.println("          <foxml:datastreamVersion ID=\""+metsID+".0\"");
+		pOut.println("                                   CREATED=\""+date+"\"");
+		pOut.println("                                   MIMETYPE=\"text/xml\"");
+		pOut.println("                                   LABEL=\""+metsIDLabel+"\">");
+		pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+		pOut.println("               <foxml:xmlContent>");
+		outputSCAPEMETS(pOut, "                    ", pid, imagefile, label);
+		pOut.println("               </foxml:xmlContent>");
+		pOut.println("          </foxml:datastreamVersion>");
+		pOut.println("     </foxml:datastream>");
+
+		//Exiftool output for the tiff
+		pOut.println("     <foxml:datastream ID=\"EXIFTOOL\" CONTROL_GROUP=\"M\" STATE=\"A\">");
+		pOut.println("          <foxml:datastreamVersion ID=\"EXIFTOOL.0\"");
+		pOut.println("                                   CREATED=\""+date+"\"");
+		pOut.println("                                   MIMETYPE=\"text/xml\"");
+		pOut.println("                                   LABEL=\"Exiftool output for TIFF datastream\">");
+		pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+		pOut.println("               <foxml:xmlContent>");
+		outputExiftool(pOut, "                    ", pkg);
+		pOut.println("               </foxml:xmlContent>");
+		pOut.println("          </foxml:datastreamVersion>");
+		pOut.println("     </foxml:datastream>");
+		
+		if(pSidecar!=null) {
+			String nmd = "file://"+new File(pSidecar).getAbsolutePath();
+			pOut.println("     <foxml:datastream ID=\"BLNEWSPAPERMETADATA\" CONTROL_GROUP=\"M\" STATE=\"A\">");
+			pOut.println("          <foxml:datastreamVersion ID=\"BLNEWSPAPERMETADATA.0\"");
+			pOut.println("                                   CREATED=\""+date+"\"");
+			pOut.println("                                   MIMETYPE=\"text/xml\"");
+			pOut.println("                                   LABEL=\"Metadata and OCR for the image\">");
+			pOut.println("               <foxml:contentDigest TYPE=\""+gChecksumType+"\"/>");
+			pOut.println("               <foxml:contentLocation REF=\""+nmd+"\" TYPE=\"URL\"/>");
+			pOut.println("          </foxml:datastreamVersion>");
+			pOut.println("     </foxml:datastream>");
+		}			
+
+		pOut.println("</foxml:digitalObject>");
+
+		pOut.flush();
+		sample.finish();
+
+		return pid;
+	}
+
 	/**
 	 * Test main method to generate FOXML for all parameters
 	 * @param args arguments
@@ -311,11 +457,29 @@ public class FedoraIngestXMLGenerator {
 		System.out.println("Commands to ingest these files:");
 		System.out.println("export FEDORA_HOME=/usr/local/fedora/");
 		FedoraIngestXMLGenerator foxmlgen = new FedoraIngestXMLGenerator("jisc1", "TIFF", "image/tiff", "MD5");
+		List<String> dirs = new ArrayList<String>();
 		for(String file:args) {
+			if(new File(file).isDirectory()) {
+				dirs.add(file);
+				continue;
+			}
 			String foxml = new File(file).getName()+".foxml.xml";
 			foxmlgen.createFOXMLFromTIFF(file, true, foxml, false);
 			System.out.println("/usr/local/fedora/client/bin/fedora_ingest.sh f "+foxml+" info:fedora/fedora-system:FOXML-1.1 host:port user pass http");
 		}
+		//directories are crawled for tiffs (and their sidecars)
+		if(dirs.size()>0) {
+			TIFFCrawler crawler = new TIFFCrawler(dirs, 4, 1024);
+			try {
+				for(TIFFCrawler.Item item:crawler) {
+					String foxml = new File(item.getFile()).getName()+".foxml.xml";
+					foxmlgen.createFOXMLFromTIFF(item, true, foxml);
+					System.out.println("/usr/local/fedora/client/bin/fedora_ingest.sh f "+foxml+" info:fedora/fedora-system:FOXML-1.1 host:port user pass http");
+				}
+			} finally {
+				crawler.close();
+			}
+		}
 
 	}
 
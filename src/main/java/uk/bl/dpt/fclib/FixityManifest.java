@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates and verifies BagIt style fixity manifests ("&lt;checksum&gt;  &lt;path&gt;" per line)
+ * for large sets of files.  Files are checksummed on a fork/join pool; the number of files
+ * being read at once is limited separately from the number of threads, so the I/O load can
+ * be matched to the storage (e.g. a few readers for local disks, many for network storage).
+ * Workers reading a file are blocked in ForkJoinPool.managedBlock(), so the pool starts
+ * spare threads and the I/O concurrency can exceed the parallelism (by up to the pool's
+ * limit of 256 spare threads).
+ * Manifest lines are written as each file completes, so memory use does not grow with the
+ * number of files.
+ * @author wpalmer
+ *
+ */
+public class FixityManifest {
+
+	/**
+	 * A file that failed verification
+	 */
+	public static class Failure {
+		private String gPath;
+		private String gExpected;
+		private String gActual;
+		private Failure(String pPath, String pExpected, String pActual) {
+			gPath = pPath;
+			gExpected = pExpected;
+			gActual = pActual;
+		}
+		/**
+		 * @return path of the file, as it appears in the manifest
+		 */
+		public String getPath() { return gPath; }
+		/**
+		 * @return checksum in the manifest
+		 */
+		public String getExpected() { return gExpected; }
+		/**
+		 * @return checksum of the file, or null if the file is missing/unreadable
+		 */
+		public String getActual() { return gActual; }
+		public String toString() {
+			return (gActual==null?"MISSING ":"MISMATCH ")+gPath+" expected: "+gExpected+(gActual==null?"":" actual: "+gActual);
+		}
+	}
+
+	private String gType;
+	private int gParallelism;
+	private int gIOConcurrency;
+	private Semaphore gReaders;
+
+	/**
+	 * Initialise
+	 * @param pType checksum type (e.g. "MD5", "SHA-256")
+	 * @param pParallelism number of threads checksumming files while none are waiting for I/O
+	 * @param pIOConcurrency maximum number of files being read at once (may be more than pParallelism)
+	 */
+	public FixityManifest(String pType, int pParallelism, int pIOConcurrency) {
+		gType = pType.toUpperCase();
+		gParallelism = pParallelism;
+		gIOConcurrency = pIOConcurrency;
+		gReaders = new Semaphore(pIOConcurrency);
+	}
+
+	/**
+	 * @return conventional BagIt manifest name for this checksum type, e.g. manifest-md5.txt
+	 */
+	public String getManifestName() {
+		return "manifest-"+gType.toLowerCase().replace("-", "")+".txt";
+	}
+
+	private String checksum(final File pFile) throws IOException {
+		//not a managed block: a spare thread started here would only wait for a permit too
+		try {
+			gReaders.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting to read "+pFile);
+		}
+		try {
+			//reading blocks, so let the pool run other files meanwhile
+			Reader reader = new Reader(pFile);
+			try {
+				ForkJoinPool.managedBlock(reader);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted reading "+pFile);
+			}
+			if(reader.gError!=null) throw reader.gError;
+			return reader.gChecksum;
+		} finally {
+			gReaders.release();
+		}
+	}
+
+	/**
+	 * Checksums a file as a ForkJoinPool.ManagedBlocker
+	 */
+	private class Reader implements ForkJoinPool.ManagedBlocker {
+		private File gFile;
+		private String gChecksum = null;
+		private IOException gError = null;
+		private boolean gDone = false;
+		private Reader(File pFile) {
+			gFile = pFile;
+		}
+		public boolean block() {
+			try {
+				gChecksum = ChecksumEngine.checksumFile(gFile, new String[] { gType }, ChecksumEngine.Strategy.AUTO).get(gType);
+			} catch(IOException e) {
+				gError = e;
+			}
+			gDone = true;
+			return true;
+		}
+		public boolean isReleasable() {
+			return gDone;
+		}
+	}
+
+	private static String relativePath(Path pBase, Path pFile) {
+		String path = pBase.relativize(pFile).toString().replace(File.separatorChar, '/');
+		//BagIt requires these to be percent encoded
+		return path.replace("%", "%25").replace("\n", "%0A").replace("\r", "%0D");
+	}
+
+	private static String decodePath(String pPath) {
+		return pPath.replace("%0A", "\n").replace("%0D", "\r").replace("%25", "%");
+	}
+
+	/**
+	 * Generate a manifest for all files under a directory
+	 * @param pDirectory directory to checksum (paths in the manifest are relative to this)
+	 * @param pManifest manifest file to write
+	 * @return number of files in the manifest
+	 * @throws IOException error writing the manifest
+	 */
+	public int write(final File pDirectory, File pManifest) throws IOException {
+		final Path base = pDirectory.toPath().toAbsolutePath();
+		final Path manifest = pManifest.toPath().toAbsolutePath();
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pManifest), "UTF-8"));
+		final AtomicInteger count = new AtomicInteger(0);
+		long startTime = System.currentTimeMillis();
+
+		class FileTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private Path gFile;
+			FileTask(Path pFile) { gFile = pFile; }
+			protected void compute() {
+				try {
+					String checksum = checksum(gFile.toFile());
+					String line = checksum+"  "+relativePath(base, gFile)+"\n";
+					synchronized(out) {
+						out.write(line);
+					}
+					count.incrementAndGet();
+				} catch(IOException e) {
+					System.out.println("Error checksumming "+gFile+": "+e);
+				}
+			}
+		}
+
+		class DirTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private Path gDir;
+			DirTask(Path pDir) { gDir = pDir; }
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				try {
+					DirectoryStream<Path> stream = Files.newDirectoryStream(gDir);
+					try {
+						for(Path entry:stream) {
+							if(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+								tasks.add(new DirTask(entry));
+							} else if(Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)&&!entry.toAbsolutePath().equals(manifest)) {
+								tasks.add(new FileTask(entry));
+							}
+						}
+					} finally {
+						stream.close();
+					}
+				} catch(IOException e) {
+					System.out.println("Error listing "+gDir+": "+e);
+				}
+				invokeAll(tasks);
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(gParallelism);
+		try {
+			pool.invoke(new DirTask(base));
+		} finally {
+			pool.shutdown();
+			out.close();
+		}
+
+		System.out.println("Checksummed ["+count.get()+"] files in ["+(System.currentTimeMillis()-startTime)+"] ms");
+		return count.get();
+	}
+
+	/**
+	 * Verify the files listed in a manifest
+	 * @param pManifest manifest file to check
+	 * @param pDirectory directory the manifest paths are relative to
+	 * @return files that are missing or whose checksums do not match (empty if all ok)
+	 * @throws IOException error reading the manifest
+	 */
+	public List<Failure> verify(File pManifest, final File pDirectory) throws IOException {
+		final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+		//limit the number of lines read ahead of the checksumming
+		final Semaphore inFlight = new Semaphore(Math.max(gParallelism, gIOConcurrency)*16);
+		ForkJoinPool pool = new ForkJoinPool(gParallelism);
+		long startTime = System.currentTimeMillis();
+		int count = 0;
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pManifest), "UTF-8"));
+		try {
+			String line;
+			while((line = in.readLine())!=null) {
+				int split = line.indexOf(' ');
+				if(split<0) continue;
+				final String expected = line.substring(0, split).trim();
+				final String path = line.substring(split).trim();
+				count++;
+				inFlight.acquireUninterruptibly();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							String actual = null;
+							File file = new File(pDirectory, decodePath(path));
+							if(file.exists()) {
+								try {
+									actual = checksum(file);
+								} catch(IOException e) {
+									System.out.println("Error checksumming "+file+": "+e);
+								}
+							}
+							if(actual==null||!actual.equalsIgnoreCase(expected)) {
+								Failure failure = new Failure(path, expected, actual);
+								System.out.println("WARNING: "+failure);
+								failures.add(failure);
+							}
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			in.close();
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		System.out.println("Verified ["+count+"] files in ["+(System.currentTimeMillis()-startTime)+"] ms, ["+failures.size()+"] failures");
+		return failures;
+	}
+
+	/**
+	 * Generate (or verify) a manifest for a directory
+	 * @param args [-verify] type directory manifest
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean verify = args.length>0&&args[0].equals("-verify");
+		int a = verify?1:0;
+		if(args.length-a<3) {
+			System.out.println("Usage: [-verify] type directory manifest");
+			return;
+		}
+		int cpus = Runtime.getRuntime().availableProcessors();
+		FixityManifest fixity = new FixityManifest(args[a], cpus, cpus);
+		if(verify) {
+			fixity.verify(new File(args[a+2]), new File(args[a+1]));
+		} else {
+			fixity.write(new File(args[a+1]), new File(args[a+2]));
+		}
+	}
+
+}
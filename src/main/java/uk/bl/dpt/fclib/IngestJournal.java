@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+/**
+ * An append-only journal of completed work for long running batch jobs (FOXML generation,
+ * ingest, bulk recovery/upload).  Each line records a key (usually the input file), the
+ * pid (or remote path), a checksum and a status.  When a job is restarted with the same
+ * journal it can skip everything already completed and carry on allocating pids from
+ * where it stopped.
+ *
+ * Entries are flushed to the OS as they are written but only synced to disk every
+ * pSyncEvery entries (and on close), so a crash loses at most one batch.  As work is not
+ * recorded in the order its pids were allocated, pids are reserved (and synced) before they
+ * are used, and a restart carries on after the highest reservation rather than the highest
+ * pid recorded.
+ * @author wpalmer
+ *
+ */
+public class IngestJournal {
+
+	/**
+	 * Status for work that has completed and can be skipped on restart
+	 */
+	public static final String COMPLETED = "COMPLETED";
+
+	/**
+	 * Status for work that failed and should be retried on restart
+	 */
+	public static final String FAILED = "FAILED";
+
+	/**
+	 * Status for FOXML that has been written to a file but not ingested
+	 */
+	public static final String GENERATED = "GENERATED";
+
+	//status of a pid reservation (not an entry for a key)
+	private static final String RESERVED = "RESERVED";
+
+	private static final String SEPARATOR = "\t";
+
+	/**
+	 * A journal entry
+	 */
+	public static class Entry {
+		private String gKey;
+		private String gPid;
+		private String gChecksum;
+		private String gStatus;
+		private Entry(String pKey, String pPid, String pChecksum, String pStatus) {
+			gKey = pKey;
+			gPid = pPid;
+			gChecksum = pChecksum;
+			gStatus = pStatus;
+		}
+		/**
+		 * @return the key (e.g. input file)
+		 */
+		public String getKey() { return gKey; }
+		/**
+		 * @return the pid (or remote path) the work was done against
+		 */
+		public String getPid() { return gPid; }
+		/**
+		 * @return checksum recorded for the work
+		 */
+		public String getChecksum() { return gChecksum; }
+		/**
+		 * @return status of the work
+		 */
+		public String getStatus() { return gStatus; }
+	}
+
+	private File gFile;
+	private HashMap<String, Entry> gEntries = new HashMap<String, Entry>();
+	private HashMap<String, Integer> gLastPid = new HashMap<String, Integer>();
+	private FileOutputStream gOutputStream;
+	private BufferedWriter gWriter;
+	private int gSyncEvery;
+	private int gUnsynced = 0;
+
+	/**
+	 * Open a journal, reading any existing entries.  A partially written last line (from a
+	 * crash) is discarded.
+	 * @param pFile journal file (created if it does not exist)
+	 * @param pSyncEvery number of entries to write between syncs to disk
+	 * @throws IOException file access error
+	 */
+	public IngestJournal(File pFile, int pSyncEvery) throws IOException {
+		gFile = pFile;
+		gSyncEvery = pSyncEvery<1?1:pSyncEvery;
+
+		if(gFile.exists()) {
+			long good = load();
+			if(good<gFile.length()) {
+				System.out.println("Journal: discarding incomplete entry at end of "+gFile);
+				RandomAccessFile raf = new RandomAccessFile(gFile, "rw");
+				raf.setLength(good);
+				raf.close();
+			}
+		}
+
+		gOutputStream = new FileOutputStream(gFile, true);
+		gWriter = new BufferedWriter(new OutputStreamWriter(gOutputStream, "UTF-8"));
+	}
+
+	/**
+	 * Read the existing entries
+	 * @return length of the file up to the end of the last complete line
+	 */
+	private long load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(gFile), "UTF-8"));
+		long good = 0;
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while((c = reader.read())!=-1) {
+				if(c!='\n') {
+					line.append((char)c);
+					continue;
+				}
+				String[] fields = line.toString().split(SEPARATOR, -1);
+				good += line.toString().getBytes("UTF-8").length+1;
+				line.setLength(0);
+				if(fields.length!=4) continue;
+				add(new Entry(unescape(fields[0]), unescape(fields[1]), unescape(fields[2]), unescape(fields[3])));
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println("Journal: loaded "+gEntries.size()+" entries from "+gFile);
+		return good;
+	}
+
+	private void add(Entry pEntry) {
+		if(!RESERVED.equals(pEntry.gStatus)) gEntries.put(pEntry.gKey, pEntry);
+		//remember the highest pid number used for each namespace
+		String pid = pEntry.gPid;
+		int colon = pid.lastIndexOf(':');
+		if(colon>0) {
+			try {
+				int number = Integer.parseInt(pid.substring(colon+1));
+				String namespace = pid.substring(0, colon);
+				Integer last = gLastPid.get(namespace);
+				if(last==null||number>last) gLastPid.put(namespace, number);
+			} catch(NumberFormatException e) {
+				//not a numbered pid
+			}
+		}
+	}
+
+	private static String escape(String pValue) {
+		if(pValue==null) return "";
+		return pValue.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String pValue) {
+		StringBuilder sb = new StringBuilder(pValue.length());
+		for(int i=0;i<pValue.length();i++) {
+			char c = pValue.charAt(i);
+			if(c=='\\'&&i+1<pValue.length()) {
+				i++;
+				c = pValue.charAt(i);
+				if(c=='t') c = '\t';
+				if(c=='n') c = '\n';
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Record the outcome of a unit of work
+	 * @param pKey key for the work (e.g. input file)
+	 * @param pPid pid (or remote path) used
+	 * @param pChecksum checksum for the data (or null)
+	 * @param pStatus status (e.g. COMPLETED or FAILED)
+	 * @throws IOException error writing the journal
+	 */
+	public synchronized void record(String pKey, String pPid, String pChecksum, String pStatus) throws IOException {
+		Entry entry = new Entry(pKey, pPid==null?"":pPid, pChecksum==null?"":pChecksum, pStatus);
+		gWriter.write(escape(entry.gKey)+SEPARATOR+escape(entry.gPid)+SEPARATOR+escape(entry.gChecksum)+SEPARATOR+escape(entry.gStatus)+"\n");
+		gWriter.flush();
+		add(entry);
+		gUnsynced++;
+		if(gUnsynced>=gSyncEvery) sync();
+	}
+
+	/**
+	 * Reserve pid numbers in a namespace before using them.  The reservation is synced to disk
+	 * before returning, so a restarted job never reuses a reserved pid, even if the work that
+	 * used it was never recorded.
+	 * @param pNamespace pid namespace (e.g. "jisc1")
+	 * @param pHighest highest pid number reserved
+	 * @throws IOException error writing the journal
+	 */
+	public synchronized void reservePids(String pNamespace, int pHighest) throws IOException {
+		Entry entry = new Entry("", pNamespace+":"+pHighest, "", RESERVED);
+		gWriter.write(SEPARATOR+escape(entry.gPid)+SEPARATOR+SEPARATOR+RESERVED+"\n");
+		add(entry);
+		sync();
+	}
+
+	/**
+	 * Force all written entries to disk
+	 * @throws IOException error syncing the journal
+	 */
+	public synchronized void sync() throws IOException {
+		gWriter.flush();
+		gOutputStream.getFD().sync();
+		gUnsynced = 0;
+	}
+
+	/**
+	 * @param pKey key for the work
+	 * @return whether the last entry for the key has status COMPLETED
+	 */
+	public synchronized boolean isCompleted(String pKey) {
+		Entry entry = gEntries.get(pKey);
+		return entry!=null&&COMPLETED.equals(entry.gStatus);
+	}
+
+	/**
+	 * @param pKey key for the work
+	 * @return the last entry for the key, or null
+	 */
+	public synchronized Entry getEntry(String pKey) {
+		return gEntries.get(pKey);
+	}
+
+	/**
+	 * Get the highest pid number recorded or reserved for a namespace, e.g. 600000 for "jisc1:600000"
+	 * @param pNamespace pid namespace (e.g. "jisc1")
+	 * @return highest number used or reserved, or 0 if none
+	 */
+	public synchronized int getLastPidNumber(String pNamespace) {
+		Integer last = gLastPid.get(pNamespace);
+		return last==null?0:last;
+	}
+
+	/**
+	 * @return number of keys in the journal
+	 */
+	public synchronized int size() {
+		return gEntries.size();
+	}
+
+	/**
+	 * Sync and close the journal
+	 * @throws IOException error closing the journal
+	 */
+	public synchronized void close() throws IOException {
+		sync();
+		gWriter.close();
+	}
+
+}
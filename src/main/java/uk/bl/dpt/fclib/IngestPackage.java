@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything the FOXML generator needs to know about a file before ingest, collected
+ * in a single sequential read: checksums and size.  Exiftool is given the path, so its
+ * output keeps the file system tags (FileName, FileSize, FileModifyDate etc.); it only
+ * reads the header, and runs while the file is being read so that comes from the cache.
+ * @author wpalmer
+ *
+ */
+public class IngestPackage {
+
+	private static final String EXIFTOOL = "/usr/bin/exiftool";
+
+	//only warn once if exiftool is not installed
+	private static volatile boolean gExiftoolWarned = false;
+
+	private String gFile;
+	private long gSize = 0;
+	private Map<String, String> gChecksums = new LinkedHashMap<String, String>();
+	private List<String> gExiftool = new ArrayList<String>();
+
+	private IngestPackage(String pFile) {
+		gFile = pFile;
+	}
+
+	/**
+	 * Read a file once, generating the requested checksums and (optionally) exiftool output
+	 * @param pFile file to read
+	 * @param pChecksumTypes checksum types to generate (e.g. "MD5")
+	 * @param pExiftool whether or not to capture exiftool output for the file
+	 * @return package containing the collected information
+	 * @throws IOException file access error, or unknown checksum type
+	 */
+	public static IngestPackage prepare(String pFile, String[] pChecksumTypes, boolean pExiftool) throws IOException {
+
+		if(!new File(pFile).exists()) throw new IOException("File not found: "+pFile);
+
+		final IngestPackage pkg = new IngestPackage(pFile);
+
+		ChecksumEngine engine;
+		try {
+			engine = new ChecksumEngine(pChecksumTypes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+e.getMessage());
+		}
+
+		Process proc = null;
+		Thread exifReader = null;
+		if(pExiftool&&!new File(EXIFTOOL).canExecute()) {
+			if(!gExiftoolWarned) {
+				System.out.println("WARNING: "+EXIFTOOL+" not found, continuing without exiftool output");
+				gExiftoolWarned = true;
+			}
+			pExiftool = false;
+		}
+		if(pExiftool) {
+			List<String> commandLine = new ArrayList<String>();
+			commandLine.add(EXIFTOOL);
+			commandLine.add("-X");//XML output
+			commandLine.add(pFile);
+			ProcessBuilder pb = new ProcessBuilder(commandLine);
+			//don't redirect stderr to stdout as our output XML is in stdout
+			pb.redirectErrorStream(false);
+			try {
+				proc = pb.start();
+			} catch(IOException e) {
+				//carry on without exiftool output, as before
+				e.printStackTrace();
+			}
+		}
+		if(proc!=null) {
+			//exiftool does not read stdin
+			try {
+				proc.getOutputStream().close();
+			} catch(IOException e) {
+				//already exited
+			}
+			//stdout is drained while the file is read
+			final BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			exifReader = new Thread() {
+				public void run() {
+					try {
+						String line;
+						while((line = stdout.readLine())!=null) {
+							if(line.contains("<?xml version='1.0'")) continue;//we don't want this
+							pkg.gExiftool.add(line);
+						}
+						stdout.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			exifReader.start();
+		}
+
+		FileInputStream input = new FileInputStream(pFile);
+		try {
+			byte[] readBuffer = new byte[1024*1024];
+			int bytesRead = 0;
+			while((bytesRead = input.read(readBuffer))!=-1) {
+				engine.update(readBuffer, 0, bytesRead);
+				pkg.gSize += bytesRead;
+			}
+		} finally {
+			input.close();
+		}
+
+		if(proc!=null) {
+			try {
+				proc.waitFor();
+				exifReader.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		pkg.gChecksums.putAll(engine.getChecksums());
+
+		return pkg;
+	}
+
+	/**
+	 * @return the file this package was prepared from
+	 */
+	public String getFile() {
+		return gFile;
+	}
+
+	/**
+	 * @return number of bytes read from the file
+	 */
+	public long getSize() {
+		return gSize;
+	}
+
+	/**
+	 * Get a checksum generated during the read
+	 * @param pType checksum type
+	 * @return checksum (lowercase hex), or null if that type was not generated
+	 */
+	public String getChecksum(String pType) {
+		return gChecksums.get(pType.toUpperCase());
+	}
+
+	/**
+	 * @return all checksums generated during the read, keyed by (uppercase) checksum type
+	 */
+	public Map<String, String> getChecksums() {
+		return Collections.unmodifiableMap(gChecksums);
+	}
+
+	/**
+	 * @return exiftool XML output lines (without XML declaration), empty if not requested
+	 */
+	public List<String> getExiftoolOutput() {
+		return Collections.unmodifiableList(gExiftool);
+	}
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves job input URIs (FedoraDataConnector.DC_URI and WebdavDataConnector.DC_URI) to local
+ * files.  Given an ordered list of URIs, the next inputs are fetched in the background while
+ * the caller works on the current one, so tool execution and network transfer overlap.
+ * <p>
+ * URIs are of the form dataconnector://pid/datastream and webdav://path/to/file.  Inputs are
+ * staged in a subdirectory each of the staging directory.  At most the given number of inputs
+ * are fetched ahead, and no more are started while the staged files use more than the byte
+ * limit.  A staged file is deleted when the next input is taken, when it is released, or when
+ * the iteration is closed.  Any other string is treated as a local path and passed through.
+ * @author wpalmer
+ *
+ */
+public class InputResolver {
+
+	/** default number of inputs fetched ahead of the one in use */
+	public static final int DEFAULT_PREFETCH = 4;
+
+	/**
+	 * An input fetched to the staging area
+	 */
+	public class Input {
+		private String gURI;
+		private File gFile = null;
+		private File gDir = null;
+		private long gLength = 0;
+		private String gMessage = null;
+		private long gFetchTime = 0;
+		private boolean gReleased = false;
+
+		private Input(String pURI) {
+			gURI = pURI;
+		}
+		/** @return the URI that was resolved */
+		public String getURI() { return gURI; }
+		/** @return local file, or null if it could not be fetched */
+		public File getFile() { return gFile; }
+		/** @return reason for a failure, or null */
+		public String getMessage() { return gMessage; }
+		/** @return time taken to fetch the file (ms) */
+		public long getFetchTime() { return gFetchTime; }
+		/** @return whether the file was fetched */
+		public boolean isSuccess() { return gFile!=null; }
+		/**
+		 * Delete the staged file (local paths that were passed through are left alone)
+		 */
+		public void release() {
+			synchronized(this) {
+				if(gReleased) return;
+				gReleased = true;
+			}
+			if(gDir!=null) {
+				if(gFile!=null) gFile.delete();
+				gDir.delete();
+				gStagedBytes.addAndGet(-gLength);
+				synchronized(gSpace) {
+					gSpace.notifyAll();
+				}
+			}
+		}
+		public String toString() {
+			return gURI+" -> "+(gFile!=null?gFile.getAbsolutePath():"FAILED ("+gMessage+")");
+		}
+	}
+
+	private FedoraConnection gFedora;
+	private WebdavConnection gWebdav;
+	private File gStagingDir;
+	private int gPrefetch;
+	private long gMaxStagedBytes = Long.MAX_VALUE;
+	private AtomicLong gStagedBytes = new AtomicLong(0);
+	private AtomicInteger gSequence = new AtomicInteger(0);
+	//fetches running, and totals used to estimate the size of those still to arrive
+	private int gFetching = 0;
+	private long gFetchedBytes = 0;
+	private int gFetched = 0;
+	//notified when staged files are released, inputs are taken or fetches finish
+	private final Object gSpace = new Object();
+
+	/**
+	 * Create a resolver
+	 * @param pFedora connection for dataconnector:// URIs (null for none)
+	 * @param pWebdav connection for webdav:// URIs (null for none)
+	 * @param pStagingDir directory to stage inputs in (created if needed)
+	 * @param pPrefetch number of inputs fetched ahead of the one in use (0 to fetch each when it is needed)
+	 */
+	public InputResolver(FedoraConnection pFedora, WebdavConnection pWebdav, File pStagingDir, int pPrefetch) {
+		gFedora = pFedora;
+		gWebdav = pWebdav;
+		gStagingDir = pStagingDir;
+		gPrefetch = Math.max(0, pPrefetch);
+	}
+
+	/**
+	 * Create a resolver using the default connections
+	 * @param pStagingDir directory to stage inputs in (created if needed)
+	 * @param pPrefetch number of inputs fetched ahead of the one in use
+	 */
+	public InputResolver(File pStagingDir, int pPrefetch) {
+		this(FedoraDataConnector.getDefault(), WebdavDataConnector.getDefault(), pStagingDir, pPrefetch);
+	}
+
+	/**
+	 * Limit the space used by staged files.  A fetch does not start while the limit is
+	 * reached, unless it is for the input needed next.  Sizes are not known in advance:
+	 * fetches in progress are counted at the average size of the inputs fetched so far, so
+	 * the limit can be exceeded by inputs larger than average (and by the first fetches).
+	 * @param pMaxBytes maximum bytes staged before fetching ahead stops (0 for no limit)
+	 */
+	public void setMaxStagedBytes(long pMaxBytes) {
+		gMaxStagedBytes = pMaxBytes>0?pMaxBytes:Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return bytes currently in the staging area
+	 */
+	public long getStagedBytes() {
+		return gStagedBytes.get();
+	}
+
+	/**
+	 * @param pURI input URI
+	 * @return whether the URI refers to one of the connectors
+	 */
+	public static boolean isRemote(String pURI) {
+		return pURI.startsWith(FedoraDataConnector.DC_URI)||pURI.startsWith(WebdavDataConnector.DC_URI);
+	}
+
+	/**
+	 * Fetch a single input now, without prefetching.  The caller must release() it.
+	 * @param pURI input URI
+	 * @return the staged input (check isSuccess())
+	 */
+	public Input resolve(String pURI) {
+		return fetch(pURI);
+	}
+
+	/**
+	 * Resolve a list of URIs in order, fetching ahead in the background.  The returned
+	 * iteration must be closed (or run to the end) to stop the fetches and clear the staging
+	 * area.
+	 * @param pURIs input URIs (read as the prefetch window moves on)
+	 * @return staged inputs, in the order of pURIs
+	 */
+	public Inputs resolve(Iterable<String> pURIs) {
+		return new Inputs(pURIs.iterator());
+	}
+
+	/**
+	 * Staged inputs in order.  Taking the next input releases the previous one.
+	 */
+	public class Inputs implements Iterator<Input>, Iterable<Input> {
+
+		private Iterator<String> gURIs;
+		private LinkedList<Future<Input>> gWindow = new LinkedList<Future<Input>>();
+		private ExecutorService gFetchers;
+		private Input gCurrent = null;
+		private long gStartTime = System.currentTimeMillis();
+		private long gWaitTime = 0;
+		private int gCount = 0;
+		private int gFailed = 0;
+		private int gSubmitted = 0;
+		//position of the next input the caller will take
+		private volatile int gTaken = 0;
+		private volatile boolean gClosed = false;
+
+		private Inputs(Iterator<String> pURIs) {
+			gURIs = pURIs;
+			gFetchers = Executors.newFixedThreadPool(Math.max(1, gPrefetch), new ThreadFactory() {
+				private int gThread = 0;
+				public synchronized Thread newThread(Runnable pRunnable) {
+					Thread thread = new Thread(pRunnable, "InputResolver-"+(gThread++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			if(gPrefetch>0) fill();
+		}
+
+		public Iterator<Input> iterator() {
+			return this;
+		}
+
+		//queue fetches until the window is full
+		private void fill() {
+			while(gURIs.hasNext()&&(gWindow.isEmpty()||gWindow.size()<gPrefetch)) {
+				final String uri = gURIs.next();
+				final int position = gSubmitted++;
+				gWindow.add(gFetchers.submit(new Callable<Input>() {
+					public Input call() {
+						Input input = new Input(uri);
+						try {
+							if(!waitForSpace(position)) {
+								input.gMessage = "closed";
+								return input;
+							}
+						} catch (InterruptedException e) {
+							input.gMessage = "interrupted";
+							return input;
+						}
+						try {
+							return fetch(uri);
+						} finally {
+							synchronized(gSpace) {
+								gFetching--;
+								gSpace.notifyAll();
+							}
+						}
+					}
+				}));
+			}
+		}
+
+		/**
+		 * Wait until the staging area has room, unless the input is the next one needed
+		 * @return false if closed while waiting
+		 */
+		private boolean waitForSpace(int pPosition) throws InterruptedException {
+			synchronized(gSpace) {
+				while(!gClosed&&pPosition>gTaken&&gStagedBytes.get()+gFetching*getEstimatedSize()>=gMaxStagedBytes) gSpace.wait();
+				gFetching++;
+			}
+			return !gClosed;
+		}
+
+		public synchronized boolean hasNext() {
+			if(gClosed) return false;
+			if(gWindow.isEmpty()) fill();
+			if(gWindow.isEmpty()) {
+				close();
+				return false;
+			}
+			return true;
+		}
+
+		public synchronized Input next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			if(gCurrent!=null) gCurrent.release();
+			gCurrent = null;
+			long startTime = System.currentTimeMillis();
+			Future<Input> head = gWindow.removeFirst();
+			Input input;
+			try {
+				input = head.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new NoSuchElementException("Interrupted");
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				input = new Input(null);
+				input.gMessage = e.getCause().toString();
+			}
+			gWaitTime += System.currentTimeMillis()-startTime;
+			//the input after this one is now the next needed
+			gTaken++;
+			synchronized(gSpace) {
+				gSpace.notifyAll();
+			}
+			//the staged file is counted until released, so top up after taking it
+			if(gPrefetch>0) fill();
+			gCount++;
+			if(!input.isSuccess()) gFailed++;
+			gCurrent = input;
+			return input;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @return time the caller spent waiting for inputs to be fetched (ms)
+		 */
+		public synchronized long getWaitTime() {
+			return gWaitTime;
+		}
+
+		/**
+		 * Stop fetching and delete all staged files
+		 */
+		public synchronized void close() {
+			if(gClosed) return;
+			gClosed = true;
+			synchronized(gSpace) {
+				gSpace.notifyAll();
+			}
+			if(gCurrent!=null) gCurrent.release();
+			gCurrent = null;
+			for(Future<Input> future:gWindow) {
+				//let fetches in progress finish so their files can be removed
+				try {
+					future.get().release();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+			gWindow.clear();
+			gFetchers.shutdownNow();
+			System.out.println("Resolved ["+gCount+"] inputs, ["+gFailed+"] failed, in ["+(System.currentTimeMillis()-gStartTime)+"] ms; waited ["+gWaitTime+"] ms for transfers");
+		}
+
+	}
+
+	private Input fetch(String pURI) {
+		Input input = new Input(pURI);
+		long startTime = System.currentTimeMillis();
+		if(!isRemote(pURI)) {
+			//a local file: nothing to fetch
+			File file = new File(pURI);
+			if(file.exists()) {
+				input.gFile = file;
+			} else {
+				input.gMessage = "no such file";
+			}
+			return input;
+		}
+		//each input gets its own directory, so files with the same name do not collide
+		File dir = new File(gStagingDir, Integer.toString(gSequence.incrementAndGet()));
+		if(!dir.isDirectory()&&!dir.mkdirs()) {
+			input.gMessage = "cannot create "+dir;
+			return input;
+		}
+		File file = null;
+		try {
+			if(pURI.startsWith(FedoraDataConnector.DC_URI)) {
+				String path = pURI.substring(FedoraDataConnector.DC_URI.length());
+				int slash = path.indexOf('/');
+				if(gFedora==null) {
+					input.gMessage = "no Fedora connection";
+				} else if(slash<1||slash==path.length()-1) {
+					input.gMessage = "expected "+FedoraDataConnector.DC_URI+"pid/datastream";
+				} else {
+					file = gFedora.recoverDatastream(path.substring(0, slash), path.substring(slash+1), dir.getAbsolutePath());
+				}
+			} else {
+				if(gWebdav==null) {
+					input.gMessage = "no WebDAV connection";
+				} else {
+					//webdav://dir/file is /dir/file in the repository
+					file = gWebdav.recoverFile("/"+pURI.substring(WebdavDataConnector.DC_URI.length()), dir.getAbsolutePath());
+				}
+			}
+		} catch (RuntimeException e) {
+			//e.g. a response without the expected headers
+			e.printStackTrace();
+			input.gMessage = e.toString();
+		}
+		input.gFetchTime = System.currentTimeMillis()-startTime;
+		if(file==null) {
+			if(input.gMessage==null) input.gMessage = "cannot recover";
+			//remove anything partly written
+			File[] partial = dir.listFiles();
+			if(partial!=null) for(File f:partial) f.delete();
+			dir.delete();
+			return input;
+		}
+		input.gFile = file;
+		input.gDir = dir;
+		input.gLength = file.length();
+		gStagedBytes.addAndGet(input.gLength);
+		synchronized(gSpace) {
+			gFetchedBytes += input.gLength;
+			gFetched++;
+		}
+		return input;
+	}
+
+	//average size of the inputs fetched so far; caller holds gSpace
+	private long getEstimatedSize() {
+		return gFetched==0?0:gFetchedBytes/gFetched;
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+import uk.bl.dpt.fclib.transport.Request;
+import uk.bl.dpt.fclib.transport.Response;
+
+/**
+ * Enumerates object pids from a Fedora server a page at a time, so only one page is held in
+ * memory however many objects match.  The next page is requested when the current one has
+ * been used up.  Iteration stops early if a request fails; getError() then returns the cause.
+ * An enumerator can only be iterated once.  The first page is read from the best replica;
+ * later pages are read from the same server, as findObjects session tokens (and the order of
+ * results) are local to a server.
+ * @author wpalmer
+ *
+ */
+public abstract class ObjectEnumerator implements Iterator<String>, Iterable<String> {
+
+	private static final XMLInputFactory gInputFactory = XMLInputFactory.newInstance();
+
+	/** default number of pids requested at a time */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	protected FedoraConnection gConnection;
+	protected int gPageSize;
+	private List<String> gPage = new ArrayList<String>();
+	private int gIndex = 0;
+	private boolean gFinished = false;
+	private long gCount = 0;
+	private IOException gError = null;
+	//replica (host:port) that answered the first page
+	private String gReplica = null;
+
+	/**
+	 * @param pConnection connection to the Fedora server
+	 * @param pPageSize number of pids to request at a time
+	 */
+	protected ObjectEnumerator(FedoraConnection pConnection, int pPageSize) {
+		gConnection = pConnection;
+		gPageSize = pPageSize>0?pPageSize:DEFAULT_PAGE_SIZE;
+	}
+
+	/**
+	 * Request the next page of pids
+	 * @param pPage list to add the pids to (empty)
+	 * @return whether there may be more pages after this one
+	 * @throws IOException on a failed request
+	 */
+	protected abstract boolean nextPage(List<String> pPage) throws IOException;
+
+	public boolean hasNext() {
+		while(gIndex>=gPage.size()) {
+			if(gFinished) return false;
+			gPage.clear();
+			gIndex = 0;
+			try {
+				gFinished = !nextPage(gPage);
+			} catch(IOException e) {
+				e.printStackTrace();
+				gError = e;
+				gFinished = true;
+				gPage.clear();
+			}
+		}
+		return true;
+	}
+
+	public String next() {
+		if(!hasNext()) throw new NoSuchElementException();
+		gCount++;
+		return gPage.get(gIndex++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Iterator<String> iterator() {
+		return this;
+	}
+
+	/**
+	 * @return number of pids returned so far
+	 */
+	public long getCount() {
+		return gCount;
+	}
+
+	/**
+	 * @return the error that ended the enumeration early, or null
+	 */
+	public IOException getError() {
+		return gError;
+	}
+
+	protected static String encode(String pValue) {
+		try {
+			return URLEncoder.encode(pValue, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			//UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Send a GET to the Fedora server: for the first page the best replica, then the replica
+	 * that answered it (with no failover, as another server would not know the session)
+	 * @param pPath path and query, relative to the Fedora base URI
+	 * @param pMetric metric name
+	 * @return response, with a 2xx status
+	 * @throws IOException on a failed request or error status
+	 */
+	protected Response get(final String pPath, String pMetric) throws IOException {
+		Sample sample = MetricsRegistry.getDefault().start(pMetric, gConnection.getBaseURI()+pPath);
+		try {
+			Response response;
+			String replica = gReplica;
+			if(replica!=null) {
+				response = gConnection.getTransport().send(new Request("GET", gConnection.getBaseURI(replica)+pPath));
+			} else {
+				//which replica sent the response (a hedged read may ask two)
+				final Map<Response, String> replicas = Collections.synchronizedMap(new IdentityHashMap<Response, String>());
+				response = gConnection.getReplicaSet().open(new ReplicaSet.Opener() {
+					public Response open(String pReplica) throws IOException {
+						Response response = gConnection.getTransport().send(new Request("GET", gConnection.getBaseURI(pReplica)+pPath));
+						replicas.put(response, pReplica);
+						return response;
+					}
+				});
+				replica = replicas.get(response);
+			}
+			sample.firstByte();
+			if(response.getStatus()>=300) {
+				response.close();
+				throw new IOException("Return code: "+response.getStatus()+" "+response.getURI());
+			}
+			gReplica = replica;
+			sample.setStatus(response.getStatus());
+			sample.finish();
+			return response;
+		} catch(IOException e) {
+			sample.fail();
+			throw e;
+		}
+	}
+
+	/**
+	 * Objects matching a findObjects query (objects?query=...), paged with the session token
+	 * Fedora returns while there are more results.
+	 */
+	public static class FindObjects extends ObjectEnumerator {
+
+		private String gQuery;
+		private String gToken = null;
+
+		/**
+		 * @param pConnection connection to the Fedora server
+		 * @param pQuery findObjects query, e.g. pid~jisc1:* (conditions separated by spaces)
+		 * @param pPageSize number of pids to request at a time (the server may return fewer)
+		 */
+		public FindObjects(FedoraConnection pConnection, String pQuery, int pPageSize) {
+			super(pConnection, pPageSize);
+			gQuery = pQuery;
+		}
+
+		protected boolean nextPage(List<String> pPage) throws IOException {
+			//EXAMPLE: objects?query=pid~jisc1:*&pid=true&resultFormat=xml&maxResults=1000[&sessionToken=...]
+			String path = "objects?query="+encode(gQuery)+"&pid=true&resultFormat=xml&maxResults="+gPageSize;
+			if(gToken!=null) path += "&sessionToken="+encode(gToken);
+			Response response = get(path, "fedora.findObjects");
+			gToken = null;
+			try {
+				InputStream body = response.getBody();
+				XMLStreamReader reader = gInputFactory.createXMLStreamReader(body);
+				try {
+					while(reader.hasNext()) {
+						if(reader.next()!=XMLStreamConstants.START_ELEMENT) continue;
+						String name = reader.getLocalName();
+						if(name.equals("pid")) {
+							pPage.add(reader.getElementText().trim());
+						} else if(name.equals("token")) {
+							gToken = reader.getElementText().trim();
+						}
+					}
+				} finally {
+					reader.close();
+				}
+				body.close();
+			} catch(XMLStreamException e) {
+				throw new IOException("Cannot parse findObjects result", e);
+			} finally {
+				response.close();
+			}
+			//the session token is only present while there are more results
+			return gToken!=null&&gToken.length()>0;
+		}
+
+	}
+
+	/**
+	 * Objects returned by a resource index (risearch) iTQL query with one column of object
+	 * URIs, e.g. the members of a collection.  Pages are requested with limit/offset, so the
+	 * query should be ordered.
+	 */
+	public static class ResourceIndex extends ObjectEnumerator {
+
+		private static final String FEDORA_PREFIX = "info:fedora/";
+
+		private String gQuery;
+		private long gOffset = 0;
+
+		/**
+		 * @param pConnection connection to the Fedora server
+		 * @param pQuery iTQL query selecting one column of object URIs, with an order by clause
+		 * and without limit or offset
+		 * @param pPageSize number of pids to request at a time
+		 */
+		public ResourceIndex(FedoraConnection pConnection, String pQuery, int pPageSize) {
+			super(pConnection, pPageSize);
+			gQuery = pQuery;
+		}
+
+		/**
+		 * Enumerate the members of a collection (objects with a RELS-EXT isMemberOfCollection
+		 * relationship to it, as written by FedoraIngestXMLGenerator)
+		 * @param pConnection connection to the Fedora server
+		 * @param pCollectionPid pid of the collection object, e.g. jisc1:jisc1
+		 * @param pPageSize number of pids to request at a time
+		 * @return enumerator of member pids
+		 */
+		public static ResourceIndex collectionMembers(FedoraConnection pConnection, String pCollectionPid, int pPageSize) {
+			return new ResourceIndex(pConnection, "select $member from <#ri> where $member "+
+					"<info:fedora/fedora-system:def/relations-external#isMemberOfCollection> "+
+					"<"+FEDORA_PREFIX+pCollectionPid+"> order by $member", pPageSize);
+		}
+
+		protected boolean nextPage(List<String> pPage) throws IOException {
+			//EXAMPLE: risearch?type=tuples&lang=itql&format=CSV&query=select ... limit 1000 offset 0
+			String query = gQuery+" limit "+gPageSize+" offset "+gOffset;
+			String path = "risearch?type=tuples&lang=itql&format=CSV&flush=false&query="+encode(query);
+			Response response = get(path, "fedora.risearch");
+			int count = 0;
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8));
+				//first line is the column name
+				String line = reader.readLine();
+				while((line = reader.readLine())!=null) {
+					line = line.trim();
+					if(line.length()==0) continue;
+					count++;
+					pPage.add(line.startsWith(FEDORA_PREFIX)?line.substring(FEDORA_PREFIX.length()):line);
+				}
+				reader.close();
+			} finally {
+				response.close();
+			}
+			gOffset += count;
+			return count==gPageSize;
+		}
+
+	}
+
+}
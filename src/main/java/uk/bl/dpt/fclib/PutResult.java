@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+/**
+ * Outcome of posting a file to the WebDAV repository
+ * @author wpalmer
+ *
+ */
+public enum PutResult {
+
+	/** the file did not exist and was created (201) */
+	CREATED,
+	/** an existing file was overwritten (200/204) */
+	REPLACED,
+	/** the file already existed and overwriting was not requested (412); nothing was sent */
+	SKIPPED,
+	/** the server refused the upload, e.g. 401, 409, or 412 because the file changed since its ETag was read */
+	REJECTED,
+	/** the request could not be sent or the local file could not be read */
+	FAILED;
+
+	/**
+	 * @return whether the file is now in the repository (created, replaced or already there)
+	 */
+	public boolean isSuccess() {
+		return this==CREATED||this==REPLACED||this==SKIPPED;
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server answers a Range request for part of a file with the whole file, so
+ * reading the part would mean downloading everything before it.  Read the file sequentially
+ * instead (e.g. FedoraConnection.openDatastream()).
+ * @author wpalmer
+ *
+ */
+public class RangeNotSupportedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param pURI URI that was requested
+	 */
+	public RangeNotSupportedException(String pURI) {
+		super("Server ignored Range request: "+pURI);
+	}
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.bl.dpt.fclib.metrics.Histogram;
+import uk.bl.dpt.fclib.transport.Response;
+
+/**
+ * A set of read replicas of one server.  Reads go to the replica with the lowest moving
+ * average time to first byte; a replica that fails is penalised, and the average of a replica
+ * that has not been used for a while decays so it is tried again.  Optionally reads are
+ * hedged: if the chosen replica has not returned its response headers within a percentile of
+ * recent first byte times, the same request is sent to the next best replica and whichever
+ * answers first is used.  "Not found" from a replica other than the primary is treated like a
+ * failure, as the replica may not have caught up yet.
+ * @author wpalmer
+ *
+ */
+public class ReplicaSet {
+
+	/**
+	 * Sends a request to a replica
+	 */
+	public interface Opener {
+		/**
+		 * @param pReplica replica (host:port) to send the request to
+		 * @return response, once the headers have been received
+		 * @throws IOException on error
+		 */
+		Response open(String pReplica) throws IOException;
+	}
+
+	//weight of each new sample in the moving average
+	private static final double ALPHA = 0.2;
+	//time (us) recorded for a failed request
+	private static final long FAILURE_PENALTY = 5000000;
+	//an unused replica's average halves every DECAY_TIME ms
+	private static final long DECAY_TIME = 10000;
+	//first byte times needed before hedging starts
+	private static final int MIN_SAMPLES = 50;
+	//first byte times kept for the hedge threshold
+	private static final int WINDOW = 10000;
+	//never hedge sooner than this (us)
+	private static final long MIN_HEDGE_DELAY = 1000;
+
+	private static final ExecutorService gExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private AtomicInteger gCount = new AtomicInteger(0);
+		public Thread newThread(Runnable pRunnable) {
+			Thread thread = new Thread(pRunnable, "replica-"+gCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static class Replica {
+		private String gName;
+		private volatile double gAverage = 0;
+		private volatile long gLastUsed = 0;
+		private Replica(String pName) {
+			gName = pName;
+		}
+		private synchronized void record(long pMicros) {
+			gAverage = gLastUsed==0?pMicros:(ALPHA*pMicros+(1-ALPHA)*gAverage);
+			gLastUsed = System.currentTimeMillis();
+		}
+		private double getScore(long pNow) {
+			long idle = pNow-gLastUsed;
+			if(gLastUsed==0||idle<=DECAY_TIME) return gAverage;
+			return gAverage*Math.pow(0.5, (double)idle/DECAY_TIME);
+		}
+	}
+
+	private Map<String, Replica> gReplicas = new LinkedHashMap<String, Replica>();
+	private String gPrimary = null;
+	private volatile double gHedgePercentile = 0;
+	private volatile Histogram gFirstByte = new Histogram();
+	private volatile Histogram gPreviousFirstByte = null;
+
+	/**
+	 * Create a replica set
+	 * @param pReplicas replicas as host:port, primary first
+	 */
+	public ReplicaSet(List<String> pReplicas) {
+		if(!pReplicas.isEmpty()) gPrimary = pReplicas.get(0);
+		for(String replica:pReplicas) {
+			gReplicas.put(replica, new Replica(replica));
+		}
+	}
+
+	/**
+	 * Hedge reads that take longer than a percentile of recent first byte times
+	 * @param pPercentile percentile, e.g. 95, greater than 0 and less than 100 (0 to disable hedging)
+	 * @throws IllegalArgumentException if the percentile is out of range
+	 */
+	public void setHedging(double pPercentile) {
+		checkHedging(pPercentile);
+		gHedgePercentile = pPercentile;
+	}
+
+	/**
+	 * Check a hedging percentile is 0 (disabled) or in (0, 100): hedging at the 100th percentile
+	 * would never hedge, and a negative or NaN percentile has no meaning
+	 * @param pPercentile percentile
+	 * @throws IllegalArgumentException if the percentile is out of range
+	 */
+	static void checkHedging(double pPercentile) {
+		if(pPercentile==0) return;
+		if(!(pPercentile>0&&pPercentile<100)) throw new IllegalArgumentException("Hedging percentile must be between 0 and 100: "+pPercentile);
+	}
+
+	/**
+	 * @return percentile reads are hedged at (0 if hedging is disabled)
+	 */
+	public double getHedging() {
+		return gHedgePercentile;
+	}
+
+	/**
+	 * @return replicas, best first
+	 */
+	public List<String> getReplicas() {
+		final long now = System.currentTimeMillis();
+		List<Replica> replicas = new ArrayList<Replica>(gReplicas.values());
+		//scores change while sorting, so take them first
+		final Map<Replica, Double> scores = new LinkedHashMap<Replica, Double>();
+		for(Replica replica:replicas) scores.put(replica, replica.getScore(now));
+		Collections.sort(replicas, new Comparator<Replica>() {
+			public int compare(Replica pA, Replica pB) {
+				return Double.compare(scores.get(pA), scores.get(pB));
+			}
+		});
+		List<String> names = new ArrayList<String>();
+		for(Replica replica:replicas) names.add(replica.gName);
+		return names;
+	}
+
+	/**
+	 * @param pReplica replica (host:port)
+	 * @return moving average time to first byte in microseconds
+	 */
+	public double getAverage(String pReplica) {
+		Replica replica = gReplicas.get(pReplica);
+		return replica==null?0:replica.gAverage;
+	}
+
+	/**
+	 * @return how long a read waits before being hedged (us), or -1 if it will not be
+	 */
+	public long getHedgeDelay() {
+		if(gHedgePercentile<=0||gReplicas.size()<2) return -1;
+		Histogram histogram = gFirstByte;
+		if(histogram.getCount()<MIN_SAMPLES) histogram = gPreviousFirstByte;
+		if(histogram==null||histogram.getCount()<MIN_SAMPLES) return -1;
+		return Math.max(MIN_HEDGE_DELAY, histogram.getPercentile(gHedgePercentile));
+	}
+
+	private void record(String pReplica, long pMicros, boolean pFailed) {
+		Replica replica = gReplicas.get(pReplica);
+		if(replica!=null) replica.record(pFailed?FAILURE_PENALTY:pMicros);
+		if(!pFailed) {
+			Histogram histogram = gFirstByte;
+			histogram.record(pMicros);
+			if(histogram.getCount()>=WINDOW) {
+				synchronized(this) {
+					if(gFirstByte==histogram) {
+						gPreviousFirstByte = histogram;
+						gFirstByte = new Histogram();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether an answer should be passed over for another replica's: a server error, or "not
+	 * found" from a replica other than the primary, which may not have caught up with a new
+	 * object yet
+	 * @param pReplica replica that answered
+	 * @param pStatus HTTP status
+	 * @return true to try another replica
+	 */
+	private boolean isFailover(String pReplica, int pStatus) {
+		if(pStatus>=HttpURLConnection.HTTP_INTERNAL_ERROR) return true;
+		return pStatus==HttpURLConnection.HTTP_NOT_FOUND&&!pReplica.equals(gPrimary);
+	}
+
+	/**
+	 * A request to one replica; the first to get a usable answer claims the read.  Responses
+	 * are closed by open(), never here, so each is closed exactly once.
+	 */
+	private class Attempt implements Callable<Response> {
+		private String gReplica;
+		private Opener gOpener;
+		private AtomicReference<Response> gWinner;
+		private Attempt(String pReplica, Opener pOpener, AtomicReference<Response> pWinner) {
+			gReplica = pReplica;
+			gOpener = pOpener;
+			gWinner = pWinner;
+		}
+		public Response call() throws IOException {
+			long start = System.nanoTime();
+			Response conn = null;
+			try {
+				conn = gOpener.open(gReplica);
+			} catch(IOException e) {
+				record(gReplica, 0, true);
+				throw e;
+			}
+			int status = conn.getStatus();
+			//a lagging replica's "not found" is a quick answer, so is not penalised
+			record(gReplica, (System.nanoTime()-start)/1000, status>=HttpURLConnection.HTTP_INTERNAL_ERROR);
+			if(!isFailover(gReplica, status)) gWinner.compareAndSet(null, conn);
+			return conn;
+		}
+	}
+
+	/**
+	 * Close the responses of attempts still in progress once they finish
+	 * @param pCompletion attempts
+	 * @param pOutstanding number of attempts still in progress
+	 */
+	private static void discard(final CompletionService<Response> pCompletion, final int pOutstanding) {
+		if(pOutstanding<=0) return;
+		gExecutor.execute(new Runnable() {
+			public void run() {
+				for(int i=0;i<pOutstanding;i++) {
+					try {
+						pCompletion.take().get().close();
+					} catch(ExecutionException e) {
+						//failed: nothing to close
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a read to the best replica, hedging to the next best if enabled and it is slow.
+	 * A replica that fails to connect, returns a server error or (other than the primary)
+	 * returns "not found" is not used if another replica answers.
+	 * @param pOpener creates the request for a given replica
+	 * @return response, once the headers have been received
+	 * @throws IOException if no replica could be read from
+	 */
+	public Response open(Opener pOpener) throws IOException {
+		return open(pOpener, null);
+	}
+
+	/**
+	 * Send a read to a replica, preferring one replica (e.g. the one a related read went to)
+	 * over the best, as open(Opener)
+	 * @param pOpener creates the request for a given replica
+	 * @param pPreferred replica (host:port) to try first, or null for the best
+	 * @return response, once the headers have been received
+	 * @throws IOException if no replica could be read from
+	 */
+	public Response open(Opener pOpener, String pPreferred) throws IOException {
+		List<String> replicas = getReplicas();
+		if(pPreferred!=null&&replicas.remove(pPreferred)) replicas.add(0, pPreferred);
+		long delay = getHedgeDelay();
+		if(delay<0) {
+			//no hedging: try each replica in turn until one answers
+			IOException error = null;
+			Response fallback = null;
+			for(String replica:replicas) {
+				try {
+					Response conn = new Attempt(replica, pOpener, new AtomicReference<Response>()).call();
+					if(!isFailover(replica, conn.getStatus())) {
+						if(fallback!=null) fallback.close();
+						return conn;
+					}
+					if(fallback!=null) fallback.close();
+					fallback = conn;
+				} catch(IOException e) {
+					error = e;
+				}
+			}
+			if(fallback!=null) return fallback;
+			throw error;
+		}
+
+		AtomicReference<Response> winner = new AtomicReference<Response>();
+		CompletionService<Response> completion = new ExecutorCompletionService<Response>(gExecutor);
+		completion.submit(new Attempt(replicas.get(0), pOpener, winner));
+		int next = 1;
+		int outstanding = 1;
+		boolean hedged = false;
+		IOException error = null;
+		Response fallback = null;
+		try {
+			while(outstanding>0) {
+				Future<Response> done = hedged?completion.take():completion.poll(delay, TimeUnit.MICROSECONDS);
+				if(done==null) {
+					//too slow: send the same request to the next best replica
+					completion.submit(new Attempt(replicas.get(next++), pOpener, winner));
+					outstanding++;
+					hedged = true;
+					continue;
+				}
+				outstanding--;
+				try {
+					Response conn = done.get();
+					if(conn==winner.get()) {
+						if(fallback!=null) fallback.close();
+						return conn;
+					}
+					if(winner.get()==null) {
+						//server error or lagging replica: kept in case nothing better answers
+						if(fallback!=null) fallback.close();
+						fallback = conn;
+					} else {
+						//another replica answered first; it is still to be taken
+						conn.close();
+						continue;
+					}
+				} catch(ExecutionException e) {
+					error = e.getCause() instanceof IOException?(IOException)e.getCause():new IOException(e.getCause());
+				}
+				if(next<replicas.size()) {
+					//this replica failed: try the next now rather than waiting
+					completion.submit(new Attempt(replicas.get(next++), pOpener, winner));
+					outstanding++;
+					hedged = true;
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(fallback!=null) fallback.close();
+			throw new IOException("Interrupted waiting for replicas");
+		} finally {
+			//attempts still running may yet return responses: close them when they do
+			discard(completion, outstanding);
+		}
+		if(fallback!=null) return fallback;
+		throw error==null?new IOException("No replica answered"):error;
+	}
+
+}
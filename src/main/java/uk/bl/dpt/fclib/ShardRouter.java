@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Spreads keys (pids or repository paths) across a set of backends, e.g. FedoraConnection or
+ * WebdavConnection objects for several storage nodes, by consistent hashing.  Each backend is
+ * placed at a number of points on a hash ring and a key goes to the first backend at or after
+ * the key's hash, so adding or removing a backend only moves the keys on its part of the ring.
+ * Backends are identified by name, so the mapping is stable across restarts as long as the
+ * names are.  Routing is lock-free; adding and removing backends rebuilds the ring.
+ * @param <T> backend type
+ * @author wpalmer
+ *
+ */
+public class ShardRouter<T> {
+
+	/**
+	 * Default number of points on the ring for each backend
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	/**
+	 * Backends and their points on the ring; replaced, never modified, so routing can use it
+	 * without locking
+	 */
+	private static class Ring<T> {
+		private Map<String, T> gBackends;
+		private TreeMap<Long, String> gPoints;
+		private Ring(Map<String, T> pBackends, TreeMap<Long, String> pPoints) {
+			gBackends = pBackends;
+			gPoints = pPoints;
+		}
+	}
+
+	private int gVirtualNodes;
+	private volatile Ring<T> gRing = new Ring<T>(new LinkedHashMap<String, T>(), new TreeMap<Long, String>());
+
+	/**
+	 * Create a router with DEFAULT_VIRTUAL_NODES points per backend
+	 */
+	public ShardRouter() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Create a router
+	 * @param pVirtualNodes number of points on the ring for each backend (more points give a
+	 * more even spread)
+	 */
+	public ShardRouter(int pVirtualNodes) {
+		if(pVirtualNodes<1) throw new IllegalArgumentException("Virtual nodes must be at least 1");
+		gVirtualNodes = pVirtualNodes;
+	}
+
+	/**
+	 * Add a backend (or replace the backend with the same name)
+	 * @param pName stable name for the backend, e.g. its hostname
+	 * @param pBackend backend
+	 */
+	public synchronized void add(String pName, T pBackend) {
+		Map<String, T> backends = new LinkedHashMap<String, T>(gRing.gBackends);
+		backends.put(pName, pBackend);
+		rebuild(backends);
+	}
+
+	/**
+	 * Remove a backend; its keys move to the other backends
+	 * @param pName name of the backend
+	 * @return the backend removed, or null
+	 */
+	public synchronized T remove(String pName) {
+		Map<String, T> backends = new LinkedHashMap<String, T>(gRing.gBackends);
+		T backend = backends.remove(pName);
+		if(backend!=null) rebuild(backends);
+		return backend;
+	}
+
+	/**
+	 * @return backends by name
+	 */
+	public Map<String, T> getBackends() {
+		return Collections.unmodifiableMap(gRing.gBackends);
+	}
+
+	private void rebuild(Map<String, T> pBackends) {
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for(String name:pBackends.keySet()) {
+			for(int i=0;i<gVirtualNodes;i++) {
+				//on a (very unlikely) collision the first backend keeps the point
+				Long point = hash(name+"#"+i);
+				if(!ring.containsKey(point)) ring.put(point, name);
+			}
+		}
+		gRing = new Ring<T>(pBackends, ring);
+	}
+
+	/**
+	 * Get the name of the backend for a key
+	 * @param pKey pid or repository path
+	 * @return backend name, or null if there are no backends
+	 */
+	public String getName(String pKey) {
+		return getName(gRing, pKey);
+	}
+
+	private static String getName(Ring<?> pRing, String pKey) {
+		TreeMap<Long, String> points = pRing.gPoints;
+		if(points.isEmpty()) return null;
+		Entry<Long, String> entry = points.ceilingEntry(hash(pKey));
+		if(entry==null) entry = points.firstEntry();
+		return entry.getValue();
+	}
+
+	/**
+	 * Get the backend for a key
+	 * @param pKey pid or repository path
+	 * @return backend, or null if there are no backends
+	 */
+	public T route(String pKey) {
+		Ring<T> ring = gRing;
+		String name = getName(ring, pKey);
+		return name==null?null:ring.gBackends.get(name);
+	}
+
+	/**
+	 * Get the names of the distinct backends for a key, in ring order, e.g. a primary and the
+	 * backends to hold replicas of it
+	 * @param pKey pid or repository path
+	 * @param pCount number of backends wanted
+	 * @return up to pCount backend names (fewer if there are fewer backends)
+	 */
+	public List<String> getNames(String pKey, int pCount) {
+		return getNames(gRing, pKey, pCount);
+	}
+
+	private static List<String> getNames(Ring<?> pRing, String pKey, int pCount) {
+		TreeMap<Long, String> points = pRing.gPoints;
+		List<String> names = new ArrayList<String>();
+		if(points.isEmpty()) return names;
+		Long hash = hash(pKey);
+		SortedMap<Long, String> tail = points.tailMap(hash);
+		for(String name:tail.values()) {
+			if(names.size()==pCount) return names;
+			if(!names.contains(name)) names.add(name);
+		}
+		for(String name:points.headMap(hash).values()) {
+			if(names.size()==pCount) return names;
+			if(!names.contains(name)) names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Get the distinct backends for a key, in ring order
+	 * @param pKey pid or repository path
+	 * @param pCount number of backends wanted
+	 * @return up to pCount backends (fewer if there are fewer backends)
+	 */
+	public List<T> route(String pKey, int pCount) {
+		Ring<T> ring = gRing;
+		List<T> backends = new ArrayList<T>();
+		for(String name:getNames(ring, pKey, pCount)) {
+			T backend = ring.gBackends.get(name);
+			if(backend!=null) backends.add(backend);
+		}
+		return backends;
+	}
+
+	private static final ThreadLocal<MessageDigest> gDigest = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Position of a string on the ring: the first 8 bytes of its MD5
+	 * @param pKey string to hash
+	 * @return position on the ring
+	 */
+	static long hash(String pKey) {
+		byte[] digest = gDigest.get().digest(pKey.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for(int i=0;i<8;i++) {
+			hash = (hash<<8)|(digest[i]&0xff);
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks directory trees in parallel looking for TIFF files, pairing each with its newspaper
+ * metadata sidecar (same name, .xml extension) from the directory listing rather than by
+ * checking for the sidecar file separately.  Files are handed out as soon as their directory
+ * has been listed, so generation can start before the walk finishes.
+ *
+ * Each directory is listed with a DirectoryStream on one of the crawler threads;
+ * subdirectories are submitted as new tasks.  Only entries that don't look like a TIFF or
+ * sidecar are checked to see if they are directories.  The crawler threads are daemon threads;
+ * close() stops them if the files are not all consumed.
+ * @author wpalmer
+ *
+ */
+public class TIFFCrawler implements Iterable<TIFFCrawler.Item> {
+
+	/**
+	 * A TIFF file found by the crawler and its sidecar (if any)
+	 */
+	public static class Item {
+		private String gFile;
+		private String gSidecar;
+		/**
+		 * Create an item
+		 * @param pFile tiff file
+		 * @param pSidecar newspaper metadata sidecar for the file, or null if there isn't one
+		 */
+		public Item(String pFile, String pSidecar) {
+			gFile = pFile;
+			gSidecar = pSidecar;
+		}
+		/**
+		 * @return the tiff file
+		 */
+		public String getFile() { return gFile; }
+		/**
+		 * @return the newspaper metadata sidecar for the file, or null if there isn't one
+		 */
+		public String getSidecar() { return gSidecar; }
+		public String toString() { return gFile+(gSidecar==null?"":" ("+gSidecar+")"); }
+	}
+
+	//marks the end of the walk
+	private static final Item END = new Item(null, null);
+
+	private List<Path> gRoots = new ArrayList<Path>();
+	private int gThreads;
+	private BlockingQueue<Item> gQueue;
+	private ExecutorService gExecutor = null;
+	private AtomicInteger gPending = new AtomicInteger(0);
+	private AtomicInteger gFound = new AtomicInteger(0);
+	private volatile boolean gClosed = false;
+
+	/**
+	 * Initialise the crawler
+	 * @param pRoots directories to crawl
+	 * @param pThreads number of directories to list concurrently
+	 * @param pQueueSize maximum number of found files waiting to be consumed
+	 */
+	public TIFFCrawler(List<String> pRoots, int pThreads, int pQueueSize) {
+		for(String root:pRoots) gRoots.add(Paths.get(root));
+		gThreads = pThreads;
+		gQueue = new ArrayBlockingQueue<Item>(pQueueSize);
+	}
+
+	private static boolean isTIFF(String pName) {
+		String lower = pName.toLowerCase();
+		return lower.endsWith(".tif")||lower.endsWith(".tiff");
+	}
+
+	private static boolean isSidecar(String pName) {
+		return pName.toLowerCase().endsWith(".xml");
+	}
+
+	private static String stem(String pName) {
+		int dot = pName.lastIndexOf('.');
+		return dot<0?pName:pName.substring(0, dot);
+	}
+
+	/**
+	 * Start crawling (if not already started).  Called by iterator(), but can be called earlier
+	 * to get the walk going.
+	 */
+	public synchronized void start() {
+		if(gExecutor!=null||gClosed) return;
+		gExecutor = Executors.newFixedThreadPool(gThreads, new ThreadFactory() {
+			public Thread newThread(Runnable pTask) {
+				Thread thread = new Thread(pTask, "TIFFCrawler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		gPending.addAndGet(gRoots.size());
+		for(Path root:gRoots) submit(root);
+		if(gRoots.isEmpty()) finished();
+	}
+
+	private void submit(final Path pDir) {
+		if(gClosed) return;
+		try {
+			gExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						crawl(pDir);
+					} catch(InterruptedException e) {
+						return;
+					} catch(Exception e) {
+						System.out.println("Error crawling "+pDir+": "+e);
+					}
+					if(gPending.decrementAndGet()==0) finished();
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			//closed
+		}
+	}
+
+	private void crawl(Path pDir) throws IOException, InterruptedException {
+		List<Path> tiffs = new ArrayList<Path>();
+		HashMap<String, Path> sidecars = new HashMap<String, Path>();
+		List<Path> dirs = new ArrayList<Path>();
+
+		DirectoryStream<Path> stream = Files.newDirectoryStream(pDir);
+		try {
+			for(Path entry:stream) {
+				String name = entry.getFileName().toString();
+				if(isTIFF(name)) {
+					tiffs.add(entry);
+				} else if(isSidecar(name)) {
+					sidecars.put(stem(name), entry);
+				} else if(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					dirs.add(entry);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+
+		//queue subdirectories before blocking on the output queue
+		gPending.addAndGet(dirs.size());
+		for(Path dir:dirs) submit(dir);
+
+		for(Path tiff:tiffs) {
+			Path sidecar = sidecars.get(stem(tiff.getFileName().toString()));
+			gQueue.put(new Item(tiff.toString(), sidecar==null?null:sidecar.toString()));
+			gFound.incrementAndGet();
+		}
+	}
+
+	private void finished() {
+		gExecutor.shutdown();
+		try {
+			gQueue.put(END);
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop crawling, e.g. if the consumer gives up before all the files have been found.
+	 * Iterators then report no more files.
+	 */
+	public synchronized void close() {
+		gClosed = true;
+		if(gExecutor!=null) gExecutor.shutdownNow();
+		gQueue.clear();
+		gQueue.offer(END);
+	}
+
+	/**
+	 * @return number of tiff files found so far
+	 */
+	public int getFound() {
+		return gFound.get();
+	}
+
+	/**
+	 * Iterate over the files found by the crawler, blocking until each is available.  Only
+	 * one iterator should be used per crawler.
+	 */
+	@Override
+	public Iterator<Item> iterator() {
+		start();
+		return new Iterator<Item>() {
+			private Item gNext = null;
+			public boolean hasNext() {
+				if(gNext==null) {
+					try {
+						gNext = gQueue.take();
+					} catch(InterruptedException e) {
+						gExecutor.shutdownNow();
+						gNext = END;
+					}
+					//leave END at the head of the queue
+					if(gNext==END) gQueue.offer(END);
+				}
+				return gNext!=END;
+			}
+			public Item next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				Item next = gNext;
+				gNext = null;
+				return next;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+}
@@ -17,24 +17,19 @@
 
 package uk.bl.dpt.fclib;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import uk.bl.dpt.fclib.jfr.ChecksumEvent;
+import uk.bl.dpt.fclib.transport.Response;
 
 /**
  * This class collects useful methods to be shared between classes
@@ -54,34 +49,81 @@ public class Tools {
 
 		if(!new File(pInFile).exists()) throw new IOException("File not found: "+pInFile);
 		
-		MessageDigest md;
+		ChecksumEngine engine;
 		try {
-			md = MessageDigest.getInstance(pType.toUpperCase());
+			engine = new ChecksumEngine(new String[] { pType });
 		} catch (NoSuchAlgorithmException e) {
 			return null;
 		}
 		
-		FileInputStream input;
+		ChecksumEvent event = new ChecksumEvent();
+		event.begin();
+		event.path = pInFile;
+		event.algorithm = pType;
+		FileInputStream input = new FileInputStream(pInFile);
 		try {
-			input = new FileInputStream(pInFile);
-			byte[] readBuffer = new byte[32768];
-			int bytesRead = 0;
-			while(input.available()>0) {
-				bytesRead = input.read(readBuffer);
-				md.update(readBuffer, 0, bytesRead);
-			}
+			event.bytes = engine.update(input.getChannel(), ChecksumEngine.Strategy.AUTO);
+			event.success = true;
+		} finally {
 			input.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+			event.commit();
 		}
 
-		String hash = "";
-		for(byte b : md.digest()) hash+=String.format("%02x", b);
-		return hash;
+		return engine.getChecksums().get(pType.toUpperCase());
 	}	
 	
+	/**
+	 * Generates several checksums for a file from a single read of the file
+	 * @param pTypes types of checksum to run (e.g. MD5, SHA-1, SHA-256)
+	 * @param pInFile file to checksum
+	 * @return Checksums keyed by (uppercase) checksum type
+	 * @throws IOException file access error, or unknown checksum type
+	 */
+	public static Map<String, String> generateChecksums(String[] pTypes, String pInFile) throws IOException {
+		if(!new File(pInFile).exists()) throw new IOException("File not found: "+pInFile);
+		ChecksumEvent event = new ChecksumEvent();
+		event.begin();
+		event.path = pInFile;
+		event.algorithm = Arrays.toString(pTypes);
+		event.bytes = new File(pInFile).length();
+		try {
+			Map<String, String> checksums = ChecksumEngine.checksumFile(new File(pInFile), pTypes, ChecksumEngine.Strategy.AUTO);
+			event.success = true;
+			return checksums;
+		} finally {
+			event.commit();
+		}
+	}
+
+	/**
+	 * Generates a chunked (tree) checksum for a large file, checksumming the chunks in parallel.
+	 * Note that the root checksum is not the same as the plain checksum of the file.
+	 * @param pType type of checksum to run
+	 * @param pInFile file to checksum
+	 * @param pChunkSize chunk size in bytes
+	 * @param pChunkList file to save the chunk list to (for verifyTreeChecksum), or null
+	 * @return root checksum
+	 * @throws IOException file access error, or unknown checksum type
+	 */
+	public static String generateTreeChecksum(String pType, String pInFile, long pChunkSize, File pChunkList) throws IOException {
+		if(!new File(pInFile).exists()) throw new IOException("File not found: "+pInFile);
+		TreeHash tree = TreeHash.generate(pType, new File(pInFile), pChunkSize, Runtime.getRuntime().availableProcessors());
+		if(pChunkList!=null) tree.save(pChunkList);
+		return tree.getRoot();
+	}
+
+	/**
+	 * Verifies a file against a chunk list saved by generateTreeChecksum
+	 * @param pChunkList saved chunk list
+	 * @param pInFile file to verify
+	 * @return chunks (byte ranges) that do not match, empty if the file is ok
+	 * @throws IOException file access error
+	 */
+	public static List<TreeHash.Chunk> verifyTreeChecksum(File pChunkList, String pInFile) throws IOException {
+		if(!new File(pInFile).exists()) throw new IOException("File not found: "+pInFile);
+		return TreeHash.load(pChunkList).verify(new File(pInFile), Runtime.getRuntime().availableProcessors());
+	}
+
 	/**
 	 * Gets an InputStream for a resource from a jar
 	 * @param pClass Class reference
@@ -99,19 +141,134 @@ public class Tools {
 	 * @return value value associated with the xpath expression (or null if error)
 	 */
 	public static String getXpathVal(InputStream pInputStream, String pXPath) {
+		return XPathEvaluator.getDefault().evaluate(pInputStream, pXPath);
+	}
+
+	/**
+	 * Recover the values associated with several xpath expressions from one parse of the xml
+	 * @param pInputStream xml file
+	 * @param pXPaths XPath expressions to evaluate, keyed by name
+	 * @return values keyed by name (or null if error)
+	 */
+	public static Map<String, String> getXpathVals(InputStream pInputStream, Map<String, String> pXPaths) {
+		return XPathEvaluator.getDefault().evaluate(pInputStream, pXPaths);
+	}
+
+	/**
+	 * @param pOffset first byte
+	 * @param pLength number of bytes
+	 * @return value of a Range header for the bytes
+	 */
+	public static String getRangeHeader(long pOffset, int pLength) {
+		return "bytes="+pOffset+"-"+(pOffset+pLength-1);
+	}
+
+	/**
+	 * @param pOffset first byte
+	 * @return value of a Range header for the bytes from pOffset to the end
+	 */
+	public static String getRangeHeader(long pOffset) {
+		return "bytes="+pOffset+"-";
+	}
+
+	/**
+	 * Read the body of the response to a Range request into a buffer
+	 * @param pResponse response to a request made with getRangeHeader(pOffset, pLength)
+	 * @param pOffset first byte requested
+	 * @param pBuffer buffer to read into
+	 * @param pBufferOffset offset in pBuffer
+	 * @param pLength number of bytes requested
+	 * @return number of bytes read (less than pLength if the content ends first), or -1 if
+	 * pOffset is at or beyond the end of the content
+	 * @throws IOException if the request failed (FileNotFoundException for 404), or
+	 * RangeNotSupportedException if the server sent the whole content for a range after the
+	 * start, rather than discard everything before it on every read
+	 */
+	public static int readRange(Response pResponse, long pOffset, byte[] pBuffer, int pBufferOffset, int pLength) throws IOException {
+		int status = pResponse.getStatus();
+		if(status==416) return -1;
+		if(status==404) throw new FileNotFoundException(pResponse.getURI());
+		if(status!=206&&status!=200) throw new IOException("Range request failed: "+status+" "+pResponse.getURI());
+		if(status==200&&pOffset>0) throw new RangeNotSupportedException(pResponse.getURI());
+		if(status==206) checkContentRange(pResponse, pOffset);
+		InputStream body = pResponse.getBody();
 		try {
-			DocumentBuilder docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			Document doc = docB.parse(pInputStream);
-			Node root = doc.getFirstChild();		
-			XPath xpath = XPathFactory.newInstance().newXPath();
-			return xpath.evaluate(pXPath, root);
-		} catch (ParserConfigurationException pce) {
-		} catch (NumberFormatException e) {
-		} catch (XPathExpressionException e) {
-		} catch (SAXException e) {
-		} catch (IOException e) {
+			int count = 0;
+			while(count<pLength) {
+				int read = body.read(pBuffer, pBufferOffset+count, pLength-count);
+				if(read==-1) break;
+				count += read;
+			}
+			return count==0&&pLength>0?-1:count;
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * Get the body of the response to a request made with getRangeHeader(pOffset), positioned
+	 * at pOffset.  A server that does not support ranges sends the whole content (200), in
+	 * which case the bytes before pOffset are read and discarded, once.
+	 * @param pResponse response to the request
+	 * @param pOffset first byte requested
+	 * @return content from pOffset (empty if pOffset is at or beyond the end)
+	 * @throws IOException if the request failed (FileNotFoundException for 404)
+	 */
+	public static InputStream openRange(Response pResponse, long pOffset) throws IOException {
+		int status = pResponse.getStatus();
+		if(status==416) return new ByteArrayInputStream(new byte[0]);
+		if(status==404) throw new FileNotFoundException(pResponse.getURI());
+		if(status!=206&&status!=200) throw new IOException("Range request failed: "+status+" "+pResponse.getURI());
+		if(status==206) checkContentRange(pResponse, pOffset);
+		InputStream body = pResponse.getBody();
+		if(status==200) {
+			//WARNING: the server ignored the range, so everything before it is downloaded
+			long skip = pOffset;
+			while(skip>0) {
+				long skipped = body.skip(skip);
+				if(skipped<=0) {
+					if(body.read()==-1) break;
+					skipped = 1;
+				}
+				skip -= skipped;
+			}
+		}
+		return body;
+	}
+
+	/**
+	 * Check a partial response starts where it was asked to (Content-Range: bytes first-last/total)
+	 */
+	private static void checkContentRange(Response pResponse, long pOffset) throws IOException {
+		String range = pResponse.getHeader("Content-Range");
+		long first = -1;
+		if(range!=null&&range.trim().startsWith("bytes ")&&range.indexOf('-')>0) {
+			try {
+				first = Long.parseLong(range.substring(range.indexOf("bytes ")+6, range.indexOf('-')).trim());
+			} catch(NumberFormatException e) {
+				first = -1;
+			}
+		}
+		if(first!=pOffset) throw new IOException("Unexpected Content-Range for bytes from "+pOffset+": "+range+" "+pResponse.getURI());
+	}
+
+	/**
+	 * Get the size of the content from the response to a Range request: the total in the
+	 * Content-Range header (206 or 416), or the Content-Length of a full response (200)
+	 * @param pResponse response
+	 * @return size of the content, or -1 if the response does not say
+	 */
+	public static long getContentSize(Response pResponse) {
+		String range = pResponse.getHeader("Content-Range");
+		if(range!=null&&range.lastIndexOf('/')>=0) {
+			String total = range.substring(range.lastIndexOf('/')+1).trim();
+			if(!total.equals("*")) return Long.parseLong(total);
+		}
+		if(pResponse.getStatus()==200) {
+			String length = pResponse.getHeader("Content-Length");
+			if(length!=null) return Long.parseLong(length.trim());
 		}
-		return null;
+		return -1;
 	}
 	
 }
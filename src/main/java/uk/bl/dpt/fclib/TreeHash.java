@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A chunked (Merkle tree) checksum for very large files.  The file is split into fixed size
+ * chunks which are checksummed in parallel; the chunk checksums are the leaves of a binary
+ * tree whose nodes are checksum(0x01 + left + right) (an odd node at the end of a level is
+ * carried up unchanged), giving a single root checksum for the file.  The chunk list can be
+ * saved alongside the file so a later verification can say which byte ranges are corrupt.
+ * @author wpalmer
+ *
+ */
+public class TreeHash {
+
+	/**
+	 * A chunk of the file and its checksum
+	 */
+	public static class Chunk {
+		private int gIndex;
+		private long gOffset;
+		private long gLength;
+		private String gChecksum;
+		private Chunk(int pIndex, long pOffset, long pLength, String pChecksum) {
+			gIndex = pIndex;
+			gOffset = pOffset;
+			gLength = pLength;
+			gChecksum = pChecksum;
+		}
+		/**
+		 * @return index of the chunk in the file
+		 */
+		public int getIndex() { return gIndex; }
+		/**
+		 * @return byte offset of the chunk in the file
+		 */
+		public long getOffset() { return gOffset; }
+		/**
+		 * @return length of the chunk in bytes
+		 */
+		public long getLength() { return gLength; }
+		/**
+		 * @return checksum of the chunk, or null for bytes beyond the end of the checksummed file
+		 */
+		public String getChecksum() { return gChecksum; }
+		public String toString() { return "chunk "+gIndex+" bytes "+gOffset+"-"+(gOffset+gLength-1)+" "+(gChecksum==null?"unexpected":gChecksum); }
+	}
+
+	private static final int READ_SIZE = 1024*1024;
+
+	private String gType;
+	private long gChunkSize;
+	private long gSize;
+	private List<Chunk> gChunks;
+	private String gRoot;
+
+	private TreeHash(String pType, long pChunkSize, long pSize, List<Chunk> pChunks) throws IOException {
+		if(pChunkSize<=0) throw new IOException("Invalid chunk size: "+pChunkSize);
+		gType = pType.toUpperCase();
+		gChunkSize = pChunkSize;
+		gSize = pSize;
+		gChunks = pChunks;
+		gRoot = root();
+	}
+
+	/**
+	 * Generate a tree checksum for a file
+	 * @param pType checksum type (e.g. "SHA-256")
+	 * @param pFile file to checksum
+	 * @param pChunkSize chunk size in bytes (greater than 0)
+	 * @param pThreads number of chunks to checksum in parallel
+	 * @return tree checksum for the file
+	 * @throws IOException file access error, or unknown checksum type
+	 */
+	public static TreeHash generate(String pType, File pFile, long pChunkSize, int pThreads) throws IOException {
+		if(pChunkSize<=0) throw new IllegalArgumentException("Invalid chunk size: "+pChunkSize);
+		long startTime = System.currentTimeMillis();
+		long size = pFile.length();
+		List<Chunk> chunks = checksumChunks(pType, pFile, pChunkSize, size, pThreads);
+		TreeHash tree = new TreeHash(pType, pChunkSize, size, chunks);
+		System.out.println("Checksummed ["+size+"] bytes in ["+chunks.size()+"] chunks in ["+(System.currentTimeMillis()-startTime)+"] ms");
+		return tree;
+	}
+
+	private static List<Chunk> checksumChunks(final String pType, File pFile, long pChunkSize, long pSize, int pThreads) throws IOException {
+		//a chunk size of 0 would never reach the end of the file
+		if(pChunkSize<=0) throw new IllegalArgumentException("Invalid chunk size: "+pChunkSize);
+		try {
+			MessageDigest.getInstance(pType.toUpperCase());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+pType);
+		}
+
+		final FileInputStream input = new FileInputStream(pFile);
+		final FileChannel channel = input.getChannel();
+		ExecutorService executor = Executors.newFixedThreadPool(pThreads);
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+		try {
+			int index = 0;
+			for(long offset=0;offset<pSize||index==0;offset+=pChunkSize) {
+				final int chunkIndex = index++;
+				final long chunkOffset = offset;
+				final long chunkLength = Math.min(pChunkSize, pSize-offset);
+				futures.add(executor.submit(new Callable<Chunk>() {
+					public Chunk call() throws Exception {
+						ChecksumEngine engine = new ChecksumEngine(new String[] { pType });
+						ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+						long pos = chunkOffset;
+						long end = chunkOffset+chunkLength;
+						while(pos<end) {
+							buffer.clear();
+							buffer.limit((int)Math.min(READ_SIZE, end-pos));
+							//positional reads are safe to share between threads
+							int read = channel.read(buffer, pos);
+							if(read<0) throw new IOException("Unexpected end of file at "+pos);
+							buffer.flip();
+							engine.update(buffer);
+							pos += read;
+						}
+						return new Chunk(chunkIndex, chunkOffset, chunkLength, engine.getChecksums().values().iterator().next());
+					}
+				}));
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>(futures.size());
+			for(Future<Chunk> future:futures) chunks.add(future.get());
+			return chunks;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted checksumming "+pFile);
+		} catch (ExecutionException e) {
+			throw new IOException("Error checksumming "+pFile+": "+e.getCause());
+		} finally {
+			executor.shutdownNow();
+			input.close();
+		}
+	}
+
+	private static byte[] fromHex(String pHex) {
+		byte[] bytes = new byte[pHex.length()/2];
+		for(int i=0;i<bytes.length;i++) {
+			bytes[i] = (byte)Integer.parseInt(pHex.substring(i*2, i*2+2), 16);
+		}
+		return bytes;
+	}
+
+	private String root() throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(gType);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+gType);
+		}
+		List<byte[]> level = new ArrayList<byte[]>(gChunks.size());
+		for(Chunk chunk:gChunks) level.add(fromHex(chunk.gChecksum));
+		while(level.size()>1) {
+			List<byte[]> next = new ArrayList<byte[]>((level.size()+1)/2);
+			for(int i=0;i<level.size();i+=2) {
+				if(i+1==level.size()) {
+					next.add(level.get(i));
+					continue;
+				}
+				md.update((byte)0x01);
+				md.update(level.get(i));
+				md.update(level.get(i+1));
+				next.add(md.digest());
+			}
+			level = next;
+		}
+		return ChecksumEngine.toHex(level.get(0));
+	}
+
+	/**
+	 * @return checksum type
+	 */
+	public String getType() {
+		return gType;
+	}
+
+	/**
+	 * @return chunk size in bytes
+	 */
+	public long getChunkSize() {
+		return gChunkSize;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public long getSize() {
+		return gSize;
+	}
+
+	/**
+	 * @return root checksum of the tree
+	 */
+	public String getRoot() {
+		return gRoot;
+	}
+
+	/**
+	 * @return chunks and their checksums, in file order
+	 */
+	public List<Chunk> getChunks() {
+		return gChunks;
+	}
+
+	/**
+	 * Save the tree (type, chunk size, file size, root and chunk list) to a file
+	 * @param pFile file to write
+	 * @throws IOException error writing the file
+	 */
+	public void save(File pFile) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(pFile), "UTF-8"));
+		out.println("type "+gType);
+		out.println("chunksize "+gChunkSize);
+		out.println("size "+gSize);
+		out.println("root "+gRoot);
+		for(Chunk chunk:gChunks) {
+			out.println(chunk.gIndex+" "+chunk.gOffset+" "+chunk.gLength+" "+chunk.gChecksum);
+		}
+		out.close();
+		if(out.checkError()) throw new IOException("Error writing "+pFile);
+	}
+
+	/**
+	 * Load a tree saved with save()
+	 * @param pFile file to read
+	 * @return the tree
+	 * @throws IOException error reading the file, or the root does not match the chunks
+	 */
+	public static TreeHash load(File pFile) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pFile), "UTF-8"));
+		try {
+			String type = in.readLine().split(" ")[1];
+			long chunkSize = Long.parseLong(in.readLine().split(" ")[1]);
+			long size = Long.parseLong(in.readLine().split(" ")[1]);
+			String root = in.readLine().split(" ")[1];
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			String line;
+			while((line = in.readLine())!=null) {
+				String[] fields = line.split(" ");
+				if(fields.length!=4) continue;
+				chunks.add(new Chunk(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+			}
+			TreeHash tree = new TreeHash(type, chunkSize, size, chunks);
+			if(!tree.gRoot.equals(root)) throw new IOException("Chunk list does not match root checksum in "+pFile);
+			return tree;
+		} catch(NullPointerException e) {
+			throw new IOException("Incomplete tree checksum file: "+pFile);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Verify a file against this tree, checksumming its chunks in parallel
+	 * @param pFile file to verify
+	 * @param pThreads number of chunks to checksum in parallel
+	 * @return chunks that do not match (byte ranges that are corrupt), empty if the file is ok.
+	 * If the file is shorter than expected, the chunks it no longer covers are included; if it
+	 * is longer, a chunk with a null checksum covers the extra bytes.
+	 * @throws IOException file access error
+	 */
+	public List<Chunk> verify(File pFile, int pThreads) throws IOException {
+		List<Chunk> bad = new ArrayList<Chunk>();
+		long length = pFile.length();
+		if(length!=gSize) {
+			System.out.println("WARNING: size mismatch; expected: "+gSize+", actual: "+length);
+		}
+		List<Chunk> actual = checksumChunks(gType, pFile, gChunkSize, Math.min(gSize, length), pThreads);
+		for(Chunk chunk:gChunks) {
+			Chunk check = chunk.gIndex<actual.size()?actual.get(chunk.gIndex):null;
+			if(check==null||check.gLength!=chunk.gLength||!check.gChecksum.equals(chunk.gChecksum)) {
+				System.out.println("WARNING: "+gType+" checksum error in "+chunk);
+				bad.add(chunk);
+			}
+		}
+		if(length>gSize) {
+			Chunk extra = new Chunk(gChunks.size(), gSize, length-gSize, null);
+			System.out.println("WARNING: "+gType+" checksum error in "+extra);
+			bad.add(extra);
+		}
+		return bad;
+	}
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks uploaded datastreams in the background, so uploads return as soon as Fedora has
+ * accepted them instead of waiting for the profile to be read back.  Uploads are queued and
+ * the verification threads take them in batches: datastreams of the same object in a batch
+ * are checked with one request for all of its datastream profiles, a lone datastream with a
+ * request for its own profile.  The remote checksum is compared with the checksum generated
+ * before the upload; the local file is only read again if Fedora uses a different checksum
+ * type.
+ * <p>
+ * Each outcome is passed to the listener (if any) and recorded in the journal (if any), keyed
+ * by pid/datastream, so a failed verification is retried when the job is restarted.
+ * @author wpalmer
+ *
+ */
+public class UploadVerifier {
+
+	/** default maximum number of uploads checked at a time by one thread */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Outcome of verifying one upload
+	 */
+	public static class Result {
+		private String gPid;
+		private String gDatastream;
+		private File gFile;
+		private String gChecksumType;
+		private String gExpected;
+		private String gRemote = null;
+		private String gMessage = null;
+		private long gQueueTime;
+
+		private Result(String pPid, String pDatastream, File pFile, String pChecksumType, String pExpected) {
+			gPid = pPid;
+			gDatastream = pDatastream;
+			gFile = pFile;
+			gChecksumType = pChecksumType;
+			gExpected = pExpected;
+		}
+		/** @return pid of object */
+		public String getPid() { return gPid; }
+		/** @return datastream id */
+		public String getDatastream() { return gDatastream; }
+		/** @return local file that was uploaded */
+		public File getFile() { return gFile; }
+		/** @return checksum type compared */
+		public String getChecksumType() { return gChecksumType; }
+		/** @return checksum of the local file */
+		public String getExpected() { return gExpected; }
+		/** @return checksum in the datastream profile, or null if it could not be read */
+		public String getRemote() { return gRemote; }
+		/** @return reason for a failure, or null */
+		public String getMessage() { return gMessage; }
+		/** @return time between the upload and its verification (ms) */
+		public long getQueueTime() { return gQueueTime; }
+		/** @return whether the remote checksum matched */
+		public boolean isSuccess() { return gMessage==null; }
+		public String toString() {
+			return (isSuccess()?"VERIFIED ":"FAILED ")+gPid+"/"+gDatastream+" "+gFile+(gMessage!=null?" ("+gMessage+")":"");
+		}
+	}
+
+	/**
+	 * Receives the outcome of each verification.  Called from the verification threads.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an upload has been checked
+		 * @param pResult outcome of the check
+		 */
+		public void verified(Result pResult);
+	}
+
+	private static class Item {
+		private Result gResult;
+		private long gQueued;
+		private Item(Result pResult) {
+			gResult = pResult;
+			gQueued = System.currentTimeMillis();
+		}
+	}
+
+	//marks the end of the queue for each verification thread
+	private static final Item END = new Item(null);
+
+	private FedoraConnection gConnection;
+	private int gBatchSize;
+	private LinkedBlockingQueue<Item> gQueue = new LinkedBlockingQueue<Item>();
+	private List<Thread> gThreads = new ArrayList<Thread>();
+	private Listener gListener = null;
+	private IngestJournal gJournal = null;
+	//queued or being verified
+	private int gPending = 0;
+	private int gVerified = 0;
+	private int gFailed = 0;
+	private boolean gClosed = false;
+
+	/**
+	 * Start verification threads
+	 * @param pConnection connection the uploads were made with
+	 * @param pThreads number of verification threads
+	 * @param pBatchSize maximum number of uploads a thread checks at a time
+	 */
+	public UploadVerifier(FedoraConnection pConnection, int pThreads, int pBatchSize) {
+		gConnection = pConnection;
+		gBatchSize = pBatchSize>0?pBatchSize:DEFAULT_BATCH_SIZE;
+		for(int i=0;i<Math.max(1, pThreads);i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					verifyLoop();
+				}
+			}, "UploadVerifier-"+i);
+			thread.setDaemon(true);
+			thread.start();
+			gThreads.add(thread);
+		}
+	}
+
+	/**
+	 * Set a listener to receive the outcome of each verification
+	 * @param pListener listener (null to only print failures)
+	 */
+	public void setListener(Listener pListener) {
+		gListener = pListener;
+	}
+
+	/**
+	 * Record outcomes in a journal: COMPLETED when verified, FAILED otherwise (keyed pid/datastream)
+	 * @param pJournal journal to use (null for none)
+	 */
+	public void setJournal(IngestJournal pJournal) {
+		gJournal = pJournal;
+	}
+
+	/**
+	 * Queue an upload for verification
+	 * @param pPid pid of object
+	 * @param pDatastream datastream id
+	 * @param pFile local file that was uploaded
+	 * @param pChecksumType type of pChecksum, e.g. MD5
+	 * @param pChecksum checksum of the local file
+	 */
+	public void submit(String pPid, String pDatastream, File pFile, String pChecksumType, String pChecksum) {
+		synchronized(this) {
+			if(gClosed) throw new IllegalStateException("Verifier closed");
+			gPending++;
+		}
+		gQueue.add(new Item(new Result(pPid, pDatastream, pFile, pChecksumType, pChecksum)));
+	}
+
+	/**
+	 * Wait until everything queued so far has been verified
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while(gPending>0) wait();
+	}
+
+	/**
+	 * Verify everything still queued, stop the verification threads and sync the journal
+	 */
+	public void close() {
+		synchronized(this) {
+			if(gClosed) return;
+			gClosed = true;
+		}
+		for(int i=0;i<gThreads.size();i++) gQueue.add(END);
+		for(Thread thread:gThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if(gJournal!=null) {
+			try {
+				gJournal.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		System.out.println("Verified ["+gVerified+"] uploads, ["+gFailed+"] failed");
+	}
+
+	/**
+	 * @return number of uploads queued or being verified
+	 */
+	public synchronized int getPending() {
+		return gPending;
+	}
+
+	/**
+	 * @return number of uploads verified successfully so far
+	 */
+	public synchronized int getVerified() {
+		return gVerified;
+	}
+
+	/**
+	 * @return number of uploads that failed verification so far
+	 */
+	public synchronized int getFailed() {
+		return gFailed;
+	}
+
+	private void verifyLoop() {
+		List<Item> batch = new ArrayList<Item>();
+		while(true) {
+			batch.clear();
+			try {
+				Item item = gQueue.take();
+				if(item==END) return;
+				batch.add(item);
+				//give uploads of the rest of the object a moment to be queued
+				item = gQueue.poll(10, TimeUnit.MILLISECONDS);
+				if(item!=null) batch.add(item);
+			} catch (InterruptedException e) {
+				return;
+			}
+			gQueue.drainTo(batch, gBatchSize-batch.size());
+			boolean end = batch.remove(END);
+			//other threads still need their end marker
+			while(batch.remove(END)) gQueue.add(END);
+			verifyBatch(batch);
+			if(end) return;
+		}
+	}
+
+	private void verifyBatch(List<Item> pBatch) {
+		//group by object, keeping the order they were uploaded in
+		Map<String, List<Item>> objects = new LinkedHashMap<String, List<Item>>();
+		for(Item item:pBatch) {
+			List<Item> items = objects.get(item.gResult.gPid);
+			if(items==null) {
+				items = new ArrayList<Item>();
+				objects.put(item.gResult.gPid, items);
+			}
+			items.add(item);
+		}
+		for(Map.Entry<String, List<Item>> object:objects.entrySet()) {
+			List<Item> items = object.getValue();
+			Map<String, HashMap<String, String>> profiles = new HashMap<String, HashMap<String, String>>();
+			String error = null;
+			try {
+				if(items.size()>1) {
+					//one request for all datastreams of the object, to the primary (as the upload)
+					Map<String, DatastreamProfile> all = gConnection.getDatastreamProfiles(object.getKey(), true);
+					if(all!=null) {
+						for(DatastreamProfile profile:all.values()) profiles.put(profile.getDatastream(), profile.getValues());
+					}
+				} else {
+					Result result = items.get(0).gResult;
+					HashMap<String, String> profile = gConnection.getDatastreamProperties(result.gPid, result.gDatastream);
+					if(profile!=null) profiles.put(result.gDatastream, profile);
+				}
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				error = "cannot read datastream profile: "+e;
+			}
+			//every item must be reported, or flush() would wait for it forever
+			for(Item item:items) {
+				item.gResult.gQueueTime = System.currentTimeMillis()-item.gQueued;
+				try {
+					if(error!=null) {
+						item.gResult.gMessage = error;
+					} else {
+						verify(item.gResult, profiles.get(item.gResult.gDatastream));
+					}
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+					item.gResult.gMessage = "verification failed: "+e;
+				}
+				try {
+					report(item.gResult);
+				} catch(RuntimeException e) {
+					//the listener failed: keep the verification thread going
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void verify(Result pResult, HashMap<String, String> pProfile) {
+		if(pProfile==null||pProfile.get(FedoraConnection.FedoraKeys.CHECKSUM)==null) {
+			pResult.gMessage = "cannot read datastream profile";
+			return;
+		}
+		String type = pProfile.get(FedoraConnection.FedoraKeys.CHECKSUMTYPE);
+		pResult.gRemote = pProfile.get(FedoraConnection.FedoraKeys.CHECKSUM);
+		String local = pResult.gExpected;
+		if(type!=null&&!type.equalsIgnoreCase(pResult.gChecksumType)) {
+			//Fedora uses a different checksum type to the one generated before the upload
+			try {
+				local = Tools.generateChecksum(type, pResult.gFile.getAbsolutePath());
+				pResult.gChecksumType = type;
+				pResult.gExpected = local;
+			} catch (IOException e) {
+				pResult.gMessage = "cannot checksum local file: "+e.getMessage();
+				return;
+			}
+		}
+		if(!pResult.gRemote.equalsIgnoreCase(local)) {
+			pResult.gMessage = pResult.gChecksumType+" checksum error; remote: "+pResult.gRemote+", local: "+local;
+		}
+	}
+
+	private void report(Result pResult) {
+		try {
+			if(gJournal!=null) {
+				try {
+					gJournal.record(pResult.gPid+"/"+pResult.gDatastream, pResult.gPid, pResult.gRemote,
+							pResult.isSuccess()?IngestJournal.COMPLETED:IngestJournal.FAILED);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if(gListener!=null) {
+				gListener.verified(pResult);
+			} else if(!pResult.isSuccess()) {
+				System.out.println("WARNING: "+pResult);
+			}
+		} finally {
+			synchronized(this) {
+				if(pResult.isSuccess()) {
+					gVerified++;
+				} else {
+					gFailed++;
+				}
+				gPending--;
+				if(gPending==0) notifyAll();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,1018 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+
+import uk.bl.dpt.fclib.archive.ArchiveOutput;
+import uk.bl.dpt.fclib.https.TlsConfig;
+import uk.bl.dpt.fclib.jfr.TransferEvent;
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+import uk.bl.dpt.fclib.transport.Request;
+import uk.bl.dpt.fclib.transport.Response;
+import uk.bl.dpt.fclib.transport.Transport;
+import uk.bl.dpt.fclib.transport.Transports;
+
+/**
+ * A connection to a WebDAV repository: one server (or a pair of servers) to recover files
+ * from and post files to.  Each instance has its own credentials, SSL context, timeouts,
+ * transports and limit on concurrent requests, and nothing is set JVM-wide, so instances for different servers can be used from many threads at once.
+ * WebdavDataConnector's static methods use a default instance.
+ * @author wpalmer
+ *
+ */
+public class WebdavConnection {
+
+	private static boolean gDebug = false;
+
+	/**
+	 * Settings for the webdav connection
+	 */
+	static class Settings {
+		public String SERVER = null;
+		public int PORT = -42;
+		public String USER = null;
+		public String PASSWORD = null;
+		public String ROOT = null;
+		public String TRANSPORT = null;
+		//read replicas as host:port, in addition to SERVER
+		public List<String> REPLICAS = new ArrayList<String>();
+		//percentile to hedge reads at (0 for no hedging)
+		public double HEDGE = 0;
+		//transport implementation
+		public Transport.Type CLIENT = Transport.Type.URLCONNECTION;
+		//TLS settings, one per server (null until first used if not configured)
+		public TlsConfig TLS = null;
+
+		public String toString() {
+			return TRANSPORT+"://"+USER+":"+PASSWORD+"@"+SERVER+":"+PORT+ROOT;
+		}
+		public Settings() {}
+	}
+
+	private Settings gSettingsGet;
+	private Settings gSettingsPut;
+
+	//remote paths used by stageFile(), and whether they have been created; each is locked
+	//while it is created, so staging to other paths does not wait
+	private ConcurrentHashMap<String, AtomicBoolean> gStagingPaths = new ConcurrentHashMap<String, AtomicBoolean>();
+
+	private Transport gClientGet = null;
+	private Transport gClientPut = null;
+	private int gConnectTimeout = 0;
+	private int gReadTimeout = 0;
+	private int gMaxConnections = 0;
+	private Semaphore gPermits = null;
+	private ReplicaSet gReplicas = null;
+
+	/**
+	 * Create a connection using the settings in xml properties files (keys SERVER, PORT,
+	 * USER, PASSWORD, ROOT and TRANSPORT)
+	 * @param pGetSettings InputStream for the settings used to recover files
+	 * @param pPutSettings InputStream for the settings used to post files
+	 */
+	public WebdavConnection(InputStream pGetSettings, InputStream pPutSettings) {
+		this(loadSettings(pGetSettings), loadSettings(pPutSettings));
+	}
+
+	/**
+	 * Create a connection that recovers and posts files using the same settings, from an xml
+	 * properties file
+	 * @param pSettings InputStream for the settings
+	 */
+	public WebdavConnection(InputStream pSettings) {
+		this(loadSettings(pSettings), null);
+	}
+
+	/**
+	 * Create a connection that recovers and posts files using the same server
+	 * @param pTransport http or https
+	 * @param pServer server hostname
+	 * @param pPort server port
+	 * @param pRoot path of the repository on the server (no trailing /)
+	 * @param pUser user
+	 * @param pPassword password
+	 */
+	public WebdavConnection(String pTransport, String pServer, int pPort, String pRoot, String pUser, String pPassword) {
+		this(createSettings(pTransport, pServer, pPort, pRoot, pUser, pPassword), null);
+	}
+
+	WebdavConnection(Settings pGetSettings, Settings pPutSettings) {
+		gSettingsGet = pGetSettings==null?new Settings():pGetSettings;
+		gSettingsPut = pPutSettings==null?gSettingsGet:pPutSettings;
+	}
+
+	private static Settings createSettings(String pTransport, String pServer, int pPort, String pRoot, String pUser, String pPassword) {
+		Settings settings = new Settings();
+		settings.TRANSPORT = pTransport;
+		settings.SERVER = pServer;
+		settings.PORT = pPort;
+		settings.ROOT = pRoot;
+		settings.USER = pUser;
+		settings.PASSWORD = pPassword;
+		return settings;
+	}
+
+	/**
+	 * Load server settings from an xml properties file (keys SERVER, PORT, USER, PASSWORD, ROOT
+	 * and TRANSPORT, and optionally REPLICAS, a comma separated list of read replicas as
+	 * host[:port], HEDGE, the percentile to hedge reads at, CLIENT, the transport
+	 * implementation: URLCONNECTION or HTTPCLIENT, and the TLS settings TRUSTSTORE,
+	 * TRUSTSTORE_PASSWORD, TRUSTSTORE_TYPE and VERIFY_HOSTNAME, see TlsConfig)
+	 * @param pInputStream InputStream for settings
+	 * @return the loaded Settings object
+	 */
+	static Settings loadSettings(InputStream pInputStream) {
+		Settings settings = new Settings();
+		Properties props = new Properties();
+		try {
+			props.loadFromXML(pInputStream);
+			String key = "SERVER";
+			if(props.containsKey(key)) {
+				settings.SERVER = props.getProperty(key);
+			}
+			key = "PORT";
+			if(props.containsKey(key)&&props.getProperty(key).length()>0) {
+				settings.PORT = new Integer(props.getProperty(key));
+			}
+			key = "USER";
+			if(props.containsKey(key)) {
+				settings.USER = props.getProperty(key);
+			}
+			key = "PASSWORD";
+			if(props.containsKey(key)) {
+				settings.PASSWORD = props.getProperty(key);
+			}
+			key = "ROOT";
+			if(props.containsKey(key)) {
+				settings.ROOT = props.getProperty(key);
+			}
+			key = "TRANSPORT";
+			if(props.containsKey(key)) {
+				settings.TRANSPORT = props.getProperty(key);
+			}
+			key = "REPLICAS";
+			if(props.containsKey(key)) {
+				settings.REPLICAS = FedoraConnection.parseReplicas(props.getProperty(key), settings.PORT);
+			}
+			key = "HEDGE";
+			if(props.containsKey(key)&&props.getProperty(key).length()>0) {
+				settings.HEDGE = FedoraConnection.parseHedging(props.getProperty(key));
+			}
+			key = "CLIENT";
+			if(props.containsKey(key)) {
+				settings.CLIENT = Transports.parseType(props.getProperty(key));
+			}
+			settings.TLS = TlsConfig.fromProperties(props, gDebug);
+			return settings;
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Set the SSL context used for https connections to this repository.  By default a
+	 * context that accepts any certificate is created for each instance.
+	 * @param pContext SSL context
+	 */
+	public synchronized void setSSLContext(SSLContext pContext) {
+		setTlsConfig(TlsConfig.forContext(pContext));
+	}
+
+	/**
+	 * Set the TLS settings (truststore, hostname verification, session cache) for https
+	 * connections to both the get and put servers
+	 * @param pTls TLS settings
+	 */
+	public synchronized void setTlsConfig(TlsConfig pTls) {
+		gSettingsGet.TLS = pTls;
+		gSettingsPut.TLS = pTls;
+		shutdownClient();
+	}
+
+	/**
+	 * @param pPut true for the put server, false for the get server
+	 * @return the TLS settings for that server, including handshake counts
+	 */
+	public synchronized TlsConfig getTlsConfig(boolean pPut) {
+		Settings settings = pPut?gSettingsPut:gSettingsGet;
+		if(settings.TLS==null) settings.TLS = new TlsConfig(gDebug);
+		return settings.TLS;
+	}
+
+	/**
+	 * Choose the transport implementation used for requests to this repository
+	 * @param pType transport type
+	 */
+	public synchronized void setTransportType(Transport.Type pType) {
+		gSettingsGet.CLIENT = pType;
+		gSettingsPut.CLIENT = pType;
+		shutdownClient();
+	}
+
+	/**
+	 * Set connect and read timeouts for requests to this repository
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 */
+	public synchronized void setTimeouts(int pConnectTimeout, int pReadTimeout) {
+		gConnectTimeout = pConnectTimeout;
+		gReadTimeout = pReadTimeout;
+		shutdownClient();
+	}
+
+	/**
+	 * Limit the number of operations in progress against this repository at once (and the
+	 * size of any connection pool); further callers wait for an operation to finish
+	 * @param pMaxConnections maximum concurrent operations (0 for no limit)
+	 */
+	public synchronized void setMaxConnections(int pMaxConnections) {
+		gMaxConnections = pMaxConnections;
+		gPermits = pMaxConnections>0?new Semaphore(pMaxConnections, true):null;
+		shutdownClient();
+	}
+
+	/**
+	 * Close pooled connections held by this instance
+	 */
+	public synchronized void shutdown() {
+		shutdownClient();
+	}
+
+	private void shutdownClient() {
+		if(gClientGet!=null) gClientGet.close();
+		if(gClientPut!=null&&gClientPut!=gClientGet) gClientPut.close();
+		gClientGet = null;
+		gClientPut = null;
+	}
+
+	/**
+	 * @param pSettings settings to get the transport for (get or put)
+	 * @return the transport for those settings, created on first use and shared by all threads
+	 */
+	private synchronized Transport getTransport(Settings pSettings) {
+		if(pSettings==gSettingsPut&&gSettingsPut!=gSettingsGet) {
+			if(gClientPut==null) gClientPut = createTransport(gSettingsPut);
+			return gClientPut;
+		}
+		if(gClientGet==null) gClientGet = createTransport(gSettingsGet);
+		if(gSettingsPut==gSettingsGet) gClientPut = gClientGet;
+		return gClientGet;
+	}
+
+	private Transport createTransport(Settings pSettings) {
+		if(pSettings.TLS==null) pSettings.TLS = new TlsConfig(gDebug);
+		return Transports.create(pSettings.CLIENT, pSettings.USER, pSettings.PASSWORD, pSettings.TLS,
+				gConnectTimeout, gReadTimeout, gMaxConnections);
+	}
+
+	/**
+	 * Set read replicas of the server files are recovered from.  Files are recovered from the
+	 * replica with the lowest moving average response time (see ReplicaSet); posts always go
+	 * to the put server.
+	 * @param pReplicas replicas as host:port, in addition to the get server
+	 */
+	public synchronized void setReplicas(List<String> pReplicas) {
+		List<String> replicas = new ArrayList<String>();
+		replicas.add(gSettingsGet.SERVER+":"+gSettingsGet.PORT);
+		for(String replica:pReplicas) {
+			if(!replicas.contains(replica)) replicas.add(replica);
+		}
+		ReplicaSet old = gReplicas;
+		gReplicas = new ReplicaSet(replicas);
+		gReplicas.setHedging(old!=null?old.getHedging():gSettingsGet.HEDGE);
+	}
+
+	/**
+	 * @return the read replicas (including the get server)
+	 */
+	public synchronized ReplicaSet getReplicaSet() {
+		if(gReplicas==null) setReplicas(gSettingsGet.REPLICAS);
+		return gReplicas;
+	}
+
+	private Semaphore acquire() {
+		Semaphore permits = gPermits;
+		if(permits!=null) permits.acquireUninterruptibly();
+		return permits;
+	}
+
+	private static void release(Semaphore pPermits) {
+		if(pPermits!=null) pPermits.release();
+	}
+
+	private String getHTTPFileURI(Settings pSettings, String pFile) {
+		return getHTTPFileURI(pSettings, pSettings.SERVER+":"+pSettings.PORT, pFile);
+	}
+
+	private String getHTTPFileURI(Settings pSettings, String pReplica, String pFile) {
+		//http uri: http://host:port[absolute path]
+		String baseURI = "";
+		baseURI += pSettings.TRANSPORT+"://";
+		baseURI += pReplica+pSettings.ROOT;
+		baseURI += pFile;
+		return baseURI;
+	}
+
+	private Request setupConnection(Settings pSettings, String pRemoteURI, String pMethod) {
+		//the transport records a ConnectionSetupEvent when the request is sent
+		return new Request(pMethod, pRemoteURI);
+	}
+
+	public String toString() {
+		return getHTTPFileURI(gSettingsGet, "");
+	}
+
+	/**
+	 * Recover a file from a remote location and copy it into localDir
+	 * @param pRemoteFile file to recover (from a webdav repository)
+	 * @param pLocalDir directory to copy file to
+	 * @return File for the newly copied file, null if not copied
+	 */
+	public File recoverFile(String pRemoteFile, String pLocalDir) {
+		Semaphore permits = acquire();
+		try {
+			return copyFile(pRemoteFile, pLocalDir);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Get the size of a file in the repository without recovering it (HEAD request to the get
+	 * server)
+	 * @param pRemoteFile path of the file in the repository
+	 * @return size in bytes
+	 * @throws IOException on error (FileNotFoundException if there is no such file)
+	 */
+	public long getFileSize(String pRemoteFile) throws IOException {
+		Semaphore permits = acquire();
+		try {
+			Response server = getTransport(gSettingsGet).send(setupConnection(gSettingsGet, getHTTPFileURI(gSettingsGet, pRemoteFile), "HEAD"));
+			server.close();
+			if(server.getStatus()==HttpURLConnection.HTTP_NOT_FOUND) throw new FileNotFoundException(server.getURI());
+			String length = server.getHeader("Content-Length");
+			if(server.getStatus()!=HttpURLConnection.HTTP_OK||length==null) {
+				throw new IOException("Size of "+pRemoteFile+" unknown: "+server.getStatus()+" "+server.getURI());
+			}
+			return Long.parseLong(length.trim());
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Read part of a file in the repository with a Range request
+	 * @param pRemoteFile path of the file in the repository
+	 * @param pOffset offset in the file of the first byte to read
+	 * @param pBuffer buffer to read into
+	 * @param pBufferOffset offset in pBuffer
+	 * @param pLength number of bytes to read
+	 * @return number of bytes read (less than pLength at the end of the file), or -1 if
+	 * pOffset is at or beyond the end
+	 * @throws IOException on error (FileNotFoundException if there is no such file)
+	 */
+	public int readFile(final String pRemoteFile, final long pOffset, byte[] pBuffer, int pBufferOffset, final int pLength) throws IOException {
+		String remoteURI = getHTTPFileURI(gSettingsGet, pRemoteFile);
+		Sample sample = MetricsRegistry.getDefault().start("webdav.readFile", remoteURI);
+		Semaphore permits = acquire();
+		try {
+			Response server = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pReplica) throws IOException {
+					Request request = setupConnection(gSettingsGet, getHTTPFileURI(gSettingsGet, pReplica, pRemoteFile), "GET");
+					request.setHeader("Range", Tools.getRangeHeader(pOffset, pLength));
+					return getTransport(gSettingsGet).send(request);
+				}
+			});
+			try {
+				sample.firstByte();
+				sample.setStatus(server.getStatus());
+				sample.transferStart();
+				int read = Tools.readRange(server, pOffset, pBuffer, pBufferOffset, pLength);
+				sample.transferEnd(Math.max(0, read));
+				sample.finish();
+				return read;
+			} finally {
+				server.close();
+			}
+		} catch(IOException e) {
+			sample.fail();
+			throw e;
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Open a file in the repository for reading sequentially from an offset, e.g. when the
+	 * server does not support Range requests (see RangeNotSupportedException).  The stream
+	 * holds a connection until it is closed.
+	 * @param pRemoteFile path of the file in the repository
+	 * @param pOffset offset in the file of the first byte to read
+	 * @return content from pOffset
+	 * @throws IOException on error (FileNotFoundException if there is no such file)
+	 */
+	public InputStream openFile(final String pRemoteFile, final long pOffset) throws IOException {
+		final Semaphore permits = acquire();
+		boolean opened = false;
+		try {
+			final Response server = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pReplica) throws IOException {
+					Request request = setupConnection(gSettingsGet, getHTTPFileURI(gSettingsGet, pReplica, pRemoteFile), "GET");
+					if(pOffset>0) request.setHeader("Range", Tools.getRangeHeader(pOffset));
+					return getTransport(gSettingsGet).send(request);
+				}
+			});
+			InputStream body;
+			try {
+				body = Tools.openRange(server, pOffset);
+			} catch(IOException e) {
+				server.close();
+				throw e;
+			}
+			opened = true;
+			return new FilterInputStream(body) {
+				private boolean gClosed = false;
+				public void close() throws IOException {
+					if(gClosed) return;
+					gClosed = true;
+					try {
+						super.close();
+					} finally {
+						server.close();
+						release(permits);
+					}
+				}
+			};
+		} finally {
+			if(!opened) release(permits);
+		}
+	}
+
+	/**
+	 * Recover a file into an archive rather than a local directory.  The entry path is the
+	 * remote path (without a leading /).
+	 * @param pRemoteFile file to recover
+	 * @param pArchive archive to write to
+	 * @return the archive entry, or null
+	 */
+	public ArchiveOutput.Entry recoverFile(final String pRemoteFile, ArchiveOutput pArchive) {
+		Semaphore permits = acquire();
+		try {
+			String remoteURI = getHTTPFileURI(gSettingsGet, pRemoteFile);
+			String path = pRemoteFile.startsWith("/")?pRemoteFile.substring(1):pRemoteFile;
+
+			Sample sample = MetricsRegistry.getDefault().start("webdav.get", remoteURI);
+			TransferEvent event = new TransferEvent();
+			event.begin();
+			event.operation = "webdav.get";
+			event.uri = remoteURI;
+			event.path = path;
+			try {
+				Response conn = getReplicaSet().open(new ReplicaSet.Opener() {
+					public Response open(String pReplica) throws IOException {
+						return getTransport(gSettingsGet).send(setupConnection(gSettingsGet, getHTTPFileURI(gSettingsGet, pReplica, pRemoteFile), "GET"));
+					}
+				});
+				sample.setStatus(conn.getStatus());
+				sample.firstByte();
+				event.status = conn.getStatus();
+				event.uri = conn.getURI();
+
+				long startTime = System.currentTimeMillis();
+				sample.transferStart();
+				ArchiveOutput.Entry entry = null;
+				try {
+					if(conn.getStatus()!=HttpURLConnection.HTTP_OK) {
+						throw new IOException("Return code: "+conn.getStatus()+" "+conn.getURI());
+					}
+					System.out.println("Copying: "+conn.getURI()+" -> "+path);
+					String contentLength = conn.getHeader("Content-Length");
+					long modified = System.currentTimeMillis();
+					String lastModified = conn.getHeader("Last-Modified");
+					if(lastModified!=null) {
+						//e.g. Tue, 10 Oct 2006 07:07:02 GMT
+						try {
+							modified = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz").parse(lastModified).getTime();
+						} catch (ParseException e) {
+							e.printStackTrace();
+						}
+					}
+					InputStream body = conn.getBody();
+					entry = pArchive.add(path, body, contentLength==null?-1:Long.parseLong(contentLength), modified, null, null);
+					body.close();
+				} finally {
+					conn.close();
+				}
+				sample.transferEnd(entry.getSize());
+				sample.finish();
+				event.path = entry.toString();
+				event.bytes = entry.getSize();
+				event.success = true;
+				event.commit();
+				System.out.println("Copied ["+entry.getSize()+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+				return entry;
+			} catch (IOException e) {
+				e.printStackTrace();
+				sample.fail();
+				event.commit();
+				return null;
+			}
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Copy a remote file to a local directory
+	 * @return the local file, or null if the copy failed (a partial file is deleted)
+	 */
+	private File copyFile(final String pRemoteFile, String pLocalDir) {
+		if(!pLocalDir.endsWith("/")) {
+			pLocalDir+="/";
+		}
+		String localFile = pLocalDir+new File(pRemoteFile).getName();
+		File outputFile = new File(localFile);
+
+		String remoteURI = getHTTPFileURI(gSettingsGet, pRemoteFile);
+
+		Sample sample = MetricsRegistry.getDefault().start("webdav.get", remoteURI);
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		event.operation = "webdav.get";
+		event.uri = remoteURI;
+		event.path = localFile;
+		long count = 0;
+		try {
+			Response conn = getReplicaSet().open(new ReplicaSet.Opener() {
+				public Response open(String pReplica) throws IOException {
+					return getTransport(gSettingsGet).send(setupConnection(gSettingsGet, getHTTPFileURI(gSettingsGet, pReplica, pRemoteFile), "GET"));
+				}
+			});
+			sample.setStatus(conn.getStatus());
+			sample.firstByte();
+			event.status = conn.getStatus();
+			event.uri = conn.getURI();
+
+			long startTime = System.currentTimeMillis();
+			sample.transferStart();
+			long modified = -1;
+			try {
+				if(conn.getStatus()!=HttpURLConnection.HTTP_OK) {
+					throw new IOException("Return code: "+conn.getStatus()+" "+conn.getURI());
+				}
+				System.out.println("Copying: "+conn.getURI()+" -> "+localFile);
+				String contentLength = conn.getHeader("Content-Length");
+				long size = contentLength==null?-1:Long.parseLong(contentLength);
+				String lastModified = conn.getHeader("Last-Modified");
+				if(lastModified!=null) {
+					//e.g. Tue, 10 Oct 2006 07:07:02 GMT
+					try {
+						modified = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz").parse(lastModified).getTime();
+					} catch (ParseException e) {
+						e.printStackTrace();
+					}
+				}
+				BufferedInputStream fis = new BufferedInputStream(conn.getBody());
+				FileOutputStream fos = new FileOutputStream(outputFile);
+				try {
+					byte[] buffer = new byte[32768];
+					int bytesRead = 0;
+					while((bytesRead = fis.read(buffer))!=-1) {
+						fos.write(buffer, 0, bytesRead);
+						count += bytesRead;
+					}
+				} finally {
+					fis.close();
+					fos.close();
+				}
+				if(size>=0&&count!=size) {
+					throw new IOException("Expected ["+size+"] bytes, got ["+count+"] "+conn.getURI());
+				}
+			} finally {
+				conn.close();
+			}
+			if(modified>=0) outputFile.setLastModified(modified);
+			sample.transferEnd(count);
+			sample.finish();
+			event.bytes = count;
+			event.success = true;
+			event.commit();
+			System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+			return outputFile;
+		} catch (IOException e) {
+			e.printStackTrace();
+			outputFile.delete();
+			sample.transferEnd(count);
+			sample.fail();
+			event.bytes = count;
+			event.commit();
+			return null;
+		}
+
+	}
+
+	/**
+	 * This method implements MKCOL (the URLConnection transport sends it with Apache HttpClient)
+	 * @param pRemotePath
+	 */
+	private void mkdirs(String pRemotePath)  {
+		System.err.println("mkdirs() is very very slow");
+
+		Settings settings = gSettingsPut;
+		Transport client = getTransport(settings);
+
+		String mkdirPath = "";
+
+		long startTime = 0;
+
+		for(String dir:pRemotePath.split("/")) {
+
+			if(dir.equals("")) continue;
+
+			mkdirPath += dir+"/";
+
+			System.out.print("Creating: "+mkdirPath+" ");
+
+			startTime = System.currentTimeMillis();
+
+			Request request = setupConnection(settings, getHTTPFileURI(settings, "/"+mkdirPath), "MKCOL");
+
+			Response response = null;
+			Sample sample = MetricsRegistry.getDefault().start("webdav.mkcol", request.getURI());
+			TransferEvent event = new TransferEvent();
+			event.begin();
+			event.operation = "webdav.mkcol";
+			event.uri = request.getURI();
+
+			try {
+				response = client.send(request);
+				//release the connection back to the pool
+				response.close();
+				sample.firstByte();
+				int status = response.getStatus();
+				event.status = status;
+				//405: the collection already exists
+				if(status>=400&&status!=405) {
+					sample.fail(status);
+				} else {
+					sample.setStatus(status);
+					sample.finish();
+					event.success = true;
+				}
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				sample.fail();
+			}
+			event.commit();
+
+			System.out.println("in "+(System.currentTimeMillis()-startTime)+"ms");
+		}
+
+	}
+
+	/**
+	 * Post a file to the webdav repository.  Without pOverwrite the PUT is conditional on the
+	 * file not existing (If-None-Match: *), so an existing file is left alone and its content is
+	 * never sent.
+	 * @param pLocalFile local file to copy (full path)
+	 * @param pRepositoryPath path in webdav repo to post file to
+	 * @param pOverwrite whether or not to overwrite an existing file
+	 * @return outcome of the upload
+	 */
+	public PutResult postFile(File pLocalFile, String pRepositoryPath, boolean pOverwrite) {
+		return postFile(pLocalFile, pRepositoryPath, pOverwrite, null);
+	}
+
+	/**
+	 * Post a file to the webdav repository, replacing the existing file only if it has not
+	 * changed since its ETag was read (If-Match)
+	 * @param pLocalFile local file to copy (full path)
+	 * @param pRepositoryPath path in webdav repo to post file to
+	 * @param pETag ETag of the file being replaced, e.g. from getETag()
+	 * @return outcome of the upload (REJECTED if the file has changed or no longer exists)
+	 */
+	public PutResult postFile(File pLocalFile, String pRepositoryPath, String pETag) {
+		return postFile(pLocalFile, pRepositoryPath, true, pETag);
+	}
+
+	private PutResult postFile(File pLocalFile, String pRepositoryPath, boolean pOverwrite, String pETag) {
+
+		if(!pRepositoryPath.endsWith("/")) pRepositoryPath += "/";
+
+		if(!pLocalFile.exists()) return PutResult.FAILED;
+
+		Semaphore permits = acquire();
+		try {
+			//WARNING: VERY SLOW
+			mkdirs(pRepositoryPath);
+
+			return putFile(pLocalFile, pRepositoryPath, pOverwrite, pETag);
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Get the ETag of a file in the repository (HEAD request to the put server)
+	 * @param pRemoteFile path of the file in the repository
+	 * @return ETag, or null if the file does not exist or the server does not send one
+	 */
+	public String getETag(String pRemoteFile) {
+		Semaphore permits = acquire();
+		try {
+			Response server = getTransport(gSettingsPut).send(setupConnection(gSettingsPut, getHTTPFileURI(gSettingsPut, pRemoteFile), "HEAD"));
+			server.close();
+			if(server.getStatus()!=HttpURLConnection.HTTP_OK) return null;
+			return server.getHeader("ETag");
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			release(permits);
+		}
+	}
+
+	/**
+	 * Post a set of files to the same path in the webdav repository.  Files the journal records
+	 * as completed are skipped, and the outcome of each upload is recorded, so a failed run can
+	 * be restarted with the same journal.  The remote path is only created once.
+	 * @param pLocalFiles local files to copy
+	 * @param pRepositoryPath path in webdav repo to post files to
+	 * @param pOverwrite whether or not to overwrite existing files
+	 * @param pJournal journal of completed uploads
+	 * @return number of files uploaded or already in the repository (not including those skipped
+	 * because the journal records them as posted)
+	 */
+	public int postFiles(Iterable<File> pLocalFiles, String pRepositoryPath, boolean pOverwrite, IngestJournal pJournal) {
+
+		if(!pRepositoryPath.endsWith("/")) pRepositoryPath += "/";
+
+		boolean mkdirs = false;
+		int count = 0;
+		int skipped = 0;
+		int existing = 0;
+
+		for(File file:pLocalFiles) {
+			String key = file.getAbsolutePath();
+			if(pJournal.isCompleted(key)) {
+				skipped++;
+				continue;
+			}
+			boolean success = false;
+			if(file.exists()) {
+				Semaphore permits = acquire();
+				try {
+					if(!mkdirs) {
+						//WARNING: VERY SLOW
+						mkdirs(pRepositoryPath);
+						mkdirs = true;
+					}
+					PutResult result = putFile(file, pRepositoryPath, pOverwrite, null);
+					if(result==PutResult.SKIPPED) existing++;
+					success = result.isSuccess();
+				} finally {
+					release(permits);
+				}
+			}
+			if(success) count++;
+			try {
+				pJournal.record(key, pRepositoryPath+file.getName(), null, success?IngestJournal.COMPLETED:IngestJournal.FAILED);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			pJournal.sync();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Posted ["+(count-existing)+"] files, ["+existing+"] already in the repository, skipped ["+skipped+"] already posted");
+		return count;
+	}
+
+	/**
+	 * Get the URI a file posted to the repository can be retrieved from (using the get server settings)
+	 * @param pLocalFile local file that has been/will be posted
+	 * @param pRepositoryPath path in webdav repo the file is posted to
+	 * @return http(s) URI for the file in the repository
+	 */
+	public String getPostedFileURI(File pLocalFile, String pRepositoryPath) {
+		if(!pRepositoryPath.endsWith("/")) pRepositoryPath += "/";
+		return getHTTPFileURI(gSettingsGet, pRepositoryPath)+pLocalFile.getName();
+	}
+
+	/**
+	 * Get the path a file is staged at by stageFile(): the file's absolute local directory under
+	 * pRepositoryPath, so files with the same name in different directories do not collide
+	 * @param pLocalFile local file that has been/will be staged
+	 * @param pRepositoryPath path in webdav repo files are staged under
+	 * @return path in webdav repo the file is staged in (ending with "/")
+	 */
+	public String getStagingPath(File pLocalFile, String pRepositoryPath) {
+		if(!pRepositoryPath.endsWith("/")) pRepositoryPath += "/";
+		String parent = pLocalFile.getAbsoluteFile().getParent();
+		if(parent==null) return pRepositoryPath;
+		//C:\dir\file is staged under C/dir/
+		parent = parent.replace(File.separatorChar, '/').replace(":", "");
+		while(parent.startsWith("/")) parent = parent.substring(1);
+		if(parent.equals("")) return pRepositoryPath;
+		return pRepositoryPath+parent+"/";
+	}
+
+	/**
+	 * Get the URI a file staged with stageFile() can be retrieved from (using the get server settings)
+	 * @param pLocalFile local file that has been/will be staged
+	 * @param pRepositoryPath path in webdav repo files are staged under
+	 * @return http(s) URI for the staged file
+	 */
+	public String getStagedFileURI(File pLocalFile, String pRepositoryPath) {
+		return getPostedFileURI(pLocalFile, getStagingPath(pLocalFile, pRepositoryPath));
+	}
+
+	/**
+	 * Post a file to the repository for staging, at getStagingPath(), only creating the remote path
+	 * the first time it is used by this instance.  An existing staged file is not overwritten; it is
+	 * kept if its content (MD5, read back from the put server) matches the local file, e.g. if it
+	 * was staged by an interrupted run, otherwise staging fails.
+	 * @param pLocalFile local file to copy
+	 * @param pRepositoryPath path in webdav repo files are staged under
+	 * @return success boolean
+	 */
+	public boolean stageFile(File pLocalFile, String pRepositoryPath) {
+		return stageFile(pLocalFile, pRepositoryPath, false).isSuccess();
+	}
+
+	PutResult stageFile(File pLocalFile, String pRepositoryPath, boolean pOverwrite) {
+		if(!pLocalFile.exists()) return PutResult.FAILED;
+		String path = getStagingPath(pLocalFile, pRepositoryPath);
+		Semaphore permits = acquire();
+		try {
+			AtomicBoolean created = gStagingPaths.get(path);
+			if(created==null) {
+				created = new AtomicBoolean(false);
+				AtomicBoolean existing = gStagingPaths.putIfAbsent(path, created);
+				if(existing!=null) created = existing;
+			}
+			synchronized(created) {
+				if(!created.get()) {
+					//WARNING: VERY SLOW
+					mkdirs(path);
+					created.set(true);
+				}
+			}
+			PutResult result = putFile(pLocalFile, path, pOverwrite, null);
+			if(result!=PutResult.SKIPPED) return result;
+			//something is already staged at this path
+			String staged = getChecksum(gSettingsPut, path+pLocalFile.getName(), "MD5");
+			if(staged!=null&&staged.equals(Tools.generateChecksum("MD5", pLocalFile.getAbsolutePath()))) return PutResult.SKIPPED;
+			System.out.println("Error: a different file is staged at "+path+pLocalFile.getName());
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			release(permits);
+		}
+		return PutResult.REJECTED;
+	}
+
+	/**
+	 * Checksum a file in the repository by reading it back
+	 * @return checksum, or null if the file could not be read
+	 */
+	private String getChecksum(Settings pSettings, String pRemoteFile, String pType) throws IOException {
+		ChecksumEngine engine;
+		try {
+			engine = new ChecksumEngine(new String[] { pType });
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		Response server = getTransport(pSettings).send(setupConnection(pSettings, getHTTPFileURI(pSettings, pRemoteFile), "GET"));
+		try {
+			if(server.getStatus()!=HttpURLConnection.HTTP_OK) return null;
+			InputStream body = server.getBody();
+			byte[] buffer = new byte[32768];
+			int bytesRead = 0;
+			while((bytesRead = body.read(buffer))!=-1) {
+				engine.update(buffer, 0, bytesRead);
+			}
+			body.close();
+		} finally {
+			server.close();
+		}
+		return engine.getChecksums().get(pType.toUpperCase());
+	}
+
+	private PutResult putFile(File pLocalFile, String pRepositoryPath, boolean pOverwrite, String pETag) {
+
+		Settings pSettings = gSettingsPut;
+
+		PutResult result;
+
+		String remotePath = getHTTPFileURI(pSettings, pRepositoryPath)+pLocalFile.getName();
+
+		Sample sample = MetricsRegistry.getDefault().start("webdav.put", remotePath);
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		event.operation = "webdav.put";
+		event.uri = remotePath;
+		event.path = pLocalFile.getAbsolutePath();
+
+		//upload the file (streamed by the transport)
+		try {
+			Request request = setupConnection(pSettings, remotePath, "PUT").setBody(pLocalFile);
+			if(pETag!=null) {
+				request.setHeader("If-Match", pETag);
+			} else if(!pOverwrite) {
+				request.setHeader("If-None-Match", "*");
+			}
+			//let the server refuse the request (authentication, missing collection, failed
+			//condition) before the body is sent
+			if(pLocalFile.length()>0) request.setHeader("Expect", "100-continue");
+			long count = pLocalFile.length();
+
+			long startTime = System.currentTimeMillis();
+			sample.transferStart();
+
+			Response server = getTransport(pSettings).send(request);
+			server.close();
+
+			System.out.println("Return code: "+server.getStatus()+" "+server.getURI());
+			sample.firstByte();
+
+			//201 for a new file, 204 (or 200) when an existing file was overwritten
+			if(HttpURLConnection.HTTP_CREATED==server.getStatus()) {
+				result = PutResult.CREATED;
+			} else if(HttpURLConnection.HTTP_NO_CONTENT==server.getStatus()||HttpURLConnection.HTTP_OK==server.getStatus()) {
+				result = PutResult.REPLACED;
+			} else if(HttpURLConnection.HTTP_PRECON_FAILED==server.getStatus()&&pETag==null&&!pOverwrite) {
+				result = PutResult.SKIPPED;
+				count = 0;
+				System.out.println("Exists, not overwritten: "+remotePath);
+			} else {
+				result = PutResult.REJECTED;
+				count = 0;
+			}
+			//a refused request does not send the body (assuming the server honours Expect)
+			sample.transferEnd(count);
+			if(count>0) System.out.println("Copied ["+count+"] bytes in ["+(System.currentTimeMillis()-startTime)+"] ms");
+			event.bytes = count;
+			event.status = server.getStatus();
+			event.success = result.isSuccess();
+			if(result.isSuccess()) {
+				sample.setStatus(server.getStatus());
+				sample.finish();
+			} else {
+				sample.fail(server.getStatus());
+			}
+
+
+		} catch(IOException e) {
+			e.printStackTrace();
+			sample.fail();
+			return PutResult.FAILED;
+		} finally {
+			event.commit();
+		}
+
+		return result;
+
+	}
+
+}
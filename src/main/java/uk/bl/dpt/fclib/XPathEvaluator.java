@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Evaluates XPath expressions against XML documents, reusing a DocumentBuilder and compiled
+ * expressions per thread (neither is thread safe) and evaluating a set of named expressions
+ * against a single parse.
+ *
+ * Simple absolute paths (/a/b/c, /a/b/@attr, /a/b/text()) can optionally be evaluated by
+ * streaming the document with StAX rather than building a DOM; the stream is only read as far
+ * as needed to resolve all the expressions.  Prefixed names are left to the DOM path (the
+ * parser is not namespace aware, and no namespace context is set for the expressions).
+ * @author wpalmer
+ *
+ */
+public class XPathEvaluator {
+
+	private static final Pattern SIMPLE_PATH = Pattern.compile("(/[A-Za-z_][\\w.-]*)+(/@[A-Za-z_][\\w.-]*|/text\\(\\))?");
+
+	private static final XPathEvaluator gDefault = new XPathEvaluator(false);
+
+	private static final XMLInputFactory gInputFactory = XMLInputFactory.newInstance();
+
+	private static final ThreadLocal<DocumentBuilder> gBuilder = new ThreadLocal<DocumentBuilder>() {
+		protected DocumentBuilder initialValue() {
+			try {
+				return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	};
+
+	private static final ThreadLocal<XPath> gXPath = new ThreadLocal<XPath>() {
+		protected XPath initialValue() {
+			return XPathFactory.newInstance().newXPath();
+		}
+	};
+
+	private static final ThreadLocal<Map<String, XPathExpression>> gCompiled = new ThreadLocal<Map<String, XPathExpression>>() {
+		protected Map<String, XPathExpression> initialValue() {
+			return new HashMap<String, XPathExpression>();
+		}
+	};
+
+	private boolean gStreaming;
+
+	/**
+	 * Initialise the evaluator
+	 * @param pStreaming whether or not to use the streaming fast path for simple paths
+	 */
+	public XPathEvaluator(boolean pStreaming) {
+		gStreaming = pStreaming;
+	}
+
+	/**
+	 * @return shared evaluator (without streaming, so results are identical to a DOM evaluation)
+	 */
+	public static XPathEvaluator getDefault() {
+		return gDefault;
+	}
+
+	/**
+	 * Check whether an expression can be evaluated by streaming
+	 * @param pXPath expression
+	 * @return true if the expression is a simple absolute path
+	 */
+	public static boolean isSimplePath(String pXPath) {
+		return SIMPLE_PATH.matcher(pXPath).matches();
+	}
+
+	private static XPathExpression compile(String pXPath) throws XPathExpressionException {
+		Map<String, XPathExpression> compiled = gCompiled.get();
+		XPathExpression expr = compiled.get(pXPath);
+		if(expr==null) {
+			expr = gXPath.get().compile(pXPath);
+			compiled.put(pXPath, expr);
+		}
+		return expr;
+	}
+
+	/**
+	 * Recover the value associated with a xpath expression
+	 * @param pInputStream xml file
+	 * @param pXPath XPath expression to evaluate
+	 * @return value associated with the xpath expression (or null if error)
+	 */
+	public String evaluate(InputStream pInputStream, String pXPath) {
+		Map<String, String> exprs = new HashMap<String, String>();
+		exprs.put(pXPath, pXPath);
+		Map<String, String> values = evaluate(pInputStream, exprs);
+		return values==null?null:values.get(pXPath);
+	}
+
+	/**
+	 * Recover the values associated with a set of xpath expressions, parsing the xml once
+	 * @param pInputStream xml file
+	 * @param pXPaths XPath expressions to evaluate, keyed by name
+	 * @return values keyed by name (or null if error)
+	 */
+	public Map<String, String> evaluate(InputStream pInputStream, Map<String, String> pXPaths) {
+		boolean simple = gStreaming;
+		for(String xpath:pXPaths.values()) {
+			if(!simple) break;
+			simple = isSimplePath(xpath);
+		}
+		try {
+			if(simple) return evaluateStreaming(pInputStream, pXPaths);
+			return evaluateDOM(pInputStream, pXPaths);
+		} catch (XPathExpressionException e) {
+		} catch (XMLStreamException e) {
+		} catch (SAXException e) {
+		} catch (IOException e) {
+		}
+		return null;
+	}
+
+	private Map<String, String> evaluateDOM(InputStream pInputStream, Map<String, String> pXPaths) throws SAXException, IOException, XPathExpressionException {
+		DocumentBuilder docB = gBuilder.get();
+		docB.reset();
+		Document doc = docB.parse(pInputStream);
+		Node root = doc.getFirstChild();
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, String> xpath:pXPaths.entrySet()) {
+			values.put(xpath.getKey(), compile(xpath.getValue()).evaluate(root));
+		}
+		return values;
+	}
+
+	/**
+	 * A simple path being matched against the stream
+	 */
+	private static class StreamPath {
+		private String gName;
+		private String[] gSteps;
+		private String gAttribute = null;
+		private boolean gText = false;
+		private String gValue = null;
+		//depth of the element whose text is being collected, or -1
+		private int gCapture = -1;
+		private StringBuilder gBuffer = new StringBuilder();
+
+		private StreamPath(String pName, String pXPath) {
+			gName = pName;
+			List<String> steps = new ArrayList<String>();
+			for(String step:pXPath.substring(1).split("/")) {
+				if(step.startsWith("@")) {
+					gAttribute = step.substring(1);
+				} else if(step.equals("text()")) {
+					gText = true;
+				} else {
+					steps.add(step);
+				}
+			}
+			gSteps = steps.toArray(new String[steps.size()]);
+		}
+
+		private boolean matches(List<String> pStack) {
+			if(pStack.size()!=gSteps.length) return false;
+			for(int i=gSteps.length-1;i>=0;i--) {
+				if(!gSteps[i].equals(pStack.get(i))) return false;
+			}
+			return true;
+		}
+	}
+
+	private static String qname(XMLStreamReader pReader) {
+		String prefix = pReader.getPrefix();
+		return prefix==null||prefix.length()==0?pReader.getLocalName():prefix+":"+pReader.getLocalName();
+	}
+
+	private Map<String, String> evaluateStreaming(InputStream pInputStream, Map<String, String> pXPaths) throws XMLStreamException {
+		List<StreamPath> unresolved = new ArrayList<StreamPath>();
+		List<StreamPath> paths = new ArrayList<StreamPath>();
+		for(Map.Entry<String, String> xpath:pXPaths.entrySet()) {
+			StreamPath path = new StreamPath(xpath.getKey(), xpath.getValue());
+			paths.add(path);
+			unresolved.add(path);
+		}
+
+		XMLStreamReader reader = gInputFactory.createXMLStreamReader(pInputStream);
+		try {
+			List<String> stack = new ArrayList<String>();
+			while(!unresolved.isEmpty()&&reader.hasNext()) {
+				switch(reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					for(StreamPath path:unresolved) {
+						//a text() capture ends at the first child element
+						if(path.gText&&path.gCapture==stack.size()&&path.gBuffer.length()>0) {
+							path.gValue = path.gBuffer.toString();
+						}
+					}
+					stack.add(qname(reader));
+					for(StreamPath path:unresolved) {
+						if(path.gValue!=null||path.gCapture>=0||!path.matches(stack)) continue;
+						if(path.gAttribute!=null) {
+							for(int i=0;i<reader.getAttributeCount();i++) {
+								String name = reader.getAttributePrefix(i);
+								name = name==null||name.length()==0?reader.getAttributeLocalName(i):name+":"+reader.getAttributeLocalName(i);
+								if(name.equals(path.gAttribute)) {
+									path.gValue = reader.getAttributeValue(i);
+									break;
+								}
+							}
+						} else {
+							path.gCapture = stack.size();
+							path.gBuffer.setLength(0);
+						}
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					for(StreamPath path:unresolved) {
+						if(path.gCapture<0||path.gValue!=null) continue;
+						if(path.gText&&path.gCapture!=stack.size()) continue;
+						path.gBuffer.append(reader.getText());
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					for(StreamPath path:unresolved) {
+						if(path.gCapture!=stack.size()) continue;
+						path.gCapture = -1;
+						//text() on an element with no text carries on to the next match
+						if(!path.gText||path.gBuffer.length()>0) path.gValue = path.gBuffer.toString();
+					}
+					stack.remove(stack.size()-1);
+					break;
+				default:
+					break;
+				}
+				for(int i=unresolved.size()-1;i>=0;i--) {
+					if(unresolved.get(i).gValue!=null) unresolved.remove(i);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for(StreamPath path:paths) {
+			//as for XPath string(), no match is the empty string
+			values.put(path.gName, path.gValue==null?"":path.gValue);
+		}
+		return values;
+	}
+
+}
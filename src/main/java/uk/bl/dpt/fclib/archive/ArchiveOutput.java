@@ -0,0 +1,443 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.bl.dpt.fclib.ChecksumEngine;
+
+/**
+ * Writes recovered content into a series of archive volumes instead of one file per
+ * datastream, so a bulk export produces a few large sequential files.  Each entry is
+ * checksummed as it is written: the checksum is checked against the expected value (e.g. from
+ * the datastream profile) and an entry that does not match is removed again, and the
+ * checksum for the manifest is recorded without reading the data back.  A new volume is
+ * started when the current one would grow past the volume size.
+ * <p>
+ * In TAR format each volume is a tar file with a manifest beside it (e.g. export-00001.tar
+ * and export-00001.md5, in md5sum format).  In BAGIT format each volume is a serialised
+ * BagIt bag: a tar file containing one top-level directory with the content under data/ and
+ * bagit.txt, bag-info.txt, payload manifest and tag manifest at the end.
+ * <p>
+ * Entries are added from many threads at once; each volume is written by one thread at a
+ * time, so the number of volumes open at once limits how many entries are written
+ * concurrently.
+ * @author wpalmer
+ *
+ */
+public class ArchiveOutput {
+
+	/**
+	 * Archive formats
+	 */
+	public enum Format {
+		/** tar volumes with a manifest file beside each */
+		TAR,
+		/** tar volumes each containing a BagIt bag */
+		BAGIT
+	}
+
+	/** default volume size: 4GB */
+	public static final long DEFAULT_VOLUME_SIZE = 4L*1024*1024*1024;
+
+	//entries of unknown size up to this are buffered in memory, larger ones in a temporary file
+	private static final int SPOOL_IN_MEMORY = 1024*1024;
+
+	/**
+	 * An entry written to a volume
+	 */
+	public static class Entry {
+		private String gPath;
+		private File gVolume;
+		private long gSize;
+		private Map<String, String> gChecksums;
+		private Entry(String pPath, File pVolume, long pSize, Map<String, String> pChecksums) {
+			gPath = pPath;
+			gVolume = pVolume;
+			gSize = pSize;
+			gChecksums = pChecksums;
+		}
+		/** @return path of the entry (in BAGIT format, relative to the bag's data directory) */
+		public String getPath() { return gPath; }
+		/** @return volume the entry is in */
+		public File getVolume() { return gVolume; }
+		/** @return size in bytes */
+		public long getSize() { return gSize; }
+		/**
+		 * @param pType checksum type, e.g. MD5
+		 * @return checksum (lowercase hex), or null if not calculated
+		 */
+		public String getChecksum(String pType) { return gChecksums.get(pType.toUpperCase()); }
+		public String toString() { return gVolume.getName()+"!"+gPath; }
+	}
+
+	/**
+	 * One open volume
+	 */
+	private class Volume {
+		private TarWriter gTar;
+		private String gName;
+		private File gManifest;
+		private Writer gManifestOut;
+		private long gPayloadBytes = 0;
+		private long gPayloadFiles = 0;
+		//set once finish() has started: the volume must not be written to again
+		private boolean gFinished = false;
+
+		private Volume(int pNumber) throws IOException {
+			gName = String.format("%s-%05d", gBaseName, pNumber);
+			gTar = new TarWriter(new File(gDirectory, gName+".tar"));
+			//manifest lines are kept on disk until the volume is finished
+			gManifest = gFormat==Format.TAR?new File(gDirectory, gName+"."+getManifestSuffix()):
+				File.createTempFile(gName, ".manifest", gDirectory);
+			gManifestOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(gManifest), StandardCharsets.UTF_8));
+		}
+
+		private String getEntryName(String pPath) {
+			return gFormat==Format.BAGIT?gName+"/data/"+pPath:pPath;
+		}
+
+		private void recordEntry(String pPath, long pSize, String pChecksum) throws IOException {
+			gManifestOut.write(pChecksum+"  "+(gFormat==Format.BAGIT?"data/":"")+pPath+"\n");
+			gPayloadBytes += pSize;
+			gPayloadFiles++;
+		}
+
+		private void finish() throws IOException {
+			if(gFinished) return;
+			gFinished = true;
+			gManifestOut.close();
+			if(gFormat==Format.BAGIT) {
+				long now = System.currentTimeMillis();
+				Map<String, byte[]> tags = new LinkedHashMap<String, byte[]>();
+				tags.put("bagit.txt", "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n".getBytes(StandardCharsets.UTF_8));
+				tags.put("bag-info.txt", ("Bagging-Date: "+new SimpleDateFormat("yyyy-MM-dd").format(new Date(now))+"\n"+
+						"Payload-Oxum: "+gPayloadBytes+"."+gPayloadFiles+"\n"+
+						"Bag-Group-Identifier: "+gBaseName+"\n"+
+						"Bag-Size: "+gPayloadBytes+" bytes\n").getBytes(StandardCharsets.UTF_8));
+				tags.put("manifest-"+getManifestSuffix()+".txt", Files.readAllBytes(gManifest.toPath()));
+				gManifest.delete();
+				StringBuilder tagManifest = new StringBuilder();
+				for(Map.Entry<String, byte[]> tag:tags.entrySet()) {
+					gTar.putEntry(gName+"/"+tag.getKey(), tag.getValue(), now);
+					tagManifest.append(checksum(tag.getValue())+"  "+tag.getKey()+"\n");
+				}
+				gTar.putEntry(gName+"/tagmanifest-"+getManifestSuffix()+".txt", tagManifest.toString().getBytes(StandardCharsets.UTF_8), now);
+			}
+			gTar.close();
+			System.out.println("Archived ["+gPayloadFiles+"] files, ["+gPayloadBytes+"] bytes in "+gTar.getFile());
+		}
+	}
+
+	private File gDirectory;
+	private String gBaseName;
+	private Format gFormat;
+	private long gVolumeSize;
+	private String gManifestType = "MD5";
+	private int gMaxOpen;
+	private AtomicInteger gNextVolume = new AtomicInteger(1);
+	private LinkedBlockingQueue<Volume> gIdle = new LinkedBlockingQueue<Volume>();
+	private List<File> gVolumes = new ArrayList<File>();
+	private int gOpen = 0;
+	private boolean gClosed = false;
+
+	/**
+	 * Write archive volumes, one at a time
+	 * @param pDirectory directory to write volumes to
+	 * @param pBaseName volume name prefix, e.g. export (for export-00001.tar etc)
+	 * @param pFormat archive format
+	 * @param pVolumeSize size at which to start a new volume (bytes)
+	 */
+	public ArchiveOutput(File pDirectory, String pBaseName, Format pFormat, long pVolumeSize) {
+		this(pDirectory, pBaseName, pFormat, pVolumeSize, 1);
+	}
+
+	/**
+	 * Write archive volumes
+	 * @param pDirectory directory to write volumes to
+	 * @param pBaseName volume name prefix, e.g. export (for export-00001.tar etc)
+	 * @param pFormat archive format
+	 * @param pVolumeSize size at which to start a new volume (bytes)
+	 * @param pMaxOpen number of volumes written at once (the number of entries that can be
+	 * written concurrently)
+	 */
+	public ArchiveOutput(File pDirectory, String pBaseName, Format pFormat, long pVolumeSize, int pMaxOpen) {
+		gDirectory = pDirectory;
+		gBaseName = pBaseName;
+		gFormat = pFormat;
+		gVolumeSize = pVolumeSize>0?pVolumeSize:DEFAULT_VOLUME_SIZE;
+		gMaxOpen = Math.max(1, pMaxOpen);
+	}
+
+	/**
+	 * Set the checksum type used for the manifests (before adding any entries)
+	 * @param pType checksum type, e.g. MD5 (the default) or SHA-256
+	 */
+	public void setManifestType(String pType) {
+		gManifestType = pType.toUpperCase();
+	}
+
+	private String getManifestSuffix() {
+		//BagIt names: md5, sha1, sha256, sha512
+		return gManifestType.toLowerCase().replace("-", "");
+	}
+
+	private String checksum(byte[] pData) throws IOException {
+		ChecksumEngine engine = createEngine(null);
+		engine.update(pData, 0, pData.length);
+		return engine.getChecksums().get(gManifestType);
+	}
+
+	private ChecksumEngine createEngine(String pExpectedType) throws IOException {
+		try {
+			if(pExpectedType==null||pExpectedType.equals(gManifestType)) {
+				return new ChecksumEngine(new String[] { gManifestType });
+			}
+			return new ChecksumEngine(new String[] { gManifestType, pExpectedType });
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unknown checksum type: "+e.getMessage());
+		}
+	}
+
+	private Volume acquire() throws IOException {
+		synchronized(this) {
+			if(gClosed) throw new IOException("Archive closed");
+			Volume volume = gIdle.poll();
+			if(volume!=null) return volume;
+			if(gOpen<gMaxOpen) {
+				gOpen++;
+				try {
+					return newVolume();
+				} catch(IOException e) {
+					gOpen--;
+					throw e;
+				}
+			}
+		}
+		try {
+			return gIdle.take();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for an archive volume");
+		}
+	}
+
+	private Volume newVolume() throws IOException {
+		Volume volume = new Volume(gNextVolume.getAndIncrement());
+		synchronized(gVolumes) {
+			gVolumes.add(volume.gTar.getFile());
+		}
+		return volume;
+	}
+
+	private void release(Volume pVolume) {
+		if(pVolume.gFinished) throw new IllegalStateException("Volume "+pVolume.gName+" already finished");
+		gIdle.add(pVolume);
+	}
+
+	/**
+	 * Add an entry to the archive, reading its content from a stream
+	 * @param pPath path of the entry (e.g. pid/datastream/label)
+	 * @param pData content (not closed)
+	 * @param pSize size of the content, or -1 if not known (the content is then buffered
+	 * before being written)
+	 * @param pModified modification time (ms since the epoch)
+	 * @param pChecksumType type of pExpectedChecksum, or null
+	 * @param pExpectedChecksum expected checksum of the content, or null to not check it
+	 * @return the entry written
+	 * @throws IOException on a read or write error, or if the content is shorter or longer than
+	 * pSize or does not match the expected checksum (the entry is then not in the archive)
+	 */
+	public Entry add(String pPath, InputStream pData, long pSize, long pModified, String pChecksumType, String pExpectedChecksum) throws IOException {
+		if(pChecksumType!=null) pChecksumType = pChecksumType.toUpperCase();
+		if(pExpectedChecksum==null||pChecksumType==null||pChecksumType.equals("DISABLED")) {
+			pChecksumType = null;
+			pExpectedChecksum = null;
+		}
+		if(pSize<0) return addUnknownSize(pPath, pData, pModified, pChecksumType, pExpectedChecksum);
+
+		ChecksumEngine engine = createEngine(pChecksumType);
+		Volume volume = acquire();
+		try {
+			if(isFull(volume, pPath, pSize)) {
+				//open the next volume before finishing this one, so if either fails the
+				//volume released below is still usable
+				Volume full = volume;
+				volume = newVolume();
+				full.finish();
+			}
+			String name = volume.getEntryName(pPath);
+			volume.gTar.putEntry(name, pSize, pModified);
+			byte[] buffer = new byte[32768];
+			long count = 0;
+			try {
+				while(count<pSize) {
+					int bytesRead = pData.read(buffer, 0, (int)Math.min(buffer.length, pSize-count));
+					if(bytesRead<0) throw new IOException("Content of "+pPath+" shorter than expected: "+count+" of "+pSize+" bytes");
+					engine.update(buffer, 0, bytesRead);
+					volume.gTar.write(buffer, 0, bytesRead);
+					count += bytesRead;
+				}
+				if(pData.read()>=0) throw new IOException("Content of "+pPath+" longer than expected: "+pSize+" bytes");
+				Map<String, String> checksums = engine.getChecksums();
+				check(pPath, checksums, pChecksumType, pExpectedChecksum);
+				volume.recordEntry(pPath, pSize, checksums.get(gManifestType));
+				return new Entry(pPath, volume.gTar.getFile(), pSize, checksums);
+			} catch(IOException e) {
+				volume.gTar.rollback();
+				throw e;
+			}
+		} finally {
+			release(volume);
+		}
+	}
+
+	/**
+	 * Add an entry from a local file
+	 * @param pPath path of the entry
+	 * @param pFile file to add
+	 * @return the entry written
+	 * @throws IOException on a read or write error
+	 */
+	public Entry add(String pPath, File pFile) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(pFile));
+		try {
+			return add(pPath, in, pFile.length(), pFile.lastModified(), null, null);
+		} finally {
+			in.close();
+		}
+	}
+
+	private Entry addUnknownSize(String pPath, InputStream pData, long pModified, String pChecksumType, String pExpectedChecksum) throws IOException {
+		//buffer the content (in memory, then in a temporary file once it is large) to find its size
+		byte[] memory = new byte[SPOOL_IN_MEMORY];
+		int inMemory = 0;
+		File spool = null;
+		OutputStream spoolOut = null;
+		try {
+			byte[] buffer = new byte[32768];
+			int bytesRead;
+			while((bytesRead = pData.read(buffer))>=0) {
+				if(spoolOut==null&&inMemory+bytesRead<=memory.length) {
+					System.arraycopy(buffer, 0, memory, inMemory, bytesRead);
+					inMemory += bytesRead;
+					continue;
+				}
+				if(spoolOut==null) {
+					spool = File.createTempFile(gBaseName, ".spool", gDirectory);
+					spoolOut = new BufferedOutputStream(new FileOutputStream(spool));
+					spoolOut.write(memory, 0, inMemory);
+				}
+				spoolOut.write(buffer, 0, bytesRead);
+			}
+			if(spoolOut==null) {
+				return add(pPath, new ByteArrayInputStream(memory, 0, inMemory), inMemory, pModified, pChecksumType, pExpectedChecksum);
+			}
+			spoolOut.close();
+			spoolOut = null;
+			InputStream in = new BufferedInputStream(new FileInputStream(spool));
+			try {
+				return add(pPath, in, spool.length(), pModified, pChecksumType, pExpectedChecksum);
+			} finally {
+				in.close();
+			}
+		} finally {
+			if(spoolOut!=null) spoolOut.close();
+			if(spool!=null) spool.delete();
+		}
+	}
+
+	private void check(String pPath, Map<String, String> pChecksums, String pChecksumType, String pExpectedChecksum) throws IOException {
+		if(pChecksumType==null) return;
+		String checksum = pChecksums.get(pChecksumType);
+		if(!checksum.equalsIgnoreCase(pExpectedChecksum)) {
+			System.out.println("WARNING: "+pChecksumType+" checksum error; remote: "+pExpectedChecksum+", local: "+checksum+" ("+pPath+")");
+			throw new IOException(pChecksumType+" checksum error; remote: "+pExpectedChecksum+", local: "+checksum);
+		}
+	}
+
+	/**
+	 * Whether this entry would take a volume past the volume size, so a new volume should be
+	 * started (an entry larger than the volume size gets a volume to itself)
+	 */
+	private boolean isFull(Volume pVolume, String pPath, long pSize) {
+		long length = TarWriter.getEntryLength(pVolume.getEntryName(pPath), pSize);
+		return pVolume.gPayloadFiles>0&&pVolume.gTar.getPosition()+length>gVolumeSize;
+	}
+
+	/**
+	 * @return volumes written so far (the last may still be open)
+	 */
+	public List<File> getVolumes() {
+		synchronized(gVolumes) {
+			return new ArrayList<File>(gVolumes);
+		}
+	}
+
+	/**
+	 * Finish and close all volumes.  Waits for entries being written.
+	 * @throws IOException write error
+	 */
+	public void close() throws IOException {
+		int open;
+		synchronized(this) {
+			if(gClosed) return;
+			gClosed = true;
+			open = gOpen;
+		}
+		IOException error = null;
+		for(int i=0;i<open;i++) {
+			Volume volume;
+			try {
+				volume = gIdle.take();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted closing archive");
+			}
+			try {
+				volume.finish();
+			} catch(IOException e) {
+				error = e;
+			}
+		}
+		if(error!=null) throw error;
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a POSIX (ustar) tar file sequentially.  Names that do not fit the ustar header and
+ * entries of 8GB or more are written with a pax extended header.  The file can be cut back to
+ * the start of the current entry, so an entry whose content turns out to be bad can be
+ * removed before the next one is written.
+ * @author wpalmer
+ *
+ */
+public class TarWriter {
+
+	private static final int BLOCK = 512;
+	//largest size that fits the 11 octal digits of the header
+	private static final long MAX_USTAR_SIZE = 077777777777L;
+
+	private File gFile;
+	private FileOutputStream gFileStream;
+	private BufferedOutputStream gOut;
+	private long gPosition = 0;
+	private long gEntryStart = 0;
+	private long gEntryRemaining = 0;
+
+	/**
+	 * Create a tar file
+	 * @param pFile file to write (replaced if it exists)
+	 * @throws IOException if the file cannot be created
+	 */
+	public TarWriter(File pFile) throws IOException {
+		gFile = pFile;
+		gFileStream = new FileOutputStream(pFile);
+		gOut = new BufferedOutputStream(gFileStream, 64*1024);
+	}
+
+	/**
+	 * @return the tar file
+	 */
+	public File getFile() {
+		return gFile;
+	}
+
+	/**
+	 * @return bytes written so far (including headers and padding)
+	 */
+	public long getPosition() {
+		return gPosition;
+	}
+
+	/**
+	 * Size an entry will take up in the archive, including its header(s) and padding
+	 * @param pName entry name
+	 * @param pSize entry size
+	 * @return bytes
+	 */
+	public static long getEntryLength(String pName, long pSize) {
+		long length = BLOCK+padded(pSize);
+		byte[] pax = paxRecords(pName, pSize);
+		if(pax!=null) length += BLOCK+padded(pax.length);
+		return length;
+	}
+
+	private static long padded(long pSize) {
+		return (pSize+BLOCK-1)/BLOCK*BLOCK;
+	}
+
+	/**
+	 * Start a file entry; exactly pSize bytes must then be written with write()
+	 * @param pName path in the archive (using /)
+	 * @param pSize size of the content
+	 * @param pModified modification time (ms since the epoch)
+	 * @throws IOException write error
+	 */
+	public void putEntry(String pName, long pSize, long pModified) throws IOException {
+		if(gEntryRemaining!=0) throw new IOException("Previous entry incomplete");
+		gEntryStart = gPosition;
+		byte[] pax = paxRecords(pName, pSize);
+		if(pax!=null) {
+			writeHeader("PaxHeaders/"+shortName(pName), pax.length, pModified, 'x');
+			writeBytes(pax, 0, pax.length);
+			pad(pax.length);
+		}
+		writeHeader(pName, pSize, pModified, '0');
+		gEntryRemaining = pSize;
+		if(pSize==0) closeEntry();
+	}
+
+	/**
+	 * Write content of the current entry
+	 * @param pBuffer data
+	 * @param pOffset offset in pBuffer
+	 * @param pLength number of bytes
+	 * @throws IOException write error, or more data than the entry size
+	 */
+	public void write(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		if(pLength>gEntryRemaining) throw new IOException("Entry data longer than its size");
+		writeBytes(pBuffer, pOffset, pLength);
+		gEntryRemaining -= pLength;
+		if(gEntryRemaining==0) closeEntry();
+	}
+
+	/**
+	 * Add a complete entry from a byte array
+	 * @param pName path in the archive
+	 * @param pData content
+	 * @param pModified modification time (ms since the epoch)
+	 * @throws IOException write error
+	 */
+	public void putEntry(String pName, byte[] pData, long pModified) throws IOException {
+		putEntry(pName, pData.length, pModified);
+		if(pData.length>0) write(pData, 0, pData.length);
+	}
+
+	/**
+	 * @return bytes still to be written for the current entry
+	 */
+	public long getEntryRemaining() {
+		return gEntryRemaining;
+	}
+
+	/**
+	 * Remove the current (or just completed) entry by cutting the file back to where it started
+	 * @throws IOException write error
+	 */
+	public void rollback() throws IOException {
+		gOut.flush();
+		gFileStream.getChannel().truncate(gEntryStart);
+		gFileStream.getChannel().position(gEntryStart);
+		gPosition = gEntryStart;
+		gEntryRemaining = 0;
+	}
+
+	private void closeEntry() throws IOException {
+		long size = gPosition-gEntryStart;
+		//pad the entry data to a whole block; the header(s) are already whole blocks
+		pad(size);
+	}
+
+	/**
+	 * Write the end of archive marker and close the file
+	 * @throws IOException write error, or the last entry is incomplete
+	 */
+	public void close() throws IOException {
+		if(gEntryRemaining!=0) {
+			rollback();
+		}
+		writeBytes(new byte[BLOCK*2], 0, BLOCK*2);
+		gOut.close();
+	}
+
+	private void pad(long pLength) throws IOException {
+		int padding = (int)(padded(pLength)-pLength);
+		if(padding>0) writeBytes(new byte[padding], 0, padding);
+	}
+
+	private void writeBytes(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		gOut.write(pBuffer, pOffset, pLength);
+		gPosition += pLength;
+	}
+
+	private static String shortName(String pName) {
+		String name = pName.substring(pName.lastIndexOf('/')+1);
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return bytes.length<=80?name:"entry";
+	}
+
+	/**
+	 * @return pax extended header records, or null if the entry fits a ustar header
+	 */
+	private static byte[] paxRecords(String pName, long pSize) {
+		StringBuilder records = new StringBuilder();
+		if(splitName(pName)==null) records.append(paxRecord("path", pName));
+		if(pSize>MAX_USTAR_SIZE) records.append(paxRecord("size", Long.toString(pSize)));
+		return records.length()==0?null:records.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String paxRecord(String pKey, String pValue) {
+		//"length key=value\n", where length includes its own digits
+		int length = pKey.getBytes(StandardCharsets.UTF_8).length+pValue.getBytes(StandardCharsets.UTF_8).length+3;
+		int total = length+Integer.toString(length).length();
+		if(Integer.toString(total).length()>Integer.toString(length).length()) total++;
+		return total+" "+pKey+"="+pValue+"\n";
+	}
+
+	/**
+	 * Split a name into the ustar prefix (155 bytes) and name (100 bytes) fields
+	 * @return {prefix, name}, or null if the name does not fit
+	 */
+	private static String[] splitName(String pName) {
+		byte[] bytes = pName.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length!=pName.length()) return null;
+		if(bytes.length<=100) return new String[] { "", pName };
+		for(int i=pName.indexOf('/');i>=0;i=pName.indexOf('/', i+1)) {
+			if(i<=155&&pName.length()-i-1<=100&&pName.length()-i-1>0) {
+				return new String[] { pName.substring(0, i), pName.substring(i+1) };
+			}
+		}
+		return null;
+	}
+
+	private void writeHeader(String pName, long pSize, long pModified, char pType) throws IOException {
+		byte[] header = new byte[BLOCK];
+		String[] name = splitName(pName);
+		if(name==null) {
+			//the full name is in the pax header; keep what fits for older readers
+			String ascii = pName.replaceAll("[^\\x20-\\x7e]", "_");
+			name = new String[] { "", ascii.length()>100?ascii.substring(ascii.length()-100):ascii };
+		}
+		putString(header, 0, 100, name[1]);
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, Math.min(pSize, MAX_USTAR_SIZE));
+		putOctal(header, 136, 12, pModified/1000);
+		//checksum is calculated with its own field as spaces
+		for(int i=148;i<156;i++) header[i] = ' ';
+		header[156] = (byte)pType;
+		putString(header, 257, 6, "ustar");
+		header[263] = '0';
+		header[264] = '0';
+		putString(header, 345, 155, name[0]);
+		long checksum = 0;
+		for(byte b:header) checksum += b&0xff;
+		String octal = String.format("%06o", checksum);
+		putString(header, 148, 6, octal);
+		header[154] = 0;
+		header[155] = ' ';
+		writeBytes(header, 0, BLOCK);
+	}
+
+	private static void putString(byte[] pHeader, int pOffset, int pLength, String pValue) {
+		byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, pHeader, pOffset, Math.min(bytes.length, pLength));
+	}
+
+	private static void putOctal(byte[] pHeader, int pOffset, int pLength, long pValue) {
+		//zero padded octal, NUL terminated
+		String octal = Long.toOctalString(pValue);
+		StringBuilder field = new StringBuilder();
+		for(int i=octal.length();i<pLength-1;i++) field.append('0');
+		field.append(octal);
+		putString(pHeader, pOffset, pLength-1, field.toString());
+		pHeader[pOffset+pLength-1] = 0;
+	}
+
+}
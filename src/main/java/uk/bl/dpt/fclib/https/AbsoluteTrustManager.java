@@ -17,17 +17,21 @@
 
 package uk.bl.dpt.fclib.https;
 
+import java.net.Socket;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
-import javax.net.ssl.X509TrustManager;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
 
 /**
- * An empty AbsoluteTrustManager that trusts anything
+ * An empty AbsoluteTrustManager that trusts anything.  It is an X509ExtendedTrustManager so
+ * that SSLContext does not wrap it with its own hostname checks (java.net.http.HttpClient has
+ * no way to set a HostnameVerifier).
  * @author wpalmer
  *
  */
-public class AbsoluteTrustManager implements X509TrustManager {
+public class AbsoluteTrustManager extends X509ExtendedTrustManager {
 
 	private boolean gDebug = false;
 	
@@ -55,6 +59,30 @@ public class AbsoluteTrustManager implements X509TrustManager {
 		if(gDebug) System.out.println("checkServerTrusted() "+arg1);
 	}
 
+	@Override
+	public void checkClientTrusted(X509Certificate[] arg0, String arg1, Socket arg2)
+			throws CertificateException {
+		checkClientTrusted(arg0, arg1);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] arg0, String arg1, Socket arg2)
+			throws CertificateException {
+		checkServerTrusted(arg0, arg1);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] arg0, String arg1, SSLEngine arg2)
+			throws CertificateException {
+		checkClientTrusted(arg0, arg1);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] arg0, String arg1, SSLEngine arg2)
+			throws CertificateException {
+		checkServerTrusted(arg0, arg1);
+	}
+
 	@Override
 	public X509Certificate[] getAcceptedIssuers() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.https;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * SSLSocket that passes every call to another SSLSocket, so a subclass can see when an
+ * unconnected socket is connected
+ * @author wpalmer
+ *
+ */
+class DelegatingSSLSocket extends SSLSocket {
+
+	protected SSLSocket gSocket;
+
+	DelegatingSSLSocket(SSLSocket pSocket) {
+		gSocket = pSocket;
+	}
+
+	public void connect(SocketAddress pEndpoint) throws IOException {
+		connect(pEndpoint, 0);
+	}
+
+	public void connect(SocketAddress pEndpoint, int pTimeout) throws IOException {
+		gSocket.connect(pEndpoint, pTimeout);
+	}
+
+	public void bind(SocketAddress pBindpoint) throws IOException {
+		gSocket.bind(pBindpoint);
+	}
+
+	public InetAddress getInetAddress() {
+		return gSocket.getInetAddress();
+	}
+
+	public InetAddress getLocalAddress() {
+		return gSocket.getLocalAddress();
+	}
+
+	public int getPort() {
+		return gSocket.getPort();
+	}
+
+	public int getLocalPort() {
+		return gSocket.getLocalPort();
+	}
+
+	public SocketAddress getRemoteSocketAddress() {
+		return gSocket.getRemoteSocketAddress();
+	}
+
+	public SocketAddress getLocalSocketAddress() {
+		return gSocket.getLocalSocketAddress();
+	}
+
+	public SocketChannel getChannel() {
+		return gSocket.getChannel();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return gSocket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return gSocket.getOutputStream();
+	}
+
+	public void setTcpNoDelay(boolean pOn) throws SocketException {
+		gSocket.setTcpNoDelay(pOn);
+	}
+
+	public boolean getTcpNoDelay() throws SocketException {
+		return gSocket.getTcpNoDelay();
+	}
+
+	public void setSoLinger(boolean pOn, int pLinger) throws SocketException {
+		gSocket.setSoLinger(pOn, pLinger);
+	}
+
+	public int getSoLinger() throws SocketException {
+		return gSocket.getSoLinger();
+	}
+
+	public void sendUrgentData(int pData) throws IOException {
+		gSocket.sendUrgentData(pData);
+	}
+
+	public void setOOBInline(boolean pOn) throws SocketException {
+		gSocket.setOOBInline(pOn);
+	}
+
+	public boolean getOOBInline() throws SocketException {
+		return gSocket.getOOBInline();
+	}
+
+	public void setSoTimeout(int pTimeout) throws SocketException {
+		gSocket.setSoTimeout(pTimeout);
+	}
+
+	public int getSoTimeout() throws SocketException {
+		return gSocket.getSoTimeout();
+	}
+
+	public void setSendBufferSize(int pSize) throws SocketException {
+		gSocket.setSendBufferSize(pSize);
+	}
+
+	public int getSendBufferSize() throws SocketException {
+		return gSocket.getSendBufferSize();
+	}
+
+	public void setReceiveBufferSize(int pSize) throws SocketException {
+		gSocket.setReceiveBufferSize(pSize);
+	}
+
+	public int getReceiveBufferSize() throws SocketException {
+		return gSocket.getReceiveBufferSize();
+	}
+
+	public void setKeepAlive(boolean pOn) throws SocketException {
+		gSocket.setKeepAlive(pOn);
+	}
+
+	public boolean getKeepAlive() throws SocketException {
+		return gSocket.getKeepAlive();
+	}
+
+	public void setTrafficClass(int pClass) throws SocketException {
+		gSocket.setTrafficClass(pClass);
+	}
+
+	public int getTrafficClass() throws SocketException {
+		return gSocket.getTrafficClass();
+	}
+
+	public void setReuseAddress(boolean pOn) throws SocketException {
+		gSocket.setReuseAddress(pOn);
+	}
+
+	public boolean getReuseAddress() throws SocketException {
+		return gSocket.getReuseAddress();
+	}
+
+	public void close() throws IOException {
+		gSocket.close();
+	}
+
+	public void shutdownInput() throws IOException {
+		gSocket.shutdownInput();
+	}
+
+	public void shutdownOutput() throws IOException {
+		gSocket.shutdownOutput();
+	}
+
+	public boolean isConnected() {
+		return gSocket.isConnected();
+	}
+
+	public boolean isBound() {
+		return gSocket.isBound();
+	}
+
+	public boolean isClosed() {
+		return gSocket.isClosed();
+	}
+
+	public boolean isInputShutdown() {
+		return gSocket.isInputShutdown();
+	}
+
+	public boolean isOutputShutdown() {
+		return gSocket.isOutputShutdown();
+	}
+
+	public void setPerformancePreferences(int pConnectionTime, int pLatency, int pBandwidth) {
+		gSocket.setPerformancePreferences(pConnectionTime, pLatency, pBandwidth);
+	}
+
+	public <T> SSLSocket setOption(SocketOption<T> pName, T pValue) throws IOException {
+		gSocket.setOption(pName, pValue);
+		return this;
+	}
+
+	public <T> T getOption(SocketOption<T> pName) throws IOException {
+		return gSocket.getOption(pName);
+	}
+
+	public Set<SocketOption<?>> supportedOptions() {
+		return gSocket.supportedOptions();
+	}
+
+	public String[] getSupportedCipherSuites() {
+		return gSocket.getSupportedCipherSuites();
+	}
+
+	public String[] getEnabledCipherSuites() {
+		return gSocket.getEnabledCipherSuites();
+	}
+
+	public void setEnabledCipherSuites(String[] pSuites) {
+		gSocket.setEnabledCipherSuites(pSuites);
+	}
+
+	public String[] getSupportedProtocols() {
+		return gSocket.getSupportedProtocols();
+	}
+
+	public String[] getEnabledProtocols() {
+		return gSocket.getEnabledProtocols();
+	}
+
+	public void setEnabledProtocols(String[] pProtocols) {
+		gSocket.setEnabledProtocols(pProtocols);
+	}
+
+	public SSLSession getSession() {
+		return gSocket.getSession();
+	}
+
+	public SSLSession getHandshakeSession() {
+		return gSocket.getHandshakeSession();
+	}
+
+	public void addHandshakeCompletedListener(HandshakeCompletedListener pListener) {
+		gSocket.addHandshakeCompletedListener(pListener);
+	}
+
+	public void removeHandshakeCompletedListener(HandshakeCompletedListener pListener) {
+		gSocket.removeHandshakeCompletedListener(pListener);
+	}
+
+	public void startHandshake() throws IOException {
+		gSocket.startHandshake();
+	}
+
+	public void setUseClientMode(boolean pMode) {
+		gSocket.setUseClientMode(pMode);
+	}
+
+	public boolean getUseClientMode() {
+		return gSocket.getUseClientMode();
+	}
+
+	public void setNeedClientAuth(boolean pNeed) {
+		gSocket.setNeedClientAuth(pNeed);
+	}
+
+	public boolean getNeedClientAuth() {
+		return gSocket.getNeedClientAuth();
+	}
+
+	public void setWantClientAuth(boolean pWant) {
+		gSocket.setWantClientAuth(pWant);
+	}
+
+	public boolean getWantClientAuth() {
+		return gSocket.getWantClientAuth();
+	}
+
+	public void setEnableSessionCreation(boolean pFlag) {
+		gSocket.setEnableSessionCreation(pFlag);
+	}
+
+	public boolean getEnableSessionCreation() {
+		return gSocket.getEnableSessionCreation();
+	}
+
+	public SSLParameters getSSLParameters() {
+		return gSocket.getSSLParameters();
+	}
+
+	public void setSSLParameters(SSLParameters pParameters) {
+		gSocket.setSSLParameters(pParameters);
+	}
+
+	public String getApplicationProtocol() {
+		return gSocket.getApplicationProtocol();
+	}
+
+	public String getHandshakeApplicationProtocol() {
+		return gSocket.getHandshakeApplicationProtocol();
+	}
+
+	public void setHandshakeApplicationProtocolSelector(BiFunction<SSLSocket, List<String>, String> pSelector) {
+		gSocket.setHandshakeApplicationProtocolSelector(pSelector);
+	}
+
+	public BiFunction<SSLSocket, List<String>, String> getHandshakeApplicationProtocolSelector() {
+		return gSocket.getHandshakeApplicationProtocolSelector();
+	}
+
+	public String toString() {
+		return gSocket.toString();
+	}
+
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.https;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import uk.bl.dpt.fclib.jfr.TlsHandshakeEvent;
+import uk.bl.dpt.fclib.metrics.MetricsRegistry;
+import uk.bl.dpt.fclib.metrics.Sample;
+
+/**
+ * TLS settings for the connections to one server.  The SSL context (and so its session cache)
+ * is built once and shared by every request, so new connections to the server can resume a
+ * cached session instead of making a full handshake.
+ * <p>
+ * By default any certificate and hostname is accepted, as before.  With a truststore only
+ * certificates it trusts are accepted and, unless turned off, the hostname must match the
+ * certificate.
+ * <p>
+ * Handshakes are counted, and for HttpURLConnection (and the WebDAV methods) timed as the
+ * "tls.handshake" operation in the default MetricsRegistry and as a JFR event.
+ * java.net.http.HttpClient does not expose its handshakes, so only the certificate checks
+ * (full handshakes) are counted for it.
+ * @author wpalmer
+ *
+ */
+public class TlsConfig {
+
+	/** settings keys read by fromProperties() */
+	public static final String TRUSTSTORE = "TRUSTSTORE";
+	/** truststore password */
+	public static final String TRUSTSTORE_PASSWORD = "TRUSTSTORE_PASSWORD";
+	/** truststore type, e.g. PKCS12 or JKS (default: the JVM default type) */
+	public static final String TRUSTSTORE_TYPE = "TRUSTSTORE_TYPE";
+	/** true or false: whether the hostname must match the certificate (default true with a truststore) */
+	public static final String VERIFY_HOSTNAME = "VERIFY_HOSTNAME";
+
+	/** default number of sessions cached */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+	/** default time a cached session can be resumed for (seconds) */
+	public static final int DEFAULT_SESSION_TIMEOUT = 24*60*60;
+
+	private boolean gDebug = false;
+	private String gProtocol = "TLS";
+	private File gTrustStore = null;
+	private String gTrustStorePassword = null;
+	private String gTrustStoreType = null;
+	private Boolean gVerifyHostname = null;
+	private int gSessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+	private int gSessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	private SSLContext gContext = null;
+	private boolean gExternalContext = false;
+	private SSLSocketFactory gSocketFactory = null;
+
+	//sockets whose server certificate was checked, i.e. that made a full handshake
+	private Map<Socket, Boolean> gChecked = Collections.synchronizedMap(new WeakHashMap<Socket, Boolean>());
+	private AtomicLong gHandshakes = new AtomicLong(0);
+	private AtomicLong gResumed = new AtomicLong(0);
+	private AtomicLong gHandshakeTime = new AtomicLong(0);
+	private AtomicLong gCertificateChecks = new AtomicLong(0);
+
+	/**
+	 * Default settings: accept any certificate
+	 */
+	public TlsConfig() {
+	}
+
+	/**
+	 * Default settings: accept any certificate
+	 * @param pDebug print certificates as they are checked
+	 */
+	public TlsConfig(boolean pDebug) {
+		gDebug = pDebug;
+	}
+
+	/**
+	 * Use an SSL context created elsewhere.  Handshakes are still counted and timed, but
+	 * certificate checks are up to the context; hostnames are not verified.
+	 * @param pContext SSL context
+	 * @return settings using the context
+	 */
+	public static TlsConfig forContext(SSLContext pContext) {
+		TlsConfig tls = new TlsConfig();
+		tls.gContext = pContext;
+		tls.gExternalContext = true;
+		tls.gVerifyHostname = false;
+		return tls;
+	}
+
+	/**
+	 * Read settings from connection properties (keys TRUSTSTORE, TRUSTSTORE_PASSWORD,
+	 * TRUSTSTORE_TYPE and VERIFY_HOSTNAME; all optional)
+	 * @param pProperties properties
+	 * @param pDebug print certificates as they are checked
+	 * @return settings
+	 */
+	public static TlsConfig fromProperties(Properties pProperties, boolean pDebug) {
+		TlsConfig tls = new TlsConfig(pDebug);
+		String trustStore = pProperties.getProperty(TRUSTSTORE);
+		if(trustStore!=null&&trustStore.trim().length()>0) {
+			String type = pProperties.getProperty(TRUSTSTORE_TYPE);
+			tls.setTrustStore(new File(trustStore.trim()), pProperties.getProperty(TRUSTSTORE_PASSWORD),
+					type==null||type.trim().length()==0?null:type.trim());
+		}
+		String verify = pProperties.getProperty(VERIFY_HOSTNAME);
+		if(verify!=null&&verify.trim().length()>0) {
+			tls.setVerifyHostname(Boolean.parseBoolean(verify.trim()));
+		}
+		return tls;
+	}
+
+	/**
+	 * Only accept server certificates trusted by a truststore (before first use)
+	 * @param pTrustStore truststore file
+	 * @param pPassword truststore password (null for none)
+	 * @param pType keystore type, e.g. PKCS12 or JKS (null for the JVM default)
+	 */
+	public synchronized void setTrustStore(File pTrustStore, String pPassword, String pType) {
+		gTrustStore = pTrustStore;
+		gTrustStorePassword = pPassword;
+		gTrustStoreType = pType;
+		reset();
+	}
+
+	/**
+	 * Set whether the server hostname must match its certificate (before first use).  The
+	 * default is true with a truststore and false without.
+	 * @param pVerify whether to verify hostnames
+	 */
+	public synchronized void setVerifyHostname(boolean pVerify) {
+		gVerifyHostname = pVerify;
+		reset();
+	}
+
+	/**
+	 * Set the size and lifetime of the session cache (before first use)
+	 * @param pSize number of sessions cached (0 for no limit)
+	 * @param pTimeoutSeconds time a session can be resumed for (0 for no limit)
+	 */
+	public synchronized void setSessionCache(int pSize, int pTimeoutSeconds) {
+		gSessionCacheSize = pSize;
+		gSessionTimeout = pTimeoutSeconds;
+		if(gContext!=null) configureSessionCache(gContext);
+	}
+
+	/**
+	 * Set the SSL protocol, e.g. TLSv1.2 (before first use; default TLS)
+	 * @param pProtocol protocol name for SSLContext.getInstance()
+	 */
+	public synchronized void setProtocol(String pProtocol) {
+		gProtocol = pProtocol;
+		reset();
+	}
+
+	private void reset() {
+		if(gExternalContext) return;
+		gContext = null;
+		gSocketFactory = null;
+	}
+
+	/**
+	 * @return whether hostnames are verified
+	 */
+	public synchronized boolean isVerifyHostname() {
+		return gVerifyHostname!=null?gVerifyHostname.booleanValue():gTrustStore!=null;
+	}
+
+	/**
+	 * @return the SSL context, built on first use
+	 * @throws IOException if the truststore cannot be read or the context cannot be created
+	 */
+	public synchronized SSLContext getContext() throws IOException {
+		if(gContext==null) {
+			try {
+				SSLContext context = SSLContext.getInstance(gProtocol);
+				context.init(null, new TrustManager[] { new CheckingTrustManager(createTrustManager(), isVerifyHostname()) }, new SecureRandom());
+				configureSessionCache(context);
+				gContext = context;
+			} catch(GeneralSecurityException e) {
+				throw new IOException("Cannot create SSL context: "+e.getMessage(), e);
+			}
+		}
+		return gContext;
+	}
+
+	private void configureSessionCache(SSLContext pContext) {
+		SSLSessionContext sessions = pContext.getClientSessionContext();
+		if(sessions==null) return;
+		sessions.setSessionCacheSize(gSessionCacheSize);
+		sessions.setSessionTimeout(gSessionTimeout);
+	}
+
+	private X509ExtendedTrustManager createTrustManager() throws IOException, GeneralSecurityException {
+		if(gTrustStore==null) {
+			//WARNING: this accepts any secure connection!
+			return new AbsoluteTrustManager(gDebug);
+		}
+		KeyStore store = KeyStore.getInstance(gTrustStoreType!=null?gTrustStoreType:KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(gTrustStore);
+		try {
+			store.load(in, gTrustStorePassword==null?null:gTrustStorePassword.toCharArray());
+		} finally {
+			in.close();
+		}
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(store);
+		for(TrustManager manager:factory.getTrustManagers()) {
+			if(manager instanceof X509ExtendedTrustManager) return (X509ExtendedTrustManager)manager;
+		}
+		throw new GeneralSecurityException("No X509 trust manager for "+gTrustStore);
+	}
+
+	/**
+	 * @return socket factory for HttpsURLConnection (and other socket based clients) that
+	 * records handshakes
+	 * @throws IOException if the context cannot be created
+	 */
+	public synchronized SSLSocketFactory getSocketFactory() throws IOException {
+		if(gSocketFactory==null) gSocketFactory = new HandshakeSocketFactory(getContext().getSocketFactory());
+		return gSocketFactory;
+	}
+
+	/**
+	 * @return hostname verifier for HttpsURLConnection
+	 */
+	public HostnameVerifier getHostnameVerifier() {
+		//WARNING: TotalHostnameVerifier allows all hostnames!
+		return isVerifyHostname()?HttpsURLConnection.getDefaultHostnameVerifier():new TotalHostnameVerifier(gDebug);
+	}
+
+	/**
+	 * @return number of handshakes completed on sockets from getSocketFactory()
+	 */
+	public long getHandshakes() {
+		return gHandshakes.get();
+	}
+
+	/**
+	 * @return number of those handshakes that resumed a cached session
+	 */
+	public long getResumedHandshakes() {
+		return gResumed.get();
+	}
+
+	/**
+	 * @return total time spent in those handshakes (ms)
+	 */
+	public long getHandshakeTime() {
+		return gHandshakeTime.get();
+	}
+
+	/**
+	 * @return number of server certificate chains checked (one per full handshake, with any
+	 * transport); not counted for contexts set with forContext()
+	 */
+	public long getCertificateChecks() {
+		return gCertificateChecks.get();
+	}
+
+	public String toString() {
+		return "handshakes: "+getHandshakes()+" ("+getResumedHandshakes()+" resumed, "+getHandshakeTime()+" ms), certificate checks: "+getCertificateChecks();
+	}
+
+	/**
+	 * Checks server certificates with another trust manager, counts the checks, and leaves
+	 * out the hostname check when hostnames are not verified
+	 */
+	private class CheckingTrustManager extends X509ExtendedTrustManager {
+
+		private X509ExtendedTrustManager gDelegate;
+		private boolean gHostname;
+
+		private CheckingTrustManager(X509ExtendedTrustManager pDelegate, boolean pHostname) {
+			gDelegate = pDelegate;
+			gHostname = pHostname;
+		}
+
+		public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException {
+			gCertificateChecks.incrementAndGet();
+			gDelegate.checkServerTrusted(pChain, pAuthType);
+		}
+
+		public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException {
+			gCertificateChecks.incrementAndGet();
+			if(pSocket!=null) gChecked.put(pSocket, Boolean.TRUE);
+			if(gHostname) {
+				gDelegate.checkServerTrusted(pChain, pAuthType, pSocket);
+			} else {
+				gDelegate.checkServerTrusted(pChain, pAuthType);
+			}
+		}
+
+		public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pEngine) throws CertificateException {
+			gCertificateChecks.incrementAndGet();
+			if(gHostname) {
+				gDelegate.checkServerTrusted(pChain, pAuthType, pEngine);
+			} else {
+				gDelegate.checkServerTrusted(pChain, pAuthType);
+			}
+		}
+
+		public void checkClientTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException {
+			gDelegate.checkClientTrusted(pChain, pAuthType);
+		}
+
+		public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException {
+			gDelegate.checkClientTrusted(pChain, pAuthType, pSocket);
+		}
+
+		public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pEngine) throws CertificateException {
+			gDelegate.checkClientTrusted(pChain, pAuthType, pEngine);
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			X509Certificate[] issuers = gDelegate.getAcceptedIssuers();
+			return issuers==null?new X509Certificate[0]:issuers;
+		}
+
+	}
+
+	/**
+	 * Socket factory that times the handshake of each socket it creates
+	 */
+	private class HandshakeSocketFactory extends SSLSocketFactory {
+
+		private SSLSocketFactory gDelegate;
+
+		private HandshakeSocketFactory(SSLSocketFactory pDelegate) {
+			gDelegate = pDelegate;
+		}
+
+		private Socket watch(Socket pSocket, String pHost, int pPort) {
+			if(!(pSocket instanceof SSLSocket)) return pSocket;
+			final long start = System.currentTimeMillis();
+			final Sample sample = MetricsRegistry.getDefault().start("tls.handshake", pHost+":"+pPort);
+			final TlsHandshakeEvent event = new TlsHandshakeEvent();
+			event.begin();
+			event.host = pHost;
+			event.port = pPort;
+			((SSLSocket)pSocket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				public void handshakeCompleted(HandshakeCompletedEvent pEvent) {
+					//only the first handshake on the socket is recorded
+					pEvent.getSocket().removeHandshakeCompletedListener(this);
+					SSLSession session = pEvent.getSession();
+					boolean resumed;
+					if(gExternalContext) {
+						//the certificate checks are not seen: use the age of the session instead
+						resumed = session.getCreationTime()<start;
+					} else {
+						resumed = gChecked.remove(pEvent.getSocket())==null;
+					}
+					gHandshakes.incrementAndGet();
+					if(resumed) gResumed.incrementAndGet();
+					gHandshakeTime.addAndGet(System.currentTimeMillis()-start);
+					sample.finish();
+					event.protocol = session.getProtocol();
+					event.cipherSuite = session.getCipherSuite();
+					event.resumed = resumed;
+					event.commit();
+				}
+			});
+			return pSocket;
+		}
+
+		public String[] getDefaultCipherSuites() {
+			return gDelegate.getDefaultCipherSuites();
+		}
+
+		public String[] getSupportedCipherSuites() {
+			return gDelegate.getSupportedCipherSuites();
+		}
+
+		public Socket createSocket() throws IOException {
+			//not connected yet: watch it once connected, so the host is known and the
+			//handshake time does not include the connect
+			Socket socket = gDelegate.createSocket();
+			if(!(socket instanceof SSLSocket)) return socket;
+			return new DelegatingSSLSocket((SSLSocket)socket) {
+				public void connect(SocketAddress pEndpoint, int pTimeout) throws IOException {
+					super.connect(pEndpoint, pTimeout);
+					String host = pEndpoint instanceof InetSocketAddress?((InetSocketAddress)pEndpoint).getHostString():getInetAddress().getHostName();
+					watch(gSocket, host, getPort());
+				}
+			};
+		}
+
+		public Socket createSocket(Socket pSocket, String pHost, int pPort, boolean pAutoClose) throws IOException {
+			return watch(gDelegate.createSocket(pSocket, pHost, pPort, pAutoClose), pHost, pPort);
+		}
+
+		public Socket createSocket(String pHost, int pPort) throws IOException {
+			return watch(gDelegate.createSocket(pHost, pPort), pHost, pPort);
+		}
+
+		public Socket createSocket(String pHost, int pPort, InetAddress pLocalHost, int pLocalPort) throws IOException {
+			return watch(gDelegate.createSocket(pHost, pPort, pLocalHost, pLocalPort), pHost, pPort);
+		}
+
+		public Socket createSocket(InetAddress pHost, int pPort) throws IOException {
+			return watch(gDelegate.createSocket(pHost, pPort), pHost.getHostName(), pPort);
+		}
+
+		public Socket createSocket(InetAddress pAddress, int pPort, InetAddress pLocalAddress, int pLocalPort) throws IOException {
+			return watch(gDelegate.createSocket(pAddress, pPort, pLocalAddress, pLocalPort), pAddress.getHostName(), pPort);
+		}
+
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for sending a request, from opening (or reusing) a connection to the response
+ * headers arriving.  For uploads this includes sending the body.
+ * @author wpalmer
+ *
+ */
+@Name("uk.bl.dpt.fclib.ConnectionSetup")
+@Label("Connection Setup")
+@Category({ "fclib", "Repository" })
+@Description("Sending an HTTP(S) request until the response headers arrive, including connecting and any TLS handshake")
+public final class ConnectionSetupEvent extends Event {
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Secure")
+	public boolean secure;
+
+	@Label("HTTP Status")
+	@Description("-1 if there was no response")
+	public int status;
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for requesting and parsing a datastream profile (or, with no datastream, the
+ * profiles of all datastreams of an object)
+ * @author wpalmer
+ *
+ */
+@Name("uk.bl.dpt.fclib.DatastreamProperties")
+@Label("Datastream Properties")
+@Category({ "fclib", "Repository" })
+@Description("Requesting and parsing a datastream profile")
+public final class DatastreamPropertiesEvent extends Event {
+
+	@Label("PID")
+	public String pid;
+
+	@Label("Datastream")
+	public String datastream;
+
+	@Label("Datastreams")
+	@Description("Number of profiles read, for a whole object listing")
+	public int datastreams;
+
+	@Label("HTTP Status")
+	public int status;
+
+	@Label("Success")
+	public boolean success;
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for a TLS handshake on a connection made by the connectors
+ * @author wpalmer
+ *
+ */
+@Name("uk.bl.dpt.fclib.TlsHandshake")
+@Label("TLS Handshake")
+@Category({ "fclib", "Repository" })
+@Description("A TLS handshake, from creating the secure socket to the handshake completing")
+public final class TlsHandshakeEvent extends Event {
+
+	@Label("Host")
+	public String host;
+
+	@Label("Port")
+	public int port;
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Cipher Suite")
+	public String cipherSuite;
+
+	@Label("Resumed")
+	@Description("Whether a cached session was resumed instead of a full handshake")
+	public boolean resumed;
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non-negative values (e.g. latencies in microseconds).  Values are
+ * counted in log-linear buckets (16 per power of two) so percentiles are accurate to within
+ * about 6% over the whole range of a long, in a fixed 960 slots.
+ * @author wpalmer
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1<<SUB_BITS;
+	private static final int BUCKETS = (64-SUB_BITS)*SUB_BUCKETS;
+
+	private AtomicLongArray gCounts = new AtomicLongArray(BUCKETS);
+	private AtomicLong gCount = new AtomicLong(0);
+	private AtomicLong gSum = new AtomicLong(0);
+	private AtomicLong gMin = new AtomicLong(Long.MAX_VALUE);
+	private AtomicLong gMax = new AtomicLong(0);
+
+	private static int bucket(long pValue) {
+		if(pValue<SUB_BUCKETS) return (int)pValue;
+		int exp = 63-Long.numberOfLeadingZeros(pValue);
+		int sub = (int)(pValue>>>(exp-SUB_BITS))&(SUB_BUCKETS-1);
+		return (exp-SUB_BITS+1)*SUB_BUCKETS+sub;
+	}
+
+	private static long upperBound(int pBucket) {
+		if(pBucket<SUB_BUCKETS) return pBucket;
+		int exp = pBucket/SUB_BUCKETS+SUB_BITS-1;
+		int sub = pBucket%SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS+sub+1)<<(exp-SUB_BITS))-1;
+	}
+
+	/**
+	 * Record a value
+	 * @param pValue value (negative values are recorded as 0)
+	 */
+	public void record(long pValue) {
+		if(pValue<0) pValue = 0;
+		gCounts.incrementAndGet(bucket(pValue));
+		gCount.incrementAndGet();
+		gSum.addAndGet(pValue);
+		long min;
+		while(pValue<(min = gMin.get())&&!gMin.compareAndSet(min, pValue)) { /* retry */ }
+		long max;
+		while(pValue>(max = gMax.get())&&!gMax.compareAndSet(max, pValue)) { /* retry */ }
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount() {
+		return gCount.get();
+	}
+
+	/**
+	 * @return sum of the values recorded
+	 */
+	public long getSum() {
+		return gSum.get();
+	}
+
+	/**
+	 * @return smallest value recorded, or 0 if none
+	 */
+	public long getMin() {
+		return gCount.get()==0?0:gMin.get();
+	}
+
+	/**
+	 * @return largest value recorded
+	 */
+	public long getMax() {
+		return gMax.get();
+	}
+
+	/**
+	 * @return mean of the values recorded, or 0 if none
+	 */
+	public double getMean() {
+		long count = gCount.get();
+		return count==0?0:(double)gSum.get()/count;
+	}
+
+	/**
+	 * Get a percentile (the upper bound of the bucket it falls in, capped at the maximum)
+	 * @param pPercentile percentile, e.g. 99.9
+	 * @return value at that percentile, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double pPercentile) {
+		long count = 0;
+		for(int i=0;i<BUCKETS;i++) count += gCounts.get(i);
+		if(count==0) return 0;
+		long rank = (long)Math.ceil(count*pPercentile/100.0);
+		if(rank<1) rank = 1;
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += gCounts.get(i);
+			if(seen>=rank) return Math.min(upperBound(i), gMax.get());
+		}
+		return gMax.get();
+	}
+
+	/**
+	 * Clear all recorded values
+	 */
+	public void reset() {
+		for(int i=0;i<BUCKETS;i++) gCounts.set(i, 0);
+		gCount.set(0);
+		gSum.set(0);
+		gMin.set(Long.MAX_VALUE);
+		gMax.set(0);
+	}
+
+	public String toString() {
+		return "count="+getCount()+" min="+getMin()+" mean="+Math.round(getMean())+" p50="+getPercentile(50)+
+				" p99="+getPercentile(99)+" p99.9="+getPercentile(99.9)+" max="+getMax();
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+/**
+ * Receives each completed sample, e.g. to forward metrics to a monitoring system.  Called on
+ * the thread that did the work, so should not block.
+ * @author wpalmer
+ *
+ */
+public interface MetricsListener {
+
+	/**
+	 * An operation has completed
+	 * @param pSample timings for the operation
+	 */
+	public void recorded(Sample pSample);
+
+}
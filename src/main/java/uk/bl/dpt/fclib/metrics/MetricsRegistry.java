@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects timings, byte counts and errors for the connector and ingest operations.  Each
+ * operation (e.g. "webdav.put") gets an OperationMetrics, which in the default registry is
+ * also registered with the platform MBean server as uk.bl.dpt.fclib:type=Operation,name=...
+ *
+ * Usage:
+ * <pre>
+ * Sample sample = MetricsRegistry.getDefault().start("webdav.get", uri);
+ * ...
+ * sample.firstByte();
+ * sample.transferStart();
+ * ...
+ * sample.transferEnd(bytes);
+ * sample.finish();  //or sample.fail(status)
+ * </pre>
+ * @author wpalmer
+ *
+ */
+public class MetricsRegistry {
+
+	private static final String JMX_DOMAIN = "uk.bl.dpt.fclib";
+
+	private static final MetricsRegistry gDefault = new MetricsRegistry(true);
+
+	private boolean gJMX;
+	private ConcurrentMap<String, OperationMetrics> gOperations = new ConcurrentHashMap<String, OperationMetrics>();
+	private List<MetricsListener> gListeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	/**
+	 * Create a registry
+	 * @param pJMX whether or not to register operations with the platform MBean server
+	 */
+	public MetricsRegistry(boolean pJMX) {
+		gJMX = pJMX;
+	}
+
+	/**
+	 * @return the registry used by the connectors, generator and pipeline
+	 */
+	public static MetricsRegistry getDefault() {
+		return gDefault;
+	}
+
+	/**
+	 * Start timing an operation
+	 * @param pOperation operation name
+	 * @param pTarget what the operation acts on (URI, file or pid), for listeners
+	 * @return sample to mark and finish
+	 */
+	public Sample start(String pOperation, String pTarget) {
+		return new Sample(this, pOperation, pTarget);
+	}
+
+	/**
+	 * Get the metrics for an operation, creating them if necessary
+	 * @param pOperation operation name
+	 * @return metrics for the operation
+	 */
+	public OperationMetrics getOperation(String pOperation) {
+		OperationMetrics metrics = gOperations.get(pOperation);
+		if(metrics==null) {
+			OperationMetrics newMetrics = new OperationMetrics(pOperation);
+			metrics = gOperations.putIfAbsent(pOperation, newMetrics);
+			if(metrics==null) {
+				metrics = newMetrics;
+				if(gJMX) register(metrics);
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return metrics for all operations seen so far, sorted by name
+	 */
+	public List<OperationMetrics> getOperations() {
+		List<String> names = new ArrayList<String>(gOperations.keySet());
+		Collections.sort(names);
+		List<OperationMetrics> operations = new ArrayList<OperationMetrics>();
+		for(String name:names) operations.add(gOperations.get(name));
+		return operations;
+	}
+
+	private void register(OperationMetrics pMetrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_DOMAIN+":type=Operation,name="+ObjectName.quote(pMetrics.getName()));
+			if(!server.isRegistered(name)) server.registerMBean(pMetrics, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Add a listener to be told about each sample
+	 * @param pListener listener
+	 */
+	public void addListener(MetricsListener pListener) {
+		gListeners.add(pListener);
+	}
+
+	/**
+	 * Remove a listener
+	 * @param pListener listener
+	 */
+	public void removeListener(MetricsListener pListener) {
+		gListeners.remove(pListener);
+	}
+
+	void record(Sample pSample) {
+		getOperation(pSample.getOperation()).record(pSample);
+		for(MetricsListener listener:gListeners) {
+			try {
+				listener.recorded(pSample);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Clear the metrics for all operations
+	 */
+	public void reset() {
+		for(OperationMetrics metrics:gOperations.values()) metrics.reset();
+	}
+
+	/**
+	 * @return a summary of all operations
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for(OperationMetrics metrics:getOperations()) sb.append(metrics);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulated metrics for one operation
+ * @author wpalmer
+ *
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+	private String gName;
+	private AtomicLong gRequests = new AtomicLong(0);
+	private AtomicLong gErrors = new AtomicLong(0);
+	private AtomicLong gBytes = new AtomicLong(0);
+	private ConcurrentMap<Integer, AtomicLong> gErrorsByStatus = new ConcurrentHashMap<Integer, AtomicLong>();
+	private Histogram gTimeToFirstByte = new Histogram();
+	private Histogram gTransferTime = new Histogram();
+	private Histogram gChecksumTime = new Histogram();
+	private Histogram gTotalTime = new Histogram();
+
+	OperationMetrics(String pName) {
+		gName = pName;
+	}
+
+	void record(Sample pSample) {
+		gRequests.incrementAndGet();
+		gBytes.addAndGet(pSample.getBytes());
+		if(pSample.isFailed()) {
+			gErrors.incrementAndGet();
+			AtomicLong count = gErrorsByStatus.get(pSample.getStatus());
+			if(count==null) {
+				AtomicLong newCount = new AtomicLong(0);
+				count = gErrorsByStatus.putIfAbsent(pSample.getStatus(), newCount);
+				if(count==null) count = newCount;
+			}
+			count.incrementAndGet();
+		}
+		if(pSample.getTimeToFirstByte()>=0) gTimeToFirstByte.record(pSample.getTimeToFirstByte());
+		if(pSample.getTransferTime()>=0) gTransferTime.record(pSample.getTransferTime());
+		if(pSample.getChecksumTime()>=0) gChecksumTime.record(pSample.getChecksumTime());
+		gTotalTime.record(pSample.getTotalTime());
+	}
+
+	/** @return operation name */
+	public String getName() { return gName; }
+	/** @return time to first byte histogram */
+	public Histogram getTimeToFirstByte() { return gTimeToFirstByte; }
+	/** @return transfer time histogram */
+	public Histogram getTransferTime() { return gTransferTime; }
+	/** @return checksum time histogram */
+	public Histogram getChecksumTime() { return gChecksumTime; }
+	/** @return total time histogram */
+	public Histogram getTotalTime() { return gTotalTime; }
+
+	@Override
+	public long getRequests() { return gRequests.get(); }
+	@Override
+	public long getErrors() { return gErrors.get(); }
+	@Override
+	public long getBytes() { return gBytes.get(); }
+
+	@Override
+	public Map<String, Long> getErrorsByStatus() {
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		for(Map.Entry<Integer, AtomicLong> entry:gErrorsByStatus.entrySet()) {
+			errors.put(entry.getKey().toString(), entry.getValue().get());
+		}
+		return errors;
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		long time = gTransferTime.getSum();
+		return time==0?0:gBytes.get()*1000000.0/time;
+	}
+
+	@Override
+	public long getTimeToFirstByteP50() { return gTimeToFirstByte.getPercentile(50); }
+	@Override
+	public long getTimeToFirstByteP99() { return gTimeToFirstByte.getPercentile(99); }
+	@Override
+	public long getTransferTimeP50() { return gTransferTime.getPercentile(50); }
+	@Override
+	public long getTransferTimeP99() { return gTransferTime.getPercentile(99); }
+	@Override
+	public long getTransferTimeP999() { return gTransferTime.getPercentile(99.9); }
+	@Override
+	public long getChecksumTimeP50() { return gChecksumTime.getPercentile(50); }
+	@Override
+	public long getChecksumTimeP99() { return gChecksumTime.getPercentile(99); }
+	@Override
+	public long getTotalTimeP50() { return gTotalTime.getPercentile(50); }
+	@Override
+	public long getTotalTimeP99() { return gTotalTime.getPercentile(99); }
+	@Override
+	public long getTotalTimeP999() { return gTotalTime.getPercentile(99.9); }
+	@Override
+	public long getTotalTimeMax() { return gTotalTime.getMax(); }
+
+	@Override
+	public void reset() {
+		gRequests.set(0);
+		gErrors.set(0);
+		gBytes.set(0);
+		gErrorsByStatus.clear();
+		gTimeToFirstByte.reset();
+		gTransferTime.reset();
+		gChecksumTime.reset();
+		gTotalTime.reset();
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(gName+": requests="+getRequests()+" errors="+getErrors()+(getErrors()>0?" "+getErrorsByStatus():"")+
+				" bytes="+getBytes()+" rate="+Math.round(getBytesPerSecond())+"B/s\n");
+		sb.append("  total(us):    "+gTotalTime+"\n");
+		if(gTimeToFirstByte.getCount()>0) sb.append("  ttfb(us):     "+gTimeToFirstByte+"\n");
+		if(gTransferTime.getCount()>0) sb.append("  transfer(us): "+gTransferTime+"\n");
+		if(gChecksumTime.getCount()>0) sb.append("  checksum(us): "+gChecksumTime+"\n");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics for one operation (an MXBean, so any JMX console can show it).
+ * Times are in microseconds.
+ * @author wpalmer
+ *
+ */
+public interface OperationMetricsMXBean {
+
+	/** @return number of operations completed (successful or not) */
+	public long getRequests();
+	/** @return number of operations that failed */
+	public long getErrors();
+	/** @return failed operations keyed by HTTP status (0 where there was no response) */
+	public Map<String, Long> getErrorsByStatus();
+	/** @return bytes transferred */
+	public long getBytes();
+	/** @return mean transfer rate in bytes per second, over the transfer time */
+	public double getBytesPerSecond();
+
+	/** @return median time to first byte of the response */
+	public long getTimeToFirstByteP50();
+	/** @return 99th percentile time to first byte of the response */
+	public long getTimeToFirstByteP99();
+	/** @return median transfer time */
+	public long getTransferTimeP50();
+	/** @return 99th percentile transfer time */
+	public long getTransferTimeP99();
+	/** @return 99.9th percentile transfer time */
+	public long getTransferTimeP999();
+	/** @return median checksum time */
+	public long getChecksumTimeP50();
+	/** @return 99th percentile checksum time */
+	public long getChecksumTimeP99();
+	/** @return median total time */
+	public long getTotalTimeP50();
+	/** @return 99th percentile total time */
+	public long getTotalTimeP99();
+	/** @return 99.9th percentile total time */
+	public long getTotalTimeP999();
+	/** @return longest total time */
+	public long getTotalTimeMax();
+
+	/**
+	 * Clear the metrics
+	 */
+	public void reset();
+
+}
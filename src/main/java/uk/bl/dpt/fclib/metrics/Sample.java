@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.metrics;
+
+/**
+ * Timings for a single operation (e.g. one datastream recovery), started by
+ * MetricsRegistry.start() and recorded by finish() or fail().  A sample is used by one thread.
+ * Times are in microseconds; a time that was not marked is -1.
+ * @author wpalmer
+ *
+ */
+public class Sample {
+
+	private MetricsRegistry gRegistry;
+	private String gOperation;
+	private String gTarget;
+	private long gStart;
+	private long gEnd = -1;
+	private long gFirstByte = -1;
+	private long gTransferStart = -1;
+	private long gTransferTime = -1;
+	private long gChecksumStart = -1;
+	private long gChecksumTime = -1;
+	private long gBytes = 0;
+	private int gStatus = 0;
+	private boolean gFailed = false;
+
+	Sample(MetricsRegistry pRegistry, String pOperation, String pTarget) {
+		gRegistry = pRegistry;
+		gOperation = pOperation;
+		gTarget = pTarget;
+		gStart = System.nanoTime();
+	}
+
+	private long since(long pStart) {
+		return (System.nanoTime()-pStart)/1000;
+	}
+
+	/**
+	 * Mark the first byte of the response as received (i.e. the response headers are available)
+	 */
+	public void firstByte() {
+		if(gFirstByte<0) gFirstByte = since(gStart);
+	}
+
+	/**
+	 * Mark the start of the data transfer
+	 */
+	public void transferStart() {
+		gTransferStart = System.nanoTime();
+	}
+
+	/**
+	 * Mark the end of the data transfer
+	 * @param pBytes number of bytes transferred
+	 */
+	public void transferEnd(long pBytes) {
+		if(gTransferStart>=0) gTransferTime = since(gTransferStart);
+		gBytes += pBytes;
+	}
+
+	/**
+	 * Mark the start of a checksum calculation
+	 */
+	public void checksumStart() {
+		gChecksumStart = System.nanoTime();
+	}
+
+	/**
+	 * Mark the end of a checksum calculation.  Several checksum calculations add up.
+	 */
+	public void checksumEnd() {
+		if(gChecksumStart<0) return;
+		gChecksumTime = Math.max(gChecksumTime, 0)+since(gChecksumStart);
+		gChecksumStart = -1;
+	}
+
+	/**
+	 * Set the HTTP status of the response
+	 * @param pStatus status code
+	 */
+	public void setStatus(int pStatus) {
+		gStatus = pStatus;
+	}
+
+	/**
+	 * Record the sample as successful
+	 */
+	public void finish() {
+		gEnd = since(gStart);
+		gRegistry.record(this);
+	}
+
+	/**
+	 * Record the sample as failed, with the last status set (0 if there was no response)
+	 */
+	public void fail() {
+		gFailed = true;
+		finish();
+	}
+
+	/**
+	 * Record the sample as failed
+	 * @param pStatus HTTP status of the response, 0 if there was no response
+	 */
+	public void fail(int pStatus) {
+		gStatus = pStatus;
+		fail();
+	}
+
+	/** @return operation name, e.g. "fedora.recoverDatastream" */
+	public String getOperation() { return gOperation; }
+	/** @return what the operation acted on (URI, file or pid) */
+	public String getTarget() { return gTarget; }
+	/** @return total time */
+	public long getTotalTime() { return gEnd; }
+	/** @return time to first byte of the response */
+	public long getTimeToFirstByte() { return gFirstByte; }
+	/** @return data transfer time */
+	public long getTransferTime() { return gTransferTime; }
+	/** @return checksum time */
+	public long getChecksumTime() { return gChecksumTime; }
+	/** @return bytes transferred */
+	public long getBytes() { return gBytes; }
+	/** @return HTTP status, 0 if none */
+	public int getStatus() { return gStatus; }
+	/** @return whether the operation failed */
+	public boolean isFailed() { return gFailed; }
+
+	public String toString() {
+		return gOperation+" "+gTarget+(gFailed?" FAILED":"")+" status="+gStatus+" bytes="+gBytes+" total="+gEnd+
+				"us ttfb="+gFirstByte+"us transfer="+gTransferTime+"us checksum="+gChecksumTime+"us";
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed size blocks of remote files, kept in memory up to a limit and evicted least recently
+ * used first.  Blocks are keyed by file path and block number; the last block of a file may
+ * be short.  File sizes are cached alongside, so opening a file again does not need a request.
+ * @author wpalmer
+ *
+ */
+public class BlockCache {
+
+	/** default block size (bytes) */
+	public static final int DEFAULT_BLOCK_SIZE = 64*1024;
+	/** default cache size (bytes) */
+	public static final long DEFAULT_CACHE_SIZE = 32*1024*1024;
+
+	//number of file sizes remembered
+	private static final int SIZES = 10000;
+
+	private int gBlockSize;
+	private long gMaxBytes;
+	private long gBytes = 0;
+	//access ordered, so iteration starts at the least recently used
+	private LinkedHashMap<String, byte[]> gBlocks = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+	private LinkedHashMap<String, Long> gSizes = new LinkedHashMap<String, Long>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Long> pEldest) {
+			return size()>SIZES;
+		}
+	};
+	private long gHits = 0;
+	private long gMisses = 0;
+	private long gEvictions = 0;
+
+	/**
+	 * Create a cache
+	 * @param pBlockSize size of each block (bytes)
+	 * @param pMaxBytes maximum bytes of blocks held
+	 */
+	public BlockCache(int pBlockSize, long pMaxBytes) {
+		gBlockSize = pBlockSize>0?pBlockSize:DEFAULT_BLOCK_SIZE;
+		gMaxBytes = pMaxBytes;
+	}
+
+	/**
+	 * @return block size (bytes)
+	 */
+	public int getBlockSize() {
+		return gBlockSize;
+	}
+
+	private static String key(String pPath, long pBlock) {
+		return pBlock+"@"+pPath;
+	}
+
+	/**
+	 * Get a block
+	 * @param pPath file path
+	 * @param pBlock block number
+	 * @return the block's data, or null if not cached
+	 */
+	public synchronized byte[] get(String pPath, long pBlock) {
+		byte[] block = gBlocks.get(key(pPath, pBlock));
+		if(block==null) {
+			gMisses++;
+		} else {
+			gHits++;
+		}
+		return block;
+	}
+
+	/**
+	 * @param pPath file path
+	 * @param pBlock block number
+	 * @return whether the block is cached (does not count as a use)
+	 */
+	public synchronized boolean contains(String pPath, long pBlock) {
+		return gBlocks.containsKey(key(pPath, pBlock));
+	}
+
+	/**
+	 * Add a block, evicting the least recently used blocks if the cache is full
+	 * @param pPath file path
+	 * @param pBlock block number
+	 * @param pData the block's data
+	 */
+	public synchronized void put(String pPath, long pBlock, byte[] pData) {
+		byte[] old = gBlocks.put(key(pPath, pBlock), pData);
+		if(old!=null) gBytes -= old.length;
+		gBytes += pData.length;
+		Iterator<byte[]> blocks = gBlocks.values().iterator();
+		while(gBytes>gMaxBytes&&blocks.hasNext()) {
+			byte[] eldest = blocks.next();
+			//keep the block just added, even if it alone is over the limit
+			if(eldest==pData) continue;
+			blocks.remove();
+			gBytes -= eldest.length;
+			gEvictions++;
+		}
+	}
+
+	/**
+	 * @param pPath file path
+	 * @return cached size of the file, or null
+	 */
+	public synchronized Long getSize(String pPath) {
+		return gSizes.get(pPath);
+	}
+
+	/**
+	 * @param pPath file path
+	 * @param pSize size of the file
+	 */
+	public synchronized void putSize(String pPath, long pSize) {
+		gSizes.put(pPath, pSize);
+	}
+
+	/**
+	 * Remove everything
+	 */
+	public synchronized void clear() {
+		gBlocks.clear();
+		gSizes.clear();
+		gBytes = 0;
+	}
+
+	/**
+	 * @return bytes of blocks held
+	 */
+	public synchronized long getBytes() {
+		return gBytes;
+	}
+
+	/**
+	 * @return number of block lookups that were found
+	 */
+	public synchronized long getHits() {
+		return gHits;
+	}
+
+	/**
+	 * @return number of block lookups that were not found
+	 */
+	public synchronized long getMisses() {
+		return gMisses;
+	}
+
+	/**
+	 * @return number of blocks evicted to make room
+	 */
+	public synchronized long getEvictions() {
+		return gEvictions;
+	}
+
+	public synchronized String toString() {
+		return "blocks: "+gBlocks.size()+" ("+gBytes+" bytes), hits: "+gHits+", misses: "+gMisses+", evictions: "+gEvictions;
+	}
+
+}
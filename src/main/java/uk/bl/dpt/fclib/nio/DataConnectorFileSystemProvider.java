@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import uk.bl.dpt.fclib.DatastreamProfile;
+import uk.bl.dpt.fclib.FedoraConnection;
+import uk.bl.dpt.fclib.FedoraDataConnector;
+
+/**
+ * File system provider for dataconnector://pid/datastream URIs (FedoraDataConnector.DC_URI).
+ * Objects are directories, listed with one request for their datastream profiles, and
+ * datastreams are files.
+ * @author wpalmer
+ *
+ */
+public class DataConnectorFileSystemProvider extends RemoteFileSystemProvider {
+
+	/** URI scheme */
+	public static final String SCHEME = FedoraDataConnector.DC_URI.substring(0, FedoraDataConnector.DC_URI.indexOf(':'));
+
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	protected RemoteFileSystem.Source createSource(Object pConnection) {
+		if(pConnection!=null&&!(pConnection instanceof FedoraConnection)) {
+			throw new IllegalArgumentException("Expected a FedoraConnection, not "+pConnection.getClass().getName());
+		}
+		final FedoraConnection connection = pConnection==null?FedoraDataConnector.getDefault():(FedoraConnection)pConnection;
+		return new RemoteFileSystem.Source() {
+			public boolean isDirectory(RemotePath pPath) {
+				return pPath.getNameCount()<2;
+			}
+			public long getSize(RemotePath pPath) throws IOException {
+				if(pPath.getNameCount()!=2) throw new FileNotFoundException(pPath.toString());
+				return connection.getDatastreamSize(pPath.getNames()[0], pPath.getNames()[1]);
+			}
+			public int read(RemotePath pPath, long pOffset, byte[] pBuffer, int pBufferOffset, int pLength) throws IOException {
+				return connection.readDatastream(pPath.getNames()[0], pPath.getNames()[1], pOffset, pBuffer, pBufferOffset, pLength);
+			}
+			public InputStream open(RemotePath pPath, long pOffset) throws IOException {
+				return connection.openDatastream(pPath.getNames()[0], pPath.getNames()[1], pOffset);
+			}
+			public List<String> list(RemotePath pPath) throws IOException {
+				//objects cannot be listed from the root
+				if(pPath.getNameCount()!=1) return null;
+				Map<String, DatastreamProfile> profiles = connection.getDatastreamProfiles(pPath.getNames()[0]);
+				if(profiles==null) throw new FileNotFoundException(pPath.toString());
+				return new ArrayList<String>(profiles.keySet());
+			}
+			public String toString() {
+				return connection.getBaseURI();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import uk.bl.dpt.fclib.RangeNotSupportedException;
+
+/**
+ * Read-only channel over a remote file.  Reads are served from the file system's block cache;
+ * missing blocks are fetched with a single Range request covering the blocks the read needs.
+ * While the file is read sequentially, further blocks are read ahead in the same request,
+ * doubling up to the file system's read-ahead limit; a seek elsewhere drops back to reading
+ * only what is needed, so a tool reading a header and a few slices of a large file only
+ * transfers those blocks.  If the server turns out to ignore Range requests, the channel
+ * switches to one sequential stream over the file rather than download everything before each
+ * block again.
+ * @author wpalmer
+ *
+ */
+public class RemoteByteChannel implements SeekableByteChannel {
+
+	private RemoteFileSystem gFileSystem;
+	private RemotePath gPath;
+	private String gKey;
+	private BlockCache gCache;
+	private int gBlockSize;
+	private long gSize;
+	private long gPosition = 0;
+	//block after the last one read, and the current read-ahead (blocks)
+	private long gNextBlock = 0;
+	private int gReadAhead = 0;
+	//what the last fetch returned, kept in case its blocks are evicted before they are read
+	private byte[] gFetched = null;
+	private long gFetchedOffset = 0;
+	private long gRequests = 0;
+	private long gBytesFetched = 0;
+	//set once the server has ignored a Range request; reads then come from one stream
+	private boolean gSequential = false;
+	private InputStream gStream = null;
+	private long gStreamOffset = 0;
+	private volatile boolean gOpen = true;
+
+	RemoteByteChannel(RemoteFileSystem pFileSystem, RemotePath pPath, long pSize) {
+		gFileSystem = pFileSystem;
+		gPath = pPath;
+		gKey = pPath.toString();
+		gCache = pFileSystem.getCache();
+		gBlockSize = gCache.getBlockSize();
+		gSize = pSize;
+	}
+
+	private void checkOpen() throws IOException {
+		if(!gOpen) throw new ClosedChannelException();
+	}
+
+	public synchronized int read(ByteBuffer pBuffer) throws IOException {
+		checkOpen();
+		if(!pBuffer.hasRemaining()) return 0;
+		if(gPosition>=gSize) return -1;
+		int count = 0;
+		while(pBuffer.hasRemaining()&&gPosition<gSize) {
+			long block = gPosition/gBlockSize;
+			byte[] data;
+			int offset;
+			if(gFetched!=null&&gPosition>=gFetchedOffset&&gPosition<gFetchedOffset+gFetched.length) {
+				data = gFetched;
+				offset = (int)(gPosition-gFetchedOffset);
+			} else {
+				data = gCache.get(gKey, block);
+				if(data==null) {
+					long last = (Math.min(gSize, gPosition+pBuffer.remaining())-1)/gBlockSize;
+					data = fetch(block, last);
+				}
+				offset = (int)(gPosition-block*gBlockSize);
+			}
+			if(offset>=data.length) throw new IOException("Block "+block+" of "+gPath+" is short");
+			int length = Math.min(pBuffer.remaining(), data.length-offset);
+			pBuffer.put(data, offset, length);
+			gPosition += length;
+			count += length;
+			gNextBlock = (gPosition-1)/gBlockSize+1;
+		}
+		return count;
+	}
+
+	/**
+	 * Fetch blocks pFirst to (at least) pLast, plus any read-ahead, and cache them
+	 * @return everything fetched, starting at block pFirst
+	 */
+	private byte[] fetch(long pFirst, long pLast) throws IOException {
+		if(pFirst==gNextBlock&&pFirst>0) {
+			//sequential: read further ahead each time
+			gReadAhead = Math.min(gFileSystem.getReadAhead(), Math.max(1, gReadAhead*2));
+		} else {
+			gReadAhead = 0;
+		}
+		long lastBlock = (gSize-1)/gBlockSize;
+		long last = Math.min(lastBlock, pLast+gReadAhead);
+		//stop before blocks that are already cached
+		for(long block=pFirst+1;block<=last;block++) {
+			if(gCache.contains(gKey, block)) {
+				last = Math.max(pLast, block-1);
+				break;
+			}
+		}
+		long offset = pFirst*gBlockSize;
+		long end = Math.min(gSize, (last+1)*gBlockSize);
+		if(end-offset>Integer.MAX_VALUE) {
+			end = offset+(long)(Integer.MAX_VALUE/gBlockSize)*gBlockSize;
+		}
+		byte[] buffer = new byte[(int)(end-offset)];
+		int count = 0;
+		if(!gSequential) {
+			try {
+				while(count<buffer.length) {
+					int read = gFileSystem.getSource().read(gPath, offset+count, buffer, count, buffer.length-count);
+					gRequests++;
+					if(read<=0) break;
+					count += read;
+				}
+			} catch(RangeNotSupportedException e) {
+				System.out.println("WARNING: "+e.getMessage()+", reading "+gPath+" sequentially");
+				gSequential = true;
+			}
+		}
+		if(gSequential) count = readStream(offset+count, buffer, count);
+		gBytesFetched += count;
+		if(count<buffer.length) throw new IOException("Expected ["+buffer.length+"] bytes of "+gPath+" at ["+offset+"], got ["+count+"]");
+		for(int start=0;start<buffer.length;start+=gBlockSize) {
+			byte[] data = new byte[Math.min(gBlockSize, buffer.length-start)];
+			System.arraycopy(buffer, start, data, 0, data.length);
+			gCache.put(gKey, pFirst+start/gBlockSize, data);
+		}
+		gFetched = buffer;
+		gFetchedOffset = offset;
+		return buffer;
+	}
+
+	/**
+	 * Read from the sequential stream, reopening it only to go backwards
+	 * @return pBufferOffset plus the number of bytes read
+	 */
+	private int readStream(long pOffset, byte[] pBuffer, int pBufferOffset) throws IOException {
+		if(gStream!=null&&gStreamOffset>pOffset) {
+			gStream.close();
+			gStream = null;
+		}
+		if(gStream==null) {
+			gStream = gFileSystem.getSource().open(gPath, pOffset);
+			gStreamOffset = pOffset;
+			gRequests++;
+		}
+		while(gStreamOffset<pOffset) {
+			long skipped = gStream.skip(pOffset-gStreamOffset);
+			if(skipped<=0) {
+				if(gStream.read()==-1) return pBufferOffset;
+				skipped = 1;
+			}
+			gStreamOffset += skipped;
+		}
+		int count = pBufferOffset;
+		while(count<pBuffer.length) {
+			int read = gStream.read(pBuffer, count, pBuffer.length-count);
+			if(read<0) break;
+			count += read;
+			gStreamOffset += read;
+		}
+		return count;
+	}
+
+	public int write(ByteBuffer pBuffer) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public synchronized long position() throws IOException {
+		checkOpen();
+		return gPosition;
+	}
+
+	public synchronized SeekableByteChannel position(long pPosition) throws IOException {
+		checkOpen();
+		if(pPosition<0) throw new IllegalArgumentException("Negative position");
+		gPosition = pPosition;
+		return this;
+	}
+
+	public long size() throws IOException {
+		checkOpen();
+		return gSize;
+	}
+
+	public SeekableByteChannel truncate(long pSize) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public boolean isOpen() {
+		return gOpen;
+	}
+
+	public synchronized void close() throws IOException {
+		gOpen = false;
+		gFetched = null;
+		if(gStream!=null) {
+			gStream.close();
+			gStream = null;
+		}
+	}
+
+	/**
+	 * @return number of requests made by this channel
+	 */
+	public synchronized long getRequests() {
+		return gRequests;
+	}
+
+	/**
+	 * @return number of bytes fetched by this channel
+	 */
+	public synchronized long getBytesFetched() {
+		return gBytesFetched;
+	}
+
+	public String toString() {
+		return gPath.toUri()+" ["+gSize+"] bytes";
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only file system over a remote repository.  File content is read with Range
+ * requests through a BlockCache, so only the blocks a tool touches are transferred.
+ * @author wpalmer
+ *
+ */
+public class RemoteFileSystem extends FileSystem {
+
+	/** newFileSystem() environment key: connection to use (FedoraConnection or WebdavConnection) */
+	public static final String CONNECTION = "connection";
+	/** newFileSystem() environment key: block size in bytes */
+	public static final String BLOCK_SIZE = "blockSize";
+	/** newFileSystem() environment key: cache size in bytes */
+	public static final String CACHE_SIZE = "cacheSize";
+	/** newFileSystem() environment key: maximum number of blocks read ahead on sequential reads */
+	public static final String READ_AHEAD = "readAhead";
+
+	/** default maximum number of blocks read ahead */
+	public static final int DEFAULT_READ_AHEAD = 16;
+
+	/**
+	 * Reads the content of remote files, given their path in the file system
+	 */
+	public interface Source {
+		/**
+		 * @param pPath absolute path
+		 * @return whether the path is a directory, without a request (e.g. an object)
+		 */
+		public boolean isDirectory(RemotePath pPath);
+		/**
+		 * @param pPath absolute path of a file
+		 * @return size in bytes
+		 * @throws IOException on error (FileNotFoundException if there is no such file)
+		 */
+		public long getSize(RemotePath pPath) throws IOException;
+		/**
+		 * @param pPath absolute path of a file
+		 * @param pOffset offset of the first byte
+		 * @param pBuffer buffer to read into
+		 * @param pBufferOffset offset in pBuffer
+		 * @param pLength number of bytes
+		 * @return number of bytes read, or -1 at the end of the file
+		 * @throws IOException on error
+		 */
+		public int read(RemotePath pPath, long pOffset, byte[] pBuffer, int pBufferOffset, int pLength) throws IOException;
+		/**
+		 * Open a file for reading sequentially, used instead of read() once the server is
+		 * found to ignore Range requests
+		 * @param pPath absolute path of a file
+		 * @param pOffset offset of the first byte
+		 * @return content from pOffset
+		 * @throws IOException on error
+		 */
+		public InputStream open(RemotePath pPath, long pOffset) throws IOException;
+		/**
+		 * @param pPath absolute path of a directory
+		 * @return names of its entries, or null if listing is not supported
+		 * @throws IOException on error
+		 */
+		public List<String> list(RemotePath pPath) throws IOException;
+	}
+
+	private RemoteFileSystemProvider gProvider;
+	private Source gSource;
+	private BlockCache gCache;
+	private int gReadAhead;
+	private boolean gDefault;
+	private volatile boolean gOpen = true;
+
+	RemoteFileSystem(RemoteFileSystemProvider pProvider, Source pSource, Map<String, ?> pEnv, boolean pDefault) {
+		gProvider = pProvider;
+		gSource = pSource;
+		gCache = new BlockCache((int)getLong(pEnv, BLOCK_SIZE, BlockCache.DEFAULT_BLOCK_SIZE), getLong(pEnv, CACHE_SIZE, BlockCache.DEFAULT_CACHE_SIZE));
+		gReadAhead = (int)getLong(pEnv, READ_AHEAD, DEFAULT_READ_AHEAD);
+		gDefault = pDefault;
+	}
+
+	private static long getLong(Map<String, ?> pEnv, String pKey, long pDefault) {
+		Object value = pEnv==null?null:pEnv.get(pKey);
+		if(value==null) return pDefault;
+		if(value instanceof Number) return ((Number)value).longValue();
+		return Long.parseLong(value.toString().trim());
+	}
+
+	Source getSource() {
+		return gSource;
+	}
+
+	/**
+	 * @return the block cache shared by all files of this file system
+	 */
+	public BlockCache getCache() {
+		return gCache;
+	}
+
+	int getReadAhead() {
+		return gReadAhead;
+	}
+
+	void checkOpen() {
+		if(!gOpen) throw new ClosedFileSystemException();
+	}
+
+	public RemoteFileSystemProvider provider() {
+		return gProvider;
+	}
+
+	/**
+	 * Close the file system and drop its cache.  The default file system of a provider
+	 * (used for Paths.get(URI)) cannot be closed.
+	 */
+	public void close() throws IOException {
+		if(gDefault) throw new UnsupportedOperationException("Default file system cannot be closed");
+		gOpen = false;
+		gCache.clear();
+	}
+
+	public boolean isOpen() {
+		return gOpen;
+	}
+
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	public String getSeparator() {
+		return "/";
+	}
+
+	public Iterable<Path> getRootDirectories() {
+		return Collections.<Path>singletonList(new RemotePath(this, "/"));
+	}
+
+	public Iterable<FileStore> getFileStores() {
+		return Collections.<FileStore>emptyList();
+	}
+
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+	public RemotePath getPath(String pFirst, String... pMore) {
+		StringBuilder path = new StringBuilder(pFirst);
+		for(String more:pMore) {
+			if(more.length()>0) path.append('/').append(more);
+		}
+		return new RemotePath(this, path.toString());
+	}
+
+	/**
+	 * Supports the regex: and glob: syntaxes (glob: *, **, ?, [...] and {a,b})
+	 */
+	public PathMatcher getPathMatcher(String pSyntaxAndPattern) {
+		int colon = pSyntaxAndPattern.indexOf(':');
+		if(colon<=0) throw new IllegalArgumentException("Expected syntax:pattern");
+		String syntax = pSyntaxAndPattern.substring(0, colon);
+		String pattern = pSyntaxAndPattern.substring(colon+1);
+		final Pattern regex;
+		if(syntax.equalsIgnoreCase("regex")) {
+			regex = Pattern.compile(pattern);
+		} else if(syntax.equalsIgnoreCase("glob")) {
+			regex = Pattern.compile(globToRegex(pattern));
+		} else {
+			throw new UnsupportedOperationException("Syntax not supported: "+syntax);
+		}
+		return new PathMatcher() {
+			public boolean matches(Path pPath) {
+				return regex.matcher(pPath.toString()).matches();
+			}
+		};
+	}
+
+	private static String globToRegex(String pGlob) {
+		StringBuilder regex = new StringBuilder();
+		boolean group = false;
+		for(int i=0;i<pGlob.length();i++) {
+			char c = pGlob.charAt(i);
+			switch(c) {
+			case '*':
+				if(i+1<pGlob.length()&&pGlob.charAt(i+1)=='*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			case '[':
+				int end = pGlob.indexOf(']', i);
+				if(end<0) throw new IllegalArgumentException("Unclosed [ in "+pGlob);
+				String set = pGlob.substring(i+1, end);
+				regex.append('[').append(set.startsWith("!")?"^"+set.substring(1):set).append(']');
+				i = end;
+				break;
+			case '{':
+				regex.append("(?:");
+				group = true;
+				break;
+			case '}':
+				regex.append(')');
+				group = false;
+				break;
+			case ',':
+				regex.append(group?"|":",");
+				break;
+			case '\\':
+				if(i+1<pGlob.length()) regex.append(Pattern.quote(String.valueOf(pGlob.charAt(++i))));
+				break;
+			default:
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return regex.toString();
+	}
+
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException();
+	}
+
+	public WatchService newWatchService() throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public String toString() {
+		return provider().getScheme()+":// "+gSource+" ("+gCache+")";
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only java.nio.file access to a remote repository, so tools that work on Paths and
+ * channels can read remote content lazily (see RemoteByteChannel).  Paths.get(URI) uses a
+ * default file system on the default connection of the data connector; FileSystems.newFileSystem()
+ * creates one on another connection, with the environment keys in RemoteFileSystem.
+ * @author wpalmer
+ *
+ */
+public abstract class RemoteFileSystemProvider extends FileSystemProvider {
+
+	private RemoteFileSystem gDefault = null;
+
+	/**
+	 * @param pConnection connection given to newFileSystem(), or null for the default connection
+	 * @return source for a file system on the connection
+	 */
+	protected abstract RemoteFileSystem.Source createSource(Object pConnection);
+
+	private void checkURI(URI pURI) {
+		if(!getScheme().equalsIgnoreCase(pURI.getScheme())) throw new IllegalArgumentException("Not a "+getScheme()+" URI: "+pURI);
+	}
+
+	/**
+	 * @return the file system used for Paths.get(URI), on the default connection
+	 */
+	public synchronized RemoteFileSystem getDefault() {
+		if(gDefault==null) gDefault = new RemoteFileSystem(this, createSource(null), null, true);
+		return gDefault;
+	}
+
+	/**
+	 * Create a file system.  The environment must give a connection (RemoteFileSystem.CONNECTION),
+	 * as the default connection already has a file system.
+	 */
+	public FileSystem newFileSystem(URI pURI, Map<String, ?> pEnv) throws IOException {
+		checkURI(pURI);
+		Object connection = pEnv==null?null:pEnv.get(RemoteFileSystem.CONNECTION);
+		if(connection==null) throw new FileSystemAlreadyExistsException("Default connection; use getFileSystem() or give a "+RemoteFileSystem.CONNECTION);
+		return new RemoteFileSystem(this, createSource(connection), pEnv, false);
+	}
+
+	public FileSystem getFileSystem(URI pURI) {
+		checkURI(pURI);
+		return getDefault();
+	}
+
+	/**
+	 * Convert a URI to a path in the default file system: scheme://a/b/c becomes /a/b/c
+	 */
+	public Path getPath(URI pURI) {
+		checkURI(pURI);
+		String authority = pURI.getAuthority();
+		String path = pURI.getPath();
+		return getDefault().getPath("/"+(authority==null?"":authority)+(path==null?"":path));
+	}
+
+	private static RemotePath toRemotePath(Path pPath) {
+		if(!(pPath instanceof RemotePath)) throw new ProviderMismatchException();
+		RemotePath path = (RemotePath)pPath.toAbsolutePath().normalize();
+		path.getFileSystem().checkOpen();
+		return path;
+	}
+
+	private static long getSize(RemotePath pPath) throws IOException {
+		BlockCache cache = pPath.getFileSystem().getCache();
+		Long size = cache.getSize(pPath.toString());
+		if(size!=null) return size;
+		try {
+			size = pPath.getFileSystem().getSource().getSize(pPath);
+		} catch(FileNotFoundException e) {
+			throw new NoSuchFileException(pPath.toString());
+		}
+		cache.putSize(pPath.toString(), size);
+		return size;
+	}
+
+	public SeekableByteChannel newByteChannel(Path pPath, Set<? extends OpenOption> pOptions, FileAttribute<?>... pAttributes) throws IOException {
+		RemotePath path = toRemotePath(pPath);
+		for(OpenOption option:pOptions) {
+			if(option==StandardOpenOption.WRITE||option==StandardOpenOption.APPEND||option==StandardOpenOption.CREATE||
+					option==StandardOpenOption.CREATE_NEW||option==StandardOpenOption.TRUNCATE_EXISTING||option==StandardOpenOption.DELETE_ON_CLOSE) {
+				throw new ReadOnlyFileSystemException();
+			}
+		}
+		if(path.getFileSystem().getSource().isDirectory(path)) throw new FileSystemException(path.toString(), null, "Is a directory");
+		return new RemoteByteChannel(path.getFileSystem(), path, getSize(path));
+	}
+
+	public DirectoryStream<Path> newDirectoryStream(Path pPath, final DirectoryStream.Filter<? super Path> pFilter) throws IOException {
+		final RemotePath path = toRemotePath(pPath);
+		if(!path.getFileSystem().getSource().isDirectory(path)) throw new NotDirectoryException(path.toString());
+		List<String> names;
+		try {
+			names = path.getFileSystem().getSource().list(path);
+		} catch(FileNotFoundException e) {
+			throw new NoSuchFileException(path.toString());
+		}
+		if(names==null) throw new UnsupportedOperationException("Cannot list "+path);
+		final List<Path> entries = new ArrayList<Path>();
+		for(String name:names) {
+			Path entry = path.resolve(name);
+			if(pFilter==null||pFilter.accept(entry)) entries.add(entry);
+		}
+		return new DirectoryStream<Path>() {
+			public Iterator<Path> iterator() {
+				return entries.iterator();
+			}
+			public void close() {
+			}
+		};
+	}
+
+	public void createDirectory(Path pPath, FileAttribute<?>... pAttributes) throws IOException {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	public void delete(Path pPath) throws IOException {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	public void copy(Path pSource, Path pTarget, CopyOption... pOptions) throws IOException {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	public void move(Path pSource, Path pTarget, CopyOption... pOptions) throws IOException {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	public boolean isSameFile(Path pPath, Path pOther) throws IOException {
+		return toRemotePath(pPath).equals(pOther instanceof RemotePath?toRemotePath(pOther):pOther);
+	}
+
+	public boolean isHidden(Path pPath) throws IOException {
+		return false;
+	}
+
+	public FileStore getFileStore(Path pPath) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void checkAccess(Path pPath, AccessMode... pModes) throws IOException {
+		for(AccessMode mode:pModes) {
+			if(mode!=AccessMode.READ) throw new AccessDeniedException(pPath.toString(), null, "Read-only file system");
+		}
+		readAttributes(pPath, BasicFileAttributes.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <V extends FileAttributeView> V getFileAttributeView(final Path pPath, Class<V> pType, LinkOption... pOptions) {
+		if(pType!=BasicFileAttributeView.class) return null;
+		return (V)new BasicFileAttributeView() {
+			public String name() {
+				return "basic";
+			}
+			public BasicFileAttributes readAttributes() throws IOException {
+				return RemoteFileSystemProvider.this.readAttributes(pPath, BasicFileAttributes.class);
+			}
+			public void setTimes(FileTime pModified, FileTime pAccessed, FileTime pCreated) throws IOException {
+				throw new ReadOnlyFileSystemException();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	public <A extends BasicFileAttributes> A readAttributes(Path pPath, Class<A> pType, LinkOption... pOptions) throws IOException {
+		if(pType!=BasicFileAttributes.class) throw new UnsupportedOperationException("Only basic attributes are supported");
+		RemotePath path = toRemotePath(pPath);
+		if(path.getFileSystem().getSource().isDirectory(path)) return (A)new Attributes(true, 0);
+		return (A)new Attributes(false, getSize(path));
+	}
+
+	public Map<String, Object> readAttributes(Path pPath, String pAttributes, LinkOption... pOptions) throws IOException {
+		String names = pAttributes;
+		int colon = names.indexOf(':');
+		if(colon>=0) {
+			if(!names.substring(0, colon).equals("basic")) throw new UnsupportedOperationException("Only basic attributes are supported");
+			names = names.substring(colon+1);
+		}
+		BasicFileAttributes attributes = readAttributes(pPath, BasicFileAttributes.class);
+		Map<String, Object> all = new HashMap<String, Object>();
+		all.put("size", attributes.size());
+		all.put("isDirectory", attributes.isDirectory());
+		all.put("isRegularFile", attributes.isRegularFile());
+		all.put("isSymbolicLink", attributes.isSymbolicLink());
+		all.put("isOther", attributes.isOther());
+		all.put("lastModifiedTime", attributes.lastModifiedTime());
+		all.put("lastAccessTime", attributes.lastAccessTime());
+		all.put("creationTime", attributes.creationTime());
+		all.put("fileKey", attributes.fileKey());
+		if(names.equals("*")) return all;
+		Map<String, Object> selected = new HashMap<String, Object>();
+		for(String name:Arrays.asList(names.split(","))) {
+			if(!all.containsKey(name)) throw new IllegalArgumentException("Unknown attribute: "+name);
+			selected.put(name, all.get(name));
+		}
+		return selected;
+	}
+
+	public void setAttribute(Path pPath, String pAttribute, Object pValue, LinkOption... pOptions) throws IOException {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	/**
+	 * Attributes of a remote file.  Times are not known and are given as the epoch.
+	 */
+	private static class Attributes implements BasicFileAttributes {
+		private static final FileTime UNKNOWN = FileTime.fromMillis(0);
+		private boolean gDirectory;
+		private long gSize;
+		private Attributes(boolean pDirectory, long pSize) {
+			gDirectory = pDirectory;
+			gSize = pSize;
+		}
+		public FileTime lastModifiedTime() { return UNKNOWN; }
+		public FileTime lastAccessTime() { return UNKNOWN; }
+		public FileTime creationTime() { return UNKNOWN; }
+		public boolean isRegularFile() { return !gDirectory; }
+		public boolean isDirectory() { return gDirectory; }
+		public boolean isSymbolicLink() { return false; }
+		public boolean isOther() { return false; }
+		public long size() { return gSize; }
+		public Object fileKey() { return null; }
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path in a RemoteFileSystem: names separated by '/', absolute if it starts with '/'.
+ * /pid/datastream for dataconnector://pid/datastream, /dir/file for webdav://dir/file.
+ * @author wpalmer
+ *
+ */
+public class RemotePath implements Path {
+
+	private RemoteFileSystem gFileSystem;
+	private boolean gAbsolute;
+	private String[] gNames;
+
+	RemotePath(RemoteFileSystem pFileSystem, String pPath) {
+		gFileSystem = pFileSystem;
+		gAbsolute = pPath.startsWith("/");
+		List<String> names = new ArrayList<String>();
+		for(String name:pPath.split("/")) {
+			if(name.length()>0) names.add(name);
+		}
+		gNames = names.toArray(new String[names.size()]);
+	}
+
+	private RemotePath(RemoteFileSystem pFileSystem, boolean pAbsolute, String[] pNames) {
+		gFileSystem = pFileSystem;
+		gAbsolute = pAbsolute;
+		gNames = pNames;
+	}
+
+	private static RemotePath check(Path pPath) {
+		if(!(pPath instanceof RemotePath)) throw new ProviderMismatchException();
+		return (RemotePath)pPath;
+	}
+
+	String[] getNames() {
+		return gNames;
+	}
+
+	public RemoteFileSystem getFileSystem() {
+		return gFileSystem;
+	}
+
+	public boolean isAbsolute() {
+		return gAbsolute;
+	}
+
+	public Path getRoot() {
+		return gAbsolute?new RemotePath(gFileSystem, true, new String[0]):null;
+	}
+
+	public Path getFileName() {
+		return gNames.length==0?null:new RemotePath(gFileSystem, false, new String[] { gNames[gNames.length-1] });
+	}
+
+	public Path getParent() {
+		if(gNames.length==0||(gNames.length==1&&!gAbsolute)) return null;
+		return new RemotePath(gFileSystem, gAbsolute, Arrays.copyOf(gNames, gNames.length-1));
+	}
+
+	public int getNameCount() {
+		return gNames.length;
+	}
+
+	public Path getName(int pIndex) {
+		if(pIndex<0||pIndex>=gNames.length) throw new IllegalArgumentException();
+		return new RemotePath(gFileSystem, false, new String[] { gNames[pIndex] });
+	}
+
+	public Path subpath(int pBegin, int pEnd) {
+		if(pBegin<0||pEnd>gNames.length||pBegin>=pEnd) throw new IllegalArgumentException();
+		return new RemotePath(gFileSystem, false, Arrays.copyOfRange(gNames, pBegin, pEnd));
+	}
+
+	public boolean startsWith(Path pOther) {
+		if(!(pOther instanceof RemotePath)) return false;
+		RemotePath other = (RemotePath)pOther;
+		if(other.gFileSystem!=gFileSystem||other.gAbsolute!=gAbsolute||other.gNames.length>gNames.length) return false;
+		for(int i=0;i<other.gNames.length;i++) {
+			if(!other.gNames[i].equals(gNames[i])) return false;
+		}
+		return true;
+	}
+
+	public boolean startsWith(String pOther) {
+		return startsWith(gFileSystem.getPath(pOther));
+	}
+
+	public boolean endsWith(Path pOther) {
+		if(!(pOther instanceof RemotePath)) return false;
+		RemotePath other = (RemotePath)pOther;
+		if(other.gFileSystem!=gFileSystem||other.gNames.length>gNames.length) return false;
+		if(other.gAbsolute) return other.gAbsolute==gAbsolute&&other.gNames.length==gNames.length&&startsWith(other);
+		int offset = gNames.length-other.gNames.length;
+		for(int i=0;i<other.gNames.length;i++) {
+			if(!other.gNames[i].equals(gNames[offset+i])) return false;
+		}
+		return true;
+	}
+
+	public boolean endsWith(String pOther) {
+		return endsWith(gFileSystem.getPath(pOther));
+	}
+
+	public Path normalize() {
+		List<String> names = new ArrayList<String>();
+		for(String name:gNames) {
+			if(name.equals(".")) continue;
+			if(name.equals("..")&&names.size()>0&&!names.get(names.size()-1).equals("..")) {
+				names.remove(names.size()-1);
+			} else if(!(name.equals("..")&&gAbsolute)) {
+				//.. at the root stays at the root
+				names.add(name);
+			}
+		}
+		return new RemotePath(gFileSystem, gAbsolute, names.toArray(new String[names.size()]));
+	}
+
+	public Path resolve(Path pOther) {
+		RemotePath other = check(pOther);
+		if(other.gAbsolute) return other;
+		String[] names = Arrays.copyOf(gNames, gNames.length+other.gNames.length);
+		System.arraycopy(other.gNames, 0, names, gNames.length, other.gNames.length);
+		return new RemotePath(gFileSystem, gAbsolute, names);
+	}
+
+	public Path resolve(String pOther) {
+		return resolve(gFileSystem.getPath(pOther));
+	}
+
+	public Path resolveSibling(Path pOther) {
+		Path parent = getParent();
+		return parent==null?pOther:parent.resolve(pOther);
+	}
+
+	public Path resolveSibling(String pOther) {
+		return resolveSibling(gFileSystem.getPath(pOther));
+	}
+
+	public Path relativize(Path pOther) {
+		RemotePath other = check(pOther);
+		if(other.gAbsolute!=gAbsolute) throw new IllegalArgumentException("Cannot relativize "+pOther+" against "+this);
+		int common = 0;
+		while(common<gNames.length&&common<other.gNames.length&&gNames[common].equals(other.gNames[common])) common++;
+		List<String> names = new ArrayList<String>();
+		for(int i=common;i<gNames.length;i++) names.add("..");
+		for(int i=common;i<other.gNames.length;i++) names.add(other.gNames[i]);
+		return new RemotePath(gFileSystem, false, names.toArray(new String[names.size()]));
+	}
+
+	public URI toUri() {
+		RemotePath path = (RemotePath)toAbsolutePath();
+		try {
+			if(path.gNames.length==0) return new URI(gFileSystem.provider().getScheme()+":///");
+			//the first name is the URI's authority, e.g. the pid
+			StringBuilder rest = new StringBuilder();
+			for(int i=1;i<path.gNames.length;i++) rest.append('/').append(path.gNames[i]);
+			return new URI(gFileSystem.provider().getScheme(), path.gNames[0], rest.toString(), null, null);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public Path toAbsolutePath() {
+		return gAbsolute?this:new RemotePath(gFileSystem, true, gNames);
+	}
+
+	public Path toRealPath(LinkOption... pOptions) throws IOException {
+		Path path = toAbsolutePath().normalize();
+		gFileSystem.provider().checkAccess(path);
+		return path;
+	}
+
+	public File toFile() {
+		throw new UnsupportedOperationException("Not a local file: "+this);
+	}
+
+	public WatchKey register(WatchService pWatcher, WatchEvent.Kind<?>[] pEvents, WatchEvent.Modifier... pModifiers) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public WatchKey register(WatchService pWatcher, WatchEvent.Kind<?>... pEvents) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public Iterator<Path> iterator() {
+		List<Path> names = new ArrayList<Path>();
+		for(int i=0;i<gNames.length;i++) names.add(getName(i));
+		return names.iterator();
+	}
+
+	public int compareTo(Path pOther) {
+		return toString().compareTo(check(pOther).toString());
+	}
+
+	public boolean equals(Object pOther) {
+		if(!(pOther instanceof RemotePath)) return false;
+		RemotePath other = (RemotePath)pOther;
+		return other.gFileSystem==gFileSystem&&other.gAbsolute==gAbsolute&&Arrays.equals(other.gNames, gNames);
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(gNames)*31+(gAbsolute?1:0);
+	}
+
+	public String toString() {
+		StringBuilder path = new StringBuilder();
+		for(String name:gNames) {
+			if(path.length()>0||gAbsolute) path.append('/');
+			path.append(name);
+		}
+		return path.length()==0&&gAbsolute?"/":path.toString();
+	}
+
+}
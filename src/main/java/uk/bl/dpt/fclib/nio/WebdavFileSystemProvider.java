@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import uk.bl.dpt.fclib.WebdavConnection;
+import uk.bl.dpt.fclib.WebdavDataConnector;
+
+/**
+ * File system provider for webdav://path/to/file URIs (WebdavDataConnector.DC_URI), read
+ * from the get server.  Sizes come from HEAD requests; directories cannot be listed.
+ * @author wpalmer
+ *
+ */
+public class WebdavFileSystemProvider extends RemoteFileSystemProvider {
+
+	/** URI scheme */
+	public static final String SCHEME = WebdavDataConnector.DC_URI.substring(0, WebdavDataConnector.DC_URI.indexOf(':'));
+
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	protected RemoteFileSystem.Source createSource(Object pConnection) {
+		if(pConnection!=null&&!(pConnection instanceof WebdavConnection)) {
+			throw new IllegalArgumentException("Expected a WebdavConnection, not "+pConnection.getClass().getName());
+		}
+		final WebdavConnection connection = pConnection==null?WebdavDataConnector.getDefault():(WebdavConnection)pConnection;
+		return new RemoteFileSystem.Source() {
+			public boolean isDirectory(RemotePath pPath) {
+				return pPath.getNameCount()==0;
+			}
+			public long getSize(RemotePath pPath) throws IOException {
+				return connection.getFileSize(pPath.toString());
+			}
+			public int read(RemotePath pPath, long pOffset, byte[] pBuffer, int pBufferOffset, int pLength) throws IOException {
+				return connection.readFile(pPath.toString(), pOffset, pBuffer, pBufferOffset, pLength);
+			}
+			public InputStream open(RemotePath pPath, long pOffset) throws IOException {
+				return connection.openFile(pPath.toString(), pOffset);
+			}
+			public List<String> list(RemotePath pPath) {
+				return null;
+			}
+			public String toString() {
+				return connection.toString();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.PasswordAuthentication;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+import uk.bl.dpt.fclib.https.TlsConfig;
+
+/**
+ * Transport over java.net.http.HttpClient.  HTTP/2 is used where the server supports it
+ * (negotiated with ALPN for https, or by upgrade for http), so concurrent requests to one
+ * server are multiplexed over a few connections; otherwise the client falls back to HTTP/1.1
+ * with a pool of kept-alive connections.  One client is shared by all threads using the
+ * transport.
+ * @author wpalmer
+ *
+ */
+public class HttpClientTransport implements Transport {
+
+	//headers HttpClient sets itself and will not accept
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "content-length", "expect", "host", "upgrade"));
+
+	private HttpClient gClient;
+	private String gAuthorization = null;
+	private Duration gReadTimeout = null;
+
+	/**
+	 * Create a transport that prefers HTTP/2
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pTls TLS settings for https connections (null for the JVM defaults)
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout time to wait for response headers in ms (0 for no limit)
+	 */
+	public HttpClientTransport(String pUser, String pPassword, TlsConfig pTls, int pConnectTimeout, int pReadTimeout) {
+		this(pUser, pPassword, getContext(pTls), pConnectTimeout, pReadTimeout, HttpClient.Version.HTTP_2);
+	}
+
+	private static SSLContext getContext(TlsConfig pTls) {
+		if(pTls==null) return null;
+		try {
+			return pTls.getContext();
+		} catch(IOException e) {
+			//fall back to the JVM's default trust rather than trusting anything
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Create a transport that prefers HTTP/2
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pContext SSL context for https connections (null for the default)
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout time to wait for response headers in ms (0 for no limit)
+	 */
+	public HttpClientTransport(String pUser, String pPassword, SSLContext pContext, int pConnectTimeout, int pReadTimeout) {
+		this(pUser, pPassword, pContext, pConnectTimeout, pReadTimeout, HttpClient.Version.HTTP_2);
+	}
+
+	/**
+	 * Create a transport
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pContext SSL context for https connections (null for the default)
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout time to wait for response headers in ms (0 for no limit)
+	 * @param pVersion preferred HTTP version
+	 */
+	public HttpClientTransport(final String pUser, final String pPassword, SSLContext pContext, int pConnectTimeout, int pReadTimeout, HttpClient.Version pVersion) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(pVersion)
+				//as HttpURLConnection
+				.followRedirects(HttpClient.Redirect.NORMAL);
+		if(pContext!=null) builder.sslContext(pContext);
+		if(pConnectTimeout>0) builder.connectTimeout(Duration.ofMillis(pConnectTimeout));
+		if(pReadTimeout>0) gReadTimeout = Duration.ofMillis(pReadTimeout);
+		if(pUser!=null&&pUser.length()>0) {
+			final String password = pPassword==null?"":pPassword;
+			builder.authenticator(new Authenticator() {
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(pUser, password.toCharArray());
+				}
+			});
+			gAuthorization = URLConnectionTransport.getBasicAuthorization(pUser, password);
+		}
+		gClient = builder.build();
+	}
+
+	public Response send(Request pRequest) throws IOException {
+		HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+		if(pRequest.getFile()!=null) {
+			body = HttpRequest.BodyPublishers.ofFile(pRequest.getFile().toPath());
+		} else if(pRequest.getBytes()!=null) {
+			body = HttpRequest.BodyPublishers.ofByteArray(pRequest.getBytes());
+		}
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(pRequest.getURI()))
+				.method(pRequest.getMethod(), body);
+		if(gReadTimeout!=null) builder.timeout(gReadTimeout);
+		if(gAuthorization!=null) builder.header("Authorization", gAuthorization);
+		for(Map.Entry<String, String> header:pRequest.getHeaders().entrySet()) {
+			String name = header.getKey().toLowerCase();
+			if(name.equals("expect")) {
+				builder.expectContinue("100-continue".equalsIgnoreCase(header.getValue()));
+			} else if(!RESTRICTED_HEADERS.contains(name)) {
+				builder.header(header.getKey(), header.getValue());
+			}
+		}
+		try {
+			return new HttpClientResponse(gClient.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for "+pRequest);
+		}
+	}
+
+	private static class HttpClientResponse implements Response {
+		private HttpResponse<InputStream> gResponse;
+		private HttpClientResponse(HttpResponse<InputStream> pResponse) {
+			gResponse = pResponse;
+		}
+		public int getStatus() { return gResponse.statusCode(); }
+		public String getHeader(String pName) { return gResponse.headers().firstValue(pName).orElse(null); }
+		public InputStream getBody() throws IOException {
+			if(getStatus()>=HttpURLConnection.HTTP_BAD_REQUEST) {
+				throw new IOException("Server returned HTTP response code: "+getStatus()+" for URL: "+getURI());
+			}
+			return gResponse.body();
+		}
+		public InputStream getErrorBody() { return gResponse.body(); }
+		public String getURI() { return gResponse.uri().toString(); }
+		public String getProtocol() {
+			return gResponse.version()==HttpClient.Version.HTTP_2?"HTTP/2":"HTTP/1.1";
+		}
+		public void close() {
+			try {
+				gResponse.body().close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void close() {
+		//connections are closed when the client is garbage collected
+	}
+
+}
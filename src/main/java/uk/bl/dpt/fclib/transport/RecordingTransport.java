@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.IOException;
+
+import uk.bl.dpt.fclib.jfr.ConnectionSetupEvent;
+
+/**
+ * Records a ConnectionSetupEvent for each request sent by another transport, from sending the
+ * request until the response headers arrive
+ * @author wpalmer
+ *
+ */
+class RecordingTransport implements Transport {
+
+	private Transport gTransport;
+
+	RecordingTransport(Transport pTransport) {
+		gTransport = pTransport;
+	}
+
+	public Response send(Request pRequest) throws IOException {
+		ConnectionSetupEvent event = new ConnectionSetupEvent();
+		if(!event.isEnabled()) return gTransport.send(pRequest);
+		event.begin();
+		int status = -1;
+		try {
+			Response response = gTransport.send(pRequest);
+			status = response.getStatus();
+			return response;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.uri = pRequest.getURI();
+				event.method = pRequest.getMethod();
+				event.secure = pRequest.getURI().toLowerCase().startsWith("https:");
+				event.status = status;
+				event.commit();
+			}
+		}
+	}
+
+	public void close() {
+		gTransport.close();
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request: method, URI, headers and an optional body from a file or byte array
+ * @author wpalmer
+ *
+ */
+public class Request {
+
+	private String gMethod;
+	private String gURI;
+	private Map<String, String> gHeaders = new LinkedHashMap<String, String>();
+	private File gFile = null;
+	private byte[] gBytes = null;
+
+	/**
+	 * Create a request with no body
+	 * @param pMethod HTTP method, e.g. GET
+	 * @param pURI absolute URI
+	 */
+	public Request(String pMethod, String pURI) {
+		gMethod = pMethod;
+		gURI = pURI;
+	}
+
+	/**
+	 * Set a request header
+	 * @param pName header name
+	 * @param pValue header value
+	 * @return this request
+	 */
+	public Request setHeader(String pName, String pValue) {
+		gHeaders.put(pName, pValue);
+		return this;
+	}
+
+	/**
+	 * Send the contents of a file as the body
+	 * @param pFile file to send
+	 * @return this request
+	 */
+	public Request setBody(File pFile) {
+		gFile = pFile;
+		gBytes = null;
+		return this;
+	}
+
+	/**
+	 * Send a byte array as the body
+	 * @param pBytes bytes to send
+	 * @return this request
+	 */
+	public Request setBody(byte[] pBytes) {
+		gBytes = pBytes;
+		gFile = null;
+		return this;
+	}
+
+	/** @return HTTP method */
+	public String getMethod() { return gMethod; }
+	/** @return absolute URI */
+	public String getURI() { return gURI; }
+	/** @return request headers */
+	public Map<String, String> getHeaders() { return gHeaders; }
+	/** @return file to send as the body, or null */
+	public File getFile() { return gFile; }
+	/** @return bytes to send as the body, or null */
+	public byte[] getBytes() { return gBytes; }
+
+	/**
+	 * @return whether the request has a body
+	 */
+	public boolean hasBody() {
+		return gFile!=null||gBytes!=null;
+	}
+
+	/**
+	 * @return length of the body in bytes (0 if none)
+	 */
+	public long getBodyLength() {
+		if(gFile!=null) return gFile.length();
+		if(gBytes!=null) return gBytes.length;
+		return 0;
+	}
+
+	public String toString() {
+		return gMethod+" "+gURI;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response to a Request, once the headers have been received
+ * @author wpalmer
+ *
+ */
+public interface Response {
+
+	/**
+	 * @return HTTP status code
+	 */
+	public int getStatus();
+
+	/**
+	 * @param pName header name (case insensitive)
+	 * @return first value of the header, or null
+	 */
+	public String getHeader(String pName);
+
+	/**
+	 * Get the response body.  As with HttpURLConnection, this fails for error statuses (400 and
+	 * above); use getErrorBody() for those.
+	 * @return body stream (close when done)
+	 * @throws IOException if the status is an error, or the body cannot be read
+	 */
+	public InputStream getBody() throws IOException;
+
+	/**
+	 * @return body of an error response (possibly empty)
+	 */
+	public InputStream getErrorBody();
+
+	/**
+	 * @return URI the request was sent to
+	 */
+	public String getURI();
+
+	/**
+	 * @return protocol the response came over, e.g. HTTP/1.1 or HTTP/2
+	 */
+	public String getProtocol();
+
+	/**
+	 * Release the response.  A body that has not been read is discarded; the connection is kept
+	 * for reuse where the transport can do so cheaply (e.g. a short or empty body)
+	 */
+	public void close();
+
+}
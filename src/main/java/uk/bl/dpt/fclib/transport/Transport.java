@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests for the connectors.  An implementation is created for each connection
+ * (server and credentials) and is used from many threads at once.
+ * @author wpalmer
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Available implementations
+	 */
+	public enum Type {
+		/** HttpURLConnection, one request per connection at a time (the default) */
+		URLCONNECTION,
+		/** java.net.http.HttpClient, using HTTP/2 where the server supports it */
+		HTTPCLIENT
+	}
+
+	/**
+	 * Send a request and wait for the response headers
+	 * @param pRequest request to send
+	 * @return response; the caller must read its body to the end or close it
+	 * @throws IOException if the request could not be sent or there was no response
+	 */
+	public Response send(Request pRequest) throws IOException;
+
+	/**
+	 * Release pooled connections
+	 */
+	public void close();
+
+}
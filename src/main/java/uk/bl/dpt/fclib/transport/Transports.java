@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import uk.bl.dpt.fclib.https.AbsoluteTrustManager;
+import uk.bl.dpt.fclib.https.TlsConfig;
+
+/**
+ * Creates transports for the connectors
+ * @author wpalmer
+ *
+ */
+public final class Transports {
+
+	private Transports() {}
+
+	/**
+	 * Create a transport
+	 * @param pType implementation to use
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pContext SSL context for https connections
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 * @param pMaxConnections connection pool size where the implementation has one (0 for no limit)
+	 * @return new transport (recording a ConnectionSetupEvent for each request)
+	 */
+	public static Transport create(Transport.Type pType, String pUser, String pPassword, SSLContext pContext,
+			int pConnectTimeout, int pReadTimeout, int pMaxConnections) {
+		switch(pType) {
+		case HTTPCLIENT:
+			return new RecordingTransport(new HttpClientTransport(pUser, pPassword, pContext, pConnectTimeout, pReadTimeout));
+		case URLCONNECTION:
+		default:
+			return new RecordingTransport(new URLConnectionTransport(pUser, pPassword, pContext, pConnectTimeout, pReadTimeout, pMaxConnections));
+		}
+	}
+
+	/**
+	 * Create a transport
+	 * @param pType implementation to use
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pTls TLS settings for https connections; the same settings (and so the same SSL
+	 * context and session cache) should be used for every transport to a server
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 * @param pMaxConnections connection pool size where the implementation has one (0 for no limit)
+	 * @return new transport (recording a ConnectionSetupEvent for each request)
+	 */
+	public static Transport create(Transport.Type pType, String pUser, String pPassword, TlsConfig pTls,
+			int pConnectTimeout, int pReadTimeout, int pMaxConnections) {
+		switch(pType) {
+		case HTTPCLIENT:
+			return new RecordingTransport(new HttpClientTransport(pUser, pPassword, pTls, pConnectTimeout, pReadTimeout));
+		case URLCONNECTION:
+		default:
+			return new RecordingTransport(new URLConnectionTransport(pUser, pPassword, pTls, pConnectTimeout, pReadTimeout, pMaxConnections));
+		}
+	}
+
+	/**
+	 * Parse a transport type, as in the CLIENT key of the settings files
+	 * @param pType type name (case insensitive), null or empty for the default
+	 * @return transport type
+	 */
+	public static Transport.Type parseType(String pType) {
+		if(pType==null||pType.trim().length()==0) return Transport.Type.URLCONNECTION;
+		return Transport.Type.valueOf(pType.trim().toUpperCase());
+	}
+
+	/**
+	 * Create an SSL context that accepts any certificate
+	 * @param pDebug print certificates as they are checked
+	 * @return SSL context, or null on error
+	 */
+	public static SSLContext createTrustAllContext(boolean pDebug) {
+		SSLContext context = null;
+		try {
+			context = SSLContext.getInstance("TLS");
+			//WARNING: this accepts any secure connection!
+			context.init(null, new TrustManager[] { new AbsoluteTrustManager(pDebug) }, new SecureRandom());
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (KeyManagementException e) {
+			e.printStackTrace();
+		}
+		return context;
+	}
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.fclib.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.PasswordAuthentication;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import uk.bl.dpt.fclib.https.TlsConfig;
+
+/**
+ * Transport over HttpURLConnection.  Request bodies are streamed rather than buffered in
+ * memory, so credentials are sent with every request instead of in answer to a challenge.
+ * HttpURLConnection only supports the standard methods, so WebDAV methods (MKCOL, PROPFIND)
+ * are sent with a pooled Apache HttpClient instead.
+ * @author wpalmer
+ *
+ */
+public class URLConnectionTransport implements Transport {
+
+	private static final Set<String> STANDARD_METHODS = new HashSet<String>(Arrays.asList(
+			"GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+	private String gUser;
+	private String gPassword;
+	private Authenticator gAuth;
+	private String gAuthorization = null;
+	private TlsConfig gTls;
+	private HostnameVerifier gHostnameVerifier;
+	private int gConnectTimeout;
+	private int gReadTimeout;
+	private int gMaxConnections;
+	private DefaultHttpClient gClient = null;
+
+	/**
+	 * Create a transport
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pContext SSL context for https connections
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 * @param pMaxConnections size of the connection pool for WebDAV methods (0 for no limit)
+	 */
+	public URLConnectionTransport(String pUser, String pPassword, SSLContext pContext, int pConnectTimeout, int pReadTimeout, int pMaxConnections) {
+		this(pUser, pPassword, pContext==null?null:TlsConfig.forContext(pContext), pConnectTimeout, pReadTimeout, pMaxConnections);
+	}
+
+	/**
+	 * Create a transport
+	 * @param pUser user (null or empty for none)
+	 * @param pPassword password
+	 * @param pTls TLS settings for https connections (null to accept any certificate)
+	 * @param pConnectTimeout connect timeout in ms (0 for none)
+	 * @param pReadTimeout read timeout in ms (0 for none)
+	 * @param pMaxConnections size of the connection pool for WebDAV methods (0 for no limit)
+	 */
+	public URLConnectionTransport(String pUser, String pPassword, TlsConfig pTls, int pConnectTimeout, int pReadTimeout, int pMaxConnections) {
+		gUser = pUser;
+		gPassword = pPassword==null?"":pPassword;
+		gTls = pTls!=null?pTls:new TlsConfig();
+		gHostnameVerifier = gTls.getHostnameVerifier();
+		gConnectTimeout = pConnectTimeout;
+		gReadTimeout = pReadTimeout;
+		gMaxConnections = pMaxConnections;
+		if(gUser!=null&&gUser.length()>0) {
+			gAuth = new Authenticator() {
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(gUser, gPassword.toCharArray());
+				}
+			};
+			gAuthorization = getBasicAuthorization(gUser, gPassword);
+		}
+	}
+
+	/**
+	 * @param pUser user
+	 * @param pPassword password
+	 * @return value for a Basic Authorization header
+	 */
+	static String getBasicAuthorization(String pUser, String pPassword) {
+		return "Basic "+Base64.getEncoder().encodeToString((pUser+":"+pPassword).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Response send(Request pRequest) throws IOException {
+		if(!STANDARD_METHODS.contains(pRequest.getMethod())) {
+			return sendWithHttpClient(pRequest);
+		}
+
+		HttpURLConnection conn = (HttpURLConnection)new URL(pRequest.getURI()).openConnection();
+		if(gAuth!=null) {
+			conn.setAuthenticator(gAuth);
+			conn.setRequestProperty("Authorization", gAuthorization);
+		}
+		conn.setRequestMethod(pRequest.getMethod());
+		conn.setConnectTimeout(gConnectTimeout);
+		conn.setReadTimeout(gReadTimeout);
+
+		if(conn instanceof HttpsURLConnection) {
+			//one socket factory (and so one session cache) for all requests
+			((HttpsURLConnection)conn).setSSLSocketFactory(gTls.getSocketFactory());
+			//WARNING: unless verifying hostnames this allows all hostnames!
+			((HttpsURLConnection)conn).setHostnameVerifier(gHostnameVerifier);
+		}
+
+		for(Map.Entry<String, String> header:pRequest.getHeaders().entrySet()) {
+			conn.setRequestProperty(header.getKey(), header.getValue());
+		}
+
+		try {
+			if(pRequest.hasBody()) {
+				long size = pRequest.getBodyLength();
+				conn.setDoOutput(true);
+				conn.setFixedLengthStreamingMode(size);
+				InputStream in = pRequest.getFile()!=null?
+						new BufferedInputStream(new FileInputStream(pRequest.getFile())):
+						new ByteArrayInputStream(pRequest.getBytes());
+				try {
+					OutputStream out;
+					try {
+						out = conn.getOutputStream();
+					} catch(ProtocolException e) {
+						//with "Expect: 100-continue" the server answered with a final status
+						//instead; the body was not sent and the response can still be read
+						if(!pRequest.getHeaders().containsKey("Expect")) throw e;
+						conn.getResponseCode();
+						return new URLConnectionResponse(conn);
+					}
+					byte[] buffer = new byte[32768];
+					int bytesRead = 0;
+					long count = 0;
+					//note: fis.isAvailable() does not work here (returns false before end of stream)
+					while(count<size) {
+						bytesRead = in.read(buffer);
+						if(bytesRead<0) throw new IOException("File shorter than expected: "+pRequest.getFile());
+						out.write(buffer, 0, bytesRead);
+						count+=bytesRead;
+					}
+					out.close();
+				} finally {
+					in.close();
+				}
+			}
+			//wait for the response headers
+			conn.getResponseCode();
+		} catch(IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+		return new URLConnectionResponse(conn);
+	}
+
+	//most of an unread body read on close() to keep the connection; more is left to HttpURLConnection
+	private static final int DRAIN_LIMIT = 64*1024;
+
+	private static class URLConnectionResponse implements Response {
+		private HttpURLConnection gConnection;
+		private int gStatus;
+		private InputStream gBody = null;
+		private URLConnectionResponse(HttpURLConnection pConnection) throws IOException {
+			gConnection = pConnection;
+			gStatus = pConnection.getResponseCode();
+		}
+		public int getStatus() { return gStatus; }
+		public String getHeader(String pName) { return gConnection.getHeaderField(pName); }
+		public synchronized InputStream getBody() throws IOException {
+			if(gBody==null) gBody = gConnection.getInputStream();
+			return gBody;
+		}
+		public synchronized InputStream getErrorBody() {
+			if(gBody==null) gBody = gConnection.getErrorStream();
+			if(gBody==null) gBody = new ByteArrayInputStream(new byte[0]);
+			return gBody;
+		}
+		public String getURI() { return gConnection.getURL().toString(); }
+		public String getProtocol() { return "HTTP/1.1"; }
+		public synchronized void close() {
+			//read the rest of the body (up to a limit) so the connection goes straight back to
+			//the keep-alive cache; disconnect() would close the socket
+			try {
+				if(gBody==null) {
+					gBody = gStatus>=HttpURLConnection.HTTP_BAD_REQUEST?gConnection.getErrorStream():gConnection.getInputStream();
+				}
+				if(gBody!=null) {
+					byte[] buffer = new byte[8192];
+					long left = DRAIN_LIMIT;
+					int read;
+					while(left>0&&(read = gBody.read(buffer, 0, (int)Math.min(buffer.length, left)))>=0) left -= read;
+					gBody.close();
+				}
+			} catch(IOException e) {
+				gConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @return the client used for WebDAV methods, created on first use and shared by all threads
+	 */
+	private synchronized DefaultHttpClient getClient() throws IOException {
+		if(gClient==null) {
+			//http://hc.apache.org/httpcomponents-client-ga/tutorial/html/connmgmt.html
+			SchemeRegistry schemeRegistry = new SchemeRegistry();
+			schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+			//WARNING: unless verifying hostnames this allows all hostnames!
+			schemeRegistry.register(new Scheme("https", 443, new org.apache.http.conn.ssl.SSLSocketFactory(gTls.getSocketFactory(),
+					gTls.isVerifyHostname()?org.apache.http.conn.ssl.SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER:
+						org.apache.http.conn.ssl.SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)));
+
+			PoolingClientConnectionManager connManager = new PoolingClientConnectionManager(schemeRegistry);
+			//set this to a silly high value unless limited
+			int maxConnectionsPerHost = gMaxConnections>0?gMaxConnections:5000;
+			connManager.setMaxTotal(maxConnectionsPerHost);
+			connManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+			gClient = new DefaultHttpClient(connManager);
+			HttpConnectionParams.setConnectionTimeout(gClient.getParams(), gConnectTimeout);
+			HttpConnectionParams.setSoTimeout(gClient.getParams(), gReadTimeout);
+
+			if(gUser!=null&&gUser.length()>0) {
+				gClient.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(gUser, gPassword));
+			}
+		}
+		return gClient;
+	}
+
+	private Response sendWithHttpClient(Request pRequest) throws IOException {
+		URL url = new URL(pRequest.getURI());
+		String path = url.getFile();
+		HttpRequest request;
+		if(pRequest.hasBody()) {
+			BasicHttpEntityEnclosingRequest withBody = new BasicHttpEntityEnclosingRequest(pRequest.getMethod(), path);
+			withBody.setEntity(pRequest.getFile()!=null?new FileEntity(pRequest.getFile()):new ByteArrayEntity(pRequest.getBytes()));
+			request = withBody;
+		} else {
+			request = new BasicHttpRequest(pRequest.getMethod(), path);
+		}
+		for(Map.Entry<String, String> header:pRequest.getHeaders().entrySet()) {
+			request.setHeader(header.getKey(), header.getValue());
+		}
+		HttpHost host = new HttpHost(url.getHost(), url.getPort()==-1?url.getDefaultPort():url.getPort(), url.getProtocol());
+		return new HttpClientResponse(pRequest.getURI(), getClient().execute(host, request));
+	}
+
+	private static class HttpClientResponse implements Response {
+		private String gURI;
+		private HttpResponse gResponse;
+		private InputStream gBody = null;
+		private HttpClientResponse(String pURI, HttpResponse pResponse) {
+			gURI = pURI;
+			gResponse = pResponse;
+		}
+		public int getStatus() { return gResponse.getStatusLine().getStatusCode(); }
+		public String getHeader(String pName) {
+			Header header = gResponse.getFirstHeader(pName);
+			return header==null?null:header.getValue();
+		}
+		public InputStream getBody() throws IOException {
+			if(getStatus()>=HttpURLConnection.HTTP_BAD_REQUEST) {
+				throw new IOException("Server returned HTTP response code: "+getStatus()+" for URL: "+gURI);
+			}
+			return getErrorBody();
+		}
+		public synchronized InputStream getErrorBody() {
+			if(gBody==null) {
+				HttpEntity entity = gResponse.getEntity();
+				try {
+					gBody = entity==null?null:entity.getContent();
+				} catch(IOException e) {
+					gBody = null;
+				}
+				if(gBody==null) gBody = new ByteArrayInputStream(new byte[0]);
+			}
+			return gBody;
+		}
+		public String getURI() { return gURI; }
+		public String getProtocol() { return gResponse.getProtocolVersion().toString(); }
+		public void close() {
+			//read any remaining body so the connection goes back to the pool
+			try {
+				EntityUtils.consume(gResponse.getEntity());
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if(gClient!=null) {
+			gClient.getConnectionManager().shutdown();
+			gClient = null;
+		}
+	}
+
+}